@@ -58,6 +58,7 @@ import ij.ImageStack;
 import ij.WindowManager;
 import ij.gui.MultiLineLabel;
 import ij.measure.Calibration;
+import ij.plugin.ContrastEnhancer;
 import ij.plugin.PlugIn;
 import ij.plugin.ZProjector;
 import ij.process.FloatProcessor;
@@ -71,8 +72,13 @@ import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import mpicbg.stitching.ComparePairScheduler;
+import mpicbg.stitching.StitchingThreadPool;
+import mpicbg.stitching.TileGridIndex;
 import stitching.CommonFunctions;
 import stitching.GridLayout;
 import stitching.ImageInformation;
@@ -96,6 +102,10 @@ public class Stitch_Image_Collection implements PlugIn
 	public double alpha, thresholdR, thresholdDisplacementRelative, thresholdDisplacementAbsolute;
 	public String rgbOrder;
 	
+	// fit all tiles of an iteration of the global optimization at once on all cores,
+	// converges to a slightly different result than fitting one tile after the other
+	public boolean multiThreadedOptimization = false;
+	
 	public static String fileNameStatic = "TileConfiguration.txt";
 	public static boolean computeOverlapStatic = true;
 	public static String handleRGBStatic = colorList[colorList.length - 1];
@@ -106,6 +116,7 @@ public class Stitch_Image_Collection implements PlugIn
 	public static double thresholdDisplacementRelativeStatic = 2.5;
 	public static double thresholdDisplacementAbsoluteStatic = 3.5;
 	public static boolean previewOnlyStatic = false;
+	public static boolean multiThreadedOptimizationStatic = false;
 
 	
 	@Override
@@ -124,6 +135,7 @@ public class Stitch_Image_Collection implements PlugIn
 		gd.addNumericField("Max/Avg Displacement Threshold", thresholdDisplacementRelativeStatic, 2);		
 		gd.addNumericField("Absolute Avg Displacement Threshold", thresholdDisplacementAbsoluteStatic, 2);		
 		gd.addCheckbox("Create_only_Preview", previewOnlyStatic);
+		gd.addCheckbox("Parallel_global_optimization (slightly different result)", multiThreadedOptimizationStatic);
 		gd.addMessage("");
 		gd.addMessage("This Plugin is developed by Stephan Preibisch\n" + myURL);
 
@@ -163,6 +175,9 @@ public class Stitch_Image_Collection implements PlugIn
 		boolean previewOnly = gd.getNextBoolean();
 		previewOnlyStatic = previewOnly;
 		
+		this.multiThreadedOptimization = gd.getNextBoolean();
+		multiThreadedOptimizationStatic = multiThreadedOptimization;
+		
 		work(fileName, previewOnly, computeOverlap, fusionMethod, handleRGB, true);		
 	}
 	
@@ -192,7 +207,7 @@ public class Stitch_Image_Collection implements PlugIn
 			Log.info("" + iI);	
 		
 		// make max intensity projection and find overlapping tiles
-		ArrayList<OverlapProperties> overlappingTiles = findOverlappingTiles(imageInformationList, createPreview, fusionMethod);
+		ArrayList<OverlapProperties> overlappingTiles = findOverlappingTiles(imageInformationList, createPreview);
 				
 		// ask if we should start like this
 		if (createPreview)
@@ -364,7 +379,13 @@ public class Stitch_Image_Collection implements PlugIn
 				else
 					imp = iI.imp;
 
-				cal = updateCalibration( cal, iI.imp.getCalibration() );
+				if (imp == null)
+				{
+					Log.error("Cannot load " + iI.imageName + ", it is missing in the fused image.");
+					continue;
+				}
+
+				cal = updateCalibration( cal, imp.getCalibration() );
 				
 				final Object[] imageStack1 = imp.getStack().getImageArray();
 				final int w1 = imp.getStack().getWidth();
@@ -521,20 +542,25 @@ public class Stitch_Image_Collection implements PlugIn
 	        final Thread[] threads = CommonFunctions.newThreads();
 	        final int numThreads = threads.length;
 
-	        // load the images
 	        for (ImageInformation iI : imageInformationList)
+	        	if (iI.calibration != null)
+	        		cal = updateCalibration( cal, iI.calibration );
+	        
+	        // find the tiles of a pixel in the cells of a grid instead of testing all tiles,
+	        // and the tiles of a column of the output image in a grid along x
+	        final TileGridIndex index = getGridIndex(imageInformationList, dim);
+	        final TileGridIndex columnIndex = getGridIndex(imageInformationList, 1);
+	        
+	        // every image is loaded when the first of its columns is fused and unloaded after the last one
+	        final AtomicInteger[] remainingColumns = new AtomicInteger[imageInformationList.size()];
+	        
+	        for (int i = 0; i < remainingColumns.length; ++i)
 	        {
-				if (iI.imp == null)
-					iI.tmp = CommonFunctions.loadImage("", iI.imageName, iI.seriesNumber, rgbOrder);
-				else
-					iI.tmp = iI.imp;		
-				
-				cal = updateCalibration( cal, iI.imp.getCalibration() );
-				
-				iI.imageStack = iI.tmp.getStack().getImageArray();
-				iI.w = iI.tmp.getStack().getWidth();
-				iI.h = iI.tmp.getStack().getHeight();
-				iI.d = iI.tmp.getStack().getSize();
+	        	final ImageInformation iI = imageInformationList.get(i);
+	        	final int start = Math.max(0, round(iI.position[0]));
+	        	final int end = Math.min(imgW, round(iI.position[0] + iI.size[0]));
+	        	
+	        	remainingColumns[i] = new AtomicInteger(Math.max(0, end - start));
 	        }
 	        
 	        for (int ithread = 0; ithread < threads.length; ++ithread)
@@ -564,11 +590,28 @@ public class Stitch_Image_Collection implements PlugIn
 	        			for (pos[0] = 0; pos[0]< imgW; pos[0]++)
 	        				if (pos[0]%numThreads == myNumber)
 		        			{
+	        				final ArrayList<Integer> columnTiles = getTilesOfColumn(imageInformationList, columnIndex, pos[0]);
+	        				
+	        				for (final int i : columnTiles)
+	        					loadImage(imageInformationList.get(i), rgbOrder);
+	        				
+	        				long lastKey = -1;
+	        				List<Integer> candidates = null;
+	        				
 	        				for (pos[1]= 0; pos[1] < imgH; pos[1]++)
 	        					for (pos[2] = 0; pos[2] < imgD; pos[2]++)
 	        					{						
+	        						// the tiles of the cell only change when the coordinate enters the next cell
+	        						final long key = index.getKeyAt(pos);
+	        						
+	        						if (candidates == null || key != lastKey)
+	        						{
+	        							candidates = index.getTiles(key);
+	        							lastKey = key;
+	        						}
+	        						
 	        						// check which images are needed for this coordinate
-	        						final int num = getImagesAtCoordinate(imageInformationList, indices, pos);
+	        						final int num = getImagesAtCoordinate(imageInformationList, candidates, indices, pos);
 	        						
 	        						if (num > 0)
 	        						{
@@ -676,6 +719,10 @@ public class Stitch_Image_Collection implements PlugIn
 	        						}
 	        					}
 	        				
+	        				for (final int i : columnTiles)
+	        					if (remainingColumns[i].decrementAndGet() == 0)
+	        						unloadImage(imageInformationList.get(i));
+	        				
 	        				int line = progress.incrementAndGet();
 	        				
 	        				// only the first Thread redraws
@@ -700,15 +747,9 @@ public class Stitch_Image_Collection implements PlugIn
 	        
 	        CommonFunctions.startAndJoin(threads);	
 	        
-	        // close all images
+	        // close the images that were not needed for any column
 	        for (ImageInformation iI : imageInformationList)
-	        {
-				if (iI.closeAtEnd)
-					iI.tmp.close();
-				
-				iI.tmp = null;
-				iI.imageStack = null;	        	
-	        }
+	        	unloadImage(iI);
 		}
 		
 		if (imageType == ImagePlus.GRAY32)
@@ -917,66 +958,114 @@ public class Stitch_Image_Collection implements PlugIn
 		return (int)( value + (0.5f * Math.signum( value ) ) );
 	}	
 
-	final private static int getImagesAtCoordinate(final ArrayList<ImageInformation> imageInformationList, final ImageInformation indices[], final int[] pos)
+	final private static int getImagesAtCoordinate(final ArrayList<ImageInformation> imageInformationList, final List<Integer> candidates, final ImageInformation indices[], final int[] pos)
 	{
 		int num = 0;
 		
-		for (final ImageInformation iI : imageInformationList)
+		for (final int i : candidates)
 		{
+			final ImageInformation iI = imageInformationList.get(i);
+			
 			// check if pixel is inside the image
 			boolean isInside = true;
 			for (int dim = 0; dim < iI.dim && isInside; dim++)
 				if ( !(pos[dim] >= round(iI.position[dim]) && pos[dim] < round(iI.position[dim] + iI.size[dim]) ) )
 					isInside = false;
 			
-			if (isInside)
-			{
-				//TODO: Thread safe loading
-				// is the image loaded?
-				/*if (iI.tmp == null)
-				{
-					if (iI.imp == null)
-						iI.tmp = new Opener().openImage(iI.imageName);
-					else
-						iI.tmp = iI.imp;		
-					
-					iI.imageStack = iI.tmp.getStack().getImageArray();
-					iI.w = iI.tmp.getStack().getWidth();
-					iI.h = iI.tmp.getStack().getHeight();
-					iI.d = iI.tmp.getStack().getSize();
-				}*/
-				
+			// tiles that could not be loaded are skipped
+			if (isInside && iI.imageStack != null)
 				indices[num++] = iI;
+		}
+		return num;
+	}
+	
+	/**
+	 * Builds a grid index over the positions of the tiles in the fused image, rounded the same way
+	 * as the test whether a pixel is inside a tile.
+	 */
+	final private static TileGridIndex getGridIndex(final ArrayList<ImageInformation> imageInformationList, final int dim)
+	{
+		final float[][] offsets = new float[imageInformationList.size()][dim];
+		final int[][] sizes = new int[imageInformationList.size()][dim];
+		
+		for (int i = 0; i < offsets.length; ++i)
+		{
+			final ImageInformation iI = imageInformationList.get(i);
+			
+			for (int d = 0; d < dim; ++d)
+			{
+				offsets[i][d] = round(iI.position[d]);
+				sizes[i][d] = round(iI.position[d] + iI.size[d]) - round(iI.position[d]);
 			}
-			else // check if we can unload the image
+		}
+		
+		return new TileGridIndex(offsets, sizes, dim);
+	}
+	
+	/**
+	 * Returns the indices of all tiles that cover a column x of the fused image.
+	 */
+	final private static ArrayList<Integer> getTilesOfColumn(final ArrayList<ImageInformation> imageInformationList, final TileGridIndex columnIndex, final int x)
+	{
+		final ArrayList<Integer> tiles = new ArrayList<Integer>();
+		
+		for (final int i : columnIndex.getTiles(columnIndex.getKeyAt(new int[]{ x })))
+		{
+			final ImageInformation iI = imageInformationList.get(i);
+			
+			if (x >= round(iI.position[0]) && x < round(iI.position[0] + iI.size[0]))
+				tiles.add(i);
+		}
+		
+		return tiles;
+	}
+	
+	/**
+	 * Loads the pixels of a tile for fusion unless they are loaded already, several threads may
+	 * need the same tile at once. Tiles that were opened by the stitching itself are not kept open
+	 * after the phase correlation, so they are read again here. A tile that cannot be read is left
+	 * out of the fused image.
+	 */
+	final private static void loadImage(final ImageInformation iI, final String rgbOrder)
+	{
+		synchronized (iI)
+		{
+			if (iI.imageStack != null || iI.invalid)
+				return;
+			
+			if (iI.imp == null)
+				iI.tmp = CommonFunctions.loadImage("", iI.imageName, iI.seriesNumber, rgbOrder);
+			else
+				iI.tmp = iI.imp;		
+			
+			if (iI.tmp == null)
 			{
-				//TODO: Thread safe unloading
-				
-				// if loaded
-				/*if (iI.tmp != null)
-				{
-					// check if it will not be needed again (x, y bigger)
-					boolean needed = true;
-					
-					for (int dim = 0; dim < 2 && needed; dim++)
-						if ( pos[dim] < Math.round(iI.position[dim] + iI.size[dim]) )
-							needed = false;
-					
-					if (needed)
-					{
-						if (iI.imp == null)
-							iI.tmp.close();
-						
-						iI.tmp = null;
-						iI.imageStack = null;
-					}
-					
-					
-				}*/
+				Log.error("Cannot load " + iI.imageName + ", it is missing in the fused image.");
+				iI.invalid = true;
+				return;
 			}
 			
+			iI.imageStack = iI.tmp.getStack().getImageArray();
+			iI.w = iI.tmp.getStack().getWidth();
+			iI.h = iI.tmp.getStack().getHeight();
+			iI.d = iI.tmp.getStack().getSize();
+		}
+	}
+	
+	/**
+	 * Releases the pixels of a tile once all of its columns are fused, and closes the image
+	 * unless it was opened by the user.
+	 */
+	final private static void unloadImage(final ImageInformation iI)
+	{
+		synchronized (iI)
+		{
+			if (iI.tmp != null && iI.closeAtEnd)
+				iI.tmp.close();
+			
+			iI.tmp = null;
+			iI.imageStack = null;
 		}
-		return num;
 	}
 	
 	protected static float[] getAndApplyMinMax(final ArrayList<ImageInformation> imageInformationList, final int dim)
@@ -1120,6 +1209,7 @@ public class Stitch_Image_Collection implements PlugIn
 			tc = new TileConfiguration();
 			tc.addTiles( tiles );
 			tc.fixTile( tiles.get( 0 ) );						
+			tc.setMultiThreaded( multiThreadedOptimization );
 			
 			//Log.info(" tiles size =" + tiles.size());
 			//Log.info(" tc.getTiles() size =" + tc.getTiles().size());
@@ -1180,125 +1270,332 @@ public class Stitch_Image_Collection implements PlugIn
 	}
 	
 	/**
-	 * Compute phase correlation between overlapping tiles
+	 * Compute phase correlation between overlapping tiles. The pairs are processed concurrently on the
+	 * shared pool as long as their estimated memory fits into the free heap, and the threads of the pool
+	 * are split among the pairs that can run at the same time. Each image is loaded only once and kept as
+	 * long as pairs that use it are still pending, so that only the images around the pairs that are
+	 * currently processed are in memory. The memory of an image is reserved with the first pair that
+	 * needs it and stays charged to the budget until its last pair is done.
 	 * 
 	 * @param overlappingTiles list of overlapping tiles
 	 * @param handleRGB RGB mode (@see stitching.CommonFunctions.colorList)
 	 */
-	private void computePhaseCorrelations(final ArrayList<OverlapProperties> overlappingTiles, String handleRGB)
+	private void computePhaseCorrelations(final ArrayList<OverlapProperties> overlappingTiles, final String handleRGB)
 	{
+		if (dim != 2 && dim != 3)
+		{
+			IJ.error("Dimensionality of images: " + dim  + " is not supported yet.");
+			return;
+		}
+		
+		if (overlappingTiles.isEmpty())
+			return;
+		
+		// the number of pairs every image is still needed for
+		final HashMap<ImageInformation, Integer> pending = new HashMap<ImageInformation, Integer>();
+		final HashMap<ImageInformation, ImagePlus> loaded = new HashMap<ImageInformation, ImagePlus>();
+		
 		for (final OverlapProperties o : overlappingTiles)
+			for (final ImageInformation iI : new ImageInformation[]{ o.i1, o.i2 })
+				pending.put(iI, pending.containsKey(iI) ? pending.get(iI) + 1 : 1);
+		
+		// the pair that loads an image, pairs are started in the order of the list
+		final HashMap<ImageInformation, Integer> firstPair = new HashMap<ImageInformation, Integer>();
+		final long[] memory = new long[overlappingTiles.size()];
+		
+		for (int i = 0; i < memory.length; ++i)
 		{
-			final ImagePlus imp1, imp2;
-
-			if (o.i1.imp == null)
-			{
-				imp1 = CommonFunctions.loadImage("", o.i1.imageName, o.i1.seriesNumber, rgbOrder);
-				o.i1.closeAtEnd = true;
-			}
-			else
-				imp1 = o.i1.imp;
-
-			if (o.i2.imp == null)
-			{
-				imp2 = CommonFunctions.loadImage("", o.i2.imageName, o.i2.seriesNumber, rgbOrder);
-				o.i2.closeAtEnd = true;
-			}
-			else
-			{
-				imp2 = o.i2.imp;
-			}
+			final OverlapProperties o = overlappingTiles.get(i);
+			memory[i] = estimateMemory(o);
 			
-			// where do we overlap?
-			setROI(imp1, o.i1, o.i2);
-			setROI(imp2, o.i2, o.i1);
-			
-			//imp1.show();
-			//imp2.show();
-			
-			if (dim == 3)
+			for (final ImageInformation iI : new ImageInformation[]{ o.i1, o.i2 })
+				if (iI.imp == null && !firstPair.containsKey(iI))
+				{
+					firstPair.put(iI, i);
+					memory[i] += getImageBytes(iI);
+				}
+		}
+		
+		final int maxRunning = Math.min(overlappingTiles.size(), StitchingThreadPool.getParallelism());
+		final ComparePairScheduler scheduler = new ComparePairScheduler(memory, ComparePairScheduler.getMemoryBudget(), maxRunning);
+		
+		// pairs are started in the order of the list, so images are released in the same order
+		scheduler.run(new ComparePairScheduler.Task()
+		{
+			@Override
+			public void run(final int i, final int numThreads)
 			{
-				final Stitching_3D stitch = new Stitching_3D();
-				stitch.checkPeaks = 5;
-				stitch.coregister = false;
-				stitch.fusedImageName = "Fused " + imp1.getTitle() + " " + imp2.getTitle();
-				stitch.fuseImages = false;
-				stitch.handleRGB1 = handleRGB;
-				stitch.handleRGB2 = handleRGB;				
-				stitch.imgStack1 = imp1.getTitle();				
-				stitch.imgStack2 = imp2.getTitle();
-				stitch.imp1 = imp1;
-				stitch.imp2 = imp2;
-				stitch.doLogging = false;
-				stitch.computeOverlap = true;
+				final OverlapProperties o = overlappingTiles.get(i);
 				
 				try
 				{
-					stitch.work();
+					final ImagePlus imp1 = acquireImage(o.i1, loaded);
+					final ImagePlus imp2 = acquireImage(o.i2, loaded);
 					
-					o.R = stitch.getCrossCorrelationResult().R;
-					o.translation3D = stitch.getTranslation();
+					if (imp1 == null || imp2 == null)
+					{
+						Log.error("Could not load " + o.i1.imageName + " or " + o.i2.imageName + ", ignoring their overlap.");
+						o.R = -1;
+						o.translation2D = new Point2D(0, 0);
+						o.translation3D = new Point3D(0, 0, 0);
+					}
+					else
+					{
+						computePhaseCorrelation(o, imp1, imp2, handleRGB, numThreads);
+					}
 				}
-				catch (Exception e)
+				finally
 				{
-					o.R = -1;
-					o.translation3D = new Point3D(0,0,0);
+					releaseImage(o.i1, i, pending, loaded, firstPair, scheduler);
+					releaseImage(o.i2, i, pending, loaded, firstPair, scheduler);
 				}
-								
-				Log.info(o.i1.id + " overlaps " + o.i2.id + ": " + o.R + " translation: " + o.translation3D);
 			}
-			else if (dim == 2)
+		});
+	}
+	
+	/**
+	 * Estimates the memory of the phase correlation of a pair without the images of both tiles, the
+	 * copies of their overlap and the transforms of the overlap.
+	 */
+	private long estimateMemory(final OverlapProperties o)
+	{
+		final int[] size1 = getOverlapSize(o.i1, o.i2);
+		final int[] size2 = getOverlapSize(o.i2, o.i1);
+		
+		long inputBytes = 0;
+		
+		// in 2d the copy of the image that is contrast enhanced
+		if (dim == 2)
+			inputBytes += getImageBytes(o.i1) + getImageBytes(o.i2);
+		
+		// the overlaps as float arrays before they are extended
+		inputBytes += 4 * (ComparePairScheduler.numPixels(size1) + ComparePairScheduler.numPixels(size2));
+		
+		return ComparePairScheduler.estimateMemory(size1, size2, inputBytes);
+	}
+	
+	/**
+	 * @return the memory of the image of a tile in bytes
+	 */
+	private long getImageBytes(final ImageInformation iI)
+	{
+		long numPixels = 1;
+		
+		for (int d = 0; d < dim; ++d)
+			numPixels *= Math.max(1, Math.round(iI.size[d]));
+		
+		return numPixels * ComparePairScheduler.getBytesPerPixel(iI.imageType);
+	}
+	
+	/**
+	 * @return the size of the overlap of the first tile with the second, the whole tile where they do not overlap along a dimension
+	 */
+	private int[] getOverlapSize(final ImageInformation i1, final ImageInformation i2)
+	{
+		final Rectangle overlap = getOverlap(i1, i2);
+		final int[] size = new int[dim];
+		
+		size[0] = overlap.width > 0 ? overlap.width : Math.round(i1.size[0]);
+		size[1] = overlap.height > 0 ? overlap.height : Math.round(i1.size[1]);
+		
+		if (dim == 3)
+			size[2] = Math.round(i1.size[2]);
+		
+		return size;
+	}
+	
+	/**
+	 * Returns the image of a tile, loading it once if it is not open. The image is shared by all pairs
+	 * of the tile, which must not modify it.
+	 */
+	private ImagePlus acquireImage(final ImageInformation iI, final HashMap<ImageInformation, ImagePlus> loaded)
+	{
+		if (iI.imp != null)
+			return iI.imp;
+		
+		// only one thread loads a certain image, the others wait for it
+		synchronized (iI)
+		{
+			synchronized (loaded)
+			{
+				if (loaded.containsKey(iI))
+					return loaded.get(iI);
+			}
+			
+			final ImagePlus imp = CommonFunctions.loadImage("", iI.imageName, iI.seriesNumber, rgbOrder);
+			
+			// processor and stack are created lazily, which must not happen concurrently
+			if (imp != null)
+			{
+				imp.getProcessor();
+				imp.getStack();
+			}
+			
+			synchronized (loaded)
 			{
-				final Stitching_2D stitch = new Stitching_2D();
-				stitch.checkPeaks = 5;
-				stitch.fusedImageName = "Fused " + imp1.getTitle() + " " + imp2.getTitle();
-				stitch.fuseImages = false;
-				stitch.handleRGB1 = handleRGB;
-				stitch.handleRGB2 = handleRGB;
-				stitch.image1 = imp1.getTitle();
-				stitch.image2 = imp2.getTitle();
+				loaded.put(iI, imp);
+			}
+			
+			return imp;
+		}
+	}
+	
+	/**
+	 * Closes a loaded image once all pairs of its tile are done. The memory of the image is part of the
+	 * memory of the pair that loads it, if other pairs still need the image when that pair is done, it is
+	 * charged to the budget until the last of them is done.
+	 * 
+	 * @param pair the index of the pair that is done
+	 */
+	private void releaseImage(final ImageInformation iI, final int pair, final HashMap<ImageInformation, Integer> pending, final HashMap<ImageInformation, ImagePlus> loaded,
+			final HashMap<ImageInformation, Integer> firstPair, final ComparePairScheduler scheduler)
+	{
+		synchronized (loaded)
+		{
+			final int remaining = pending.get(iI) - 1;
+			final boolean isFirstPair = firstPair.containsKey(iI) && firstPair.get(iI) == pair;
+			
+			if (remaining == 0)
+			{
+				pending.remove(iI);
 				
-				//final ImagePlus imp1b =  new ImagePlus("Imp1 B", imp1.getProcessor().duplicate());
-				final ImageProcessor ip1 = imp1.getProcessor().duplicate();
-				IJ.run(imp1, "Enhance Contrast", "saturated=0.1 normalize");				
-				stitch.imp1 = imp1;
+				final ImagePlus imp = loaded.remove(iI);
 				
-				//final ImagePlus imp2b = new ImagePlus("Imp2 B", imp2.getProcessor().duplicate());
+				if (imp != null)
+					imp.close();
 				
-				final ImageProcessor ip2 = imp2.getProcessor().duplicate();
-				IJ.run(imp2, "Enhance Contrast", "saturated=0.1 normalize");				
-				stitch.imp2 = imp2;
+				if (firstPair.containsKey(iI) && !isFirstPair)
+					scheduler.free(getImageBytes(iI));
+			}
+			else
+			{
+				pending.put(iI, remaining);
 				
-				stitch.doLogging = false;
-				stitch.computeOverlap = true;
+				if (isFirstPair)
+					scheduler.allocate(getImageBytes(iI));
+			}
+		}
+	}
+	
+	/**
+	 * Compute the phase correlation of one pair of overlapping tiles. The images are shared with other
+	 * pairs, so the overlap and the contrast enhancement are applied to views or copies of them.
+	 * 
+	 * @param o the overlapping tiles
+	 * @param imp1 the image of the first tile
+	 * @param imp2 the image of the second tile
+	 * @param handleRGB RGB mode (@see stitching.CommonFunctions.colorList)
+	 * @param numThreads how many threads the FFTs and the peak search of this pair may use
+	 */
+	private void computePhaseCorrelation(final OverlapProperties o, final ImagePlus imp1, final ImagePlus imp2, final String handleRGB, final int numThreads)
+	{
+		if (dim == 3)
+		{
+			// views that share the pixels but not the roi
+			final ImagePlus view1 = new ImagePlus(imp1.getTitle(), imp1.getStack());
+			final ImagePlus view2 = new ImagePlus(imp2.getTitle(), imp2.getStack());
+			view1.setCalibration(imp1.getCalibration());
+			view2.setCalibration(imp2.getCalibration());
+			
+			// where do we overlap?
+			setROI(view1, o.i1, o.i2);
+			setROI(view2, o.i2, o.i1);
+			
+			final Stitching_3D stitch = new Stitching_3D();
+			stitch.checkPeaks = 5;
+			stitch.coregister = false;
+			stitch.fusedImageName = "Fused " + imp1.getTitle() + " " + imp2.getTitle();
+			stitch.fuseImages = false;
+			stitch.handleRGB1 = handleRGB;
+			stitch.handleRGB2 = handleRGB;				
+			stitch.imgStack1 = imp1.getTitle();				
+			stitch.imgStack2 = imp2.getTitle();
+			stitch.imp1 = view1;
+			stitch.imp2 = view2;
+			stitch.doLogging = false;
+			stitch.computeOverlap = true;
+			stitch.numThreads = numThreads;
+			
+			try
+			{
+				stitch.work();
 				
-				try
-				{
-					stitch.work();
-					
-					o.R = stitch.getCrossCorrelationResult().R;
-					o.translation2D = stitch.getTranslation();
-				}
-				catch (Exception e)
-				{
-					o.R = -1;
-					o.translation2D = new Point2D(0, 0);
-				}
+				o.R = stitch.getCrossCorrelationResult().R;
+				o.translation3D = stitch.getTranslation();
+			}
+			catch (Exception e)
+			{
+				o.R = -1;
+				o.translation3D = new Point3D(0,0,0);
+			}
+							
+			Log.info(o.i1.id + " overlaps " + o.i2.id + ": " + o.R + " translation: " + o.translation3D);
+		}
+		else
+		{
+			// the contrast is enhanced on copies, the images themselves stay untouched
+			final ImagePlus copy1 = new ImagePlus(imp1.getTitle(), imp1.getProcessor().duplicate());
+			final ImagePlus copy2 = new ImagePlus(imp2.getTitle(), imp2.getProcessor().duplicate());
+			copy1.setCalibration(imp1.getCalibration());
+			copy2.setCalibration(imp2.getCalibration());
+			
+			// where do we overlap?
+			setROI(copy1, o.i1, o.i2);
+			setROI(copy2, o.i2, o.i1);
+			
+			final Stitching_2D stitch = new Stitching_2D();
+			stitch.checkPeaks = 5;
+			stitch.fusedImageName = "Fused " + imp1.getTitle() + " " + imp2.getTitle();
+			stitch.fuseImages = false;
+			stitch.handleRGB1 = handleRGB;
+			stitch.handleRGB2 = handleRGB;
+			stitch.image1 = imp1.getTitle();
+			stitch.image2 = imp2.getTitle();
+			
+			// same as IJ.run(imp, "Enhance Contrast", "saturated=0.1 normalize"), which is not thread safe
+			enhanceContrast(copy1);
+			stitch.imp1 = copy1;
+			
+			enhanceContrast(copy2);
+			stitch.imp2 = copy2;
+			
+			stitch.doLogging = false;
+			stitch.computeOverlap = true;
+			stitch.numThreads = numThreads;
+			
+			try
+			{
+				stitch.work();
 				
-				imp1.setProcessor(imp1.getTitle(), ip1);
-				imp2.setProcessor(imp2.getTitle(), ip2);
-								
-				Log.info(o.i1.id + " overlaps " + o.i2.id + ": " + o.R + " translation: " + o.translation2D);
+				o.R = stitch.getCrossCorrelationResult().R;
+				o.translation2D = stitch.getTranslation();
 			}
-			else 
+			catch (Exception e)
 			{
-				IJ.error("Dimensionality of images: " + dim  + " is not supported yet.");
-				return;
+				o.R = -1;
+				o.translation2D = new Point2D(0, 0);
 			}
+							
+			Log.info(o.i1.id + " overlaps " + o.i2.id + ": " + o.R + " translation: " + o.translation2D);
 		}
 	}
 	
+	private static void enhanceContrast(final ImagePlus imp)
+	{
+		final ContrastEnhancer ce = new ContrastEnhancer();
+		ce.setNormalize(true);
+		ce.stretchHistogram(imp, 0.1);
+	}
+	
 	private void setROI(final ImagePlus imp, final ImageInformation i1, final ImageInformation i2)
+	{
+		imp.setRoi(getOverlap(i1, i2));
+	}
+	
+	/**
+	 * @return the part of the first tile that the second tile overlaps, empty along the dimensions where it covers the whole tile
+	 */
+	private static Rectangle getOverlap(final ImageInformation i1, final ImageInformation i2)
 	{
 		final int start[] = new int[2], end[] = new int[2];
 		
@@ -1327,12 +1624,16 @@ public class Stitch_Image_Collection implements PlugIn
 			}
 		}
 					
-		imp.setRoi(new Rectangle(start[0], start[1], end[0] - start[0], end[1] - start[1]));		
+		return new Rectangle(start[0], start[1], end[0] - start[0], end[1] - start[1]);
 	}
 	
-	private ArrayList<OverlapProperties> findOverlappingTiles(final ArrayList<ImageInformation> imageInformationList, final boolean createPreview, final String fusionMethod)
+	private ArrayList<OverlapProperties> findOverlappingTiles(final ArrayList<ImageInformation> imageInformationList, final boolean createPreview)
 	{
 		final ZProjector zp = new ZProjector();
+		
+		// the images are only closed and opened again for their pairs if they do not all fit into memory
+		final long budget = ComparePairScheduler.getMemoryBudget();
+		long keptBytes = 0;
 
 		int endX = 0, endY = 0, startX = 0, startY = 0;
 		int count = 0;
@@ -1369,6 +1670,7 @@ public class Stitch_Image_Collection implements PlugIn
 			}
 			
 			iI.imageType = iI.imp.getType();
+			iI.calibration = iI.imp.getCalibration().copy();
 			
 			if (createPreview)
 			{
@@ -1417,8 +1719,18 @@ public class Stitch_Image_Collection implements PlugIn
 				}
 			}
 			
-			if (fusionMethod.equals(methodListCollection[MAX]) && iI.closeAtEnd)
-				iI.imp.close();
+			// if it does not fit, only the size is kept and the image is opened again for its pairs and for the fusion
+			if (iI.closeAtEnd)
+			{
+				keptBytes += getImageBytes(iI);
+				
+				if (keptBytes > budget)
+				{
+					keptBytes -= getImageBytes(iI);
+					iI.imp.close();
+					iI.imp = null;
+				}
+			}
 		}
 		
 		for (int i = 0; i < imageInformationList.size();)
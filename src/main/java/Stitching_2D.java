@@ -61,12 +61,12 @@ import java.awt.Choice;
 import java.awt.event.ItemEvent;
 import java.awt.event.ItemListener;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import stitching.CrossCorrelationResult2D;
 import stitching.FloatArray2D;
 import stitching.ImageInformation;
+import stitching.PeakHeap;
 import stitching.Point2D;
 import stitching.utils.Log;
 
@@ -94,6 +94,9 @@ public class Stitching_2D implements PlugIn
 	public boolean doLogging = true;
 	public ImagePlus imp1 = null, imp2 = null;
 	
+	// how many threads the FFTs and the peak search may use, less if several pairs are computed at once
+	public int numThreads = Runtime.getRuntime().availableProcessors();
+	
 	public Point2D shift = null;	
 	private CrossCorrelationResult2D[] result = null;
 	
@@ -369,11 +372,11 @@ public class Stitching_2D implements PlugIn
 			maxDim = new Point2D(img1.width, img1.height);
 	
 			// compute FFT's
-			fft1 = computeFFT(img1);
-			fft2 = computeFFT(img2);
+			fft1 = computeFFT(img1, numThreads);
+			fft2 = computeFFT(img2, numThreads);
 	
 			// do the phase correlation
-			FloatArray2D invPCM = computePhaseCorrelationMatrix(fft1, fft2, maxDim.x);
+			FloatArray2D invPCM = computePhaseCorrelationMatrix(fft1, fft2, maxDim.x, numThreads);
 			//FloatArrayToImagePlus(invPCM, "invpcm", 0, 0).show();
 	
 			// find the peaks
@@ -1013,75 +1016,79 @@ public class Stitching_2D implements PlugIn
 		return result;
 	}
 
-	private ArrayList<Point2D> findPeaks(FloatArray2D invPCM, Point2D img1, Point2D img2, Point2D ext1, Point2D ext2, int checkPeaks)
+	private ArrayList<Point2D> findPeaks(final FloatArray2D invPCM, Point2D img1, Point2D img2, Point2D ext1, Point2D ext2, final int checkPeaks)
 	{
-		int w = invPCM.width;
-		int h = invPCM.height;
+		final int w = invPCM.width;
+		final int h = invPCM.height;
 
 		int xs, ys, xt, yt;
-		float value;
 
-		ArrayList<Point2D>peaks = new ArrayList<Point2D>();
+		// every thread scans a block of rows and keeps its own highest peaks
+		final int numThreads = Math.max(1, Math.min(h, this.numThreads));
+		final PeakHeap[] heaps = new PeakHeap[numThreads];
+		final AtomicInteger ai = new AtomicInteger(0);
 
-		for (int j = 0; j < checkPeaks; j++)
-			peaks.add(new Point2D(0, 0, Float.MIN_VALUE));
-
-		for (int y = 0; y < h; y++)
-			for (int x = 0; x < w; x++)
-				if (isLocalMaxima(invPCM, x, y))
-				{
-					value = invPCM.get(x, y);
-					Point2D insert = null;
-					int insertPos = -1;
-
-					Iterator<Point2D> i = peaks.iterator();
-					boolean wasBigger = true;
+		Runnable task = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				final int myNumber = ai.getAndIncrement();
+				final PeakHeap heap = new PeakHeap(checkPeaks);
 
-					while (i.hasNext() && wasBigger)
+				for (int y = (int)((long)h * myNumber / numThreads); y < (int)((long)h * (myNumber + 1) / numThreads); y++)
+					for (int x = 0; x < w; x++)
 					{
-						if (value > i.next().value)
-						{
-							if (insert == null)
-								insert = new Point2D(0, 0, value);
+						final float value = invPCM.get(x, y);
 
-							insertPos++;
-						}
-						else
-							wasBigger = false;
+						// peaks have to be higher than the initial entries of the list to be inserted
+						if (value > Float.MIN_VALUE && isLocalMaxima(invPCM, x, y))
+							heap.add(value, invPCM.getPos(x, y));
 					}
 
-					if (insertPos >= 0)
-						peaks.add(insertPos + 1, insert);
+				heaps[myNumber] = heap;
+			}
+		};
 
-					// remove lowest peak
-					if (peaks.size() > checkPeaks)
-						peaks.remove(0);
+		startTask(task, numThreads);
 
-					if (insert != null)
-					{
-						// find relative to the left upper front corners of both images
-						xt = x + (img1.x - img2.x) / 2 - (ext1.x - ext2.x) / 2;
+		final PeakHeap merged = new PeakHeap(checkPeaks);
 
-						if (xt >= w / 2)
-						{
-							xs = xt - w;
-						}
-						else
-							xs = xt;
+		for (final PeakHeap heap : heaps)
+			merged.addAll(heap);
+
+		// the list is sorted from the lowest to the highest peak
+		ArrayList<Point2D>peaks = new ArrayList<Point2D>();
 
-						yt = y + (img1.y - img2.y) / 2 - (ext1.y - ext2.y) / 2;
+		for (int j = merged.size(); j < checkPeaks; j++)
+			peaks.add(new Point2D(0, 0, Float.MIN_VALUE));
 
-						if (yt >= h / 2)
-						{
-							ys = yt - h;
-						}
-						else
-							ys = yt;
+		for (final int i : merged.getAscendingOrder())
+		{
+			final int x = (int)(merged.getPosition(i) % w);
+			final int y = (int)(merged.getPosition(i) / w);
 
-						insert.x = xs;
-						insert.y = ys;
-					}
-				}
+			// find relative to the left upper front corners of both images
+			xt = x + (img1.x - img2.x) / 2 - (ext1.x - ext2.x) / 2;
+
+			if (xt >= w / 2)
+			{
+				xs = xt - w;
+			}
+			else
+				xs = xt;
+
+			yt = y + (img1.y - img2.y) / 2 - (ext1.y - ext2.y) / 2;
+
+			if (yt >= h / 2)
+			{
+				ys = yt - h;
+			}
+			else
+				ys = yt;
+
+			peaks.add(new Point2D(xs, ys, merged.getValue(i)));
+		}
 
 		return peaks;
 	}
@@ -69,12 +69,12 @@ import java.awt.event.ItemEvent;
 import java.awt.event.ItemListener;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.Iterator;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import stitching.CrossCorrelationResult3D;
 import stitching.FloatArray3D;
 import stitching.ImageInformation;
+import stitching.PeakHeap;
 import stitching.Point3D;
 import stitching.utils.Log;
 
@@ -101,6 +101,9 @@ public class Stitching_3D implements PlugIn
 
 	public ImagePlus imp1 = null, imp2 = null;
 	public boolean wasIndexed, doLogging = true;
+	
+	// how many threads the FFTs and the peak search may use, less if several pairs are computed at once
+	public int numThreads = Runtime.getRuntime().availableProcessors();
 	public double minOverlap = 0.01;
 	private ArrayList<String[]> coregStacks;
 	private ArrayList<ImagePlus[]> coregStackIMPs;
@@ -558,15 +561,15 @@ public class Stitching_3D implements PlugIn
 			maxDim = new Point3D(img1.width, img1.height, img1.depth);
 
 			// compute FFT's
-			fft1 = computeFFT(img1);
-			fft2 = computeFFT(img2);
+			fft1 = computeFFT(img1, numThreads);
+			fft2 = computeFFT(img2, numThreads);
 
 			// do the phase correlation
-			FloatArray3D invPCM = computePhaseCorrelationMatrix(fft1, fft2, maxDim.x);
+			FloatArray3D invPCM = computePhaseCorrelationMatrix(fft1, fft2, maxDim.x, numThreads);
 
 			// find the peaks
 			ArrayList<Point3D> peaks = findPeaks(invPCM, img1Dim, img2Dim, ext1Dim, ext2Dim,
-                    checkPeaks);
+                    checkPeaks, numThreads);
 
 			// get the original images
 			img1 = applyROI(imp1, img1Dim, ext1Dim, handleRGB1, false /* no windowing of course*/);
@@ -965,74 +968,88 @@ public class Stitching_3D implements PlugIn
 		return result;
 	}
 
-	public static ArrayList<Point3D> findPeaks(FloatArray3D invPCM, Point3D img1, Point3D img2,
-                                            Point3D ext1, Point3D ext2, int checkPeaks)
+	public static ArrayList<Point3D> findPeaks(final FloatArray3D invPCM, Point3D img1, Point3D img2,
+                                            Point3D ext1, Point3D ext2, final int checkPeaks)
 	{
-		int w = invPCM.width;
-		int h = invPCM.height;
-		int d = invPCM.depth;
-
-		int xs, ys, zs, xt, yt, zt;
-		float value;
+		return findPeaks(invPCM, img1, img2, ext1, ext2, checkPeaks, Runtime.getRuntime().availableProcessors());
+	}
 
-		ArrayList<Point3D> peaks = new ArrayList<Point3D>();
+	public static ArrayList<Point3D> findPeaks(final FloatArray3D invPCM, Point3D img1, Point3D img2,
+                                            Point3D ext1, Point3D ext2, final int checkPeaks, final int maxThreads)
+	{
+		final int w = invPCM.width;
+		final int h = invPCM.height;
+		final int d = invPCM.depth;
 
-		for (int j = 0; j < checkPeaks; j++)
-			peaks.add(new Point3D(0, 0, 0, Float.MIN_VALUE));
+		int xs, ys, zs, xt, yt, zt;
 
-		for (int z = 0; z < d; z++)
-			for (int y = 0; y < h; y++)
-				for (int x = 0; x < w; x++)
-					if (isLocalMaxima(invPCM, x, y, z))
-					{
-						value = invPCM.get(x, y, z);
-						Point3D insert = null;
-						int insertPos = -1;
+		// every thread scans a slab of planes and keeps its own highest peaks
+		final int numThreads = Math.max(1, Math.min(d, maxThreads));
+		final PeakHeap[] heaps = new PeakHeap[numThreads];
+		final AtomicInteger ai = new AtomicInteger(0);
 
-						Iterator<Point3D> i = peaks.iterator();
-						boolean wasBigger = true;
+		Runnable task = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				final int myNumber = ai.getAndIncrement();
+				final PeakHeap heap = new PeakHeap(checkPeaks);
 
-						while (i.hasNext() && wasBigger)
+				for (int z = (int)((long)d * myNumber / numThreads); z < (int)((long)d * (myNumber + 1) / numThreads); z++)
+					for (int y = 0; y < h; y++)
+						for (int x = 0; x < w; x++)
 						{
-							if (value > i.next().value)
-							{
-								if (insert == null) insert = new Point3D(0, 0, 0, value);
+							final float value = invPCM.get(x, y, z);
 
-								insertPos++;
-							}
-							else wasBigger = false;
+							// peaks have to be higher than the initial entries of the list to be inserted
+							if (value > Float.MIN_VALUE && isLocalMaxima(invPCM, x, y, z))
+								heap.add(value, invPCM.getPos(x, y, z));
 						}
 
-						if (insertPos >= 0) peaks.add(insertPos + 1, insert);
+				heaps[myNumber] = heap;
+			}
+		};
 
-						// remove lowest peak
-						if (peaks.size() > checkPeaks) peaks.remove(0);
+		startTask(task, numThreads);
 
-						if (insert != null)
-						{
+		final PeakHeap merged = new PeakHeap(checkPeaks);
 
-							// find relative to the left upper front corners of
-							// both images
-							xt = x + (img1.x - img2.x) / 2 - (ext1.x - ext2.x) / 2;
+		for (final PeakHeap heap : heaps)
+			merged.addAll(heap);
 
-							if (xt >= w / 2) xs = xt - w;
-							else xs = xt;
+		// the list is sorted from the lowest to the highest peak
+		ArrayList<Point3D> peaks = new ArrayList<Point3D>();
 
-							yt = y + (img1.y - img2.y) / 2 - (ext1.y - ext2.y) / 2;
+		for (int j = merged.size(); j < checkPeaks; j++)
+			peaks.add(new Point3D(0, 0, 0, Float.MIN_VALUE));
 
-							if (yt >= h / 2) ys = yt - h;
-							else ys = yt;
+		for (final int i : merged.getAscendingOrder())
+		{
+			final long pos = merged.getPosition(i);
+			final int x = (int)(pos % w);
+			final int y = (int)((pos / w) % h);
+			final int z = (int)(pos / ((long)w * h));
 
-							zt = z + (img1.z - img2.z) / 2 - (ext1.z - ext2.z) / 2;
+			// find relative to the left upper front corners of
+			// both images
+			xt = x + (img1.x - img2.x) / 2 - (ext1.x - ext2.x) / 2;
 
-							if (zt >= d / 2) zs = zt - d;
-							else zs = zt;
+			if (xt >= w / 2) xs = xt - w;
+			else xs = xt;
 
-							insert.x = xs;
-							insert.y = ys;
-							insert.z = zs;
-						}
-					}
+			yt = y + (img1.y - img2.y) / 2 - (ext1.y - ext2.y) / 2;
+
+			if (yt >= h / 2) ys = yt - h;
+			else ys = yt;
+
+			zt = z + (img1.z - img2.z) / 2 - (ext1.z - ext2.z) / 2;
+
+			if (zt >= d / 2) zs = zt - d;
+			else zs = zt;
+
+			peaks.add(new Point3D(xs, ys, zs, merged.getValue(i)));
+		}
 
 		return peaks;
 	}
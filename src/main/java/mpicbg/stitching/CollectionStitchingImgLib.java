@@ -22,15 +22,19 @@
 package mpicbg.stitching;
 
 import ij.IJ;
+import ij.ImagePlus;
 import ij.gui.Roi;
 
 import java.awt.Rectangle;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Vector;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import stitching.utils.Log;
-import mpicbg.imglib.multithreading.SimpleMultiThreading;
 import mpicbg.imglib.util.Util;
 import mpicbg.models.TranslationModel2D;
 import mpicbg.models.TranslationModel3D;
@@ -54,62 +58,101 @@ public class CollectionStitchingImgLib
 				return null;
 			}
 			
+			final long time = System.currentTimeMillis();
+			
+			// reuse the results of a previous run for all pairs whose images and parameters did not change,
+			// the downsampling is interactive and not part of the key
+			final PairwiseResultCache resultCache;
+			final Vector< ComparePair > pending;
+			
+			if ( params.pairwiseResultFile != null && !params.downSample )
+			{
+				resultCache = new PairwiseResultCache( params.pairwiseResultFile, !params.recomputePairwiseResults );
+				pending = new Vector< ComparePair >();
+				
+				for ( final ComparePair pair : pairs )
+					if ( !resultCache.get( PairwiseResultCache.getKey( pair, params ), pair ) )
+						pending.add( pair );
+				
+				if ( resultCache.getHits() > 0 )
+					Log.info( "Reused " + resultCache.getHits() + " of " + pairs.size() + " pairwise results from '" + resultCache.getFile() + "'." );
+			}
+			else
+			{
+				resultCache = null;
+				pending = pairs;
+			}
+			
+			// how many pairs still need each image, so it can be closed after the last one
+			final HashMap< ImageCollectionElement, AtomicInteger > pairsLeft = countPairsPerElement( pending );
+			final boolean release = !params.downSample;
+			
+			// without a known layout all pairs are compared with the whole image, then
+			// every forward transform can be reused for many pairs
+			if ( params.reuseTransforms && params.pyramidFactor <= 1 && reusesTransforms( pending ) )
+				params.fftCache = new FFTCache( params );
+			
 			// compute all compare pairs
 			// compute all matchings
-			final AtomicInteger ai = new AtomicInteger(0);
+			ComparePairScheduler.process( pending, estimateMemory( pending, params ), params, new ComparePairScheduler.PairTask()
+			{
+				@Override
+				public void process( final ComparePair pair, final int numThreads )
+				{
+					long start = System.currentTimeMillis();			
+					
+					// where do we approximately overlap?
+					final Roi roi1 = getROI( pair.getTile1().getElement(), pair.getTile2().getElement() );
+					final Roi roi2 = getROI( pair.getTile2().getElement(), pair.getTile1().getElement() );
+					final int[] zRange1 = getZRange( pair.getTile1().getElement(), pair.getTile2().getElement() );
+					final int[] zRange2 = getZRange( pair.getTile2().getElement(), pair.getTile1().getElement() );
+					
+					// opens the images if they are not open yet
+					final ImagePlus imp1 = pair.getImagePlus1();
+					final ImagePlus imp2 = pair.getImagePlus2();
+					
+					final PairWiseStitchingResult result;
+					
+					if ( imp1 == null || imp2 == null )
+						result = null;
+					else
+						result = PairWiseStitchingImgLib.stitchPairwise( imp1, imp2, roi1, roi2, zRange1, zRange2, pair.getTimePoint1(), pair.getTimePoint2(), 
+								pair.getTile1().getElement(), pair.getTile2().getElement(), params, numThreads );
+					
+					release( pair.getTile1().getElement(), pairsLeft, release, params.fftCache );
+					release( pair.getTile2().getElement(), pairsLeft, release, params.fftCache );
+					
+					if ( result == null )
+					{
+						Log.error( "Collection stitching failed for " + pair.getTile1().getTitle() + " <- " + pair.getTile2().getTitle() );
+						pair.setIsValidOverlap( false );
+						return;
+					}
+					
+					if ( params.dimensionality == 2 )
+						pair.setRelativeShift( new float[]{ result.getOffset( 0 ), result.getOffset( 1 ) } );
+					else
+						pair.setRelativeShift( new float[]{ result.getOffset( 0 ), result.getOffset( 1 ), result.getOffset( 2 ) } );
+					
+					pair.setCrossCorrelation( result.getCrossCorrelation() );
+					pair.setPhaseCorrelation( result.getPhaseCorrelation() );
+					
+					if ( resultCache != null )
+						resultCache.put( PairwiseResultCache.getKey( pair, roi1, roi2, zRange1, zRange2, params ), pair );
+					
+					Log.info( pair.getTile1().getTitle() + "[" + pair.getTimePoint1() + "]" + " <- " + pair.getTile2().getTitle() + "[" + pair.getTimePoint2() + "]" + ": " + 
+							Util.printCoordinates( result.getOffset() ) + " correlation (R)=" + result.getCrossCorrelation() + " (" + (System.currentTimeMillis() - start) + " ms)");
+				}
+			});
 			
-			final int numThreads;
+			if ( params.fftCache != null )
+			{
+				Log.info( "Reused " + params.fftCache.getHits() + " of " + ( params.fftCache.getHits() + params.fftCache.getMisses() ) + " forward transforms." );
+				params.fftCache = null;
+			}
 			
-			if ( params.cpuMemChoice == 0 )
-				numThreads = 1;
-			else
-				numThreads = Runtime.getRuntime().availableProcessors();
-			
-	        final Thread[] threads = SimpleMultiThreading.newThreads( numThreads );
-	    	
-	        for ( int ithread = 0; ithread < threads.length; ++ithread )
-	            threads[ ithread ] = new Thread(new Runnable()
-	            {
-	                @Override
-	                public void run()
-	                {		
-	                   	final int myNumber = ai.getAndIncrement();
-	                    
-	                    for ( int i = 0; i < pairs.size(); i++ )
-	                    {
-	                    	if ( i % numThreads == myNumber )
-	                    	{
-	                    		final ComparePair pair = pairs.get( i );
-	                    		
-	                    		long start = System.currentTimeMillis();			
-	                			
-	                    		// where do we approximately overlap?
-	                			final Roi roi1 = getROI( pair.getTile1().getElement(), pair.getTile2().getElement() );
-	                			final Roi roi2 = getROI( pair.getTile2().getElement(), pair.getTile1().getElement() );
-	                			
-	            				final PairWiseStitchingResult result = PairWiseStitchingImgLib.stitchPairwise( pair.getImagePlus1(), pair.getImagePlus2(), roi1, roi2, pair.getTimePoint1(), pair.getTimePoint2(), params );			
-	            				if ( result == null )
-	            				{
-	            					Log.error( "Collection stitching failed" );
-	            					return;
-	            				}
-	
-	            				if ( params.dimensionality == 2 )
-	            					pair.setRelativeShift( new float[]{ result.getOffset( 0 ), result.getOffset( 1 ) } );
-	            				else
-	            					pair.setRelativeShift( new float[]{ result.getOffset( 0 ), result.getOffset( 1 ), result.getOffset( 2 ) } );
-	            				
-	            				pair.setCrossCorrelation( result.getCrossCorrelation() );
-	
-	            				Log.info( pair.getImagePlus1().getTitle() + "[" + pair.getTimePoint1() + "]" + " <- " + pair.getImagePlus2().getTitle() + "[" + pair.getTimePoint2() + "]" + ": " + 
-	            						Util.printCoordinates( result.getOffset() ) + " correlation (R)=" + result.getCrossCorrelation() + " (" + (System.currentTimeMillis() - start) + " ms)");
-	                    	}
-	                    }
-	                }
-	            });
-	        
-	        final long time = System.currentTimeMillis();
-	        SimpleMultiThreading.startAndJoin( threads );
+			if ( resultCache != null )
+				resultCache.save();
 	        
 	        // get the final positions of all tiles
 			optimized = GlobalOptimization.optimize( pairs, pairs.get( 0 ).getTile1(), params );
@@ -122,7 +165,7 @@ public class CollectionStitchingImgLib
 			
 			for ( final ImageCollectionElement element : elements )
 			{
-				final ImagePlusTimePoint imt = new ImagePlusTimePoint( element.open( params.virtual ), element.getIndex(), 1, element.getModel(), element );
+				final ImagePlusTimePoint imt = new ImagePlusTimePoint( element, 1, params.virtual );
 				
 				// set the models to the offset
 				if ( params.dimensionality == 2 )
@@ -144,50 +187,197 @@ public class CollectionStitchingImgLib
 		return optimized;
 	}
 
-	protected static Roi getROI( final ImageCollectionElement e1, final ImageCollectionElement e2 )
+	/**
+	 * Estimates the memory needed for each pair, the overlapping area of both tiles, the phase
+	 * correlation and the tiles themselves if they have to be loaded for this pair
+	 */
+	protected static long[] estimateMemory( final Vector< ComparePair > pairs, final StitchingParameters params )
 	{
-		final int start[] = new int[ 2 ], end[] = new int[ 2 ];
+		final long[] memory = new long[ pairs.size() ];
 		
-		for ( int dim = 0; dim < 2; ++dim )
-		{			
-			// begin of 2 lies inside 1
-			if ( e2.offset[ dim ] >= e1.offset[ dim ] && e2.offset[ dim ] <= e1.offset[ dim ] + e1.size[ dim ] )
+		for ( int i = 0; i < pairs.size(); ++i )
+		{
+			final ImageCollectionElement e1 = pairs.get( i ).getTile1().getElement();
+			final ImageCollectionElement e2 = pairs.get( i ).getTile2().getElement();
+			
+			final int[] size1 = getROISize( e1, getROI( e1, e2 ), getZRange( e1, e2 ) );
+			final int[] size2 = getROISize( e2, getROI( e2, e1 ), getZRange( e2, e1 ) );
+			
+			// the rois are copied
+			long inputBytes = ComparePairScheduler.numPixels( size1 ) * e1.getBytesPerPixel() + ComparePairScheduler.numPixels( size2 ) * e2.getBytesPerPixel();
+			
+			// non-virtual tiles are loaded completely
+			if ( !params.virtual )
+				for ( final ImageCollectionElement e : new ImageCollectionElement[]{ e1, e2 } )
+					if ( !e.isOpen() )
+						inputBytes += ComparePairScheduler.numPixels( e.getDimensions() ) * Math.max( 1, e.getNumChannels() ) * Math.max( 1, e.getNumTimePoints() ) * e.getBytesPerPixel();
+			
+			memory[ i ] = ComparePairScheduler.estimateMemory( size1, size2, inputBytes );
+		}
+		
+		return memory;
+	}
+	
+	protected static int[] getROISize( final ImageCollectionElement e, final Roi roi, final int[] zRange )
+	{
+		final int[] size = e.getDimensions().clone();
+		final Rectangle r = roi.getBounds();
+		
+		if ( r.width > 0 && r.height > 0 )
+		{
+			size[ 0 ] = r.width;
+			size[ 1 ] = r.height;
+		}
+		
+		if ( zRange != null && size.length > 2 )
+			size[ 2 ] = zRange[ 1 ] - zRange[ 0 ];
+		
+		return size;
+	}
+	
+	/**
+	 * @return true if the same roi of a tile is used by more than one pair
+	 */
+	protected static boolean reusesTransforms( final Vector< ComparePair > pairs )
+	{
+		final HashSet< List< Object > > rois = new HashSet< List< Object > >();
+		
+		for ( final ComparePair pair : pairs )
+		{
+			final ImageCollectionElement e1 = pair.getTile1().getElement();
+			final ImageCollectionElement e2 = pair.getTile2().getElement();
+			
+			if ( !rois.add( Arrays.< Object >asList( e1, pair.getTimePoint1(), getROI( e1, e2 ).getBounds(), Arrays.toString( getZRange( e1, e2 ) ) ) ) || 
+				 !rois.add( Arrays.< Object >asList( e2, pair.getTimePoint2(), getROI( e2, e1 ).getBounds(), Arrays.toString( getZRange( e2, e1 ) ) ) ) )
+				return true;
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Counts in how many pairs each {@link ImageCollectionElement} takes part
+	 */
+	protected static HashMap< ImageCollectionElement, AtomicInteger > countPairsPerElement( final Vector< ComparePair > pairs )
+	{
+		final HashMap< ImageCollectionElement, AtomicInteger > pairsLeft = new HashMap< ImageCollectionElement, AtomicInteger >();
+		
+		for ( final ComparePair pair : pairs )
+			for ( final ImageCollectionElement element : new ImageCollectionElement[]{ pair.getTile1().getElement(), pair.getTile2().getElement() } )
 			{
-				start[ dim ] = Math.round( e2.offset[ dim ] - e1.offset[ dim ] );
+				if ( !pairsLeft.containsKey( element ) )
+					pairsLeft.put( element, new AtomicInteger( 0 ) );
 				
-				// end of 2 lies inside 1
-				if ( e2.offset[ dim ] + e2.size[ dim ] <= e1.offset[ dim ] + e1.size[ dim ] )
-					end[ dim ] = Math.round( e2.offset[ dim ] + e2.size[ dim ] - e1.offset[ dim ] );
-				else
-					end[ dim ] = Math.round( e1.size[ dim ] );
-			}
-			else if ( e2.offset[ dim ] + e2.size[ dim ] <= e1.offset[ dim ] + e1.size[ dim ] ) // end of 2 lies inside 1
-			{
-				start[ dim ] = 0;
-				end[ dim ] = Math.round( e2.offset[ dim ] + e2.size[ dim ] - e1.offset[ dim ] );
-			}
-			else // if both outside then the whole image 
-			{
-				start[ dim ] = -1;
-				end[ dim ] = -1;
+				pairsLeft.get( element ).incrementAndGet();
 			}
+		
+		return pairsLeft;
+	}
+	
+	/**
+	 * Once no pair needs an {@link ImageCollectionElement} anymore, its cached transforms are removed
+	 * and its image is closed, it will be opened again for fusion if necessary.
+	 * 
+	 * @param close - if the image may be closed
+	 * @param cache - the cached transforms or null
+	 */
+	protected static void release( final ImageCollectionElement element, final HashMap< ImageCollectionElement, AtomicInteger > pairsLeft, final boolean close, final FFTCache cache )
+	{
+		if ( pairsLeft.get( element ).decrementAndGet() > 0 )
+			return;
+		
+		if ( cache != null )
+			cache.remove( element );
+		
+		if ( close && element.isReopenable() )
+			element.close();
+	}
+
+	protected static Roi getROI( final ImageCollectionElement e1, final ImageCollectionElement e2 )
+	{
+		final int start[] = new int[ 2 ], end[] = new int[ 2 ];
+		
+		for ( int dim = 0; dim < 2; ++dim )
+		{
+			final int[] overlap = getOverlap( e1, e2, dim );
+			start[ dim ] = overlap[ 0 ];
+			end[ dim ] = overlap[ 1 ];
 		}
 		
 		return new Roi( new Rectangle( start[ 0 ], start[ 1 ], end[ 0 ] - start[ 0 ], end[ 1 ] - start[ 1 ] ) );
 	}
+	
+	/**
+	 * The roi along z for 3d tiles, which together with {@link #getROI(ImageCollectionElement, ImageCollectionElement)}
+	 * is the box of tile 1 that overlaps with tile 2.
+	 * 
+	 * @return { start, end } of the slices of tile 1 that overlap with tile 2 (end is exclusive), or null for all slices
+	 */
+	protected static int[] getZRange( final ImageCollectionElement e1, final ImageCollectionElement e2 )
+	{
+		if ( e1.offset.length < 3 || e2.offset.length < 3 || e1.size.length < 3 || e2.size.length < 3 )
+			return null;
+		
+		final int[] overlap = getOverlap( e1, e2, 2 );
+		
+		// if both outside then the whole stack
+		if ( overlap[ 0 ] < 0 )
+			return null;
+		
+		overlap[ 0 ] = Math.max( 0, overlap[ 0 ] );
+		overlap[ 1 ] = Math.min( e1.size[ 2 ], overlap[ 1 ] );
+		
+		if ( overlap[ 1 ] <= overlap[ 0 ] || ( overlap[ 0 ] == 0 && overlap[ 1 ] == e1.size[ 2 ] ) )
+			return null;
+		
+		return overlap;
+	}
+	
+	/**
+	 * @return { start, end } of the part of tile 1 that overlaps with tile 2 in one dimension, { -1, -1 } if tile 2 is larger on both sides
+	 */
+	protected static int[] getOverlap( final ImageCollectionElement e1, final ImageCollectionElement e2, final int dim )
+	{
+		final int start, end;
+		
+		// begin of 2 lies inside 1
+		if ( e2.offset[ dim ] >= e1.offset[ dim ] && e2.offset[ dim ] <= e1.offset[ dim ] + e1.size[ dim ] )
+		{
+			start = Math.round( e2.offset[ dim ] - e1.offset[ dim ] );
+			
+			// end of 2 lies inside 1
+			if ( e2.offset[ dim ] + e2.size[ dim ] <= e1.offset[ dim ] + e1.size[ dim ] )
+				end = Math.round( e2.offset[ dim ] + e2.size[ dim ] - e1.offset[ dim ] );
+			else
+				end = Math.round( e1.size[ dim ] );
+		}
+		else if ( e2.offset[ dim ] + e2.size[ dim ] <= e1.offset[ dim ] + e1.size[ dim ] ) // end of 2 lies inside 1
+		{
+			start = 0;
+			end = Math.round( e2.offset[ dim ] + e2.size[ dim ] - e1.offset[ dim ] );
+		}
+		else // if both outside then the whole image 
+		{
+			start = -1;
+			end = -1;
+		}
+		
+		return new int[]{ start, end };
+	}
 
 	protected static Vector< ComparePair > findOverlappingTiles( final ArrayList< ImageCollectionElement > elements, final StitchingParameters params )
 	{		
+		// we only need the dimensions here, the pixels are loaded once a pair is correlated
 		for ( final ImageCollectionElement element : elements )
 		{
-			if ( element.open( params.virtual ) == null )
+			if ( element.getDimensions() == null && !element.readHeader() )
 				return null;
 		}
 		
 		// all ImagePlusTimePoints, each of them needs its own model
 		final ArrayList< ImagePlusTimePoint > listImp = new ArrayList< ImagePlusTimePoint >();
 		for ( final ImageCollectionElement element : elements )
-			listImp.add( new ImagePlusTimePoint( element.open( params.virtual ), element.getIndex(), 1, element.getModel(), element ) );
+			listImp.add( new ImagePlusTimePoint( element, 1, params.virtual ) );
 	
 		// get the connecting tiles
 		final Vector< ComparePair > overlappingTiles = new Vector< ComparePair >();
@@ -210,30 +400,11 @@ public class CollectionStitchingImgLib
 		}
 		// end of addition
 
-		for ( int i = 0; i < elements.size() - 1; i++ )
-			for ( int j = i + 1; j < elements.size(); j++ )
-			{
-				final ImageCollectionElement e1 = elements.get( i );
-				final ImageCollectionElement e2 = elements.get( j );
-				
-				boolean overlapping = true;
-				
-				for ( int d = 0; d < params.dimensionality; ++d )
-				{
-					if ( !( ( e2.offset[ d ] >= e1.offset[ d ] && e2.offset[ d ] <= e1.offset[ d ] + e1.size[ d ] ) || 
-						    ( e2.offset[ d ] + e2.size[ d ] >= e1.offset[ d ] && e2.offset[ d ] + e2.size[ d ] <= e1.offset[ d ] + e1.size[ d ] ) ||
-						    ( e2.offset[ d ] <= e1.offset[ d ] && e2.offset[ d ] >= e1.offset[ d ] + e1.size[ d ] ) 
-					   )  )
-									overlapping = false;
-				}
-				
-				if ( overlapping )
-				{
-					//final ImagePlusTimePoint impA = new ImagePlusTimePoint( e1.open(), e1.getIndex(), 1, e1.getModel().copy(), e1 );
-					//final ImagePlusTimePoint impB = new ImagePlusTimePoint( e2.open(), e2.getIndex(), 1, e2.getModel().copy(), e2 );
-					overlappingTiles.add( new ComparePair( listImp.get( i ), listImp.get( j ) ) );
-				}
-			}
+		// only test the tiles that are close to each other in the approximate layout
+		final TileGridIndex index = new TileGridIndex( elements, params.dimensionality );
+		
+		for ( final int[] pair : index.getOverlappingPairs() )
+			overlappingTiles.add( new ComparePair( listImp.get( pair[ 0 ] ), listImp.get( pair[ 1 ] ) ) );
 		
 		return overlappingTiles;
 	}
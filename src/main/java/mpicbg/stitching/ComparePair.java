@@ -27,7 +27,7 @@ import mpicbg.models.Model;
 public class ComparePair 
 {
 	final ImagePlusTimePoint impA, impB;
-	float crossCorrelation;
+	float crossCorrelation, phaseCorrelation;
 	boolean validOverlap;
 	
 	// the local shift of impB relative to impA 
@@ -55,6 +55,9 @@ public class ComparePair
 	public void setCrossCorrelation( final float r ) { this.crossCorrelation = r; }
 	public float getCrossCorrelation() { return crossCorrelation; }
 
+	public void setPhaseCorrelation( final float phaseCorrelation ) { this.phaseCorrelation = phaseCorrelation; }
+	public float getPhaseCorrelation() { return phaseCorrelation; }
+
 	public void setRelativeShift( final float[] relativeShift ) { this.relativeShift = relativeShift; }
 	public float[] getRelativeShift() { return relativeShift; }
 	
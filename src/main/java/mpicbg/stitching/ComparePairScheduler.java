@@ -0,0 +1,354 @@
+/*
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2022 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package mpicbg.stitching;
+
+import ij.ImagePlus;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import stitching.utils.Log;
+import edu.mines.jtk.dsp.FftComplex;
+import edu.mines.jtk.dsp.FftReal;
+
+/**
+ * Runs the phase correlations of a list of {@link ComparePair}s concurrently on the
+ * {@link StitchingThreadPool} while keeping the estimated memory of all running pairs below a 
+ * budget. Pairs are started in the order of the list as soon as enough threads and memory of the 
+ * finished pairs have been released, so large 3d pairs run a few at a time while small 2d pairs 
+ * use all threads, and slow pairs do not hold up the ones after them. A pair that alone exceeds 
+ * the budget is run once nothing else is running.
+ */
+public class ComparePairScheduler 
+{
+	/**
+	 * What to do for each pair
+	 */
+	public static interface PairTask
+	{
+		/**
+		 * @param pair - the pair
+		 * @param numThreads - how many threads the computation of this pair should use
+		 */
+		public void process( final ComparePair pair, final int numThreads );
+	}
+	
+	/**
+	 * What to do for the i'th pair
+	 */
+	public static interface Task
+	{
+		public void run( final int i, final int numThreads );
+	}
+	
+	/**
+	 * The fraction of the free heap used if no budget is given
+	 */
+	public static double defaultHeapFraction = 0.8;
+	
+	final long[] memory;
+	final long budget;
+	final int maxRunning, parallelism;
+	
+	int nextPair = 0, running = 0, threadsUsed = 0;
+	long used = 0;
+	
+	/**
+	 * @param memory - the estimated memory for each pair in bytes
+	 * @param budget - how much memory all running pairs may use together in bytes
+	 * @param maxRunning - how many pairs may run at the same time
+	 */
+	public ComparePairScheduler( final long[] memory, final long budget, final int maxRunning )
+	{
+		this.memory = memory;
+		this.budget = budget;
+		this.maxRunning = Math.max( 1, maxRunning );
+		this.parallelism = StitchingThreadPool.getParallelism();
+	}
+	
+	/**
+	 * Waits until the next pair fits into the budget and the threads of the pool that are not used 
+	 * by the running pairs, and reserves its memory and threads.
+	 * 
+	 * @return the index of the next pair or -1 if all pairs have been started
+	 */
+	public synchronized int next() throws InterruptedException
+	{
+		while ( nextPair < memory.length && running > 0 && ( running >= maxRunning || used + memory[ nextPair ] > budget || 
+				threadsUsed + getNumThreadsPerPair( nextPair ) > parallelism ) )
+			wait();
+		
+		if ( nextPair >= memory.length )
+			return -1;
+		
+		used += memory[ nextPair ];
+		threadsUsed += getNumThreadsPerPair( nextPair );
+		++running;
+		
+		return nextPair++;
+	}
+	
+	/**
+	 * Releases the memory and threads of a finished pair
+	 * 
+	 * @param pair - the index of the pair
+	 */
+	public synchronized void done( final int pair )
+	{
+		used -= memory[ pair ];
+		threadsUsed -= getNumThreadsPerPair( pair );
+		--running;
+		notifyAll();
+	}
+	
+	/**
+	 * Charges memory that is kept beyond a single pair to the budget, e.g. an image that is shared by several pairs
+	 * 
+	 * @param bytes - the memory in bytes
+	 */
+	public synchronized void allocate( final long bytes )
+	{
+		used += bytes;
+	}
+	
+	/**
+	 * Releases memory that was charged with {@link #allocate(long)}
+	 * 
+	 * @param bytes - the memory in bytes
+	 */
+	public synchronized void free( final long bytes )
+	{
+		used -= bytes;
+		notifyAll();
+	}
+	
+	/**
+	 * @return how many pairs of the size of this pair can run at the same time
+	 */
+	public int getMaxConcurrent( final int pair )
+	{
+		if ( memory[ pair ] <= 0 )
+			return maxRunning;
+		
+		return (int)Math.max( 1, Math.min( maxRunning, budget / memory[ pair ] ) );
+	}
+	
+	/**
+	 * The share is computed from how many pairs of its size can run at the same time and not 
+	 * from how many are running right now, otherwise the first pairs would get the whole pool. 
+	 * Pairs of different sizes get different shares, {@link #next()} only starts a pair while 
+	 * the shares of all running pairs fit into the pool.
+	 * 
+	 * @return how many threads a pair uses
+	 */
+	public int getNumThreadsPerPair( final int pair )
+	{
+		return Math.max( 1, parallelism / getMaxConcurrent( pair ) );
+	}
+	
+	/**
+	 * Runs all pairs on the shared pool and waits until they are finished.
+	 * 
+	 * @param task - what to do for each pair
+	 */
+	public void run( final Task task )
+	{
+		final ForkJoinPool pool = StitchingThreadPool.getPool();
+		final ArrayList< ForkJoinTask< ? > > futures = new ArrayList< ForkJoinTask< ? > >();
+		
+		try
+		{
+			for ( int i = next(); i >= 0; i = next() )
+			{
+				final int pair = i;
+				final int numThreads = getNumThreadsPerPair( pair );
+				
+				futures.add( pool.submit( new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						try
+						{
+							task.run( pair, numThreads );
+						}
+						finally
+						{
+							done( pair );
+						}
+					}
+				}) );
+			}
+		}
+		catch ( InterruptedException e )
+		{
+			Log.error( "Pairwise computation was interrupted: " + e );
+		}
+		
+		for ( final ForkJoinTask< ? > future : futures )
+		{
+			try
+			{
+				future.join();
+			}
+			catch ( Exception e )
+			{
+				Log.error( "Pairwise computation failed: " + e, e );
+			}
+		}
+	}
+	
+	/**
+	 * Processes all pairs, one at a time if {@link StitchingParameters#cpuMemChoice} is 0, otherwise
+	 * as many at a time as the shared pool has threads and the memory budget allows.
+	 * 
+	 * @param pairs - all pairs
+	 * @param memory - the estimated memory of each pair in bytes
+	 * @param params - the parameters
+	 * @param task - what to do with each pair
+	 */
+	public static void process( final List< ComparePair > pairs, final long[] memory, final StitchingParameters params, final PairTask task )
+	{
+		if ( pairs.isEmpty() )
+			return;
+		
+		final int maxRunning;
+		
+		if ( params.cpuMemChoice == 0 )
+			maxRunning = 1;
+		else
+			maxRunning = Math.min( pairs.size(), StitchingThreadPool.getParallelism() );
+		
+		// the cached transforms are kept in addition to the memory of the running pairs
+		final long budget = Math.max( 0, getMemoryBudget( params ) - ( params.fftCache == null ? 0 : params.fftCache.getMaxBytes() ) );
+		
+		if ( maxRunning > 1 )
+			Log.info( "Computing " + pairs.size() + " pairs, up to " + maxRunning + " at a time within " + ( budget / ( 1024 * 1024 ) ) + " MB." );
+		
+		new ComparePairScheduler( memory, budget, maxRunning ).run( new Task()
+		{
+			@Override
+			public void run( final int i, final int numThreads )
+			{
+				task.process( pairs.get( i ), numThreads );
+			}
+		});
+	}
+	
+	/**
+	 * @return the memory budget in bytes, either {@link StitchingParameters#memoryBudget} or a fraction of the currently free heap
+	 */
+	public static long getMemoryBudget( final StitchingParameters params )
+	{
+		if ( params.memoryBudget > 0 )
+			return Math.round( params.memoryBudget * 1024 * 1024 );
+		
+		return getMemoryBudget();
+	}
+	
+	/**
+	 * @return the default memory budget in bytes, a fraction of the currently free heap
+	 */
+	public static long getMemoryBudget()
+	{
+		final Runtime runtime = Runtime.getRuntime();
+		final long free = runtime.maxMemory() - ( runtime.totalMemory() - runtime.freeMemory() );
+		
+		return Math.round( Math.max( 0, free ) * defaultHeapFraction );
+	}
+	
+	/**
+	 * Estimates the memory needed to compute the phase correlation of two images (or rois)
+	 * 
+	 * @param size1 - the size of the first image or roi
+	 * @param size2 - the size of the second image or roi
+	 * @param inputBytes - the memory of the input images that have to be loaded or copied for this pair
+	 * 
+	 * @return the estimated memory in bytes
+	 */
+	public static long estimateMemory( final int[] size1, final int[] size2, final long inputBytes )
+	{
+		long real = 1;
+		long complex = 1;
+		
+		// both images are extended to the same size that is fast to transform
+		for ( int d = 0; d < size1.length; ++d )
+		{
+			final int size = Math.max( 2, Math.max( size1[ d ], size2[ d ] ) );
+			
+			if ( d == 0 )
+			{
+				final int fftSize = FftReal.nfftFast( size );
+				real *= fftSize;
+				complex *= fftSize / 2 + 1;
+			}
+			else
+			{
+				final int fftSize = FftComplex.nfftFast( size );
+				real *= fftSize;
+				complex *= fftSize;
+			}
+		}
+		
+		// two complex transforms (2 floats each), the extended real input of both
+		// images and the inverse phase correlation matrix (which is kept for subpixel accuracy)
+		return inputBytes + 2 * complex * 8 + 3 * real * 4;
+	}
+	
+	/**
+	 * @return the number of bytes per pixel of an ImagePlus
+	 */
+	public static int getBytesPerPixel( final ImagePlus imp )
+	{
+		return getBytesPerPixel( imp.getType() );
+	}
+	
+	/**
+	 * @param type - the type of an ImagePlus, e.g. {@link ImagePlus#GRAY16}
+	 * 
+	 * @return the number of bytes per pixel of an ImagePlus of this type
+	 */
+	public static int getBytesPerPixel( final int type )
+	{
+		if ( type == ImagePlus.GRAY8 )
+			return 1;
+		else if ( type == ImagePlus.GRAY16 )
+			return 2;
+		else
+			return 4;
+	}
+	
+	/**
+	 * @return the number of pixels
+	 */
+	public static long numPixels( final int[] size )
+	{
+		long n = 1;
+		
+		for ( final int s : size )
+			n *= s;
+		
+		return n;
+	}
+}
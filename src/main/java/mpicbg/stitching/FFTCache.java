@@ -0,0 +1,272 @@
+/*
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2022 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package mpicbg.stitching;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import stitching.utils.Log;
+
+/**
+ * A bounded cache of forward transforms, so that an image that takes part in many pairs (e.g. all 
+ * time-points against each other) is transformed only once for each roi and padded size. The least 
+ * recently used transforms are removed once the cache exceeds its size. If several pairs need the 
+ * same transform at the same time it is computed only once and the others wait for it.
+ */
+public class FFTCache 
+{
+	/**
+	 * Which fraction of the memory budget (see {@link ComparePairScheduler#getMemoryBudget(StitchingParameters)}) the cache may use
+	 */
+	public static double defaultBudgetFraction = 0.25;
+	
+	/**
+	 * Identifies a transform by the image (not its title), channel, time-point, roi, range of slices and padded size.
+	 * The image is identified by an object that stays the same while the image is closed and opened again, e.g. its
+	 * {@link ImageCollectionElement}. An ImagePlus should only be used if it stays open anyway, the cache keeps a reference to it.
+	 */
+	public static class Key
+	{
+		final Object source;
+		final int channel, timepoint;
+		final Rectangle roi;
+		final int[] zRange;
+		final int[] fftSize;
+		final int hashCode;
+		
+		/**
+		 * @param source - identifies the image
+		 * @param roi - the bounds of the roi or null for the whole image
+		 */
+		public Key( final Object source, final int channel, final int timepoint, final Rectangle roi, final int[] fftSize )
+		{
+			this( source, channel, timepoint, roi, null, fftSize );
+		}
+		
+		/**
+		 * @param source - identifies the image
+		 * @param roi - the bounds of the roi or null for the whole image
+		 * @param zRange - { start, end } of the slices or null for all slices
+		 */
+		public Key( final Object source, final int channel, final int timepoint, final Rectangle roi, final int[] zRange, final int[] fftSize )
+		{
+			this.source = source;
+			this.channel = channel;
+			this.timepoint = timepoint;
+			this.roi = roi;
+			this.zRange = zRange == null ? null : zRange.clone();
+			this.fftSize = fftSize.clone();
+			
+			int h = System.identityHashCode( source );
+			h = h * 31 + channel;
+			h = h * 31 + timepoint;
+			h = h * 31 + ( roi == null ? 0 : roi.hashCode() );
+			h = h * 31 + Arrays.hashCode( zRange );
+			h = h * 31 + Arrays.hashCode( fftSize );
+			this.hashCode = h;
+		}
+		
+		@Override
+		public int hashCode() { return hashCode; }
+		
+		@Override
+		public boolean equals( final Object o )
+		{
+			if ( !( o instanceof Key ) )
+				return false;
+			
+			final Key k = (Key)o;
+			
+			return source == k.source && channel == k.channel && timepoint == k.timepoint && 
+					( roi == null ? k.roi == null : roi.equals( k.roi ) ) && Arrays.equals( zRange, k.zRange ) && Arrays.equals( fftSize, k.fftSize );
+		}
+	}
+	
+	final long maxBytes;
+	long bytes = 0;
+	int hits = 0, misses = 0;
+	
+	// in access order, the first entry is the least recently used one
+	final LinkedHashMap< Key, FloatPhaseCorrelation.Transform > cache = new LinkedHashMap< Key, FloatPhaseCorrelation.Transform >( 16, 0.75f, true );
+	
+	// transforms that are being computed right now
+	final HashMap< Key, FutureTask< FloatPhaseCorrelation.Transform > > pending = new HashMap< Key, FutureTask< FloatPhaseCorrelation.Transform > >();
+	
+	/**
+	 * @param maxBytes - how much memory the cached transforms may use together
+	 */
+	public FFTCache( final long maxBytes )
+	{
+		this.maxBytes = maxBytes;
+	}
+	
+	/**
+	 * Creates a cache that uses {@link #defaultBudgetFraction} of the memory budget
+	 */
+	public FFTCache( final StitchingParameters params )
+	{
+		this( Math.round( ComparePairScheduler.getMemoryBudget( params ) * defaultBudgetFraction ) );
+	}
+	
+	/**
+	 * Returns the cached transform or computes it
+	 * 
+	 * @param key - identifies the transform
+	 * @param transform - computes the transform if it is not cached
+	 * 
+	 * @return the transform or null if it could not be computed
+	 */
+	public FloatPhaseCorrelation.Transform get( final Key key, final Callable< FloatPhaseCorrelation.Transform > transform )
+	{
+		final FutureTask< FloatPhaseCorrelation.Transform > task;
+		final boolean compute;
+		
+		synchronized ( this )
+		{
+			final FloatPhaseCorrelation.Transform cached = cache.get( key );
+			
+			if ( cached != null )
+			{
+				++hits;
+				return cached;
+			}
+			
+			if ( pending.containsKey( key ) )
+			{
+				++hits;
+				task = pending.get( key );
+				compute = false;
+			}
+			else
+			{
+				++misses;
+				task = new FutureTask< FloatPhaseCorrelation.Transform >( transform );
+				pending.put( key, task );
+				compute = true;
+			}
+		}
+		
+		if ( compute )
+			task.run();
+		
+		FloatPhaseCorrelation.Transform result = null;
+		
+		try
+		{
+			result = task.get();
+		}
+		catch ( InterruptedException e )
+		{
+			Log.error( "Interrupted while waiting for a forward transform: " + e );
+		}
+		catch ( ExecutionException e )
+		{
+			Log.error( "Could not compute forward transform: " + e.getCause(), e.getCause() );
+		}
+		
+		if ( compute )
+		{
+			synchronized ( this )
+			{
+				pending.remove( key );
+				
+				if ( result != null )
+					put( key, result );
+			}
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Adds a transform and removes the least recently used ones until the cache fits its size again,
+	 * a transform that alone is larger than the cache is not stored.
+	 */
+	protected synchronized void put( final Key key, final FloatPhaseCorrelation.Transform transform )
+	{
+		if ( transform.getBytes() > maxBytes )
+			return;
+		
+		final FloatPhaseCorrelation.Transform old = cache.put( key, transform );
+		
+		if ( old != null )
+			bytes -= old.getBytes();
+		
+		bytes += transform.getBytes();
+		
+		final Iterator< Map.Entry< Key, FloatPhaseCorrelation.Transform > > i = cache.entrySet().iterator();
+		
+		while ( bytes > maxBytes && i.hasNext() )
+		{
+			bytes -= i.next().getValue().getBytes();
+			i.remove();
+		}
+	}
+	
+	/**
+	 * Removes all transforms of an image, e.g. once it takes part in no further pair
+	 * 
+	 * @param source - identifies the image like in {@link Key}
+	 */
+	public synchronized void remove( final Object source )
+	{
+		final Iterator< Map.Entry< Key, FloatPhaseCorrelation.Transform > > i = cache.entrySet().iterator();
+		
+		while ( i.hasNext() )
+		{
+			final Map.Entry< Key, FloatPhaseCorrelation.Transform > entry = i.next();
+			
+			if ( entry.getKey().source == source )
+			{
+				bytes -= entry.getValue().getBytes();
+				i.remove();
+			}
+		}
+	}
+	
+	public synchronized void clear()
+	{
+		cache.clear();
+		bytes = 0;
+	}
+	
+	public long getMaxBytes() { return maxBytes; }
+	public synchronized long getBytes() { return bytes; }
+	public synchronized int size() { return cache.size(); }
+	
+	/**
+	 * @return how often a transform was reused
+	 */
+	public synchronized int getHits() { return hits; }
+	
+	/**
+	 * @return how often a transform had to be computed
+	 */
+	public synchronized int getMisses() { return misses; }
+}
@@ -0,0 +1,561 @@
+/*
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2022 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package mpicbg.stitching;
+
+import stitching.CommonFunctions;
+import stitching.FloatArray2D;
+import stitching.FloatArray3D;
+import stitching.utils.Log;
+import edu.mines.jtk.dsp.FftComplex;
+import edu.mines.jtk.dsp.FftReal;
+
+/**
+ * Phase correlation of 2d or 3d float images whose forward transforms are computed separately,
+ * so that the transform of an image can be reused for all pairs it takes part in (see {@link FFTCache}).
+ * The images are zero-padded after subtracting their mean. Like the imglib PhaseCorrelation used by
+ * {@link PairWiseStitchingImgLib}, the best peaks of the phase correlation matrix are verified by cross
+ * correlation of all possible shifts (with a minimal overlap of {@link #minOverlapPx} pixels in every
+ * dimension), and the subpixel position is the maximum of a quadratic fit over all neighbors of the peak
+ * like the {@code SubpixelLocalization} there, so both verify the same shift with the same correlation coefficient.
+ */
+public class FloatPhaseCorrelation 
+{
+	/**
+	 * The minimal overlap in every dimension for a shift to be verified, the same as in the imglib PhaseCorrelation
+	 */
+	public static final int minOverlapPx = 3;
+	
+	/**
+	 * The padded image and its normalized forward transform
+	 */
+	public static class Transform
+	{
+		// the image at the origin of an array of fftSize, which is also used for the cross correlation
+		final float[] image;
+		final int[] size;
+		final int[] fftSize;
+		final float[] spectrum;
+		
+		public Transform( final float[] image, final int[] size, final int[] fftSize, final float[] spectrum )
+		{
+			this.image = image;
+			this.size = size;
+			this.fftSize = fftSize;
+			this.spectrum = spectrum;
+		}
+		
+		public int[] getSize() { return size; }
+		public int[] getFFTSize() { return fftSize; }
+		
+		/**
+		 * @return the memory used by this transform in bytes
+		 */
+		public long getBytes() { return 4l * ( image.length + spectrum.length ); }
+	}
+	
+	/**
+	 * @return the size both images are padded to, at least as large as both images and fast to transform
+	 */
+	public static int[] getFFTSize( final int[] size1, final int[] size2 )
+	{
+		final int[] fftSize = new int[ size1.length ];
+		
+		for ( int d = 0; d < size1.length; ++d )
+		{
+			final int size = Math.max( 2, Math.max( size1[ d ], size2[ d ] ) );
+			
+			if ( d == 0 )
+				fftSize[ d ] = FftReal.nfftFast( size );
+			else
+				fftSize[ d ] = FftComplex.nfftFast( size );
+		}
+		
+		return fftSize;
+	}
+	
+	/**
+	 * Computes the normalized forward transform of an image
+	 * 
+	 * @param image - the image, x is the fastest dimension
+	 * @param size - the size of the image (2d or 3d)
+	 * @param fftSize - the padded size, see {@link #getFFTSize(int[], int[])}
+	 */
+	public static Transform transform( final float[] image, final int[] size, final int[] fftSize )
+	{
+		return transform( image, size, fftSize, StitchingThreadPool.getParallelism() );
+	}
+	
+	/**
+	 * @param numThreads - how many threads the FFT may use
+	 */
+	public static Transform transform( final float[] image, final int[] size, final int[] fftSize, final int numThreads )
+	{
+		final int[] s = get3d( size );
+		final int[] f = get3d( fftSize );
+		final float[] padded = new float[ f[ 0 ] * f[ 1 ] * f[ 2 ] ];
+		
+		for ( int z = 0; z < s[ 2 ]; ++z )
+			for ( int y = 0; y < s[ 1 ]; ++y )
+				System.arraycopy( image, ( z * s[ 1 ] + y ) * s[ 0 ], padded, ( z * f[ 1 ] + y ) * f[ 0 ], s[ 0 ] );
+		
+		return transformPadded( padded, size, fftSize, numThreads );
+	}
+	
+	/**
+	 * Computes the normalized forward transform of a roi, it is copied directly into the padded array
+	 * 
+	 * @param view - the roi
+	 * @param fftSize - the padded size, see {@link #getFFTSize(int[], int[])}
+	 * @param numThreads - how many threads the FFT may use
+	 */
+	public static Transform transform( final RoiView view, final int[] fftSize, final int numThreads )
+	{
+		final int[] f = get3d( fftSize );
+		final float[] padded = new float[ f[ 0 ] * f[ 1 ] * f[ 2 ] ];
+		
+		view.copyInto( padded, fftSize );
+		
+		return transformPadded( padded, view.getSize(), fftSize, numThreads );
+	}
+	
+	/**
+	 * @param padded - the image at the origin of an array of fftSize, the rest is zero. It is kept unchanged
+	 * so the cross correlation sees the same values as the imglib PhaseCorrelation
+	 */
+	protected static Transform transformPadded( final float[] padded, final int[] size, final int[] fftSize, final int numThreads )
+	{
+		final int[] s = get3d( size );
+		final int[] f = get3d( fftSize );
+		
+		// subtract the mean so that the zero-padding does not introduce a strong edge
+		final float[] centered = new float[ padded.length ];
+		double sum = 0;
+		
+		for ( int z = 0; z < s[ 2 ]; ++z )
+			for ( int y = 0; y < s[ 1 ]; ++y )
+			{
+				final int j = ( z * f[ 1 ] + y ) * f[ 0 ];
+				
+				for ( int x = 0; x < s[ 0 ]; ++x )
+					sum += padded[ j + x ];
+			}
+		
+		final float avg = (float)( sum / ( (long)s[ 0 ] * s[ 1 ] * s[ 2 ] ) );
+		
+		for ( int z = 0; z < s[ 2 ]; ++z )
+			for ( int y = 0; y < s[ 1 ]; ++y )
+			{
+				final int j = ( z * f[ 1 ] + y ) * f[ 0 ];
+				
+				for ( int x = 0; x < s[ 0 ]; ++x )
+					centered[ j + x ] = padded[ j + x ] - avg;
+			}
+		
+		final float[] spectrum;
+		
+		if ( size.length == 2 )
+			spectrum = CommonFunctions.pffft2D( new FloatArray2D( centered, f[ 0 ], f[ 1 ] ), false, numThreads ).data;
+		else
+			spectrum = CommonFunctions.pffft3DMT( new FloatArray3D( centered, f[ 0 ], f[ 1 ], f[ 2 ] ), false, numThreads ).data;
+		
+		CommonFunctions.normalizeComplexVectorsToUnitVectors( spectrum );
+		
+		return new Transform( padded, size, fftSize, spectrum );
+	}
+	
+	/**
+	 * Computes the shift of the second image relative to the first one
+	 * 
+	 * @param t1 - the transform of the first image
+	 * @param t2 - the transform of the second image, padded to the same size
+	 * @param numPeaks - how many peaks of the phase correlation matrix are verified by cross correlation
+	 * @param subpixelAccuracy - fit a quadratic function to the best peak and its neighbors
+	 * 
+	 * @return the result or null if the transforms do not match
+	 */
+	public static PairWiseStitchingResult computePhaseCorrelation( final Transform t1, final Transform t2, final int numPeaks, final boolean subpixelAccuracy )
+	{
+		return computePhaseCorrelation( t1, t2, numPeaks, subpixelAccuracy, StitchingThreadPool.getParallelism() );
+	}
+	
+	/**
+	 * @param numThreads - how many threads the inverse FFT may use, a share of the {@link StitchingThreadPool} if several pairs run at the same time
+	 */
+	public static PairWiseStitchingResult computePhaseCorrelation( final Transform t1, final Transform t2, final int numPeaks, final boolean subpixelAccuracy, final int numThreads )
+	{
+		final int n = t1.size.length;
+		
+		if ( t2.size.length != n || t1.spectrum.length != t2.spectrum.length )
+		{
+			Log.error( "Forward transforms of different size cannot be correlated." );
+			return null;
+		}
+		
+		final int[] f = get3d( t1.fftSize );
+		
+		// F1 * conj( F2 ), which has its peak at the offset of image 2 relative to image 1; the
+		// cached spectra are not modified
+		final float[] product = new float[ t1.spectrum.length ];
+		
+		for ( int i = 0; i < product.length; i += 2 )
+		{
+			final float a = t1.spectrum[ i ];
+			final float b = t1.spectrum[ i + 1 ];
+			final float c = t2.spectrum[ i ];
+			final float d = t2.spectrum[ i + 1 ];
+			
+			product[ i ] = a * c + b * d;
+			product[ i + 1 ] = b * c - a * d;
+		}
+		
+		final int complexWidth = ( f[ 0 ] / 2 + 1 ) * 2;
+		final float[] pcm;
+		final float scale;
+		
+		if ( n == 2 )
+		{
+			pcm = CommonFunctions.pffftInv2D( new FloatArray2D( product, complexWidth, f[ 1 ] ), f[ 0 ], numThreads ).data;
+			
+			// the 2d inverse only scales by the width
+			scale = 1.0f / f[ 1 ];
+		}
+		else
+		{
+			pcm = CommonFunctions.pffftInv3DMT( new FloatArray3D( product, complexWidth, f[ 1 ], f[ 2 ] ), f[ 0 ], numThreads ).data;
+			scale = 1;
+		}
+		
+		final int[][] peaks = findPeaks( pcm, f, Math.max( 1, numPeaks ) );
+		
+		// test all possible shifts of all peaks
+		final int[] shift = new int[ 3 ];
+		final int[] bestShift = new int[ 3 ];
+		int bestPeak = 0;
+		double bestR = -Double.MAX_VALUE;
+		
+		for ( int p = 0; p < peaks.length; ++p )
+		{
+			if ( peaks[ p ] == null )
+				continue;
+			
+			for ( int c = 0; c < ( 1 << n ); ++c )
+			{
+				for ( int d = 0; d < 3; ++d )
+				{
+					if ( d < n && ( c & ( 1 << d ) ) != 0 )
+						shift[ d ] = peaks[ p ][ d ] - f[ d ];
+					else
+						shift[ d ] = peaks[ p ][ d ];
+				}
+				
+				final double r = testCrossCorrelation( t1.image, get3d( t1.fftSize ), get3d( t1.size ), t2.image, get3d( t2.fftSize ), get3d( t2.size ), shift );
+				
+				// on equal R the later one wins like after sorting the peaks in imglib
+				if ( r >= bestR )
+				{
+					bestR = r;
+					bestPeak = p;
+					System.arraycopy( shift, 0, bestShift, 0, 3 );
+				}
+			}
+		}
+		
+		final int[] peak = peaks[ bestPeak ];
+		final float[] offset = new float[ n ];
+		final float[] subpixel = new float[ n ];
+		float value = pcm[ index( peak, f ) ];
+		
+		if ( subpixelAccuracy )
+			value = fitQuadratic( pcm, f, peak, n, subpixel );
+		
+		for ( int d = 0; d < n; ++d )
+			offset[ d ] = bestShift[ d ] + subpixel[ d ];
+		
+		return new PairWiseStitchingResult( offset, (float)bestR, value * scale );
+	}
+	
+	/**
+	 * Finds the highest local maxima of the phase correlation matrix, which is periodic
+	 * 
+	 * @return the positions of the peaks, sorted by decreasing value (null entries if there are less maxima)
+	 */
+	protected static int[][] findPeaks( final float[] pcm, final int[] f, final int numPeaks )
+	{
+		final int[][] peaks = new int[ numPeaks ][];
+		final float[] values = new float[ numPeaks ];
+		int found = 0;
+		
+		for ( int z = 0; z < f[ 2 ]; ++z )
+			for ( int y = 0; y < f[ 1 ]; ++y )
+				for ( int x = 0; x < f[ 0 ]; ++x )
+				{
+					final float value = pcm[ ( z * f[ 1 ] + y ) * f[ 0 ] + x ];
+					
+					if ( found == numPeaks && value <= values[ numPeaks - 1 ] )
+						continue;
+					
+					if ( !isLocalMaximum( pcm, f, x, y, z, value ) )
+						continue;
+					
+					// insert sorted
+					int pos = Math.min( found, numPeaks - 1 );
+					
+					while ( pos > 0 && values[ pos - 1 ] < value )
+					{
+						values[ pos ] = values[ pos - 1 ];
+						peaks[ pos ] = peaks[ pos - 1 ];
+						--pos;
+					}
+					
+					values[ pos ] = value;
+					peaks[ pos ] = new int[]{ x, y, z };
+					found = Math.min( numPeaks, found + 1 );
+				}
+		
+		return peaks;
+	}
+	
+	protected static boolean isLocalMaximum( final float[] pcm, final int[] f, final int x, final int y, final int z, final float value )
+	{
+		for ( int zs = -1; zs <= 1; ++zs )
+			for ( int ys = -1; ys <= 1; ++ys )
+				for ( int xs = -1; xs <= 1; ++xs )
+				{
+					if ( xs == 0 && ys == 0 && zs == 0 )
+						continue;
+					
+					final int xt = ( x + xs + f[ 0 ] ) % f[ 0 ];
+					final int yt = ( y + ys + f[ 1 ] ) % f[ 1 ];
+					final int zt = ( z + zs + f[ 2 ] ) % f[ 2 ];
+					
+					if ( pcm[ ( zt * f[ 1 ] + yt ) * f[ 0 ] + xt ] > value )
+						return false;
+				}
+		
+		return true;
+	}
+	
+	/**
+	 * Fits a quadratic function to the peak and all its neighbors (the same as the {@code SubpixelLocalization}
+	 * of imglib without moving the peak), the phase correlation matrix is periodic
+	 * 
+	 * @param offset - the subpixel offset of the maximum relative to the peak, zero if the fit has no maximum
+	 * @return the value of the fit at its maximum
+	 */
+	protected static float fitQuadratic( final float[] pcm, final int[] f, final int[] peak, final int n, final float[] offset )
+	{
+		final float center = pcm[ index( peak, f ) ];
+		
+		// derivatives by central differences
+		final double[] g = new double[ n ];
+		final double[][] h = new double[ n ][ n ];
+		
+		for ( int d = 0; d < n; ++d )
+		{
+			final float left = get( pcm, f, peak, d, -1, d, 0 );
+			final float right = get( pcm, f, peak, d, 1, d, 0 );
+			
+			g[ d ] = ( right - left ) / 2.0;
+			h[ d ][ d ] = right - 2.0 * center + left;
+			
+			for ( int e = d + 1; e < n; ++e )
+			{
+				h[ d ][ e ] = h[ e ][ d ] = ( get( pcm, f, peak, d, 1, e, 1 ) - get( pcm, f, peak, d, -1, e, 1 ) - 
+						get( pcm, f, peak, d, 1, e, -1 ) + get( pcm, f, peak, d, -1, e, -1 ) ) / 4.0;
+			}
+		}
+		
+		// solve H * offset = -g by gaussian elimination with partial pivoting
+		final double[] x = new double[ n ];
+		
+		for ( int d = 0; d < n; ++d )
+			x[ d ] = -g[ d ];
+		
+		for ( int d = 0; d < n; ++d )
+		{
+			int pivot = d;
+			
+			for ( int e = d + 1; e < n; ++e )
+				if ( Math.abs( h[ e ][ d ] ) > Math.abs( h[ pivot ][ d ] ) )
+					pivot = e;
+			
+			if ( h[ pivot ][ d ] == 0 )
+				return center;
+			
+			final double[] row = h[ pivot ];
+			h[ pivot ] = h[ d ];
+			h[ d ] = row;
+			
+			final double tmp = x[ pivot ];
+			x[ pivot ] = x[ d ];
+			x[ d ] = tmp;
+			
+			for ( int e = d + 1; e < n; ++e )
+			{
+				final double factor = h[ e ][ d ] / h[ d ][ d ];
+				
+				for ( int k = d; k < n; ++k )
+					h[ e ][ k ] -= factor * h[ d ][ k ];
+				
+				x[ e ] -= factor * x[ d ];
+			}
+		}
+		
+		for ( int d = n - 1; d >= 0; --d )
+		{
+			for ( int k = d + 1; k < n; ++k )
+				x[ d ] -= h[ d ][ k ] * x[ k ];
+			
+			x[ d ] /= h[ d ][ d ];
+		}
+		
+		double value = center;
+		
+		for ( int d = 0; d < n; ++d )
+		{
+			offset[ d ] = (float)x[ d ];
+			value += 0.5 * g[ d ] * x[ d ];
+		}
+		
+		return (float)value;
+	}
+	
+	/**
+	 * @return the value of the periodic phase correlation matrix next to the peak, moved by s1 in dimension d1 and by s2 in dimension d2
+	 */
+	protected static float get( final float[] pcm, final int[] f, final int[] peak, final int d1, final int s1, final int d2, final int s2 )
+	{
+		final int[] pos = peak.clone();
+		
+		pos[ d1 ] = ( pos[ d1 ] + s1 + f[ d1 ] ) % f[ d1 ];
+		pos[ d2 ] = ( pos[ d2 ] + s2 + f[ d2 ] ) % f[ d2 ];
+		
+		return pcm[ index( pos, f ) ];
+	}
+	
+	/**
+	 * Computes the cross correlation of the overlapping area if image 2 is placed at the given 
+	 * shift relative to image 1
+	 * 
+	 * @return the correlation coefficient R, 0 if the images overlap by less than {@link #minOverlapPx} pixels in
+	 * a dimension (or less than the image size if it is smaller) or one of them is constant
+	 */
+	protected static double testCrossCorrelation( final float[] img1, final int[] size1, final float[] img2, final int[] size2, final int[] shift )
+	{
+		return testCrossCorrelation( img1, size1, size1, img2, size2, size2, shift );
+	}
+	
+	/**
+	 * @param dim1 - the dimensions of the array of image 1, it may be larger than the image (e.g. padded)
+	 * @param dim2 - the dimensions of the array of image 2
+	 */
+	protected static double testCrossCorrelation( final float[] img1, final int[] dim1, final int[] size1, final float[] img2, final int[] dim2, final int[] size2, final int[] shift )
+	{
+		final int[] start = new int[ 3 ];
+		final int[] end = new int[ 3 ];
+		long count = 1;
+		
+		for ( int d = 0; d < 3; ++d )
+		{
+			start[ d ] = Math.max( 0, shift[ d ] );
+			end[ d ] = Math.min( size1[ d ], shift[ d ] + size2[ d ] );
+			
+			// a 2d image has a depth of 1
+			if ( end[ d ] - start[ d ] < Math.min( minOverlapPx, Math.min( size1[ d ], size2[ d ] ) ) )
+				return 0;
+			
+			count *= end[ d ] - start[ d ];
+		}
+		
+		double avg1 = 0, avg2 = 0;
+		
+		for ( int z = start[ 2 ]; z < end[ 2 ]; ++z )
+			for ( int y = start[ 1 ]; y < end[ 1 ]; ++y )
+			{
+				final int i1 = ( z * dim1[ 1 ] + y ) * dim1[ 0 ];
+				final int i2 = ( ( z - shift[ 2 ] ) * dim2[ 1 ] + y - shift[ 1 ] ) * dim2[ 0 ] - shift[ 0 ];
+				
+				for ( int x = start[ 0 ]; x < end[ 0 ]; ++x )
+				{
+					avg1 += img1[ i1 + x ];
+					avg2 += img2[ i2 + x ];
+				}
+			}
+		
+		avg1 /= count;
+		avg2 /= count;
+		
+		double var1 = 0, var2 = 0, coVar = 0;
+		
+		for ( int z = start[ 2 ]; z < end[ 2 ]; ++z )
+			for ( int y = start[ 1 ]; y < end[ 1 ]; ++y )
+			{
+				final int i1 = ( z * dim1[ 1 ] + y ) * dim1[ 0 ];
+				final int i2 = ( ( z - shift[ 2 ] ) * dim2[ 1 ] + y - shift[ 1 ] ) * dim2[ 0 ] - shift[ 0 ];
+				
+				for ( int x = start[ 0 ]; x < end[ 0 ]; ++x )
+				{
+					final double dist1 = img1[ i1 + x ] - avg1;
+					final double dist2 = img2[ i2 + x ] - avg2;
+					
+					coVar += dist1 * dist2;
+					var1 += dist1 * dist1;
+					var2 += dist2 * dist2;
+				}
+			}
+		
+		var1 /= count;
+		var2 /= count;
+		coVar /= count;
+		
+		final double stDev1 = Math.sqrt( var1 );
+		final double stDev2 = Math.sqrt( var2 );
+		
+		// all pixels had the same color....
+		if ( stDev1 == 0 || stDev2 == 0 )
+		{
+			if ( stDev1 == stDev2 && avg1 == avg2 )
+				return 1;
+			
+			return 0;
+		}
+		
+		// R is computed as float like in imglib so that both give identical values
+		return (float)( coVar / ( stDev1 * stDev2 ) );
+	}
+	
+	protected static int index( final int[] pos, final int[] f )
+	{
+		return ( pos[ 2 ] * f[ 1 ] + pos[ 1 ] ) * f[ 0 ] + pos[ 0 ];
+	}
+	
+	/**
+	 * @return the size as 3d, a 2d size has a depth of 1
+	 */
+	protected static int[] get3d( final int[] size )
+	{
+		if ( size.length == 3 )
+			return size;
+		
+		return new int[]{ size[ 0 ], size[ 1 ], 1 };
+	}
+}
@@ -23,10 +23,17 @@ package mpicbg.stitching;
 
 import ij.IJ;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.Callable;
 
 import mpicbg.models.Point;
 import mpicbg.models.PointMatch;
@@ -40,184 +47,279 @@ public class GlobalOptimization
 {
 	public static boolean ignoreZ = false;
 	
+	public static String[] solverChoices = { "Iterative (tile by tile)", "Direct (sparse least squares)" };
+	
 	public static ArrayList< ImagePlusTimePoint > optimize( final Vector< ComparePair > pairs, final ImagePlusTimePoint fixedImage, final StitchingParameters params )
 	{
-		boolean redo;
-		TileConfigurationStitching tc;
-		do
+		// the links are only added once, bad ones are removed from the running configuration
+		final ArrayList< Tile< ? > > tiles = addLinks( pairs, params );
+		
+		if ( tiles.size() == 0 )
+			return noCorrelatedTiles( fixedImage, params );
+		
+		// tiles that are not linked to each other are optimized independently, each with its own fixed tile
+		final HashMap< Tile< ? >, Integer > graphIndex = new HashMap< Tile< ? >, Integer >();
+		final ArrayList< ArrayList< Tile< ? > > > graphTiles = identifyConnectedGraphs( tiles, graphIndex );
+		
+		if ( graphTiles.size() > 1 )
+			Log.info( "Number of tile graphs = " + graphTiles.size() );
+		
+		// the graph of the fixed image keeps its position, the others are placed relative to it by their approximate positions
+		final int referenceGraph = graphIndex.containsKey( fixedImage ) ? graphIndex.get( fixedImage ) : 0;
+		final Tile< ? > reference = findFixedTile( graphTiles.get( referenceGraph ), fixedImage );
+		
+		final ArrayList< Callable< ArrayList< ImagePlusTimePoint > > > tasks = new ArrayList< Callable< ArrayList< ImagePlusTimePoint > > >();
+		
+		for ( int i = 0; i < graphTiles.size(); ++i )
 		{
-			redo = false;
-			ArrayList< Tile< ? > > tiles = new ArrayList< Tile< ? > >();
+			final ArrayList< Tile< ? > > graph = graphTiles.get( i );
+			final Tile< ? > fixedTile = findFixedTile( graph, fixedImage );
+			
+			if ( i != referenceGraph )
+				place( fixedTile, reference, params.dimensionality );
 			
-			for ( final ComparePair pair : pairs )
+			tasks.add( new Callable< ArrayList< ImagePlusTimePoint > >()
 			{
-				if ( pair.getCrossCorrelation() >= params.regThreshold && pair.getIsValidOverlap() )
-				{
-					Tile t1 = pair.getTile1();
-					Tile t2 = pair.getTile2();
-					
-					Point p1, p2;
-					
-					if ( params.dimensionality == 3 )
-					{
-						// the transformations that map each tile into the relative global coordinate system (that's why the "-")
-						p1 = new Point( new double[]{ 0,0,0 } );
-						
-						if ( ignoreZ )
-							p2 = new Point( new double[]{ -pair.getRelativeShift()[ 0 ], -pair.getRelativeShift()[ 1 ], 0 } );
-						else
-							p2 = new Point( new double[]{ -pair.getRelativeShift()[ 0 ], -pair.getRelativeShift()[ 1 ], -pair.getRelativeShift()[ 2 ] } );
-					}
-					else 
-					{
-						p1 = new Point( new double[]{ 0, 0 } );
-						p2 = new Point( new double[]{ -pair.getRelativeShift()[ 0 ], -pair.getRelativeShift()[ 1 ] } );						
-					}
-					
-					t1.addMatch( new PointMatchStitching( p1, p2, pair.getCrossCorrelation(), pair ) );
-					t2.addMatch( new PointMatchStitching( p2, p1, pair.getCrossCorrelation(), pair ) );
-					t1.addConnectedTile( t2 );
-					t2.addConnectedTile( t1 );
-					
-					if (!tiles.contains(t1))
-						tiles.add( t1 );
-	
-					if (!tiles.contains(t2))
-						tiles.add( t2 );			
-					
-					pair.setIsValidOverlap( true );
-				}
-				else
+				@Override
+				public ArrayList< ImagePlusTimePoint > call()
 				{
-					pair.setIsValidOverlap( false );
+					return optimizeGraph( graph, fixedTile, fixedImage, params );
 				}
-			}
-			
-			if ( tiles.size() == 0 )
+			});
+		}
+		
+		final ArrayList< ImagePlusTimePoint > imageInformationList = new ArrayList< ImagePlusTimePoint >();
+		
+		for ( final ArrayList< ImagePlusTimePoint > optimized : StitchingThreadPool.invokeAll( tasks ) )
+			imageInformationList.addAll( optimized );
+		
+		if ( imageInformationList.size() == 0 )
+			return noCorrelatedTiles( fixedImage, params );
+		
+		Collections.sort( imageInformationList );
+		
+		return imageInformationList;
+	}
+	
+	/**
+	 * Adds the matches of every pair that is correlated well enough to both of its tiles, all other pairs are marked invalid
+	 * 
+	 * @return all tiles with links, in the order of the pairs
+	 */
+	public static ArrayList< Tile< ? > > addLinks( final List< ComparePair > pairs, final StitchingParameters params )
+	{
+		// tiles are hashed by identity, so adding one does not depend on the number of tiles
+		final LinkedHashSet< Tile< ? > > tiles = new LinkedHashSet< Tile< ? > >();
+		
+		for ( final ComparePair pair : pairs )
+		{
+			if ( pair.getCrossCorrelation() >= params.regThreshold && pair.getIsValidOverlap() )
 			{
+				Tile t1 = pair.getTile1();
+				Tile t2 = pair.getTile2();
+				
+				Point p1, p2;
 				
 				if ( params.dimensionality == 3 )
 				{
-					Log.error( "Error: No correlated tiles found, setting the first tile to (0, 0, 0)." );
-					TranslationModel3D model = (TranslationModel3D)fixedImage.getModel();
-					model.set( 0, 0, 0 );
+					// the transformations that map each tile into the relative global coordinate system (that's why the "-")
+					p1 = new Point( new double[]{ 0,0,0 } );
+					
+					if ( ignoreZ )
+						p2 = new Point( new double[]{ -pair.getRelativeShift()[ 0 ], -pair.getRelativeShift()[ 1 ], 0 } );
+					else
+						p2 = new Point( new double[]{ -pair.getRelativeShift()[ 0 ], -pair.getRelativeShift()[ 1 ], -pair.getRelativeShift()[ 2 ] } );
 				}
-				else
+				else 
 				{
-					Log.error( "Error: No correlated tiles found, setting the first tile to (0, 0)." );
-					TranslationModel2D model = (TranslationModel2D)fixedImage.getModel();
-					model.set( 0, 0 );					
+					p1 = new Point( new double[]{ 0, 0 } );
+					p2 = new Point( new double[]{ -pair.getRelativeShift()[ 0 ], -pair.getRelativeShift()[ 1 ] } );						
 				}
 				
-				ArrayList< ImagePlusTimePoint > imageInformationList = new ArrayList< ImagePlusTimePoint >();
-				imageInformationList.add( fixedImage );
+				t1.addMatch( new PointMatchStitching( p1, p2, pair.getCrossCorrelation(), pair ) );
+				t2.addMatch( new PointMatchStitching( p2, p1, pair.getCrossCorrelation(), pair ) );
+				t1.addConnectedTile( t2 );
+				t2.addConnectedTile( t1 );
 				
-				Log.info(" number of tiles = " + imageInformationList.size() );
+				tiles.add( t1 );
+				tiles.add( t2 );
 				
-				return imageInformationList;
-			}						
-			
-			/*
-			// trash everything but the largest graph			
-			final ArrayList< Set< Tile< ? > > > graphs = Tile.identifyConnectedGraphs( tiles );
-			Log.info( "Number of tile graphs = " + graphs.size() );
-			
-			int largestGraphSize = 0;
-			int largestGraphId = -1;
-			
-			for ( int i = 0; i < graphs.size(); ++i )
+				pair.setIsValidOverlap( true );
+			}
+			else
 			{
-				Log.info( "Graph " + i + ": size = " + graphs.get( i ).size() );
-				if ( graphs.get( i ).size() > largestGraphSize )
-				{
-					largestGraphSize = graphs.get( i ).size();
-					largestGraphId = i;
-				}
+				pair.setIsValidOverlap( false );
 			}
+		}
+		
+		return new ArrayList< Tile< ? > >( tiles );
+	}
+	
+	/**
+	 * Finds the graphs of tiles that are connected by links with a breadth-first search
+	 * 
+	 * @param tiles - all tiles
+	 * @param graphIndex - will contain the graph of each tile
+	 * 
+	 * @return the tiles of each graph, in the order of all tiles
+	 */
+	protected static ArrayList< ArrayList< Tile< ? > > > identifyConnectedGraphs( final ArrayList< Tile< ? > > tiles, final HashMap< Tile< ? >, Integer > graphIndex )
+	{
+		final ArrayList< ArrayList< Tile< ? > > > graphTiles = new ArrayList< ArrayList< Tile< ? > > >();
+		final ArrayDeque< Tile< ? > > queue = new ArrayDeque< Tile< ? > >();
+		
+		for ( final Tile< ? > tile : tiles )
+		{
+			if ( graphIndex.containsKey( tile ) )
+				continue;
 			
-			ArrayList< Tile > largestGraph = new ArrayList< Tile >();
-			largestGraph.addAll( graphs.get( largestGraphId ) );
-			*/
+			final int i = graphTiles.size();
+			graphTiles.add( new ArrayList< Tile< ? > >() );
 			
-			tc = new TileConfigurationStitching();
-			tc.addTiles( tiles );
+			graphIndex.put( tile, i );
+			queue.add( tile );
 			
-			// find a useful fixed tile
-			if ( fixedImage.getConnectedTiles().size() > 0 )
-			{
-				tc.fixTile( fixedImage );
-			}
-			else
-			{
-				for ( int i = 0; i < tiles.size(); ++i )
-					if ( tiles.get( i ).getConnectedTiles().size() > 0 )
+			while ( !queue.isEmpty() )
+				for ( final Tile< ? > t : queue.poll().getConnectedTiles() )
+					if ( !graphIndex.containsKey( t ) )
 					{
-						tc.fixTile( tiles.get( i ) );
-						break;
+						graphIndex.put( t, i );
+						queue.add( t );
 					}
-			}
-			//Log.info(" tiles size =" + tiles.size());
-			//Log.info(" tc.getTiles() size =" + tc.getTiles().size());
-
+		}
+		
+		for ( final Tile< ? > t : tiles )
+			graphTiles.get( graphIndex.get( t ) ).add( t );
+		
+		return graphTiles;
+	}
+	
+	/**
+	 * Optimizes one connected graph of tiles, removing bad links until the errors are acceptable
+	 * 
+	 * @param tiles - all tiles of the graph
+	 * @param fixedTile - the tile that keeps its position
+	 * @param fixedImage - the tile that is fixed instead if the fixed tile loses all its links
+	 * @param params - the thresholds and solver
+	 * 
+	 * @return the tiles that still have links
+	 */
+	protected static ArrayList< ImagePlusTimePoint > optimizeGraph( final ArrayList< Tile< ? > > tiles, final Tile< ? > fixedTile, final ImagePlusTimePoint fixedImage, final StitchingParameters params )
+	{
+		final TileConfigurationStitching tc = new TileConfigurationStitching();
+		tc.addTiles( tiles );
+		tc.fixTile( fixedTile );
+		
+		boolean redo;
+		boolean preAlign = true;
+		
+		do
+		{
+			redo = false;
+			
 			try
 			{
-				tc.preAlign();
-				tc.optimize( 10, 1000, 200 );
+				if ( params.directSolver )
+				{
+					TranslationSolver.solve( tc.getTiles(), tc.getFixedTiles(), params.dimensionality );
+					tc.updateErrors();
+				}
+				else
+				{
+					// after removing a link the current positions are a good start, it only has to converge again locally
+					if ( preAlign )
+						tc.preAlign();
+					
+					tc.optimize( 10, 1000, 200 );
+				}
+				
+				preAlign = false;
 
 				double avgError = tc.getError();
 				double maxError = tc.getMaxError();				
 
-				if ( ( ( avgError*params.relativeThreshold < maxError && maxError > 0.95 ) || avgError > params.absoluteThreshold ) )
-				{
-					double longestDisplacement = 0;
-					PointMatch worstMatch = null;
+				final boolean relativeExceeded = avgError*params.relativeThreshold < maxError && maxError > 0.95;
+				final boolean absoluteExceeded = avgError > params.absoluteThreshold;
 
-					// new way of finding biggest error to look for the largest displacement
-					for ( final Tile t : tc.getTiles() )
+				if ( relativeExceeded || absoluteExceeded )
+				{
+					final ArrayList< ComparePair > badPairs = new ArrayList< ComparePair >();
+					
+					// remove all links that are too long and the worst of both their tiles at once, a link is 
+					// too long if it exceeds the threshold of any criterion that is not met
+					if ( params.batchedOutlierRemoval )
 					{
-						for ( PointMatch p :  (Set< PointMatch >)t.getMatches() )
+						double threshold = Double.MAX_VALUE;
+						
+						if ( relativeExceeded )
+							threshold = Math.max( 0.95, avgError * params.relativeThreshold );
+						
+						if ( absoluteExceeded )
+							threshold = Math.min( threshold, params.absoluteThreshold );
+						
+						badPairs.addAll( findBadLinks( tc, threshold ) );
+					}
+					
+					if ( badPairs.size() == 0 )
+					{
+						double longestDisplacement = 0;
+						PointMatch worstMatch = null;
+
+						// new way of finding biggest error to look for the largest displacement
+						for ( final Tile t : tc.getTiles() )
 						{
-							if ( p.getDistance() > longestDisplacement )
+							for ( PointMatch p :  (Set< PointMatch >)t.getMatches() )
 							{
-								longestDisplacement = p.getDistance();
-								worstMatch = p;
+								if ( p.getDistance() > longestDisplacement )
+								{
+									longestDisplacement = p.getDistance();
+									worstMatch = p;
+								}
 							}
 						}
-					}
 
-					/*
-					Tile worstTile = tc.getWorstTile();
-					Set< PointMatch > matches = worstTile.getMatches();
+						/*
+						Tile worstTile = tc.getWorstTile();
+						Set< PointMatch > matches = worstTile.getMatches();
 					
-					float longestDisplacement = 0;
-					PointMatch worstMatch = null;
+						float longestDisplacement = 0;
+						PointMatch worstMatch = null;
 					
-					//Log.info( "worstTile: " + ((ImagePlusTimePoint)worstTile).getImagePlus().getTitle() );
+						//Log.info( "worstTile: " + ((ImagePlusTimePoint)worstTile).getImagePlus().getTitle() );
 
-					for (PointMatch p : matches)
-					{
-						//Log.info( "distance: " + p.getDistance() + " to " + ((PointMatchStitching)p).getPair().getImagePlus2().getTitle() );
-
-						if (p.getDistance() > longestDisplacement)
+						for (PointMatch p : matches)
 						{
-							longestDisplacement = p.getDistance();
-							worstMatch = p;
+							//Log.info( "distance: " + p.getDistance() + " to " + ((PointMatchStitching)p).getPair().getImagePlus2().getTitle() );
+
+							if (p.getDistance() > longestDisplacement)
+							{
+								longestDisplacement = p.getDistance();
+								worstMatch = p;
+							}
 						}
+						*/
+						badPairs.add( ((PointMatchStitching)worstMatch).getPair() );
 					}
-					*/
-					final ComparePair pair = ((PointMatchStitching)worstMatch).getPair();
 					
-					Log.info( "Identified link between " + pair.getImagePlus1().getTitle() + "[" + pair.getTile1().getTimePoint() + "] and " + 
-							pair.getImagePlus2().getTitle() + "[" + pair.getTile2().getTimePoint() + "] (R=" + pair.getCrossCorrelation() +") to be bad. Reoptimizing.");
+					for ( final ComparePair pair : badPairs )
+					{
+						Log.info( "Identified link between " + pair.getTile1().getTitle() + "[" + pair.getTile1().getTimePoint() + "] and " + 
+								pair.getTile2().getTitle() + "[" + pair.getTile2().getTimePoint() + "] (R=" + pair.getCrossCorrelation() +") to be bad. Reoptimizing.");
+						
+						pair.setIsValidOverlap( false );
+						removeLink( pair );
+					}
 					
-					((PointMatchStitching)worstMatch).getPair().setIsValidOverlap( false );
 					redo = true;
 					
-					for ( final Tile< ? > t : tiles )
-					{
-						t.getConnectedTiles().clear();
-						t.getMatches().clear();
-					}
+					// tiles without links are not part of the result anymore
+					tc.removeUnconnectedTiles();
+					
+					if ( tc.getTiles().size() == 0 )
+						return new ArrayList< ImagePlusTimePoint >();
+					
+					if ( tc.getFixedTiles().size() == 0 )
+						tc.fixTile( findFixedTile( tc.getTiles(), fixedImage ) );
 				}
 			}
 			catch ( Exception e )
@@ -233,7 +335,146 @@ public class GlobalOptimization
 		for ( Tile< ? > t : tc.getTiles() )
 			imageInformationList.add( (ImagePlusTimePoint)t );
 		
-		Collections.sort( imageInformationList );
+		return imageInformationList;
+	}
+	
+	/**
+	 * @return the given tile if it is one of the tiles and has links, otherwise the first of the tiles with links
+	 */
+	protected static Tile< ? > findFixedTile( final Collection< Tile< ? > > tiles, final ImagePlusTimePoint fixedImage )
+	{
+		// find a useful fixed tile
+		if ( fixedImage.getConnectedTiles().size() > 0 && tiles.contains( fixedImage ) )
+			return fixedImage;
+		
+		for ( final Tile< ? > t : tiles )
+			if ( t.getConnectedTiles().size() > 0 )
+				return t;
+		
+		return null;
+	}
+	
+	/**
+	 * Moves a tile to where the approximate positions of the {@link ImageCollectionElement}s put it relative to 
+	 * the reference tile. Tiles without an {@link ImageCollectionElement} stay where they are.
+	 */
+	protected static void place( final Tile< ? > tile, final Tile< ? > reference, final int dimensionality )
+	{
+		final ImageCollectionElement element = ( (ImagePlusTimePoint)tile ).getElement();
+		final ImageCollectionElement referenceElement = ( (ImagePlusTimePoint)reference ).getElement();
+		
+		if ( element == null || referenceElement == null || element.getOffset() == null || referenceElement.getOffset() == null )
+			return;
+		
+		final double[] t = reference.getModel().apply( new double[ dimensionality ] );
+		
+		for ( int d = 0; d < dimensionality; ++d )
+			t[ d ] += element.getOffset( d ) - referenceElement.getOffset( d );
+		
+		if ( dimensionality == 3 )
+			( (TranslationModel3D)tile.getModel() ).set( t[ 0 ], t[ 1 ], t[ 2 ] );
+		else
+			( (TranslationModel2D)tile.getModel() ).set( t[ 0 ], t[ 1 ] );
+	}
+	
+	/**
+	 * Removes the matches of a pair from both of its tiles, they are only disconnected if no other pair links them
+	 */
+	protected static void removeLink( final ComparePair pair )
+	{
+		final Tile< ? > t1 = pair.getTile1();
+		final Tile< ? > t2 = pair.getTile2();
+		
+		boolean stillConnected = false;
+		
+		for ( final Tile< ? > t : new Tile< ? >[]{ t1, t2 } )
+			for ( final Iterator< PointMatch > it = t.getMatches().iterator(); it.hasNext(); )
+			{
+				final ComparePair other = ( (PointMatchStitching)it.next() ).getPair();
+				
+				if ( other == pair )
+					it.remove();
+				else if ( t == t1 && ( other.getTile1() == t2 || other.getTile2() == t2 ) )
+					stillConnected = true;
+			}
+		
+		if ( !stillConnected )
+		{
+			t1.getConnectedTiles().remove( t2 );
+			t2.getConnectedTiles().remove( t1 );
+		}
+	}
+	
+	/**
+	 * Finds the links that are longer than the threshold and the longest of all links of their tiles and 
+	 * the neighboring tiles. A bad link also displaces the good links around it, so of several long links 
+	 * close to each other only the longest one is removed in one pass.
+	 * 
+	 * @return the pairs of all bad links
+	 */
+	protected static ArrayList< ComparePair > findBadLinks( final TileConfigurationStitching tc, final double threshold )
+	{
+		// the longest link of each tile
+		final HashMap< Tile< ? >, Double > longest = new HashMap< Tile< ? >, Double >();
+		
+		for ( final Tile< ? > t : tc.getTiles() )
+		{
+			double longestDisplacement = 0;
+			
+			for ( final PointMatch p : t.getMatches() )
+				longestDisplacement = Math.max( longestDisplacement, p.getDistance() );
+			
+			longest.put( t, longestDisplacement );
+		}
+		
+		final ArrayList< ComparePair > badPairs = new ArrayList< ComparePair >();
+		
+		for ( final Tile< ? > t : tc.getTiles() )
+			for ( final PointMatch p : t.getMatches() )
+			{
+				final ComparePair pair = ( (PointMatchStitching)p ).getPair();
+				final double distance = p.getDistance();
+				
+				// every link once
+				if ( pair.getTile1() != t || distance <= threshold )
+					continue;
+				
+				boolean isLongest = true;
+				
+				for ( final Tile< ? > t1 : new Tile< ? >[]{ pair.getTile1(), pair.getTile2() } )
+				{
+					isLongest &= longest.get( t1 ) <= distance;
+					
+					for ( final Tile< ? > t2 : t1.getConnectedTiles() )
+						isLongest &= !longest.containsKey( t2 ) || longest.get( t2 ) <= distance;
+				}
+				
+				if ( isLongest )
+					badPairs.add( pair );
+			}
+		
+		return badPairs;
+	}
+	
+	protected static ArrayList< ImagePlusTimePoint > noCorrelatedTiles( final ImagePlusTimePoint fixedImage, final StitchingParameters params )
+	{
+		if ( params.dimensionality == 3 )
+		{
+			Log.error( "Error: No correlated tiles found, setting the first tile to (0, 0, 0)." );
+			TranslationModel3D model = (TranslationModel3D)fixedImage.getModel();
+			model.set( 0, 0, 0 );
+		}
+		else
+		{
+			Log.error( "Error: No correlated tiles found, setting the first tile to (0, 0)." );
+			TranslationModel2D model = (TranslationModel2D)fixedImage.getModel();
+			model.set( 0, 0 );					
+		}
+		
+		ArrayList< ImagePlusTimePoint > imageInformationList = new ArrayList< ImagePlusTimePoint >();
+		imageInformationList.add( fixedImage );
+		
+		Log.info(" number of tiles = " + imageInformationList.size() );
 		
 		return imageInformationList;
 	}
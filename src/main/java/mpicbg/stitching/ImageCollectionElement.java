@@ -27,6 +27,7 @@ import ij.ImagePlus;
 import java.io.File;
 
 import loci.formats.ChannelSeparator;
+import loci.formats.FormatTools;
 import loci.formats.IFormatReader;
 import loci.plugins.BF;
 import loci.plugins.in.ImporterOptions;
@@ -42,6 +43,12 @@ public class ImageCollectionElement
 	int dimensionality;
 	boolean virtual = false;
 	
+	// if the ImagePlus was set from outside (multi-series), it cannot be re-opened from the file
+	boolean external = false;
+	
+	// known after opening or reading the header
+	int numChannels = -1, numTimePoints = -1, bytesPerPixel = 4;
+	
 	//2d or 3d offset
 	float[] offset;	
 	
@@ -69,25 +76,108 @@ public class ImageCollectionElement
 	public void setDimensionality( final int dimensionality ) { this.dimensionality = dimensionality; }
 	public int getDimensionality() { return dimensionality; }
 	
+	public int getNumChannels() { return numChannels; }
+	public int getNumTimePoints() { return numTimePoints; }
+	public int getBytesPerPixel() { return bytesPerPixel; }
+	
 	public File getFile() { return file; }
 	public boolean isVirtual() { return virtual; }
+	public synchronized boolean isOpen() { return imp != null; }
+	
+	/**
+	 * @return true if the image can be closed and opened again from the file without losing anything
+	 */
+	public boolean isReopenable() { return !external; }
+	
+	/**
+	 * @return the title of the image, or the file name if it is not open
+	 */
+	public synchronized String getTitle() { return imp != null ? imp.getTitle() : file.getName(); }
 	
 	/**
 	 * Used by the multi-series stitching
 	 * 
 	 * @param imp - the ImagePlus of this series
 	 */
-	public void setImagePlus( final ImagePlus imp ) 
+	public synchronized void setImagePlus( final ImagePlus imp ) 
 	{ 
 		this.imp = imp; 
-		
+		this.external = true;
+		setDimensions( imp );
+	}
+	
+	protected void setDimensions( final ImagePlus imp )
+	{
 		if ( imp.getNSlices() == 1 )
 			size = new int[] { imp.getWidth(), imp.getHeight() };
 		else
-			size = new int[] { imp.getWidth(), imp.getHeight(), imp.getNSlices() };	
+			size = new int[] { imp.getWidth(), imp.getHeight(), imp.getNSlices() };
+		
+		numChannels = imp.getNChannels();
+		numTimePoints = imp.getNFrames();
+		bytesPerPixel = imp.getBitDepth() / 8;
 	}
 	
-	public ImagePlus open( final boolean virtual )
+	/**
+	 * Reads the dimensions, number of channels and timepoints from the metadata of the file
+	 * without loading any pixels. If the image is already open, they are taken from the ImagePlus.
+	 * 
+	 * @return true if successful
+	 */
+	public synchronized boolean readHeader()
+	{
+		if ( imp != null )
+		{
+			setDimensions( imp );
+			return true;
+		}
+		
+		if ( !file.exists() )
+		{
+			Log.error( "Cannot find file: '" + file + "' - abort stitching." );
+			return false;
+		}
+		
+		final IFormatReader r = new ChannelSeparator();
+		
+		try
+		{
+			r.setId( file.getAbsolutePath() );
+			
+			int numSlices = r.getSizeZ();
+			int numFrames = r.getSizeT();
+			
+			// same as in open()
+			if ( numSlices == 1 && numFrames > 1 && !r.isOrderCertain() )
+			{
+				Log.info( "dimension order is not certain, assuming XYZ instead of XYT" );
+				numSlices = numFrames;
+				numFrames = 1;
+			}
+			
+			if ( numSlices == 1 )
+				size = new int[] { r.getSizeX(), r.getSizeY() };
+			else
+				size = new int[] { r.getSizeX(), r.getSizeY(), numSlices };
+			
+			numChannels = r.getSizeC();
+			numTimePoints = numFrames;
+			bytesPerPixel = FormatTools.getBytesPerPixel( r.getPixelType() );
+			
+			return true;
+		}
+		catch ( Exception e )
+		{
+			Log.error( "Cannot read header of file '" + file + "': " + e );
+			return false;
+		}
+		finally
+		{
+			try { r.close(); } catch ( Exception e ) {}
+		}
+	}
+	
+	public synchronized ImagePlus open( final boolean virtual )
 	{
 		if ( imp != null && this.isVirtual() == virtual )
 		{
@@ -152,14 +242,7 @@ public class ImageCollectionElement
 				catch ( Exception e ) {}
 			}
 
-			if ( imp[ 0 ].getNSlices() == 1 )
-			{
-				size = new int[] { imp[ 0 ].getWidth(), imp[ 0 ].getHeight() };
-			}
-			else
-			{
-				size = new int[] { imp[ 0 ].getWidth(), imp[ 0 ].getHeight(), imp[ 0 ].getNSlices() };
-			}
+			setDimensions( imp[ 0 ] );
 
 			this.imp = imp[ 0 ];
 			return this.imp;
@@ -171,9 +254,10 @@ public class ImageCollectionElement
 		}
 	}
 
-	public void close() 
+	public synchronized void close() 
 	{
-		imp.close();
+		if ( imp != null )
+			imp.close();
 		imp = null;
 	}
 }
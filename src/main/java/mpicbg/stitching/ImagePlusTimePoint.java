@@ -31,17 +31,37 @@ public class ImagePlusTimePoint extends Tile implements Comparable< ImagePlusTim
 	final ImagePlus imp;
 	final int impId;
 	final int timePoint, dimensionality;
+	final boolean virtual;
 	
 	// might have one if called from grid/collection stitching
 	final ImageCollectionElement element;
 	
 	public ImagePlusTimePoint( final ImagePlus imp, final int impId, final int timepoint, final Model model, final ImageCollectionElement element )
+	{
+		this( imp, impId, timepoint, model, element, false );
+	}
+	
+	/**
+	 * Creates a tile that opens the image of the {@link ImageCollectionElement} only
+	 * when {@link #getImagePlus()} is called.
+	 * 
+	 * @param element - the element to open
+	 * @param timepoint - which timepoint
+	 * @param virtual - open as virtual stack
+	 */
+	public ImagePlusTimePoint( final ImageCollectionElement element, final int timepoint, final boolean virtual )
+	{
+		this( null, element.getIndex(), timepoint, element.getModel(), element, virtual );
+	}
+	
+	protected ImagePlusTimePoint( final ImagePlus imp, final int impId, final int timepoint, final Model model, final ImageCollectionElement element, final boolean virtual )
 	{
 		super( model );
 		this.imp = imp;
 		this.impId = impId;
 		this.timePoint = timepoint;
 		this.element = element;
+		this.virtual = virtual;
 		
 		if ( TranslationModel2D.class.isInstance( model ) )
 			dimensionality = 2;
@@ -50,7 +70,32 @@ public class ImagePlusTimePoint extends Tile implements Comparable< ImagePlusTim
 	}
 	
 	public int getImpId() { return impId; }
-	public ImagePlus getImagePlus() { return imp; }
+	
+	/**
+	 * @return the image, if this tile was created from an {@link ImageCollectionElement} it is opened if necessary
+	 */
+	public ImagePlus getImagePlus() 
+	{
+		if ( imp != null || element == null )
+			return imp;
+		
+		return element.open( virtual );
+	}
+	
+	/**
+	 * @return the title of the image without opening it, or the image id if there is neither an image nor an element
+	 */
+	public String getTitle()
+	{
+		if ( imp != null )
+			return imp.getTitle();
+		
+		if ( element != null )
+			return element.getTitle();
+		
+		return "tile " + impId;
+	}
+	
 	public int getTimePoint() { return timePoint; }
 	public ImageCollectionElement getElement() { return element; }
 
@@ -28,13 +28,15 @@ import ij.gui.Roi;
 
 import java.util.ArrayList;
 import java.util.Vector;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.Callable;
 
 import stitching.utils.Log;
 import mpicbg.imglib.algorithm.fft.PhaseCorrelation;
 import mpicbg.imglib.algorithm.fft.PhaseCorrelationPeak;
 import mpicbg.imglib.algorithm.scalespace.DifferenceOfGaussianPeak;
 import mpicbg.imglib.algorithm.scalespace.SubpixelLocalization;
+import mpicbg.imglib.container.array.Array;
+import mpicbg.imglib.cursor.Cursor;
 import mpicbg.imglib.cursor.LocalizableByDimCursor;
 import mpicbg.imglib.cursor.LocalizableCursor;
 import mpicbg.imglib.image.Image;
@@ -60,30 +62,68 @@ import mpicbg.imglib.type.numeric.real.FloatType;
 public class PairWiseStitchingImgLib 
 {
 	public static PairWiseStitchingResult stitchPairwise( final ImagePlus imp1, final ImagePlus imp2, Roi roi1, Roi roi2, final int timepoint1, final int timepoint2, final StitchingParameters params )
+	{
+		return stitchPairwise( imp1, imp2, roi1, roi2, timepoint1, timepoint2, params, StitchingThreadPool.getParallelism() );
+	}
+	
+	/**
+	 * @param numThreads - how many threads the phase correlation may use, less than the number of processors if several pairs run at the same time
+	 */
+	public static PairWiseStitchingResult stitchPairwise( final ImagePlus imp1, final ImagePlus imp2, Roi roi1, Roi roi2, final int timepoint1, final int timepoint2, final StitchingParameters params, final int numThreads )
+	{
+		return stitchPairwise( imp1, imp2, roi1, roi2, null, null, timepoint1, timepoint2, params, numThreads );
+	}
+	
+	/**
+	 * @param zRange1 - { start, end } of the slices of image 1 to use (end is exclusive), null for all slices
+	 * @param zRange2 - { start, end } of the slices of image 2 to use, null for all slices
+	 * @param numThreads - how many threads the phase correlation may use, less than the number of processors if several pairs run at the same time
+	 */
+	public static PairWiseStitchingResult stitchPairwise( final ImagePlus imp1, final ImagePlus imp2, Roi roi1, Roi roi2, final int[] zRange1, final int[] zRange2, final int timepoint1, final int timepoint2, final StitchingParameters params, final int numThreads )
+	{
+		return stitchPairwise( imp1, imp2, roi1, roi2, zRange1, zRange2, timepoint1, timepoint2, imp1, imp2, params, numThreads );
+	}
+	
+	/**
+	 * @param source1 - identifies image 1 in the {@link FFTCache} of the parameters, e.g. its {@link ImageCollectionElement}
+	 * so that the cache does not keep the ImagePlus of a tile that is closed after its last pair
+	 * @param source2 - identifies image 2 in the {@link FFTCache}
+	 * @param numThreads - how many threads the phase correlation may use, less than the number of processors if several pairs run at the same time
+	 */
+	public static PairWiseStitchingResult stitchPairwise( final ImagePlus imp1, final ImagePlus imp2, Roi roi1, Roi roi2, final int[] zRange1, final int[] zRange2, final int timepoint1, final int timepoint2, final Object source1, final Object source2, final StitchingParameters params, final int numThreads )
 	{
 		PairWiseStitchingResult result = null;
 		roi1 = getOnlyRectangularRoi( roi1 );
 		roi2 = getOnlyRectangularRoi( roi2 );
 		
 		// can both images be wrapped into imglib without copying
-		final boolean canWrap = !StitchingParameters.alwaysCopy && canWrapIntoImgLib( imp1, roi1, params.channel1 ) && canWrapIntoImgLib( imp2, roi2, params.channel2 );
+		final boolean canWrap = !StitchingParameters.alwaysCopy && zRange1 == null && zRange2 == null && canWrapIntoImgLib( imp1, roi1, params.channel1 ) && canWrapIntoImgLib( imp2, roi2, params.channel2 );
 		
 		
+		if ( params.pyramidFactor > 1 )
+		{
+			result = stitchPairwisePyramid( imp1, imp2, roi1, roi2, zRange1, zRange2, timepoint1, timepoint2, params, numThreads );
+		}
+		else if ( params.fftCache != null || ( !canWrap && !StitchingParameters.alwaysCopy ) )
+		{
+			// rois, ranges of slices and averaged channels are copied only once, directly into the FFT buffers
+			result = stitchPairwiseViews( imp1, imp2, roi1, roi2, zRange1, zRange2, timepoint1, timepoint2, source1, source2, params, numThreads );
+		}
 		//
 		// the ugly but correct way into generic programming...
 		//
-		if ( canWrap )
+		else if ( canWrap )
 		{
 			if ( imp1.getType() == ImagePlus.GRAY32 )
 			{
 				final Image<FloatType> image1 = getWrappedImageFloat( imp1, params.channel1, timepoint1 );
 				
 				if ( imp2.getType() == ImagePlus.GRAY32 )
-					result = performStitching( image1, getWrappedImageFloat( imp2, params.channel2, timepoint2 ), params );
+					result = performStitching( image1, getWrappedImageFloat( imp2, params.channel2, timepoint2 ), params, numThreads );
 				else if ( imp2.getType() == ImagePlus.GRAY16 )
-					result = performStitching( image1, getWrappedImageUnsignedShort( imp2, params.channel2, timepoint2 ), params );
+					result = performStitching( image1, getWrappedImageUnsignedShort( imp2, params.channel2, timepoint2 ), params, numThreads );
 				else if ( imp2.getType() == ImagePlus.GRAY8 )
-					result = performStitching( image1, getWrappedImageUnsignedByte( imp2, params.channel2, timepoint2 ), params );
+					result = performStitching( image1, getWrappedImageUnsignedByte( imp2, params.channel2, timepoint2 ), params, numThreads );
 				else
 					Log.error( "Unknown image type: " + imp2.getType() );
 				
@@ -94,11 +134,11 @@ public class PairWiseStitchingImgLib
 				final Image<UnsignedShortType> image1 = getWrappedImageUnsignedShort( imp1, params.channel1, timepoint1 );
 				
 				if ( imp2.getType() == ImagePlus.GRAY32 )
-					result = performStitching( image1, getWrappedImageFloat( imp2, params.channel2, timepoint2 ), params );
+					result = performStitching( image1, getWrappedImageFloat( imp2, params.channel2, timepoint2 ), params, numThreads );
 				else if ( imp2.getType() == ImagePlus.GRAY16 )
-					result = performStitching( image1, getWrappedImageUnsignedShort( imp2, params.channel2, timepoint2 ), params );
+					result = performStitching( image1, getWrappedImageUnsignedShort( imp2, params.channel2, timepoint2 ), params, numThreads );
 				else if ( imp2.getType() == ImagePlus.GRAY8 )
-					result = performStitching( image1, getWrappedImageUnsignedByte( imp2, params.channel2, timepoint2 ), params );
+					result = performStitching( image1, getWrappedImageUnsignedByte( imp2, params.channel2, timepoint2 ), params, numThreads );
 				else
 					Log.error( "Unknown image type: " + imp2.getType() );
 
@@ -109,11 +149,11 @@ public class PairWiseStitchingImgLib
 				final Image<UnsignedByteType> image1 = getWrappedImageUnsignedByte( imp1, params.channel1, timepoint1 );
 				
 				if ( imp2.getType() == ImagePlus.GRAY32 )
-					result = performStitching( image1, getWrappedImageFloat( imp2, params.channel2, timepoint2 ), params );
+					result = performStitching( image1, getWrappedImageFloat( imp2, params.channel2, timepoint2 ), params, numThreads );
 				else if ( imp2.getType() == ImagePlus.GRAY16 )
-					result = performStitching( image1, getWrappedImageUnsignedShort( imp2, params.channel2, timepoint2 ), params );
+					result = performStitching( image1, getWrappedImageUnsignedShort( imp2, params.channel2, timepoint2 ), params, numThreads );
 				else if ( imp2.getType() == ImagePlus.GRAY8 )
-					result = performStitching( image1, getWrappedImageUnsignedByte( imp2, params.channel2, timepoint2 ), params );
+					result = performStitching( image1, getWrappedImageUnsignedByte( imp2, params.channel2, timepoint2 ), params, numThreads );
 				else
 					Log.error( "Unknown image type: " + imp2.getType() );
 				
@@ -132,40 +172,40 @@ public class PairWiseStitchingImgLib
 			
 			if ( imp1.getType() == ImagePlus.GRAY32 )
 			{
-				final Image< FloatType > image1 = getImage( imp1, roi1, imgFactoryFloat, params.channel1, timepoint1 );
+				final Image< FloatType > image1 = getImage( imp1, roi1, zRange1, imgFactoryFloat, params.channel1, timepoint1 );
 				
 				if ( imp2.getType() == ImagePlus.GRAY32 )
-					result = performStitching( image1, getImage( imp2, roi2, imgFactoryFloat, params.channel2, timepoint2 ), params );
+					result = performStitching( image1, getImage( imp2, roi2, zRange2, imgFactoryFloat, params.channel2, timepoint2 ), params, numThreads );
 				else if ( imp2.getType() == ImagePlus.GRAY16 )
-					result = performStitching( image1, getImage( imp2, roi2, imgFactoryShort, params.channel2, timepoint2 ), params );
+					result = performStitching( image1, getImage( imp2, roi2, zRange2, imgFactoryShort, params.channel2, timepoint2 ), params, numThreads );
 				else if ( imp2.getType() == ImagePlus.GRAY8 )
-					result = performStitching( image1, getImage( imp2, roi2, imgFactoryByte, params.channel2, timepoint2 ), params );
+					result = performStitching( image1, getImage( imp2, roi2, zRange2, imgFactoryByte, params.channel2, timepoint2 ), params, numThreads );
 				else
 					Log.error( "Unknown image type: " + imp2.getType() );					
 			}
 			else if ( imp1.getType() == ImagePlus.GRAY16 )
 			{
-				final Image< UnsignedShortType > image1 = getImage( imp1, roi1, imgFactoryShort, params.channel1, timepoint1 );
+				final Image< UnsignedShortType > image1 = getImage( imp1, roi1, zRange1, imgFactoryShort, params.channel1, timepoint1 );
 				
 				if ( imp2.getType() == ImagePlus.GRAY32 )
-					result = performStitching( image1, getImage( imp2, roi2, imgFactoryFloat, params.channel2, timepoint2 ), params );
+					result = performStitching( image1, getImage( imp2, roi2, zRange2, imgFactoryFloat, params.channel2, timepoint2 ), params, numThreads );
 				else if ( imp2.getType() == ImagePlus.GRAY16 )
-					result = performStitching( image1, getImage( imp2, roi2, imgFactoryShort, params.channel2, timepoint2 ), params );
+					result = performStitching( image1, getImage( imp2, roi2, zRange2, imgFactoryShort, params.channel2, timepoint2 ), params, numThreads );
 				else if ( imp2.getType() == ImagePlus.GRAY8 )
-					result = performStitching( image1, getImage( imp2, roi2, imgFactoryByte, params.channel2, timepoint2 ), params );
+					result = performStitching( image1, getImage( imp2, roi2, zRange2, imgFactoryByte, params.channel2, timepoint2 ), params, numThreads );
 				else
 					Log.error( "Unknown image type: " + imp2.getType() );					
 			}
 			else if ( imp1.getType() == ImagePlus.GRAY8 )
 			{
-				final Image< UnsignedByteType > image1 = getImage( imp1, roi1, imgFactoryByte, params.channel1, timepoint1 );
+				final Image< UnsignedByteType > image1 = getImage( imp1, roi1, zRange1, imgFactoryByte, params.channel1, timepoint1 );
 				
 				if ( imp2.getType() == ImagePlus.GRAY32 )
-					result = performStitching( image1, getImage( imp2, roi2, imgFactoryFloat, params.channel2, timepoint2 ), params );
+					result = performStitching( image1, getImage( imp2, roi2, zRange2, imgFactoryFloat, params.channel2, timepoint2 ), params, numThreads );
 				else if ( imp2.getType() == ImagePlus.GRAY16 )
-					result = performStitching( image1, getImage( imp2, roi2, imgFactoryShort, params.channel2, timepoint2 ), params );
+					result = performStitching( image1, getImage( imp2, roi2, zRange2, imgFactoryShort, params.channel2, timepoint2 ), params, numThreads );
 				else if ( imp2.getType() == ImagePlus.GRAY8 )
-					result = performStitching( image1, getImage( imp2, roi2, imgFactoryByte, params.channel2, timepoint2 ), params );
+					result = performStitching( image1, getImage( imp2, roi2, zRange2, imgFactoryByte, params.channel2, timepoint2 ), params, numThreads );
 				else
 					Log.error( "Unknown image type: " + imp2.getType() );					
 			}
@@ -193,10 +233,135 @@ public class PairWiseStitchingImgLib
 			result.offset[ 1 ] += roi1.getBounds().y;			
 		}
 		
+		if ( zRange2 != null && result.offset.length > 2 )
+			result.offset[ 2 ] -= zRange2[ 0 ];
+		
+		if ( zRange1 != null && result.offset.length > 2 )
+			result.offset[ 2 ] += zRange1[ 0 ];
+		
 		return result;
 	}
 
+	/**
+	 * Computes the phase correlation of two rois that are copied directly from the ImagePlus into the
+	 * FFT buffers (see {@link RoiView}). If the parameters have a {@link FFTCache}, the forward transforms 
+	 * are taken from (or added to) it, so an image (or roi) that takes part in many pairs is only 
+	 * transformed once.
+	 * 
+	 * @param source1 - identifies image 1 in the cache
+	 * @param source2 - identifies image 2 in the cache
+	 * @param numThreads - how many threads the FFTs may use
+	 * 
+	 * @return the shift relative to the rois or null if an image could not be transformed
+	 */
+	public static PairWiseStitchingResult stitchPairwiseViews( final ImagePlus imp1, final ImagePlus imp2, final Roi roi1, final Roi roi2, final int[] zRange1, final int[] zRange2, final int timepoint1, final int timepoint2, final Object source1, final Object source2, final StitchingParameters params, final int numThreads )
+	{
+		final int[] fftSize = FloatPhaseCorrelation.getFFTSize( getSize( imp1, roi1, zRange1 ), getSize( imp2, roi2, zRange2 ) );
+		
+		final FloatPhaseCorrelation.Transform t1 = getTransform( imp1, source1, roi1, zRange1, params.channel1, timepoint1, fftSize, params.fftCache, numThreads );
+		final FloatPhaseCorrelation.Transform t2 = getTransform( imp2, source2, roi2, zRange2, params.channel2, timepoint2, fftSize, params.fftCache, numThreads );
+		
+		if ( t1 == null || t2 == null )
+			return null;
+		
+		return FloatPhaseCorrelation.computePhaseCorrelation( t1, t2, params.checkPeaks, params.subpixelAccuracy, numThreads );
+	}
+	
+	/**
+	 * @return the forward transform of an image (or roi), from the cache if there is one
+	 */
+	protected static FloatPhaseCorrelation.Transform getTransform( final ImagePlus imp, final Object source, final Roi roi, final int[] zRange, final int channel, final int timepoint, final int[] fftSize, final FFTCache cache, final int numThreads )
+	{
+		final Callable< FloatPhaseCorrelation.Transform > transform = new Callable< FloatPhaseCorrelation.Transform >()
+		{
+			@Override
+			public FloatPhaseCorrelation.Transform call()
+			{
+				final RoiView view = new RoiView( imp, roi, zRange, channel, timepoint );
+				
+				if ( !view.isSupported() )
+				{
+					Log.error( "Unknown image type: " + imp.getType() );
+					return null;
+				}
+				
+				return FloatPhaseCorrelation.transform( view, fftSize, numThreads );
+			}
+		};
+		
+		if ( cache == null )
+		{
+			try
+			{
+				return transform.call();
+			}
+			catch ( Exception e )
+			{
+				Log.error( "Could not compute forward transform: " + e, e );
+				return null;
+			}
+		}
+		
+		return cache.get( new FFTCache.Key( source, channel, timepoint, roi == null ? null : roi.getBounds(), zRange, fftSize ), transform );
+	}
+	
+	/**
+	 * Computes the phase correlation first on downsampled images and refines it on a window of the
+	 * full resolution images, see {@link PyramidPhaseCorrelation}.
+	 * 
+	 * @param numThreads - how many threads the FFTs may use
+	 * 
+	 * @return the shift relative to the rois or null if an image could not be copied
+	 */
+	public static PairWiseStitchingResult stitchPairwisePyramid( final ImagePlus imp1, final ImagePlus imp2, final Roi roi1, final Roi roi2, final int[] zRange1, final int[] zRange2, final int timepoint1, final int timepoint2, final StitchingParameters params, final int numThreads )
+	{
+		final float[] img1 = getFloatArray( imp1, roi1, zRange1, params.channel1, timepoint1 );
+		final float[] img2 = getFloatArray( imp2, roi2, zRange2, params.channel2, timepoint2 );
+		
+		if ( img1 == null || img2 == null )
+			return null;
+		
+		return PyramidPhaseCorrelation.computePhaseCorrelation( img1, getSize( imp1, roi1, zRange1 ), img2, getSize( imp2, roi2, zRange2 ), params.pyramidFactor, params.checkPeaks, params.subpixelAccuracy, numThreads );
+	}
+	
+	/**
+	 * @return a copy of the image (or roi) as float array with x as the fastest dimension, or null if the type is not supported
+	 */
+	protected static float[] getFloatArray( final ImagePlus imp, final Roi roi, final int[] zRange, final int channel, final int timepoint )
+	{
+		final RoiView view = new RoiView( imp, roi, zRange, channel, timepoint );
+		
+		if ( !view.isSupported() )
+		{
+			Log.error( "Unknown image type: " + imp.getType() );
+			return null;
+		}
+		
+		return view.copy();
+	}
+	
+	/**
+	 * @return the size of the image or roi as it is returned by {@link #getImage(ImagePlus, Roi, int[], ImageFactory, int, int)}
+	 */
+	protected static int[] getSize( final ImagePlus imp, Roi roi, final int[] zRange )
+	{
+		roi = getOnlyRectangularRoi( roi );
+		
+		final int width = roi == null ? imp.getWidth() : roi.getBounds().width;
+		final int height = roi == null ? imp.getHeight() : roi.getBounds().height;
+		
+		if ( imp.getNSlices() > 1 )
+			return new int[]{ width, height, zRange == null ? imp.getNSlices() : zRange[ 1 ] - zRange[ 0 ] };
+		else
+			return new int[]{ width, height };
+	}
+	
 	public static < T extends RealType<T>, S extends RealType<S> > PairWiseStitchingResult performStitching( final Image<T> img1, final Image<S> img2, final StitchingParameters params )
+	{
+		return performStitching( img1, img2, params, StitchingThreadPool.getParallelism() );
+	}
+	
+	public static < T extends RealType<T>, S extends RealType<S> > PairWiseStitchingResult performStitching( final Image<T> img1, final Image<S> img2, final StitchingParameters params, final int numThreads )
 	{
 		if ( img1 == null )
 		{
@@ -214,12 +379,21 @@ public class PairWiseStitchingImgLib
 			return null;
 		}
 		
-		final PairWiseStitchingResult result = computePhaseCorrelation( img1, img2, params.checkPeaks, params.subpixelAccuracy );
+		final PairWiseStitchingResult result = computePhaseCorrelation( img1, img2, params.checkPeaks, params.subpixelAccuracy, numThreads );
 		
 		return result;
 	}
 	
 	public static < T extends RealType<T>, S extends RealType<S> > PairWiseStitchingResult computePhaseCorrelation( final Image<T> img1, final Image<S> img2, final int numPeaks, final boolean subpixelAccuracy )
+	{
+		return computePhaseCorrelation( img1, img2, numPeaks, subpixelAccuracy, StitchingThreadPool.getParallelism() );
+	}
+	
+	/**
+	 * @param numThreads - how many threads the FFTs may use, if several pairs are computed at the same time
+	 * this should be a share of the {@link StitchingThreadPool} so the CPU is not oversubscribed
+	 */
+	public static < T extends RealType<T>, S extends RealType<S> > PairWiseStitchingResult computePhaseCorrelation( final Image<T> img1, final Image<S> img2, final int numPeaks, final boolean subpixelAccuracy, final int numThreads )
 	{
 		final PhaseCorrelation< T, S > phaseCorr = new PhaseCorrelation<T, S>( img1, img2 );
 		phaseCorr.setInvestigateNumPeaks( numPeaks );
@@ -227,7 +401,9 @@ public class PairWiseStitchingImgLib
 		if ( subpixelAccuracy )
 			phaseCorr.setKeepPhaseCorrelationMatrix( true );
 		
-		phaseCorr.setComputeFFTinParalell( true );
+		// both FFTs in parallel only if we have at least one thread for each
+		phaseCorr.setNumThreads( numThreads );
+		phaseCorr.setComputeFFTinParalell( numThreads > 1 );
 		if ( !phaseCorr.process() )
 		{
 			Log.error( "Could not compute phase correlation: " + phaseCorr.getErrorMessage() );
@@ -288,6 +464,22 @@ public class PairWiseStitchingImgLib
 	 * @return - the {@link Image} or null if it was not an ImagePlus.GRAY8, ImagePlus.GRAY16 or ImagePlus.GRAY32
 	 */
 	public static < T extends RealType<T> > Image<T> getImage( final ImagePlus imp, Roi roi, final ImageFactory<T> imgFactory, final int channel, final int timepoint )
+	{
+		return getImage( imp, roi, null, imgFactory, channel, timepoint );
+	}
+	
+	/**
+	 * return an {@code Image<T>} of the box given by a rectangular roi and a range of slices as input for the PhaseCorrelation.
+	 * 
+	 * @param imp - the {@link ImagePlus}
+	 * @param zRange - { start, end } of the slices to copy (end is exclusive), null for all slices
+	 * @param imgFactory - the {@link ImageFactory} defining wher to put it into
+	 * @param channel - which channel (if channel=0 means average all channels)
+	 * @param timepoint - which timepoint
+	 * 
+	 * @return - the {@link Image} or null if it was not an ImagePlus.GRAY8, ImagePlus.GRAY16 or ImagePlus.GRAY32
+	 */
+	public static < T extends RealType<T> > Image<T> getImage( final ImagePlus imp, Roi roi, final int[] zRange, final ImageFactory<T> imgFactory, final int channel, final int timepoint )
 	{
 		// first test the roi
 		roi = getOnlyRectangularRoi( roi );
@@ -323,6 +515,13 @@ public class PairWiseStitchingImgLib
 				size[ 2 ] = imp.getNSlices();
 		}
 		
+		// only the overlapping slices
+		if ( numDimensions == 3 && zRange != null )
+		{
+			offset[ 2 ] = zRange[ 0 ];
+			size[ 2 ] = zRange[ 1 ] - zRange[ 0 ];
+		}
+		
 		// create the Image
 		final Image<T> img = imgFactory.createImage( size );
 		final boolean success;
@@ -360,6 +559,9 @@ public class PairWiseStitchingImgLib
 	 */
 	public static < T extends RealType< T > > boolean averageAllChannels( final Image< T > target, final int[] offset, final ImagePlus imp, final int timepoint )
 	{
+		if ( copyRows( target, offset, imp, 0, timepoint ) )
+			return true;
+		
 		final int numChannels = imp.getNChannels();
 		
 		if ( imp.getType() == ImagePlus.GRAY8 )
@@ -415,6 +617,9 @@ public class PairWiseStitchingImgLib
 	 */
 	public static < T extends RealType< T > > boolean fillInChannel( final Image< T > target, final int[] offset, final ImagePlus imp, final int channel, final int timepoint )
 	{
+		if ( copyRows( target, offset, imp, channel, timepoint ) )
+			return true;
+		
 		if ( imp.getType() == ImagePlus.GRAY8 )
 		{
 			final ArrayList< Image< UnsignedByteType > > images = new ArrayList<Image<UnsignedByteType>>();
@@ -452,6 +657,86 @@ public class PairWiseStitchingImgLib
 		}
 	}
 
+	/**
+	 * Copies one channel or the average of all channels into an array-backed target image. It walks the
+	 * pixel arrays of the ImagePlus row by row instead of positioning a cursor per pixel and channel.
+	 * 
+	 * @param target - the target Image
+	 * @param offset - the offset of the area (might be [0,0] or [0,0,0])
+	 * @param imp - the input ImagePlus
+	 * @param channel - which channel (if channel=0 means average all channels)
+	 * @param timepoint - for which timepoint
+	 * 
+	 * @return true if successful, false if the target or the ImagePlus type is not supported by this path
+	 */
+	protected static < T extends RealType< T > > boolean copyRows( final Image< T > target, final int[] offset, final ImagePlus imp, final int channel, final int timepoint )
+	{
+		if ( !( target.getContainer() instanceof Array ) )
+			return false;
+		
+		final int numDimensions = target.getNumDimensions();
+		final int width = target.getDimension( 0 );
+		final int height = target.getDimension( 1 );
+		
+		final Roi roi = new Roi( offset[ 0 ], offset[ 1 ], width, height );
+		final int[] zRange = numDimensions == 3 ? new int[]{ offset[ 2 ], offset[ 2 ] + target.getDimension( 2 ) } : null;
+		final RoiView view = new RoiView( imp, roi, zRange, channel, timepoint );
+		
+		if ( !view.isSupported() || view.getSize().length != numDimensions )
+			return false;
+		
+		// the array container is linear with x as the fastest dimension, so every chunk of rows is a chunk of pixels
+		final long numRows = numDimensions == 3 ? (long)height * target.getDimension( 2 ) : height;
+		final Vector< Chunk > chunks = SimpleMultiThreading.divideIntoChunks( numRows, StitchingThreadPool.getParallelism() );
+		final ArrayList< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
+		
+		for ( final Chunk chunk : chunks )
+			tasks.add( new Callable< Void >()
+			{
+				@Override
+				public Void call()
+				{
+					final long firstRow = chunk.getStartPosition();
+					final long lastRow = firstRow + chunk.getLoopSize();
+					
+					final float[] row = new float[ width ];
+					final Cursor< T > cursor = target.createCursor();
+					
+					cursor.fwd( firstRow * width );
+					
+					Object[] planes = null;
+					int planesZ = -1;
+					
+					for ( long r = firstRow; r < lastRow; ++r )
+					{
+						final int z = (int)( r / height );
+						
+						// the pixel arrays only change between slices
+						if ( z != planesZ )
+						{
+							planes = view.getPlanes( z );
+							planesZ = z;
+						}
+						
+						view.readRow( planes, (int)( r % height ), row );
+						
+						for ( int x = 0; x < width; ++x )
+						{
+							cursor.fwd();
+							cursor.getType().setReal( row[ x ] );
+						}
+					}
+					
+					cursor.close();
+					return null;
+				}
+			});
+		
+		StitchingThreadPool.invokeAll( tasks );
+		
+		return true;
+	}
+
 	/**
 	 * Averages all channels into the target image. The size is given by the dimensions of the target image,
 	 * the offset (if applicable) is given by an extra field
@@ -470,64 +755,64 @@ public class PairWiseStitchingImgLib
 		for ( int d = 1; d < target.getNumDimensions(); ++d )
 			imageSize *= target.getDimension( d );
 
-		// run multithreaded
-		final AtomicInteger ai = new AtomicInteger(0);					
-        final Thread[] threads = SimpleMultiThreading.newThreads();
-
-        final Vector<Chunk> threadChunks = SimpleMultiThreading.divideIntoChunks( imageSize, threads.length );
-        
-        for (int ithread = 0; ithread < threads.length; ++ithread)
-            threads[ithread] = new Thread(new Runnable()
-            {
-                @Override
-                public void run()
-                {
-                	// Thread ID
-                	final int myNumber = ai.getAndIncrement();
-        
-                	// get chunk of pixels to process
-                	final Chunk myChunk = threadChunks.get( myNumber );
-                	final long startPos = myChunk.getStartPosition();
-                	final long loopSize = myChunk.getLoopSize();
-                	
-            		// the cursor for the output
-            		final LocalizableCursor< T > targetCursor =  target.createLocalizableCursor();
-            		
-            		// the input cursors
-            		final ArrayList< LocalizableByDimCursor< S > > sourceCursors = new ArrayList< LocalizableByDimCursor< S > > ();
-            		
-            		for ( final Image< S > source : sources )
-            			sourceCursors.add( source.createLocalizableByDimCursor() );
-            		
-            		// temporary array
-            		final int[] location = new int[ numDimensions ]; 
+		// run multithreaded on the shared pool
+		final Vector<Chunk> chunks = SimpleMultiThreading.divideIntoChunks( imageSize, StitchingThreadPool.getParallelism() );
+		final ArrayList< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
+		
+		for ( final Chunk chunk : chunks )
+			tasks.add( new Callable< Void >()
+			{
+				@Override
+				public Void call()
+				{
+					// get chunk of pixels to process
+					final long startPos = chunk.getStartPosition();
+					final long loopSize = chunk.getLoopSize();
+					
+					// the cursor for the output
+					final LocalizableCursor< T > targetCursor =  target.createLocalizableCursor();
+					
+					// the input cursors
+					final ArrayList< LocalizableByDimCursor< S > > sourceCursors = new ArrayList< LocalizableByDimCursor< S > > ();
+					
+					for ( final Image< S > source : sources )
+						sourceCursors.add( source.createLocalizableByDimCursor() );
+					
+					// temporary array
+					final int[] location = new int[ numDimensions ]; 
 
-            		// move to the starting position of the current thread
-            		targetCursor.fwd( startPos );
-                    
-            		// do as many pixels as wanted by this thread
-                    for ( long j = 0; j < loopSize; ++j )
-            		{
-            			targetCursor.fwd();
-            			targetCursor.getPosition( location );
-            			
-            			for ( int d = 0; d < numDimensions; ++d )
-            				location[ d ] += offset[ d ];
-            			
-            			float sum = 0;
-            			
-            			for ( final LocalizableByDimCursor< S > sourceCursor : sourceCursors )
-            			{
-            				sourceCursor.setPosition( location );
-            				sum += sourceCursor.getType().getRealFloat();
-            			}
-            			
-            			targetCursor.getType().setReal( sum / numImages );
-            		}                	
-                }
-            });
-        
-        SimpleMultiThreading.startAndJoin( threads );		
+					// move to the starting position of the current chunk
+					targetCursor.fwd( startPos );
+					
+					// do as many pixels as wanted by this chunk
+					for ( long j = 0; j < loopSize; ++j )
+					{
+						targetCursor.fwd();
+						targetCursor.getPosition( location );
+						
+						for ( int d = 0; d < numDimensions; ++d )
+							location[ d ] += offset[ d ];
+						
+						float sum = 0;
+						
+						for ( final LocalizableByDimCursor< S > sourceCursor : sourceCursors )
+						{
+							sourceCursor.setPosition( location );
+							sum += sourceCursor.getType().getRealFloat();
+						}
+						
+						targetCursor.getType().setReal( sum / numImages );
+					}
+					
+					targetCursor.close();
+					for ( final LocalizableByDimCursor< S > sourceCursor : sourceCursors )
+						sourceCursor.close();
+					
+					return null;
+				}
+			});
+		
+		StitchingThreadPool.invokeAll( tasks );
 	}
 
 	/**
@@ -0,0 +1,244 @@
+/*
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2022 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package mpicbg.stitching;
+
+import ij.gui.Roi;
+
+import java.awt.Rectangle;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+import stitching.utils.Log;
+
+/**
+ * Stores the results of the pairwise registrations (shift, R and phase correlation peak) in a text file 
+ * next to the TileConfiguration, so stitching the same tiles again, e.g. to tune the thresholds of the 
+ * {@link GlobalOptimization}, does not compute the phase correlations again. A result is only reused if 
+ * both files (path, size and modification time), the time-points, the rois and the parameters of the 
+ * pairwise registration did not change.
+ */
+public class PairwiseResultCache 
+{
+	final File file;
+	
+	// the results read from the file
+	final HashMap< String, String > stored = new HashMap< String, String >();
+	
+	// the results of the current run, only these are written back
+	final LinkedHashMap< String, String > current = new LinkedHashMap< String, String >();
+	
+	int hits = 0;
+	
+	/**
+	 * @param file - where the results are stored, it is read if it exists
+	 */
+	public PairwiseResultCache( final File file )
+	{
+		this( file, true );
+	}
+	
+	/**
+	 * @param file - where the results are stored
+	 * @param load - if false, the stored results are ignored (and overwritten by {@link #save()})
+	 */
+	public PairwiseResultCache( final File file, final boolean load )
+	{
+		this.file = file;
+		
+		if ( load && file.exists() )
+			load();
+	}
+	
+	/**
+	 * @return the key of a pair as compared by the {@link CollectionStitchingImgLib}, or null if it cannot be cached
+	 */
+	public static String getKey( final ComparePair pair, final StitchingParameters params )
+	{
+		final ImageCollectionElement e1 = pair.getTile1().getElement();
+		final ImageCollectionElement e2 = pair.getTile2().getElement();
+		
+		return getKey( pair, 
+				CollectionStitchingImgLib.getROI( e1, e2 ), CollectionStitchingImgLib.getROI( e2, e1 ), 
+				CollectionStitchingImgLib.getZRange( e1, e2 ), CollectionStitchingImgLib.getZRange( e2, e1 ), params );
+	}
+	
+	/**
+	 * @return the key of a pair compared on the given rois, or null if it cannot be cached
+	 */
+	public static String getKey( final ComparePair pair, final Roi roi1, final Roi roi2, final int[] zRange1, final int[] zRange2, final StitchingParameters params )
+	{
+		final String key1 = getKey( pair.getTile1(), roi1, zRange1 );
+		final String key2 = getKey( pair.getTile2(), roi2, zRange2 );
+		
+		if ( key1 == null || key2 == null )
+			return null;
+		
+		return key1 + "\t" + key2 + "\t" + params.channel1 + "\t" + params.channel2 + "\t" + params.checkPeaks + "\t" + params.subpixelAccuracy + "\t" + params.pyramidFactor + "\t" + params.reuseTransforms + "\t" + StitchingParameters.alwaysCopy;
+	}
+	
+	protected static String getKey( final ImagePlusTimePoint tile, final Roi roi, final int[] zRange )
+	{
+		final ImageCollectionElement element = tile.getElement();
+		final File f = element.getFile();
+		
+		// images that were not opened from a file cannot be identified
+		if ( f == null || !f.isFile() )
+			return null;
+		
+		// the series of a multi-series file are only identified by their position in the layout
+		final String name = element.isReopenable() ? f.getAbsolutePath() : f.getAbsolutePath() + "#" + element.getIndex();
+		final Rectangle r = roi.getBounds();
+		
+		return name + "\t" + f.length() + "\t" + f.lastModified() + "\t" + tile.getTimePoint() + "\t" + 
+				r.x + "," + r.y + "," + r.width + "," + r.height + "\t" + ( zRange == null ? "all" : zRange[ 0 ] + "," + zRange[ 1 ] );
+	}
+	
+	/**
+	 * Sets the shift, R and phase correlation of the pair if it was stored
+	 * 
+	 * @param key - the key of the pair, see {@link #getKey(ComparePair, StitchingParameters)}
+	 * @param pair - the pair
+	 * 
+	 * @return true if the result was stored
+	 */
+	public synchronized boolean get( final String key, final ComparePair pair )
+	{
+		if ( key == null )
+			return false;
+		
+		final String value = stored.get( key );
+		
+		if ( value == null )
+			return false;
+		
+		final String[] fields = value.split( "\t" );
+		final String[] shiftFields = fields[ 0 ].split( "," );
+		final float[] shift = new float[ shiftFields.length ];
+		
+		try
+		{
+			for ( int d = 0; d < shift.length; ++d )
+				shift[ d ] = Float.parseFloat( shiftFields[ d ] );
+			
+			pair.setCrossCorrelation( Float.parseFloat( fields[ 1 ] ) );
+			pair.setPhaseCorrelation( Float.parseFloat( fields[ 2 ] ) );
+		}
+		catch ( final NumberFormatException e )
+		{
+			return false;
+		}
+		
+		pair.setRelativeShift( shift );
+		
+		current.put( key, value );
+		++hits;
+		
+		return true;
+	}
+	
+	/**
+	 * Stores the shift, R and phase correlation of the pair
+	 * 
+	 * @param key - the key of the pair, see {@link #getKey(ComparePair, StitchingParameters)}
+	 * @param pair - the pair
+	 */
+	public synchronized void put( final String key, final ComparePair pair )
+	{
+		if ( key == null )
+			return;
+		
+		final float[] shift = pair.getRelativeShift();
+		String value = "";
+		
+		for ( int d = 0; d < shift.length; ++d )
+			value += ( d == 0 ? "" : "," ) + shift[ d ];
+		
+		current.put( key, value + "\t" + pair.getCrossCorrelation() + "\t" + pair.getPhaseCorrelation() );
+	}
+	
+	/**
+	 * @return how many results were reused
+	 */
+	public synchronized int getHits() { return hits; }
+	
+	public File getFile() { return file; }
+	
+	/**
+	 * Writes the results of the current run, results of pairs that were not compared are dropped
+	 */
+	public synchronized void save()
+	{
+		final PrintWriter out = TextFileAccess.openFileWrite( file );
+		
+		if ( out == null )
+			return;
+		
+		out.println( "# Results of the pairwise registrations, they are reused if the images and parameters did not change" );
+		out.println( "# file 1, size, modified, time-point, roi, slices, file 2, size, modified, time-point, roi, slices, channel 1, channel 2, peaks, subpixel, downsampling, reused transforms, shift, R, phase correlation" );
+		
+		for ( final Entry< String, String > entry : current.entrySet() )
+			out.println( entry.getKey() + "\t" + entry.getValue() );
+		
+		out.close();
+	}
+	
+	protected void load()
+	{
+		final BufferedReader in = TextFileAccess.openFileRead( file );
+		
+		if ( in == null )
+			return;
+		
+		try
+		{
+			String line;
+			
+			while ( ( line = in.readLine() ) != null )
+			{
+				if ( line.startsWith( "#" ) || line.trim().length() == 0 )
+					continue;
+				
+				// the last three fields are the result
+				int split = line.length();
+				
+				for ( int i = 0; i < 3 && split > 0; ++i )
+					split = line.lastIndexOf( '\t', split - 1 );
+				
+				if ( split > 0 )
+					stored.put( line.substring( 0, split ), line.substring( split + 1 ) );
+			}
+		}
+		catch ( final IOException e )
+		{
+			Log.error( "Cannot read pairwise results from '" + file + "': " + e );
+		}
+		finally
+		{
+			try { in.close(); } catch ( final IOException e ) {}
+		}
+	}
+}
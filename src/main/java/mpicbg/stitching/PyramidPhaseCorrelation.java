@@ -0,0 +1,216 @@
+/*
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2022 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package mpicbg.stitching;
+
+/**
+ * Coarse-to-fine phase correlation for large overlaps. The shift is first found on both images
+ * downsampled by an integer factor, then refined at full resolution by correlating a window from the
+ * middle of the predicted overlap with the matching window of the second image, enlarged by the 
+ * uncertainty of the coarse shift to at most {@link #refineSize} pixels per dimension. The cross correlation of 
+ * the result is computed on the whole overlap, so it can be compared to the one of a single-level phase correlation.
+ */
+public class PyramidPhaseCorrelation 
+{
+	/**
+	 * Dimensions are not downsampled below this size
+	 */
+	public static int minCoarseSize = 32;
+	
+	/**
+	 * The size of the full resolution window in each dimension (if the overlap is large enough)
+	 */
+	public static int refineSize = 128;
+	
+	/**
+	 * @param img1 - the first image, x is the fastest dimension
+	 * @param size1 - its size (2d or 3d)
+	 * @param img2 - the second image
+	 * @param size2 - its size
+	 * @param factor - the downsampling of the coarse level
+	 * @param numPeaks - how many peaks are verified by cross correlation on each level
+	 * @param subpixelAccuracy - compute a subpixel shift on the full resolution level
+	 * 
+	 * @return the shift of image 2 relative to image 1
+	 */
+	public static PairWiseStitchingResult computePhaseCorrelation( final float[] img1, final int[] size1, final float[] img2, final int[] size2, final int factor, final int numPeaks, final boolean subpixelAccuracy )
+	{
+		return computePhaseCorrelation( img1, size1, img2, size2, factor, numPeaks, subpixelAccuracy, StitchingThreadPool.getParallelism() );
+	}
+	
+	/**
+	 * @param numThreads - how many threads the FFTs of both levels may use
+	 */
+	public static PairWiseStitchingResult computePhaseCorrelation( final float[] img1, final int[] size1, final float[] img2, final int[] size2, final int factor, final int numPeaks, final boolean subpixelAccuracy, final int numThreads )
+	{
+		final int n = size1.length;
+		final int[] f = new int[ n ];
+		
+		for ( int d = 0; d < n; ++d )
+			f[ d ] = Math.max( 1, Math.min( factor, Math.min( size1[ d ], size2[ d ] ) / minCoarseSize ) );
+		
+		//
+		// coarse level
+		//
+		final int[] coarseSize1 = getDownsampledSize( size1, f );
+		final int[] coarseSize2 = getDownsampledSize( size2, f );
+		final int[] coarseFFTSize = FloatPhaseCorrelation.getFFTSize( coarseSize1, coarseSize2 );
+		
+		final PairWiseStitchingResult coarse = FloatPhaseCorrelation.computePhaseCorrelation( 
+				FloatPhaseCorrelation.transform( downsample( img1, size1, f ), coarseSize1, coarseFFTSize, numThreads ), 
+				FloatPhaseCorrelation.transform( downsample( img2, size2, f ), coarseSize2, coarseFFTSize, numThreads ), 
+				numPeaks, false, numThreads );
+		
+		if ( coarse == null )
+			return null;
+		
+		// the block averages are centered at ( f - 1 ) / 2, which cancels out for the shift
+		final int[] shift = new int[ 3 ];
+		
+		for ( int d = 0; d < n; ++d )
+			shift[ d ] = Math.round( coarse.getOffset( d ) * f[ d ] );
+		
+		//
+		// full resolution level, a window in the middle of the overlap
+		//
+		final int[] start1 = new int[ n ], windowSize1 = new int[ n ];
+		final int[] start2 = new int[ n ], windowSize2 = new int[ n ];
+		
+		for ( int d = 0; d < n; ++d )
+		{
+			final int overlapStart = Math.max( 0, shift[ d ] );
+			final int overlapEnd = Math.min( size1[ d ], shift[ d ] + size2[ d ] );
+			
+			// no overlap, nothing to refine
+			if ( overlapEnd <= overlapStart )
+				return coarse( coarse, shift, img1, size1, img2, size2 );
+			
+			// the coarse shift is accurate to about one coarse pixel
+			final int margin = 2 * f[ d ];
+			
+			// the window of image 2 including the margin should not be larger than refineSize
+			windowSize1[ d ] = Math.min( Math.max( refineSize - 2 * margin, minCoarseSize ), overlapEnd - overlapStart );
+			start1[ d ] = ( overlapStart + overlapEnd - windowSize1[ d ] ) / 2;
+			
+			start2[ d ] = Math.max( 0, start1[ d ] - shift[ d ] - margin );
+			windowSize2[ d ] = Math.min( size2[ d ], start1[ d ] - shift[ d ] + windowSize1[ d ] + margin ) - start2[ d ];
+		}
+		
+		final int[] fftSize = FloatPhaseCorrelation.getFFTSize( windowSize1, windowSize2 );
+		
+		final PairWiseStitchingResult fine = FloatPhaseCorrelation.computePhaseCorrelation( 
+				FloatPhaseCorrelation.transform( crop( img1, size1, start1, windowSize1 ), windowSize1, fftSize, numThreads ), 
+				FloatPhaseCorrelation.transform( crop( img2, size2, start2, windowSize2 ), windowSize2, fftSize, numThreads ), 
+				numPeaks, subpixelAccuracy, numThreads );
+		
+		if ( fine == null )
+			return coarse( coarse, shift, img1, size1, img2, size2 );
+		
+		final float[] offset = new float[ n ];
+		final int[] fineShift = new int[ 3 ];
+		
+		for ( int d = 0; d < n; ++d )
+		{
+			offset[ d ] = fine.getOffset( d ) + start1[ d ] - start2[ d ];
+			fineShift[ d ] = Math.round( offset[ d ] );
+			
+			// the window found something else than the coarse level
+			if ( Math.abs( fineShift[ d ] - shift[ d ] ) > 2 * f[ d ] )
+				return coarse( coarse, shift, img1, size1, img2, size2 );
+		}
+		
+		final double r = FloatPhaseCorrelation.testCrossCorrelation( img1, FloatPhaseCorrelation.get3d( size1 ), img2, FloatPhaseCorrelation.get3d( size2 ), fineShift );
+		
+		return new PairWiseStitchingResult( offset, (float)r, fine.getPhaseCorrelation() );
+	}
+	
+	/**
+	 * @return the coarse shift with the cross correlation of the full resolution images
+	 */
+	protected static PairWiseStitchingResult coarse( final PairWiseStitchingResult coarse, final int[] shift, final float[] img1, final int[] size1, final float[] img2, final int[] size2 )
+	{
+		final float[] offset = new float[ size1.length ];
+		
+		for ( int d = 0; d < offset.length; ++d )
+			offset[ d ] = shift[ d ];
+		
+		final double r = FloatPhaseCorrelation.testCrossCorrelation( img1, FloatPhaseCorrelation.get3d( size1 ), img2, FloatPhaseCorrelation.get3d( size2 ), shift );
+		
+		return new PairWiseStitchingResult( offset, (float)r, coarse.getPhaseCorrelation() );
+	}
+	
+	public static int[] getDownsampledSize( final int[] size, final int[] f )
+	{
+		final int[] s = new int[ size.length ];
+		
+		for ( int d = 0; d < size.length; ++d )
+			s[ d ] = Math.max( 1, size[ d ] / f[ d ] );
+		
+		return s;
+	}
+	
+	/**
+	 * Averages blocks of f[ 0 ] x f[ 1 ] ( x f[ 2 ] ) pixels, incomplete blocks at the end are left out
+	 */
+	public static float[] downsample( final float[] img, final int[] size, final int[] f )
+	{
+		final int[] s = FloatPhaseCorrelation.get3d( size );
+		final int[] fs = FloatPhaseCorrelation.get3d( f );
+		final int[] t = FloatPhaseCorrelation.get3d( getDownsampledSize( size, f ) );
+		
+		final float[] target = new float[ t[ 0 ] * t[ 1 ] * t[ 2 ] ];
+		
+		for ( int z = 0; z < t[ 2 ] * fs[ 2 ] && z < s[ 2 ]; ++z )
+			for ( int y = 0; y < t[ 1 ] * fs[ 1 ] && y < s[ 1 ]; ++y )
+			{
+				final int i = ( z * s[ 1 ] + y ) * s[ 0 ];
+				final int j = ( ( z / fs[ 2 ] ) * t[ 1 ] + y / fs[ 1 ] ) * t[ 0 ];
+				
+				for ( int x = 0; x < t[ 0 ] * fs[ 0 ] && x < s[ 0 ]; ++x )
+					target[ j + x / fs[ 0 ] ] += img[ i + x ];
+			}
+		
+		final float norm = 1.0f / ( fs[ 0 ] * fs[ 1 ] * fs[ 2 ] );
+		
+		for ( int i = 0; i < target.length; ++i )
+			target[ i ] *= norm;
+		
+		return target;
+	}
+	
+	/**
+	 * @return a copy of the given area of the image
+	 */
+	public static float[] crop( final float[] img, final int[] size, final int[] start, final int[] cropSize )
+	{
+		final int[] s = FloatPhaseCorrelation.get3d( size );
+		final int[] o = start.length == 3 ? start : new int[]{ start[ 0 ], start[ 1 ], 0 };
+		final int[] c = FloatPhaseCorrelation.get3d( cropSize );
+		
+		final float[] target = new float[ c[ 0 ] * c[ 1 ] * c[ 2 ] ];
+		
+		for ( int z = 0; z < c[ 2 ]; ++z )
+			for ( int y = 0; y < c[ 1 ]; ++y )
+				System.arraycopy( img, ( ( z + o[ 2 ] ) * s[ 1 ] + y + o[ 1 ] ) * s[ 0 ] + o[ 0 ], target, ( z * c[ 1 ] + y ) * c[ 0 ], c[ 0 ] );
+		
+		return target;
+	}
+}
@@ -0,0 +1,185 @@
+/*
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2022 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package mpicbg.stitching;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+
+import java.awt.Rectangle;
+
+/**
+ * A box (rectangular roi and range of slices) of one channel and time-point of an {@link ImagePlus}, 
+ * or the average of all its channels, that reads directly from the pixel arrays of the stack. It is 
+ * used instead of copying the roi into an imglib {@link mpicbg.imglib.image.Image} first, so the only 
+ * copy is the one into the FFT buffer.
+ */
+public class RoiView 
+{
+	final ImagePlus imp;
+	final int channel, timepoint;
+	final int[] offset;
+	final int[] size;
+	
+	/**
+	 * @param imp - the image, GRAY8, GRAY16 or GRAY32
+	 * @param roi - a rectangular roi or null for the whole image
+	 * @param zRange - { start, end } of the slices (end is exclusive) or null for all slices
+	 * @param channel - which channel (if channel=0 means average all channels)
+	 * @param timepoint - which timepoint
+	 */
+	public RoiView( final ImagePlus imp, final Roi roi, final int[] zRange, final int channel, final int timepoint )
+	{
+		this.imp = imp;
+		this.channel = channel;
+		this.timepoint = timepoint;
+		
+		final Rectangle r = roi == null ? new Rectangle( 0, 0, imp.getWidth(), imp.getHeight() ) : roi.getBounds();
+		
+		if ( imp.getNSlices() > 1 )
+		{
+			this.offset = new int[]{ r.x, r.y, zRange == null ? 0 : zRange[ 0 ] };
+			this.size = new int[]{ r.width, r.height, zRange == null ? imp.getNSlices() : zRange[ 1 ] - zRange[ 0 ] };
+		}
+		else
+		{
+			this.offset = new int[]{ r.x, r.y, 0 };
+			this.size = new int[]{ r.width, r.height };
+		}
+	}
+	
+	/**
+	 * @return the size of the box, 2d or 3d
+	 */
+	public int[] getSize() { return size; }
+	
+	/**
+	 * @return true if the type of the image can be read
+	 */
+	public boolean isSupported()
+	{
+		final int type = imp.getType();
+		return type == ImagePlus.GRAY8 || type == ImagePlus.GRAY16 || type == ImagePlus.GRAY32;
+	}
+	
+	/**
+	 * Copies the box into the origin of a larger array, e.g. the padded input of a FFT
+	 * 
+	 * @param target - the target, x is the fastest dimension
+	 * @param targetSize - the size of the target (at least the size of the box in every dimension)
+	 */
+	public void copyInto( final float[] target, final int[] targetSize )
+	{
+		final int depth = size.length > 2 ? size[ 2 ] : 1;
+		final float[] row = new float[ size[ 0 ] ];
+		
+		for ( int z = 0; z < depth; ++z )
+		{
+			final Object[] planes = getPlanes( z );
+			
+			for ( int y = 0; y < size[ 1 ]; ++y )
+			{
+				readRow( planes, y, row );
+				System.arraycopy( row, 0, target, ( z * targetSize[ 1 ] + y ) * targetSize[ 0 ], size[ 0 ] );
+			}
+		}
+	}
+	
+	/**
+	 * @param z - the slice relative to the box
+	 * 
+	 * @return the pixel arrays of all channels that are read for this slice
+	 */
+	public Object[] getPlanes( final int z )
+	{
+		final ImageStack stack = imp.getStack();
+		
+		final int firstChannel = channel == 0 ? 1 : channel;
+		final int lastChannel = channel == 0 ? imp.getNChannels() : channel;
+		
+		final Object[] planes = new Object[ lastChannel - firstChannel + 1 ];
+		
+		for ( int c = firstChannel; c <= lastChannel; ++c )
+			planes[ c - firstChannel ] = stack.getPixels( imp.getStackIndex( c, z + offset[ 2 ] + 1, timepoint ) );
+		
+		return planes;
+	}
+	
+	/**
+	 * Reads one row of the box, the average if there are several channels
+	 * 
+	 * @param planes - the pixel arrays of the slice, see {@link #getPlanes(int)}
+	 * @param y - the row relative to the box
+	 * @param row - the target, at least as long as the width of the box
+	 */
+	public void readRow( final Object[] planes, final int y, final float[] row )
+	{
+		final int i = ( y + offset[ 1 ] ) * imp.getWidth() + offset[ 0 ];
+		final int type = imp.getType();
+		
+		for ( int c = 0; c < planes.length; ++c )
+		{
+			final boolean first = c == 0;
+			
+			if ( type == ImagePlus.GRAY8 )
+			{
+				final byte[] p = (byte[])planes[ c ];
+				
+				for ( int x = 0; x < size[ 0 ]; ++x )
+					row[ x ] = ( first ? 0 : row[ x ] ) + ( p[ i + x ] & 0xff );
+			}
+			else if ( type == ImagePlus.GRAY16 )
+			{
+				final short[] p = (short[])planes[ c ];
+				
+				for ( int x = 0; x < size[ 0 ]; ++x )
+					row[ x ] = ( first ? 0 : row[ x ] ) + ( p[ i + x ] & 0xffff );
+			}
+			else
+			{
+				final float[] p = (float[])planes[ c ];
+				
+				for ( int x = 0; x < size[ 0 ]; ++x )
+					row[ x ] = ( first ? 0 : row[ x ] ) + p[ i + x ];
+			}
+		}
+		
+		// average of all channels, divided like PairWiseStitchingImgLib.averageAllChannels() so that the values are identical
+		if ( planes.length > 1 )
+		{
+			final float numChannels = planes.length;
+			
+			for ( int x = 0; x < size[ 0 ]; ++x )
+				row[ x ] /= numChannels;
+		}
+	}
+	
+	/**
+	 * @return a copy of the box with x as the fastest dimension
+	 */
+	public float[] copy()
+	{
+		final float[] target = new float[ (int)ComparePairScheduler.numPixels( size ) ];
+		copyInto( target, size );
+		return target;
+	}
+}
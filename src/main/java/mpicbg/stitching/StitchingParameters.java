@@ -21,6 +21,8 @@
  */
 package mpicbg.stitching;
 
+import java.io.File;
+
 import mpicbg.imglib.container.ContainerFactory;
 import mpicbg.imglib.container.array.ArrayContainerFactory;
 
@@ -32,7 +34,8 @@ public class StitchingParameters
 	public static ContainerFactory phaseCorrelationFactory = new ArrayContainerFactory();
 	
 	/**
-	 * If you want to force that the {@link ContainerFactory} above is always used set this to true
+	 * If you want to force that the {@link ContainerFactory} above is always used set this to true. Otherwise rois,
+	 * ranges of slices and averaged channels are read through a {@link RoiView} directly into the FFT buffers
 	 */
 	public static boolean alwaysCopy = false;
 	
@@ -55,10 +58,61 @@ public class StitchingParameters
 	public int timeSelect;
 	
 	public int cpuMemChoice = 0;
-	// 0 == fuse&display, 1 == writeToDisk
+	
+	/**
+	 * How much memory (in MB) the pairwise registrations may use together if cpuMemChoice == 1, 
+	 * 0 means a fraction of the free heap (see {@link ComparePairScheduler})
+	 */
+	public double memoryBudget = 0;
+	
+	/**
+	 * If true, images that take part in several pairs are transformed only once (see {@link FFTCache}). The cached
+	 * transforms are correlated by {@link FloatPhaseCorrelation}, which verifies the peaks and fits the subpixel
+	 * position like the imglib PhaseCorrelation.
+	 */
+	public boolean reuseTransforms = true;
+	
+	/**
+	 * If set, the pairwise registrations reuse the forward transforms of images that take part in several pairs
+	 */
+	public FFTCache fftCache = null;
+	
+	/**
+	 * If larger than 1, the pairwise registrations find the shift on images downsampled by this factor
+	 * and refine it on a window at full resolution (see {@link PyramidPhaseCorrelation})
+	 */
+	public int pyramidFactor = 1;
+	
+	/**
+	 * If set, the results of the pairwise registrations are stored in this file and reused
+	 * by the next run if the images and parameters did not change (see {@link PairwiseResultCache})
+	 */
+	public File pairwiseResultFile = null;
+	
+	/**
+	 * If set, the results stored in the {@link #pairwiseResultFile} are not reused but computed again and overwritten
+	 */
+	public boolean recomputePairwiseResults = false;
+	
+	// 0 == fuse&display, 1 == writeToDisk, 2 == writeToDisk as one BigTIFF, 3 == writeToDisk as N5 blocks
 	public int outputVariant = 0;
 	public String outputDirectory = null;
 	
+	// compression of the BigTIFF or N5 output (see BigTiffWriter.compressionChoices, N5DatasetWriter.compressionChoices)
+	public int outputCompression = 0;
+	
+	/**
+	 * If true, the global optimization solves for all translations at once (see {@link TranslationSolver}) 
+	 * instead of iteratively fitting one tile at a time
+	 */
+	public boolean directSolver = false;
+	
+	/**
+	 * If true, the global optimization removes all links that are clearly bad at once instead of only 
+	 * the worst one before optimizing again
+	 */
+	public boolean batchedOutlierRemoval = false;
+	
 	public double regThreshold = -2;
 	public double relativeThreshold = 2.5;
 	public double absoluteThreshold = 3.5;
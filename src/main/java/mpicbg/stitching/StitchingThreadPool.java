@@ -0,0 +1,102 @@
+/*
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2022 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package mpicbg.stitching;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * One work-stealing pool shared by all parts of the stitching that run in parallel, so that
+ * nested parallelism (e.g. pairs that run in parallel and compute in parallel themselves) does
+ * not create more threads than there are processors.
+ */
+public class StitchingThreadPool 
+{
+	protected static ForkJoinPool pool = null;
+	
+	/**
+	 * @return the shared pool, created with as many threads as there are processors on first use
+	 */
+	public static synchronized ForkJoinPool getPool()
+	{
+		if ( pool == null )
+			pool = new ForkJoinPool( Runtime.getRuntime().availableProcessors() );
+		
+		return pool;
+	}
+	
+	/**
+	 * Replaces the shared pool with one of a different size, running tasks of the old pool are finished.
+	 * 
+	 * @param numThreads - the number of threads
+	 */
+	public static synchronized void setParallelism( final int numThreads )
+	{
+		if ( pool != null )
+			pool.shutdown();
+		
+		pool = new ForkJoinPool( Math.max( 1, numThreads ) );
+	}
+	
+	public static int getParallelism() { return getPool().getParallelism(); }
+	
+	/**
+	 * Runs all tasks on the shared pool and waits for them to finish, may be called from
+	 * within a task of the pool.
+	 * 
+	 * @param tasks - the tasks
+	 * @return the results in the order of the tasks
+	 */
+	public static < T > List< T > invokeAll( final Collection< ? extends Callable< T > > tasks )
+	{
+		final List< Future< T > > futures = getPool().invokeAll( tasks );
+		final ArrayList< T > results = new ArrayList< T >( futures.size() );
+		
+		try
+		{
+			for ( final Future< T > future : futures )
+				results.add( future.get() );
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( e );
+		}
+		catch ( final ExecutionException e )
+		{
+			if ( e.getCause() instanceof RuntimeException )
+				throw (RuntimeException)e.getCause();
+			
+			if ( e.getCause() instanceof Error )
+				throw (Error)e.getCause();
+			
+			throw new RuntimeException( e.getCause() );
+		}
+		
+		return results;
+	}
+}
@@ -21,6 +21,9 @@
  */
 package mpicbg.stitching;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+
 import mpicbg.models.PointMatch;
 import mpicbg.models.Tile;
 import mpicbg.models.TileConfiguration;
@@ -60,4 +63,28 @@ public class TileConfigurationStitching extends TileConfiguration
 
 	}
 	
+	/**
+	 * Removes all tiles that have no matches anymore, e.g. after their last link was found to be bad.
+	 * 
+	 * @return the removed tiles
+	 */
+	public ArrayList< Tile< ? > > removeUnconnectedTiles()
+	{
+		final ArrayList< Tile< ? > > removed = new ArrayList< Tile< ? > >();
+		
+		for ( final Iterator< Tile< ? > > it = tiles.iterator(); it.hasNext(); )
+		{
+			final Tile< ? > t = it.next();
+			
+			if ( t.getMatches().size() == 0 )
+			{
+				it.remove();
+				getFixedTiles().remove( t );
+				removed.add( t );
+			}
+		}
+		
+		return removed;
+	}
+	
 }
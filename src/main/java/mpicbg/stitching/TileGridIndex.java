@@ -0,0 +1,303 @@
+/*
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2022 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package mpicbg.stitching;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A uniform grid over the approximate tile layout (offset and size of every tile),
+ * used to find the candidates for overlapping tiles without testing all pairs. The
+ * cell size is the average tile size, so each tile only falls into a few cells and
+ * each cell only contains a few tiles, which makes overlap discovery roughly linear
+ * in the number of tiles.
+ * 
+ * Candidates are all tiles that share at least one cell, which is a superset of all
+ * tiles whose bounding boxes intersect, the actual test is done by
+ * {@link #overlaps(float[], int[], float[], int[], int)}.
+ */
+public class TileGridIndex 
+{
+	// number of bits per dimension used for the cell key
+	final static int bitsPerDim = 21;
+	final static long mask = ( 1l << bitsPerDim ) - 1;
+	
+	final float[][] offsets;
+	final int[][] sizes;
+	final int numTiles, dimensionality;
+	
+	final double[] min, cellSize;
+	
+	// which tiles are in which cell
+	final HashMap< Long, ArrayList< Integer > > cells = new HashMap< Long, ArrayList< Integer > >();
+	
+	// the range of cells each tile covers
+	final int[][] cellMin, cellMax;
+	
+	// to avoid reporting a tile twice during one query
+	final int[] lastSeen;
+	
+	public TileGridIndex( final List< ImageCollectionElement > elements, final int dimensionality )
+	{
+		this( getOffsets( elements ), getSizes( elements ), dimensionality );
+	}
+	
+	/**
+	 * @param offsets - the approximate offset of each tile
+	 * @param sizes - the size of each tile
+	 * @param dimensionality - 2 or 3
+	 */
+	public TileGridIndex( final float[][] offsets, final int[][] sizes, final int dimensionality )
+	{
+		this.offsets = offsets;
+		this.sizes = sizes;
+		this.numTiles = offsets.length;
+		this.dimensionality = dimensionality;
+		
+		this.min = new double[ dimensionality ];
+		this.cellSize = new double[ dimensionality ];
+		this.cellMin = new int[ numTiles ][ dimensionality ];
+		this.cellMax = new int[ numTiles ][ dimensionality ];
+		this.lastSeen = new int[ numTiles ];
+		
+		Arrays.fill( min, Double.MAX_VALUE );
+		Arrays.fill( lastSeen, -1 );
+		
+		// the cell size is the average size of a tile
+		for ( int i = 0; i < numTiles; ++i )
+			for ( int d = 0; d < dimensionality; ++d )
+			{
+				min[ d ] = Math.min( min[ d ], offsets[ i ][ d ] );
+				cellSize[ d ] += sizes[ i ][ d ];
+			}
+		
+		for ( int d = 0; d < dimensionality; ++d )
+			cellSize[ d ] = Math.max( 1, cellSize[ d ] / Math.max( 1, numTiles ) );
+		
+		// put each tile into all cells it covers
+		final int[] cell = new int[ dimensionality ];
+		
+		for ( int i = 0; i < numTiles; ++i )
+		{
+			for ( int d = 0; d < dimensionality; ++d )
+			{
+				cellMin[ i ][ d ] = getCell( offsets[ i ][ d ], d );
+				cellMax[ i ][ d ] = getCell( offsets[ i ][ d ] + sizes[ i ][ d ], d );
+			}
+			
+			System.arraycopy( cellMin[ i ], 0, cell, 0, dimensionality );
+			
+			do
+			{
+				final Long key = getKey( cell );
+				ArrayList< Integer > list = cells.get( key );
+				
+				if ( list == null )
+				{
+					list = new ArrayList< Integer >( 4 );
+					cells.put( key, list );
+				}
+				
+				list.add( i );
+			}
+			while ( nextCell( cell, cellMin[ i ], cellMax[ i ] ) );
+		}
+	}
+	
+	public int getNumTiles() { return numTiles; }
+	
+	/**
+	 * Returns all tiles with an index larger than i that share at least one cell with tile i,
+	 * sorted by their index. This is not thread-safe.
+	 * 
+	 * @param i - the index of the tile
+	 * @return the sorted indices of the candidates
+	 */
+	public int[] getCandidates( final int i )
+	{
+		final int[] cell = new int[ dimensionality ];
+		System.arraycopy( cellMin[ i ], 0, cell, 0, dimensionality );
+		
+		int[] candidates = new int[ 16 ];
+		int numCandidates = 0;
+		
+		do
+		{
+			final ArrayList< Integer > list = cells.get( getKey( cell ) );
+			
+			if ( list != null )
+			{
+				for ( final int j : list )
+				{
+					if ( j > i && lastSeen[ j ] != i )
+					{
+						lastSeen[ j ] = i;
+						
+						if ( numCandidates == candidates.length )
+							candidates = Arrays.copyOf( candidates, candidates.length * 2 );
+						
+						candidates[ numCandidates++ ] = j;
+					}
+				}
+			}
+		}
+		while ( nextCell( cell, cellMin[ i ], cellMax[ i ] ) );
+		
+		candidates = Arrays.copyOf( candidates, numCandidates );
+		Arrays.sort( candidates );
+		
+		return candidates;
+	}
+	
+	/**
+	 * Returns the key of the cell that contains a position, see {@link #getTiles(long)}.
+	 * 
+	 * @param position - the position, only the first dimensionality entries are used
+	 * @return the key of the cell
+	 */
+	public long getKeyAt( final int[] position )
+	{
+		long key = 0;
+		
+		for ( int d = 0; d < dimensionality; ++d )
+			key |= ( getCell( position[ d ], d ) & mask ) << ( d * bitsPerDim );
+		
+		return key;
+	}
+	
+	/**
+	 * Returns all tiles that cover a cell sorted by their index, which is a superset of the tiles
+	 * that contain any position inside the cell. The list must not be modified, reading is thread-safe.
+	 * 
+	 * @param key - the key of the cell, see {@link #getKeyAt(int[])}
+	 * @return the indices of the tiles
+	 */
+	public List< Integer > getTiles( final long key )
+	{
+		final ArrayList< Integer > list = cells.get( key );
+		
+		if ( list == null )
+			return Collections.emptyList();
+		
+		return list;
+	}
+	
+	/**
+	 * Computes all pairs of overlapping tiles in the same order as testing every pair i &lt; j
+	 * in a nested loop would.
+	 * 
+	 * @return a list of index pairs { i, j } with i &lt; j
+	 */
+	public ArrayList< int[] > getOverlappingPairs()
+	{
+		final ArrayList< int[] > pairs = new ArrayList< int[] >();
+		
+		for ( int i = 0; i < numTiles - 1; ++i )
+			for ( final int j : getCandidates( i ) )
+				if ( overlaps( offsets[ i ], sizes[ i ], offsets[ j ], sizes[ j ], dimensionality ) )
+					pairs.add( new int[]{ i, j } );
+		
+		return pairs;
+	}
+	
+	/**
+	 * Tests if the second tile overlaps with the first one given their approximate layout
+	 * 
+	 * @param offset1 - the offset of the first tile
+	 * @param size1 - the size of the first tile
+	 * @param offset2 - the offset of the second tile
+	 * @param size2 - the size of the second tile
+	 * @param dimensionality - 2 or 3
+	 * @return true if they overlap
+	 */
+	public static boolean overlaps( final float[] offset1, final int[] size1, final float[] offset2, final int[] size2, final int dimensionality )
+	{
+		for ( int d = 0; d < dimensionality; ++d )
+		{
+			if ( !( ( offset2[ d ] >= offset1[ d ] && offset2[ d ] <= offset1[ d ] + size1[ d ] ) || 
+				    ( offset2[ d ] + size2[ d ] >= offset1[ d ] && offset2[ d ] + size2[ d ] <= offset1[ d ] + size1[ d ] ) ||
+				    ( offset2[ d ] <= offset1[ d ] && offset2[ d ] >= offset1[ d ] + size1[ d ] ) 
+			   )  )
+				return false;
+		}
+		
+		return true;
+	}
+	
+	protected int getCell( final double position, final int d )
+	{
+		return (int)Math.floor( ( position - min[ d ] ) / cellSize[ d ] );
+	}
+	
+	/**
+	 * Packs the cell coordinates into one key, cells that are further apart than 2^21 cells
+	 * might share a key which only adds candidates, it does not lose any.
+	 */
+	protected Long getKey( final int[] cell )
+	{
+		long key = 0;
+		
+		for ( int d = 0; d < dimensionality; ++d )
+			key |= ( cell[ d ] & mask ) << ( d * bitsPerDim );
+		
+		return key;
+	}
+	
+	protected static boolean nextCell( final int[] cell, final int[] cellMin, final int[] cellMax )
+	{
+		for ( int d = 0; d < cell.length; ++d )
+		{
+			if ( cell[ d ] < cellMax[ d ] )
+			{
+				++cell[ d ];
+				return true;
+			}
+			
+			cell[ d ] = cellMin[ d ];
+		}
+		
+		return false;
+	}
+	
+	protected static float[][] getOffsets( final List< ImageCollectionElement > elements )
+	{
+		final float[][] offsets = new float[ elements.size() ][];
+		
+		for ( int i = 0; i < elements.size(); ++i )
+			offsets[ i ] = elements.get( i ).getOffset();
+		
+		return offsets;
+	}
+	
+	protected static int[][] getSizes( final List< ImageCollectionElement > elements )
+	{
+		final int[][] sizes = new int[ elements.size() ][];
+		
+		for ( int i = 0; i < elements.size(); ++i )
+			sizes[ i ] = elements.get( i ).getDimensions();
+		
+		return sizes;
+	}
+}
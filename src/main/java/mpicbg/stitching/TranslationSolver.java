@@ -0,0 +1,291 @@
+/*
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2022 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package mpicbg.stitching;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+
+import mpicbg.models.PointMatch;
+import mpicbg.models.Tile;
+import mpicbg.models.TranslationModel2D;
+import mpicbg.models.TranslationModel3D;
+
+/**
+ * Solves the global optimization of translation models directly instead of fitting one tile at a time. 
+ * Each link only constrains the difference of the translations of its two tiles, so minimizing the 
+ * weighted squared displacement of all {@link PointMatch}es is a linear least-squares problem. Its normal 
+ * equations are the weighted Laplacian of the tile graph, which is sparse, symmetric and positive definite
+ * once every connected graph has a fixed tile. It is solved with a Jacobi-preconditioned conjugate gradient.
+ */
+public class TranslationSolver 
+{
+	/**
+	 * The conjugate gradient stops once the residual is below this fraction of the right-hand side
+	 */
+	public static double tolerance = 1e-12;
+	
+	/**
+	 * Computes the translations of all tiles that are not fixed. All matches must be {@link PointMatchStitching}es 
+	 * between tiles of the collection. Connected graphs without a fixed tile keep the current position of their 
+	 * first tile.
+	 * 
+	 * @param tiles - all tiles, their models are {@link TranslationModel2D} or {@link TranslationModel3D}
+	 * @param fixedTiles - the tiles that keep their position
+	 * @param dimensionality - 2 or 3
+	 * 
+	 * @return the largest number of conjugate gradient iterations of all dimensions
+	 */
+	public static int solve( final Collection< ? extends Tile< ? > > tiles, final Collection< ? extends Tile< ? > > fixedTiles, final int dimensionality )
+	{
+		final ArrayList< Tile< ? > > list = new ArrayList< Tile< ? > >( tiles );
+		final int n = list.size();
+		
+		final HashMap< Tile< ? >, Integer > index = new HashMap< Tile< ? >, Integer >();
+		
+		for ( int i = 0; i < n; ++i )
+			index.put( list.get( i ), i );
+		
+		// the links of each tile in compressed rows, the offset is where this tile should be relative to the other one
+		final int[] rowStart = new int[ n + 1 ];
+		
+		for ( int i = 0; i < n; ++i )
+			rowStart[ i + 1 ] = rowStart[ i ] + list.get( i ).getMatches().size();
+		
+		final int[] other = new int[ rowStart[ n ] ];
+		final double[] weight = new double[ rowStart[ n ] ];
+		final double[][] linkOffset = new double[ dimensionality ][ rowStart[ n ] ];
+		
+		for ( int i = 0; i < n; ++i )
+		{
+			final Tile< ? > tile = list.get( i );
+			int k = rowStart[ i ];
+			
+			for ( final PointMatch match : tile.getMatches() )
+			{
+				final ComparePair pair = ( (PointMatchStitching)match ).getPair();
+				final Integer j = index.get( pair.getTile1() == tile ? pair.getTile2() : pair.getTile1() );
+				
+				// links with a non-positive weight do not constrain anything
+				other[ k ] = j == null ? -1 : j;
+				weight[ k ] = j == null ? 0 : Math.max( 0, match.getWeight() );
+				
+				for ( int d = 0; d < dimensionality; ++d )
+					linkOffset[ d ][ k ] = match.getP2().getL()[ d ] - match.getP1().getL()[ d ];
+				
+				++k;
+			}
+		}
+		
+		// every connected graph needs one fixed tile
+		final boolean[] fixed = new boolean[ n ];
+		
+		for ( final Tile< ? > tile : fixedTiles )
+			if ( index.containsKey( tile ) )
+				fixed[ index.get( tile ) ] = true;
+		
+		final boolean[] reached = new boolean[ n ];
+		final ArrayDeque< Integer > queue = new ArrayDeque< Integer >();
+		
+		for ( int pass = 0; pass < 2; ++pass )
+			for ( int i = 0; i < n; ++i )
+			{
+				// first all graphs of fixed tiles, then each remaining graph is fixed at its first tile
+				if ( reached[ i ] || ( pass == 0 && !fixed[ i ] ) )
+					continue;
+				
+				fixed[ i ] = true;
+				reached[ i ] = true;
+				queue.add( i );
+				
+				while ( !queue.isEmpty() )
+				{
+					final int t = queue.poll();
+					
+					for ( int k = rowStart[ t ]; k < rowStart[ t + 1 ]; ++k )
+						if ( weight[ k ] > 0 && !reached[ other[ k ] ] )
+						{
+							reached[ other[ k ] ] = true;
+							queue.add( other[ k ] );
+						}
+				}
+			}
+		
+		// the current translations, the fixed ones stay, the others are the start of the iteration
+		final double[][] x = new double[ dimensionality ][ n ];
+		
+		for ( int i = 0; i < n; ++i )
+		{
+			final double[] t = list.get( i ).getModel().apply( new double[ dimensionality ] );
+			
+			for ( int d = 0; d < dimensionality; ++d )
+				x[ d ][ i ] = t[ d ];
+		}
+		
+		final double[] diagonal = new double[ n ];
+		
+		for ( int i = 0; i < n; ++i )
+			for ( int k = rowStart[ i ]; k < rowStart[ i + 1 ]; ++k )
+				diagonal[ i ] += weight[ k ];
+		
+		int maxIterations = 0;
+		
+		for ( int d = 0; d < dimensionality; ++d )
+		{
+			// the right-hand side, fixed neighbors move to this side
+			final double[] b = new double[ n ];
+			
+			for ( int i = 0; i < n; ++i )
+			{
+				if ( fixed[ i ] )
+					continue;
+				
+				for ( int k = rowStart[ i ]; k < rowStart[ i + 1 ]; ++k )
+				{
+					b[ i ] += weight[ k ] * linkOffset[ d ][ k ];
+					
+					if ( weight[ k ] > 0 && fixed[ other[ k ] ] )
+						b[ i ] += weight[ k ] * x[ d ][ other[ k ] ];
+				}
+			}
+			
+			maxIterations = Math.max( maxIterations, conjugateGradient( rowStart, other, weight, diagonal, fixed, b, x[ d ] ) );
+		}
+		
+		for ( int i = 0; i < n; ++i )
+		{
+			if ( fixed[ i ] )
+				continue;
+			
+			final Tile< ? > tile = list.get( i );
+			
+			if ( dimensionality == 3 )
+				( (TranslationModel3D)tile.getModel() ).set( x[ 0 ][ i ], x[ 1 ][ i ], x[ 2 ][ i ] );
+			else
+				( (TranslationModel2D)tile.getModel() ).set( x[ 0 ][ i ], x[ 1 ][ i ] );
+		}
+		
+		// update the world coordinates of all matches
+		for ( final Tile< ? > tile : list )
+			tile.apply();
+		
+		return maxIterations;
+	}
+	
+	/**
+	 * Solves the Laplacian system of all tiles that are not fixed, the entries of fixed tiles are ignored
+	 * 
+	 * @return the number of iterations
+	 */
+	protected static int conjugateGradient( final int[] rowStart, final int[] other, final double[] weight, final double[] diagonal, final boolean[] fixed, final double[] b, final double[] x )
+	{
+		final int n = b.length;
+		final double[] r = new double[ n ];
+		final double[] z = new double[ n ];
+		final double[] p = new double[ n ];
+		final double[] q = new double[ n ];
+		
+		multiply( rowStart, other, weight, diagonal, fixed, x, q );
+		
+		double normB = 0, rz = 0;
+		
+		for ( int i = 0; i < n; ++i )
+		{
+			if ( fixed[ i ] )
+				continue;
+			
+			r[ i ] = b[ i ] - q[ i ];
+			z[ i ] = r[ i ] / diagonal[ i ];
+			p[ i ] = z[ i ];
+			rz += r[ i ] * z[ i ];
+			normB += b[ i ] * b[ i ];
+		}
+		
+		final double threshold = tolerance * tolerance * Math.max( normB, 1 );
+		
+		// in exact arithmetic it converges in at most n iterations
+		for ( int iteration = 0; iteration < 2 * n + 10; ++iteration )
+		{
+			double normR = 0;
+			
+			for ( int i = 0; i < n; ++i )
+				normR += r[ i ] * r[ i ];
+			
+			if ( normR <= threshold )
+				return iteration;
+			
+			multiply( rowStart, other, weight, diagonal, fixed, p, q );
+			
+			double pq = 0;
+			
+			for ( int i = 0; i < n; ++i )
+				pq += p[ i ] * q[ i ];
+			
+			final double alpha = rz / pq;
+			double rzNew = 0;
+			
+			for ( int i = 0; i < n; ++i )
+			{
+				if ( fixed[ i ] )
+					continue;
+				
+				x[ i ] += alpha * p[ i ];
+				r[ i ] -= alpha * q[ i ];
+				z[ i ] = r[ i ] / diagonal[ i ];
+				rzNew += r[ i ] * z[ i ];
+			}
+			
+			final double beta = rzNew / rz;
+			rz = rzNew;
+			
+			for ( int i = 0; i < n; ++i )
+				if ( !fixed[ i ] )
+					p[ i ] = z[ i ] + beta * p[ i ];
+		}
+		
+		return 2 * n + 10;
+	}
+	
+	/**
+	 * q = L * p for all tiles that are not fixed, where L is the weighted Laplacian without the rows and columns of fixed tiles
+	 */
+	protected static void multiply( final int[] rowStart, final int[] other, final double[] weight, final double[] diagonal, final boolean[] fixed, final double[] p, final double[] q )
+	{
+		for ( int i = 0; i < p.length; ++i )
+		{
+			if ( fixed[ i ] )
+			{
+				q[ i ] = 0;
+				continue;
+			}
+			
+			double sum = diagonal[ i ] * p[ i ];
+			
+			for ( int k = rowStart[ i ]; k < rowStart[ i + 1 ]; ++k )
+				if ( weight[ k ] > 0 && !fixed[ other[ k ] ] )
+					sum -= weight[ k ] * p[ other[ k ] ];
+			
+			q[ i ] = sum;
+		}
+	}
+}
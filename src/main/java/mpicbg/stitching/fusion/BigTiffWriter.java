@@ -0,0 +1,510 @@
+/*
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2022 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package mpicbg.stitching.fusion;
+
+import ij.IJ;
+import ij.process.ImageProcessor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.zip.Deflater;
+
+import mpicbg.stitching.StitchingThreadPool;
+
+/**
+ * Writes a stack of planes into one tiled BigTIFF file, so that the fusion can stream all
+ * slices, channels and timepoints into a single file of any size. The tile data of each plane
+ * is appended as soon as the plane is written (the planes may come in any order), the image
+ * file directories are written by {@link #close()}. Tiles are optionally compressed (deflate or
+ * LZW), in parallel on the {@link StitchingThreadPool}.
+ * <p>
+ * The files have to be opened with Bio-Formats, the TIFF decoder of ImageJ reads neither
+ * BigTIFF nor tiled files.
+ * </p>
+ */
+public class BigTiffWriter
+{
+	public static String[] compressionChoices = { "None", "Deflate", "LZW" };
+
+	public static final int NONE = 0;
+	public static final int DEFLATE = 1;
+	public static final int LZW = 2;
+
+	// tiff tags
+	protected static final int IMAGE_WIDTH = 256;
+	protected static final int IMAGE_LENGTH = 257;
+	protected static final int BITS_PER_SAMPLE = 258;
+	protected static final int COMPRESSION = 259;
+	protected static final int PHOTOMETRIC_INTERPRETATION = 262;
+	protected static final int IMAGE_DESCRIPTION = 270;
+	protected static final int SAMPLES_PER_PIXEL = 277;
+	protected static final int PLANAR_CONFIGURATION = 284;
+	protected static final int TILE_WIDTH = 322;
+	protected static final int TILE_LENGTH = 323;
+	protected static final int TILE_OFFSETS = 324;
+	protected static final int TILE_BYTE_COUNTS = 325;
+	protected static final int SAMPLE_FORMAT = 339;
+
+	// tiff field types
+	protected static final int ASCII = 2;
+	protected static final int SHORT = 3;
+	protected static final int LONG = 4;
+	protected static final int LONG8 = 16;
+
+	final RandomAccessFile file;
+	final int width, height, bitDepth, numPlanes, tileSize, compression;
+	final int tilesX, tilesY;
+	final String description;
+
+	// the offsets and sizes of the tiles of every plane, null until the plane is written
+	final long[][] tileOffsets, tileByteCounts;
+
+	boolean parallelCompression = true;
+
+	/**
+	 * @param file - the output file, it is overwritten
+	 * @param width - the width of all planes
+	 * @param height - the height of all planes
+	 * @param bitDepth - 8, 16 (unsigned) or 32 (float)
+	 * @param numPlanes - the number of planes
+	 * @param description - the image description of the first plane (e.g. the ImageJ hyperstack layout), may be null
+	 * @param tileSize - width and height of the tiles, rounded up to a multiple of 16
+	 * @param compression - {@link #NONE}, {@link #DEFLATE} or {@link #LZW}
+	 * @throws IOException
+	 */
+	public BigTiffWriter( final File file, final int width, final int height, final int bitDepth, final int numPlanes,
+			final String description, final int tileSize, final int compression ) throws IOException
+	{
+		if ( bitDepth != 8 && bitDepth != 16 && bitDepth != 32 )
+			throw new IllegalArgumentException( "Unsupported bit depth: " + bitDepth );
+
+		if ( compression < NONE || compression > LZW )
+			throw new IllegalArgumentException( "Unknown compression: " + compression );
+
+		this.width = width;
+		this.height = height;
+		this.bitDepth = bitDepth;
+		this.numPlanes = numPlanes;
+		this.description = description;
+		this.tileSize = Math.max( 16, ( tileSize + 15 ) / 16 * 16 );
+		this.compression = compression;
+		this.tilesX = ( width + this.tileSize - 1 ) / this.tileSize;
+		this.tilesY = ( height + this.tileSize - 1 ) / this.tileSize;
+		this.tileOffsets = new long[ numPlanes ][];
+		this.tileByteCounts = new long[ numPlanes ][];
+
+		this.file = new RandomAccessFile( file, "rw" );
+		this.file.setLength( 0 );
+
+		// header: byte order, version 43, offset size 8, reserved, offset of the first IFD (written by close())
+		final ByteBuffer header = newBuffer( 16 );
+		header.put( (byte)'I' ).put( (byte)'I' ).putShort( (short)43 ).putShort( (short)8 ).putShort( (short)0 ).putLong( 0 );
+		this.file.write( header.array() );
+	}
+
+	/**
+	 * @param parallelCompression - if true (default), the tiles of a plane are compressed in parallel
+	 */
+	public void setParallelCompression( final boolean parallelCompression ) { this.parallelCompression = parallelCompression; }
+	public boolean getParallelCompression() { return parallelCompression; }
+
+	public int getNumPlanes() { return numPlanes; }
+	public int getTileSize() { return tileSize; }
+
+	/**
+	 * Writes one plane, may be called from several threads at once. The tiles of a plane are
+	 * compressed outside of the lock and appended to the file in one go.
+	 *
+	 * @param index - the index of the plane in the file (for hyperstacks in ImageJ order, channel first)
+	 * @param ip - the plane, of the bit depth of the file
+	 * @throws IOException
+	 */
+	public void writePlane( final int index, final ImageProcessor ip ) throws IOException
+	{
+		if ( index < 0 || index >= numPlanes )
+			throw new IllegalArgumentException( "Plane " + index + " is outside of [0, " + ( numPlanes - 1 ) + "]" );
+
+		if ( ip.getWidth() != width || ip.getHeight() != height || ip.getBitDepth() != bitDepth )
+			throw new IllegalArgumentException( "Plane does not match the file: " + ip.getWidth() + "x" + ip.getHeight() + ", " + ip.getBitDepth() + " bit" );
+
+		final Object pixels = ip.getPixels();
+		final int numTiles = tilesX * tilesY;
+		final List< byte[] > tiles;
+
+		if ( compression != NONE && parallelCompression && numTiles > 1 )
+		{
+			final ArrayList< Callable< byte[] > > tasks = new ArrayList< Callable< byte[] > >( numTiles );
+
+			for ( int t = 0; t < numTiles; ++t )
+			{
+				final int tile = t;
+				tasks.add( new Callable< byte[] >()
+				{
+					@Override
+					public byte[] call() { return compress( getTile( pixels, tile ) ); }
+				});
+			}
+
+			tiles = StitchingThreadPool.invokeAll( tasks );
+		}
+		else
+		{
+			tiles = new ArrayList< byte[] >( numTiles );
+
+			for ( int t = 0; t < numTiles; ++t )
+				tiles.add( compress( getTile( pixels, t ) ) );
+		}
+
+		final long[] offsets = new long[ numTiles ];
+		final long[] byteCounts = new long[ numTiles ];
+
+		synchronized ( this )
+		{
+			if ( tileOffsets[ index ] != null )
+				throw new IllegalStateException( "Plane " + index + " was already written." );
+
+			long position = file.length();
+			file.seek( position );
+
+			for ( int t = 0; t < numTiles; ++t )
+			{
+				final byte[] data = tiles.get( t );
+				file.write( data );
+
+				offsets[ t ] = position;
+				byteCounts[ t ] = data.length;
+				position += data.length;
+			}
+
+			tileOffsets[ index ] = offsets;
+			tileByteCounts[ index ] = byteCounts;
+		}
+	}
+
+	/**
+	 * Writes the image file directories of all planes and closes the file.
+	 *
+	 * @throws IOException - if a plane was not written
+	 */
+	public synchronized void close() throws IOException
+	{
+		try
+		{
+			for ( int i = 0; i < numPlanes; ++i )
+				if ( tileOffsets[ i ] == null )
+					throw new IOException( "Plane " + i + " of " + numPlanes + " was never written." );
+
+			final byte[] descriptionBytes = description == null ? null : ( description + '\0' ).getBytes( "US-ASCII" );
+
+			// offset of the field that points to the next IFD, starts with the header
+			long previousLink = 8;
+
+			for ( int i = 0; i < numPlanes; ++i )
+			{
+				// IFDs have to start on a word boundary
+				if ( file.length() % 2 != 0 )
+				{
+					file.seek( file.length() );
+					file.write( 0 );
+				}
+
+				final long ifdOffset = file.length();
+				final ByteBuffer ifd = createIFD( ifdOffset, tileOffsets[ i ], tileByteCounts[ i ], i == 0 ? descriptionBytes : null );
+
+				file.seek( ifdOffset );
+				file.write( ifd.array() );
+
+				writeLong( previousLink, ifdOffset );
+				previousLink = ifdOffset + ifd.getLong( 0 ) * 20 + 8;
+			}
+		}
+		finally
+		{
+			file.close();
+		}
+	}
+
+	/**
+	 * Builds the image file directory of one plane, followed by the values that do not fit into
+	 * their entries.
+	 */
+	protected ByteBuffer createIFD( final long ifdOffset, final long[] offsets, final long[] byteCounts, final byte[] descriptionBytes )
+	{
+		final int numEntries = descriptionBytes == null ? 12 : 13;
+		final int numTiles = offsets.length;
+		final long extra = ifdOffset + 8 + numEntries * 20 + 8;
+
+		final int offsetsSize = numTiles > 1 ? numTiles * 8 : 0;
+		final int descriptionSize = descriptionBytes != null && descriptionBytes.length > 8 ? descriptionBytes.length : 0;
+
+		final ByteBuffer ifd = newBuffer( 8 + numEntries * 20 + 8 + 2 * offsetsSize + descriptionSize );
+		ifd.putLong( numEntries );
+
+		putEntry( ifd, IMAGE_WIDTH, LONG, width );
+		putEntry( ifd, IMAGE_LENGTH, LONG, height );
+		putEntry( ifd, BITS_PER_SAMPLE, SHORT, bitDepth );
+		putEntry( ifd, COMPRESSION, SHORT, compression == DEFLATE ? 8 : compression == LZW ? 5 : 1 );
+		putEntry( ifd, PHOTOMETRIC_INTERPRETATION, SHORT, 1 );
+
+		if ( descriptionBytes != null )
+		{
+			ifd.putShort( (short)IMAGE_DESCRIPTION ).putShort( (short)ASCII ).putLong( descriptionBytes.length );
+
+			if ( descriptionSize == 0 )
+				ifd.put( Arrays.copyOf( descriptionBytes, 8 ) );
+			else
+				ifd.putLong( extra + 2 * offsetsSize );
+		}
+
+		putEntry( ifd, SAMPLES_PER_PIXEL, SHORT, 1 );
+		putEntry( ifd, PLANAR_CONFIGURATION, SHORT, 1 );
+		putEntry( ifd, TILE_WIDTH, LONG, tileSize );
+		putEntry( ifd, TILE_LENGTH, LONG, tileSize );
+
+		if ( numTiles > 1 )
+		{
+			ifd.putShort( (short)TILE_OFFSETS ).putShort( (short)LONG8 ).putLong( numTiles ).putLong( extra );
+			ifd.putShort( (short)TILE_BYTE_COUNTS ).putShort( (short)LONG8 ).putLong( numTiles ).putLong( extra + offsetsSize );
+		}
+		else
+		{
+			ifd.putShort( (short)TILE_OFFSETS ).putShort( (short)LONG8 ).putLong( 1 ).putLong( offsets[ 0 ] );
+			ifd.putShort( (short)TILE_BYTE_COUNTS ).putShort( (short)LONG8 ).putLong( 1 ).putLong( byteCounts[ 0 ] );
+		}
+
+		putEntry( ifd, SAMPLE_FORMAT, SHORT, bitDepth == 32 ? 3 : 1 );
+
+		// next IFD, set once it is written
+		ifd.putLong( 0 );
+
+		if ( numTiles > 1 )
+		{
+			for ( final long offset : offsets )
+				ifd.putLong( offset );
+
+			for ( final long byteCount : byteCounts )
+				ifd.putLong( byteCount );
+		}
+
+		if ( descriptionSize > 0 )
+			ifd.put( descriptionBytes );
+
+		return ifd;
+	}
+
+	/**
+	 * Copies one tile of a plane into a little-endian byte array, tiles at the border are padded with zeros.
+	 */
+	protected byte[] getTile( final Object pixels, final int tile )
+	{
+		final int bytesPerPixel = bitDepth / 8;
+		final int x0 = ( tile % tilesX ) * tileSize;
+		final int y0 = ( tile / tilesX ) * tileSize;
+		final int w = Math.min( tileSize, width - x0 );
+		final int h = Math.min( tileSize, height - y0 );
+
+		final ByteBuffer data = newBuffer( tileSize * tileSize * bytesPerPixel );
+
+		for ( int y = 0; y < h; ++y )
+		{
+			data.position( y * tileSize * bytesPerPixel );
+			final int offset = ( y0 + y ) * width + x0;
+
+			if ( bitDepth == 8 )
+				data.put( (byte[])pixels, offset, w );
+			else if ( bitDepth == 16 )
+				data.asShortBuffer().put( (short[])pixels, offset, w );
+			else
+				data.asFloatBuffer().put( (float[])pixels, offset, w );
+		}
+
+		return data.array();
+	}
+
+	protected byte[] compress( final byte[] data )
+	{
+		if ( compression == DEFLATE )
+			return deflate( data );
+		else if ( compression == LZW )
+			return lzw( data );
+		else
+			return data;
+	}
+
+	public static byte[] deflate( final byte[] data )
+	{
+		final Deflater deflater = new Deflater();
+		deflater.setInput( data );
+		deflater.finish();
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream( data.length / 2 + 64 );
+		final byte[] buffer = new byte[ 65536 ];
+
+		while ( !deflater.finished() )
+			out.write( buffer, 0, deflater.deflate( buffer ) );
+
+		deflater.end();
+
+		return out.toByteArray();
+	}
+
+	/**
+	 * LZW as specified by TIFF 6.0: codes of 9 to 12 bits packed MSB first, a clear code at the
+	 * start and whenever the table is full, and the code width increasing one code early.
+	 */
+	public static byte[] lzw( final byte[] data )
+	{
+		final int clear = 256, eoi = 257;
+		final BitWriter out = new BitWriter( data.length / 2 + 64 );
+		final HashMap< Integer, Integer > table = new HashMap< Integer, Integer >();
+
+		int width = 9;
+		int nextCode = 258;
+		int prefix = -1;
+
+		out.write( clear, width );
+
+		for ( final byte b : data )
+		{
+			final int value = b & 0xff;
+
+			if ( prefix < 0 )
+			{
+				prefix = value;
+				continue;
+			}
+
+			final Integer code = table.get( ( prefix << 8 ) | value );
+
+			if ( code != null )
+			{
+				prefix = code;
+				continue;
+			}
+
+			out.write( prefix, width );
+			table.put( ( prefix << 8 ) | value, nextCode++ );
+			prefix = value;
+
+			if ( nextCode == 4094 )
+			{
+				out.write( clear, width );
+				table.clear();
+				nextCode = 258;
+				width = 9;
+			}
+			else if ( nextCode > ( 1 << width ) - 1 )
+			{
+				++width;
+			}
+		}
+
+		if ( prefix >= 0 )
+		{
+			out.write( prefix, width );
+
+			// the decoder adds an entry for this code as well before reading the end of information
+			if ( ++nextCode > ( 1 << width ) - 1 && width < 12 )
+				++width;
+		}
+
+		out.write( eoi, width );
+
+		return out.toByteArray();
+	}
+
+	protected static class BitWriter
+	{
+		final ByteArrayOutputStream out;
+		int buffer = 0, numBits = 0;
+
+		public BitWriter( final int size ) { this.out = new ByteArrayOutputStream( size ); }
+
+		public void write( final int code, final int width )
+		{
+			buffer = ( buffer << width ) | code;
+			numBits += width;
+
+			while ( numBits >= 8 )
+			{
+				numBits -= 8;
+				out.write( ( buffer >>> numBits ) & 0xff );
+			}
+
+			buffer &= ( 1 << numBits ) - 1;
+		}
+
+		public byte[] toByteArray()
+		{
+			if ( numBits > 0 )
+			{
+				out.write( ( buffer << ( 8 - numBits ) ) & 0xff );
+				buffer = numBits = 0;
+			}
+
+			return out.toByteArray();
+		}
+	}
+
+	protected void writeLong( final long position, final long value ) throws IOException
+	{
+		final ByteBuffer buffer = newBuffer( 8 );
+		buffer.putLong( value );
+
+		file.seek( position );
+		file.write( buffer.array() );
+	}
+
+	protected static void putEntry( final ByteBuffer ifd, final int tag, final int type, final long value )
+	{
+		ifd.putShort( (short)tag ).putShort( (short)type ).putLong( 1 );
+
+		if ( type == SHORT )
+			ifd.putShort( (short)value ).putShort( (short)0 ).putInt( 0 );
+		else
+			ifd.putInt( (int)value ).putInt( 0 );
+	}
+
+	protected static ByteBuffer newBuffer( final int size )
+	{
+		return ByteBuffer.allocate( size ).order( ByteOrder.LITTLE_ENDIAN );
+	}
+
+	/**
+	 * The ImageJ hyperstack description, so that Bio-Formats opens the file with the right
+	 * number of channels, slices and frames.
+	 */
+	public static String hyperstackDescription( final int numChannels, final int numSlices, final int numTimePoints )
+	{
+		return "ImageJ=" + IJ.getVersion() + "\nimages=" + ( numChannels * numSlices * numTimePoints ) +
+				"\nchannels=" + numChannels + "\nslices=" + numSlices + "\nframes=" + numTimePoints + "\nhyperstack=true\n";
+	}
+}
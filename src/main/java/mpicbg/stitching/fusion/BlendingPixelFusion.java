@@ -33,7 +33,8 @@ public class BlendingPixelFusion implements PixelFusion
 	final double percentScaling;
 	final double[] border;
 	
-	final ArrayList< ? extends ImageInterpolation< ? > > images;
+	// the size of every input image
+	final long[][] sizes;
 
 	double valueSum, weightSum;
 	
@@ -44,26 +45,37 @@ public class BlendingPixelFusion implements PixelFusion
 	 */
 	public BlendingPixelFusion( final ArrayList< ? extends ImageInterpolation< ? > > images )
 	{
-		this( images, fractionBlended );
+		this( getSizes( images ) );
 	}	
+
+	/**
+	 * Instantiates the per-pixel blending, only the sizes of the input images are needed
+	 * 
+	 * @param sizes - the size of all input images (the position in the array has to be the same as Id provided by addValue!)
+	 */
+	public BlendingPixelFusion( final long[][] sizes )
+	{
+		this( sizes, fractionBlended );
+	}	
+
 	/**
 	 * Instantiates the per-pixel blending
 	 * 
-	 * @param images - all input images (the position in the list has to be the same as Id provided by addValue!)
+	 * @param sizes - the size of all input images (the position in the array has to be the same as Id provided by addValue!)
 	 * @param percentScaling - which percentage of the image should be blended ( e.g. 0,3 means 15% on the left and 15% on the right)
 	 */
-	private BlendingPixelFusion( final ArrayList< ? extends ImageInterpolation< ? > > images, final double fractionBlended )
+	private BlendingPixelFusion( final long[][] sizes, final double fractionBlended )
 	{
-		this.images = images;
+		this.sizes = sizes;
 		this.percentScaling = fractionBlended;
 		
-		this.numDimensions = images.get( 0 ).getImg().numDimensions();
-		this.numImages = images.size();
+		this.numDimensions = sizes[ 0 ].length;
+		this.numImages = sizes.length;
 		this.dimensions = new long[ numImages ][ numDimensions ];
 		
 		for ( int i = 0; i < numImages; ++i )
 			for ( int d = 0; d < numDimensions; ++d )
-				dimensions[ i ][ d ] = images.get( i ).getImg().dimension( d ) - 1; 
+				dimensions[ i ][ d ] = sizes[ i ][ d ] - 1; 
 
 		this.border = new double[ numDimensions ];
 
@@ -71,19 +83,50 @@ public class BlendingPixelFusion implements PixelFusion
 		clear();
 	}
 	
+	/**
+	 * @return the size of all images
+	 */
+	public static long[][] getSizes( final ArrayList< ? extends ImageInterpolation< ? > > images )
+	{
+		final long[][] sizes = new long[ images.size() ][];
+		
+		for ( int i = 0; i < sizes.length; ++i )
+		{
+			sizes[ i ] = new long[ images.get( i ).getImg().numDimensions() ];
+			images.get( i ).getImg().dimensions( sizes[ i ] );
+		}
+		
+		return sizes;
+	}
+	
 	@Override
 	public void clear() { valueSum = weightSum = 0;	}
 
 	@Override
 	public void addValue( final double value, final int imageId, final double[] localPosition ) 
 	{
-		// we are always inside the image, so we do not want 0.0
-		final double weight = Math.max( 0.00001, computeWeight( localPosition, dimensions[ imageId ], border, percentScaling ) );
-		
+		addValue( value, getWeight( imageId, localPosition ) );
+	}
+
+	/**
+	 * add a new value for the current output pixel with a weight computed by {@link #getWeight(int, double[])},
+	 * so that several channels can share the weight
+	 */
+	public void addValue( final double value, final double weight )
+	{
 		weightSum += weight;
 		valueSum += value * weight;
 	}
 
+	/**
+	 * @return the blending weight of a position inside of an image
+	 */
+	public double getWeight( final int imageId, final double[] localPosition )
+	{
+		// we are always inside the image, so we do not want 0.0
+		return Math.max( 0.00001, computeWeight( localPosition, dimensions[ imageId ], border, percentScaling ) );
+	}
+
 	@Override
 	public double getValue()
 	{ 
@@ -93,7 +136,7 @@ public class BlendingPixelFusion implements PixelFusion
 	}
 
 	@Override
-	public PixelFusion copy() { return new BlendingPixelFusion( images ); }
+	public PixelFusion copy() { return new BlendingPixelFusion( sizes ); }
 
 	/**
 	 * From SPIM Registration
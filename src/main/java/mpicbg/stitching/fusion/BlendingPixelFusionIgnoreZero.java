@@ -35,19 +35,30 @@ public class BlendingPixelFusionIgnoreZero extends BlendingPixelFusion
 		super( images );
 	}	
 
+	/**
+	 * Instantiates the per-pixel blending, only the sizes of the input images are needed
+	 * 
+	 * @param sizes - the size of all input images (the position in the array has to be the same as Id provided by addValue!)
+	 */
+	public BlendingPixelFusionIgnoreZero( final long[][] sizes )
+	{
+		super( sizes );
+	}	
+
 	@Override
 	public void addValue( final double value, final int imageId, final double[] localPosition ) 
 	{
 		if ( value != 0.0 )
-		{
-			// we are always inside the image, so we do not want 0.0
-			final double weight = Math.max( 0.00001, computeWeight( localPosition, dimensions[ imageId ], border, percentScaling ) );
-			
-			weightSum += weight;
-			valueSum += value * weight;
-		}
+			super.addValue( value, getWeight( imageId, localPosition ) );
+	}
+
+	@Override
+	public void addValue( final double value, final double weight )
+	{
+		if ( value != 0.0 )
+			super.addValue( value, weight );
 	}
 
 	@Override
-	public PixelFusion copy() { return new BlendingPixelFusionIgnoreZero( images ); }
+	public PixelFusion copy() { return new BlendingPixelFusionIgnoreZero( sizes ); }
 }
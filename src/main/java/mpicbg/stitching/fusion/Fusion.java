@@ -30,18 +30,29 @@ import ij.ImageStack;
 import ij.io.FileSaver;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.Stack;
 import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import mpicbg.imglib.cursor.LocalizableByDimCursor;
 import mpicbg.models.InvertibleBoundable;
 import mpicbg.models.NoninvertibleModelException;
+import mpicbg.stitching.ComparePairScheduler;
+import mpicbg.stitching.StitchingThreadPool;
 import net.imglib2.Cursor;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessible;
@@ -63,6 +74,7 @@ import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
 import stitching.utils.CompositeImageFixer;
 import stitching.utils.Log;
 
@@ -76,6 +88,24 @@ public class Fusion
 {
 	public static long redrawDelay = 500;
 
+	// how many fused slices may wait for being written to disk (in addition to the ones being fused)
+	public static int slicesInFlight = 2;
+
+	// how the fused image is written to the output directory
+	public static final int OUTPUT_SLICES = 0;
+	public static final int OUTPUT_BIGTIFF = 1;
+	public static final int OUTPUT_N5 = 2;
+
+	// tile size of the BigTIFF output
+	public static int bigTiffTileSize = 512;
+
+	// block size (in every dimension) of the N5 output
+	public static int n5BlockSize = 256;
+
+	// fuse all channels of a timepoint in one pass (in-memory fusion only), needs the input images of all channels at once,
+	// so it is only done if they fit into the memory budget (see ComparePairScheduler.getMemoryBudget())
+	public static boolean fuseChannelsTogether = true;
+
 	/**
 	 * 
 	 * @param targetType
@@ -86,6 +116,25 @@ public class Fusion
 	 */
 	public static < T extends RealType< T > & NativeType< T > > ImagePlus fuse( final T targetType, final ArrayList< ImagePlus > images, final ArrayList< InvertibleBoundable > models, 
 			final int dimensionality, final boolean subpixelResolution, final int fusionType, final String outputDirectory, final boolean noOverlap, final boolean ignoreZeroValues, final boolean displayImages )
+	{
+		return fuse( targetType, images, models, dimensionality, subpixelResolution, fusionType, outputDirectory, OUTPUT_SLICES, BigTiffWriter.NONE, noOverlap, ignoreZeroValues, displayImages );
+	}
+
+	/**
+	 * 
+	 * @param targetType
+	 * @param images
+	 * @param models
+	 * @param dimensionality
+	 * @param subpixelResolution - if there is no subpixel resolution, we do not need to convert to float as no interpolation is necessary, we can compute everything with RealType
+	 * @param outputDirectory - if not null, the result is written into this directory instead of being returned
+	 * @param outputFormat - {@link #OUTPUT_SLICES} writes one tiff per slice, {@link #OUTPUT_BIGTIFF} one tiled BigTIFF (fused.tif) with all slices, channels and timepoints,
+	 * {@link #OUTPUT_N5} one N5 dataset (fused.n5/c&lt;channel&gt;/t&lt;timepoint&gt;) per channel and timepoint
+	 * @param compression - the compression of the BigTIFF output (see {@link BigTiffWriter}) or of the N5 output (see {@link N5DatasetWriter})
+	 */
+	public static < T extends RealType< T > & NativeType< T > > ImagePlus fuse( final T targetType, final ArrayList< ImagePlus > images, final ArrayList< InvertibleBoundable > models, 
+			final int dimensionality, final boolean subpixelResolution, final int fusionType, final String outputDirectory, final int outputFormat, final int compression,
+			final boolean noOverlap, final boolean ignoreZeroValues, final boolean displayImages )
 	{
 		// first we need to estimate the boundaries of the new image
 		final double[] offset = new double[ dimensionality ];
@@ -111,13 +160,82 @@ public class Fusion
 		else
 			stack = null;
 
+		// or one file for everything
+		final BigTiffWriter bigTiff;
+
+		if ( outputDirectory != null && outputFormat == OUTPUT_BIGTIFF )
+		{
+			final int numSlices = dimensionality == 2 ? 1 : size[ 2 ];
+			final File file = new File( outputDirectory, "fused.tif" );
+
+			try
+			{
+				bigTiff = new BigTiffWriter( file, size[ 0 ], size[ 1 ], targetType.getBitsPerPixel(), numChannels * numSlices * numTimePoints,
+						BigTiffWriter.hyperstackDescription( numChannels, numSlices, numTimePoints ), bigTiffTileSize, compression );
+			}
+			catch ( IOException e )
+			{
+				Log.error( "Cannot write '" + file.getAbsolutePath() + "': " + e );
+				return null;
+			}
+		}
+		else
+		{
+			bigTiff = null;
+		}
+
+		boolean channelsTogether = fuseChannelsTogether && numChannels > 1 && outputDirectory == null && !noOverlap && !displayImages;
+
+		if ( channelsTogether && estimateChannelsMemory( images, numChannels, subpixelResolution ) > ComparePairScheduler.getMemoryBudget() )
+		{
+			Log.info( "Fusing one channel after the other, the input images of all channels do not fit into memory." );
+			channelsTogether = false;
+		}
+
 		//"Overlay into composite image"
 		for ( int t = 1; t <= numTimePoints; ++t )
 		{
+			// all channels in one pass, the geometry is the same for all of them
+			if ( channelsTogether )
+			{
+				IJ.showStatus("Fusing time point: " + t + " of " + numTimePoints + ", " +
+					"all " + numChannels + " channels...");
+
+				final ArrayList< Img< T > > outputs = new ArrayList< Img< T > >();
+				final ArrayList< ArrayList< ImageInterpolation< ? extends RealType< ? > > > > blockData = new ArrayList< ArrayList< ImageInterpolation< ? extends RealType< ? > > > >();
+
+				for ( int c = 1; c <= numChannels; ++c )
+				{
+					outputs.add( f.create( size, targetType ) );
+					blockData.add( getBlockData( images, c, t, subpixelResolution ) );
+				}
+
+				final PixelFusion fusion = createFusion( fusionType, ignoreZeroValues, blockData.get( 0 ) );
+
+				fuseChannels( outputs, blockData, offset, models, new MultiChannelPixelFusion( fusion, numChannels ) );
+
+				for ( final Img< T > out : outputs )
+					addToStack( stack, out );
+
+				continue;
+			}
+
 			for ( int c = 1; c <= numChannels; ++c )
 			{
 				IJ.showStatus("Fusing time point: " + t + " of " + numTimePoints + ", " +
 					"channel: " + c + " of " + numChannels + "...");
+
+				// every block reads only the images it needs
+				if ( outputDirectory != null && outputFormat == OUTPUT_N5 )
+				{
+					final N5DatasetWriter dataset = createDataset( outputDirectory, size, c, t, targetType.getBitsPerPixel(), compression );
+					
+					if ( dataset != null )
+						writeChunks( targetType, size, images, c, t, subpixelResolution, offset, models, fusionType, ignoreZeroValues, dataset );
+
+					continue;
+				}
+
 				// create the 2d/3d target image for the current channel and timepoint 
 				final Img< T > out;
 				
@@ -127,140 +245,47 @@ public class Fusion
 				else
 					out = f.create( new int[] { size[ 0 ], size[ 1 ] }, targetType ); // just create a slice
 
+				// extract the complete blockdata
+				final ArrayList< ImageInterpolation< ? extends RealType< ? > > > blockData = getBlockData( images, c, t, subpixelResolution );
+
 				// init the fusion
-				PixelFusion fusion = null;
-				
-				if ( fusionType == 1 )
-				{
-					if ( ignoreZeroValues )
-						fusion = new AveragePixelFusionIgnoreZero();
-					else
-						fusion = new AveragePixelFusion();
-				}
-				else if ( fusionType == 2 )
-				{
-					if ( ignoreZeroValues )
-						fusion = new MedianPixelFusionIgnoreZero();
-					else
-						fusion = new MedianPixelFusion();
-				}
-				else if ( fusionType == 3 )
-				{
-					if ( ignoreZeroValues )
-						fusion = new MaxPixelFusionIgnoreZero();
-					else
-						fusion = new MaxPixelFusion();
-				}
-				else if ( fusionType == 4 )
+				final PixelFusion fusion = createFusion( fusionType, ignoreZeroValues, blockData );
+
+				if ( outputDirectory == null )
 				{
-					if ( ignoreZeroValues )
-						fusion = new MinPixelFusionIgnoreZero();
+					// there is no interpolation if we do not have subpixel resolution
+					if ( noOverlap && !subpixelResolution )
+						fuseBlockNoOverlap( out, blockData, offset, models, displayImages );
 					else
-						fusion = new MinPixelFusion();	
-				}
-				else if ( fusionType == 5 )
-				{
-					fusion = new OverlapFusion();
-				}
-				
-				// extract the complete blockdata
-				if ( subpixelResolution )
-				{
-					final ArrayList< ImageInterpolation< FloatType > > blockData = new ArrayList< ImageInterpolation< FloatType > >();
-
-					// for linear interpolation we want to mirror, otherwise we get black areas at the first and last pixel of each image
-					final InterpolatorFactory< FloatType, RandomAccessible< FloatType > > interpolatorFactory = new NLinearInterpolatorFactory< FloatType >();// new OutOfBoundsStrategyMirrorFactory<FloatType>() );
-					
-					for ( final ImagePlus imp : images )
-						blockData.add( new ImageInterpolation<FloatType>( ImageJFunctions.convertFloat( Hyperstack_rearranger.getImageChunk( imp, c, t ) ), interpolatorFactory, true ) );
-					
-					// init blending with the images
-					if ( fusionType == 0 )
-					{
-						if ( ignoreZeroValues )
-							fusion = new BlendingPixelFusionIgnoreZero( blockData );
-						else
-							fusion = new BlendingPixelFusion( blockData );
-					}
-					
-					if ( outputDirectory == null )
-					{
 						fuseBlock( out, blockData, offset, models, fusion, displayImages );
-					}
-					else
-					{
-						final int numSlices;
-						
-						if ( dimensionality == 2 )
-							numSlices = 1;
-						else
-							numSlices = size[ 2 ];
-						
-						writeBlock( out, numSlices, t, numTimePoints, c, numChannels, blockData, offset, models, fusion, outputDirectory );
-					}
 				}
 				else
 				{
-					// can be a mixture of different RealTypes
-					final ArrayList< ImageInterpolation< ? extends RealType< ? > > > blockData = new ArrayList< ImageInterpolation< ? extends RealType< ? > > >();
-
-					final InterpolatorFactory< FloatType, RandomAccessible< FloatType > > interpolatorFactoryFloat = new NearestNeighborInterpolatorFactory< FloatType >();// new OutOfBoundsStrategyValueFactory<FloatType>() );
-					final InterpolatorFactory< UnsignedShortType, RandomAccessible< UnsignedShortType > > interpolatorFactoryShort = new NearestNeighborInterpolatorFactory< UnsignedShortType >();// new OutOfBoundsStrategyValueFactory<UnsignedShortType>() );
-					final InterpolatorFactory< UnsignedByteType, RandomAccessible< UnsignedByteType > > interpolatorFactoryByte = new NearestNeighborInterpolatorFactory< UnsignedByteType >();// new OutOfBoundsStrategyValueFactory<UnsignedByteType>() );
-
-					for ( final ImagePlus imp : images )
-					{
-						if ( imp.getType() == ImagePlus.GRAY32 )
-							blockData.add( new ImageInterpolation<FloatType>( ImageJFunctions.wrapFloat( Hyperstack_rearranger.getImageChunk( imp, c, t ) ), interpolatorFactoryFloat, false ) );
-						else if ( imp.getType() == ImagePlus.GRAY16 )
-							blockData.add( new ImageInterpolation<UnsignedShortType>( ImageJFunctions.wrapShort( Hyperstack_rearranger.getImageChunk( imp, c, t ) ), interpolatorFactoryShort, false ) );
-						else
-							blockData.add( new ImageInterpolation<UnsignedByteType>( ImageJFunctions.wrapByte( Hyperstack_rearranger.getImageChunk( imp, c, t ) ), interpolatorFactoryByte, false ) );
-					}
-					
-					// init blending with the images
-					if ( fusionType == 0 )
-					{
-						if ( ignoreZeroValues )
-							fusion = new BlendingPixelFusionIgnoreZero( blockData );
-						else
-							fusion = new BlendingPixelFusion( blockData );					
-					}
+					final int numSlices;
 					
-					if ( outputDirectory == null )
-					{
-						if ( noOverlap )
-							fuseBlockNoOverlap( out, blockData, offset, models, displayImages );
-						else
-							fuseBlock( out, blockData, offset, models, fusion, displayImages );
-					}
+					if ( dimensionality == 2 )
+						numSlices = 1;
 					else
-					{
-						final int numSlices;
-						
-						if ( dimensionality == 2 )
-							numSlices = 1;
-						else
-							numSlices = size[ 2 ];
-						
-						writeBlock( out, numSlices, t, numTimePoints, c, numChannels, blockData, offset, models, fusion, outputDirectory );
-					}
+						numSlices = size[ 2 ];
+					
+					writeBlock( out, numSlices, t, numTimePoints, c, numChannels, blockData, offset, models, fusion, outputDirectory, bigTiff );
 				}
 				
 				// add to stack
-				try 
-				{
-					if ( stack != null )
-					{
-						final ImagePlus outImp = ((ImagePlusImg<?, ?>)out).getImagePlus();
-						for ( int z = 1; z <= out.dimension( 2 ); ++z )
-							stack.addSlice( "", outImp.getStack().getProcessor( z ) );
-					}
-				} 
-				catch (ImgLibException e) 
-				{
-					Log.error( "Output image has no ImageJ type: " + e );
-				}				
+				if ( stack != null )
+					addToStack( stack, out );
+			}
+		}
+
+		if ( bigTiff != null )
+		{
+			try
+			{
+				bigTiff.close();
+			}
+			catch ( IOException e )
+			{
+				Log.error( "Cannot finish writing the BigTIFF: " + e );
 			}
 		}
 
@@ -296,6 +321,179 @@ public class Fusion
 		return result;
 	}
 	
+	/**
+	 * @return the memory needed for the input images of all channels of one
+	 * timepoint, they are converted to float if there is subpixel resolution
+	 */
+	protected static long estimateChannelsMemory( final ArrayList< ImagePlus > images, final int numChannels, final boolean subpixelResolution )
+	{
+		long bytes = 0;
+
+		for ( final ImagePlus imp : images )
+			bytes += (long)imp.getWidth() * imp.getHeight() * imp.getNSlices() * ( subpixelResolution ? 4 : imp.getBytesPerPixel() );
+
+		return bytes * numChannels;
+	}
+
+	/**
+	 * @return the {@link PixelFusion} for the fusion type, blending needs the input images
+	 */
+	protected static PixelFusion createFusion( final int fusionType, final boolean ignoreZeroValues, final ArrayList< ? extends ImageInterpolation< ? > > blockData )
+	{
+		return createFusion( fusionType, ignoreZeroValues, BlendingPixelFusion.getSizes( blockData ) );
+	}
+
+	/**
+	 * @param sizes - the size of all input images, blending needs them
+	 * @return the {@link PixelFusion} for the fusion type
+	 */
+	protected static PixelFusion createFusion( final int fusionType, final boolean ignoreZeroValues, final long[][] sizes )
+	{
+		PixelFusion fusion = null;
+		
+		if ( fusionType == 0 )
+		{
+			if ( ignoreZeroValues )
+				fusion = new BlendingPixelFusionIgnoreZero( sizes );
+			else
+				fusion = new BlendingPixelFusion( sizes );
+		}
+		else if ( fusionType == 1 )
+		{
+			if ( ignoreZeroValues )
+				fusion = new AveragePixelFusionIgnoreZero();
+			else
+				fusion = new AveragePixelFusion();
+		}
+		else if ( fusionType == 2 )
+		{
+			if ( ignoreZeroValues )
+				fusion = new MedianPixelFusionIgnoreZero();
+			else
+				fusion = new MedianPixelFusion();
+		}
+		else if ( fusionType == 3 )
+		{
+			if ( ignoreZeroValues )
+				fusion = new MaxPixelFusionIgnoreZero();
+			else
+				fusion = new MaxPixelFusion();
+		}
+		else if ( fusionType == 4 )
+		{
+			if ( ignoreZeroValues )
+				fusion = new MinPixelFusionIgnoreZero();
+			else
+				fusion = new MinPixelFusion();	
+		}
+		else if ( fusionType == 5 )
+		{
+			fusion = new OverlapFusion();
+		}
+		
+		return fusion;
+	}
+
+	/**
+	 * @return the input images of one channel and timepoint, converted to float and linearly interpolated
+	 * if there is subpixel resolution, otherwise wrapped with nearest neighbor interpolation
+	 */
+	protected static ArrayList< ImageInterpolation< ? extends RealType< ? > > > getBlockData( final ArrayList< ImagePlus > images, final int c, final int t, final boolean subpixelResolution )
+	{
+		// can be a mixture of different RealTypes
+		final ArrayList< ImageInterpolation< ? extends RealType< ? > > > blockData = new ArrayList< ImageInterpolation< ? extends RealType< ? > > >();
+
+		for ( final ImagePlus imp : images )
+			blockData.add( getBlockData( imp, c, t, subpixelResolution ) );
+
+		return blockData;
+	}
+
+	/**
+	 * @return one input image of one channel and timepoint, converted to float and linearly interpolated
+	 * if there is subpixel resolution, otherwise wrapped with nearest neighbor interpolation
+	 */
+	protected static ImageInterpolation< ? extends RealType< ? > > getBlockData( final ImagePlus imp, final int c, final int t, final boolean subpixelResolution )
+	{
+		if ( subpixelResolution )
+		{
+			// for linear interpolation we want to mirror, otherwise we get black areas at the first and last pixel of each image
+			final InterpolatorFactory< FloatType, RandomAccessible< FloatType > > interpolatorFactory = new NLinearInterpolatorFactory< FloatType >();// new OutOfBoundsStrategyMirrorFactory<FloatType>() );
+			
+			return new ImageInterpolation<FloatType>( ImageJFunctions.convertFloat( Hyperstack_rearranger.getImageChunk( imp, c, t ) ), interpolatorFactory, true );
+		}
+		else
+		{
+			final InterpolatorFactory< FloatType, RandomAccessible< FloatType > > interpolatorFactoryFloat = new NearestNeighborInterpolatorFactory< FloatType >();// new OutOfBoundsStrategyValueFactory<FloatType>() );
+			final InterpolatorFactory< UnsignedShortType, RandomAccessible< UnsignedShortType > > interpolatorFactoryShort = new NearestNeighborInterpolatorFactory< UnsignedShortType >();// new OutOfBoundsStrategyValueFactory<UnsignedShortType>() );
+			final InterpolatorFactory< UnsignedByteType, RandomAccessible< UnsignedByteType > > interpolatorFactoryByte = new NearestNeighborInterpolatorFactory< UnsignedByteType >();// new OutOfBoundsStrategyValueFactory<UnsignedByteType>() );
+
+			if ( imp.getType() == ImagePlus.GRAY32 )
+				return new ImageInterpolation<FloatType>( ImageJFunctions.wrapFloat( Hyperstack_rearranger.getImageChunk( imp, c, t ) ), interpolatorFactoryFloat, false );
+			else if ( imp.getType() == ImagePlus.GRAY16 )
+				return new ImageInterpolation<UnsignedShortType>( ImageJFunctions.wrapShort( Hyperstack_rearranger.getImageChunk( imp, c, t ) ), interpolatorFactoryShort, false );
+			else
+				return new ImageInterpolation<UnsignedByteType>( ImageJFunctions.wrapByte( Hyperstack_rearranger.getImageChunk( imp, c, t ) ), interpolatorFactoryByte, false );
+		}
+	}
+
+	protected static void addToStack( final ImageStack stack, final Img< ? > out )
+	{
+		try 
+		{
+			final ImagePlus outImp = ((ImagePlusImg<?, ?>)out).getImagePlus();
+			for ( int z = 1; z <= out.dimension( 2 ); ++z )
+				stack.addSlice( "", outImp.getStack().getProcessor( z ) );
+		} 
+		catch (ImgLibException e) 
+		{
+			Log.error( "Output image has no ImageJ type: " + e );
+		}				
+	}
+
+	/**
+	 * Fuse all channels of one timepoint in one pass. The regions, the
+	 * transformations of every output pixel and the blending weights are the
+	 * same for all channels and are computed only once.
+	 * 
+	 * @param outputs - one output per channel, all of the same size
+	 * @param inputs - the input images of each channel, in the same order for each channel
+	 * @param transform - the transformation
+	 * @param fusion - the fusion of all channels
+	 */
+	protected static <T extends RealType<T>> void fuseChannels( final ArrayList< Img< T > > outputs,
+			final ArrayList< ? extends ArrayList< ? extends ImageInterpolation< ? extends RealType< ? > > > > inputs, final double[] offset,
+			final ArrayList< InvertibleBoundable > transform, final MultiChannelPixelFusion fusion )
+	{
+		final int numImages = inputs.get( 0 ).size();
+		final int numDimensions = outputs.get( 0 ).numDimensions();
+
+		final List<ClassifiedRegion> tiles =
+			buildTileList(numImages, numDimensions, transform, inputs.get( 0 ), offset);
+
+		final int numThreads = SimpleMultiThreading.newThreads().length;
+		final AtomicLong progress = new AtomicLong( 0 );
+		final long numPixels = outputs.get( 0 ).size();
+
+		// every thread has its own interpolators, fusion and output RandomAccesses
+		final ArrayList< ChannelWriter< T > > writers = new ArrayList< ChannelWriter< T > >();
+
+		for ( int i = 0; i < numThreads; ++i )
+			writers.add( new ChannelWriter< T >( outputs, inputs, offset, transform, fusion, progress, numPixels ) );
+
+		IJ.showProgress( 0 );
+
+		try
+		{
+			for ( final ClassifiedRegion currentTile : tiles )
+				writeRegion( currentTile, 0, numDimensions, writers );
+		}
+		catch ( NoninvertibleModelException e )
+		{
+			Log.error( "Cannot invert model, qutting." );
+		}
+	}
+
 	/**
 	 * Fuse one slice/volume (one channel)
 	 * 
@@ -396,25 +594,28 @@ public class Fusion
 	private static List<ClassifiedRegion> buildTileList(int numImages,
 		int numDimensions, ArrayList<InvertibleBoundable> transform,
 		ArrayList<? extends ImageInterpolation<? extends RealType<?>>> input, double[] offset)
+	{
+		final List<Integer> images = new ArrayList<Integer>();
+
+		for ( int i = 0; i < numImages; ++i )
+			images.add(i);
+
+		return buildTileList(images, numDimensions, transform, BlendingPixelFusion
+			.getSizes(input), offset);
+	}
+
+	/**
+	 * Same as {@link #buildTileList(int, int, ArrayList, ArrayList, double[])},
+	 * but only for the given images and only with their sizes.
+	 */
+	private static List<ClassifiedRegion> buildTileList(List<Integer> images,
+		int numDimensions, ArrayList<InvertibleBoundable> transform,
+		long[][] sizes, double[] offset)
 	{
 		Stack<ClassifiedRegion> rawTiles = new Stack<ClassifiedRegion>();
 
-		for ( int i = 0; i < numImages; ++i ){
-				final double[] min = new double[ numDimensions ];
-				transform.get(i).applyInPlace(min);
-				ClassifiedRegion shape = new ClassifiedRegion(numDimensions);
-				shape.addClass(i);
-			for ( int d = 0; d < numDimensions; ++d ) {
-				min[d] -= offset[d];
-				// Sets each interval to the smallest possible, by rounding the min up and the max down
-				Interval ival =
-					new Interval((int) Math.ceil(min[d]), (int) Math.floor(min[d] +
-						input.get(i).getImg().dimension(d) - 1));
-				// Build our list of positions
-				shape.set(ival, d);
-			}
-			rawTiles.push(shape);
-		}
+		for ( final int i : images )
+			rawTiles.push(getRegion(i, numDimensions, transform, sizes[i], offset));
 
 		// Set of placed tiles. Goal is to move all of the known positions
 		// to this set, creating new regions as needed such that there is no
@@ -457,6 +658,47 @@ public class Fusion
 		return new ArrayList<ClassifiedRegion>(placedTiles);
 	}
 
+	/**
+	 * The region covered by one image of the given size in the output,
+	 * classified with the index of the image.
+	 */
+	private static ClassifiedRegion getRegion(int i, int numDimensions,
+		ArrayList<InvertibleBoundable> transform, long[] size, double[] offset)
+	{
+		final double[] min = new double[ numDimensions ];
+		transform.get(i).applyInPlace(min);
+		ClassifiedRegion shape = new ClassifiedRegion(numDimensions);
+		shape.addClass(i);
+		for ( int d = 0; d < numDimensions; ++d ) {
+			min[d] -= offset[d];
+			// Sets each interval to the smallest possible, by rounding the min up and the max down
+			Interval ival =
+				new Interval((int) Math.ceil(min[d]), (int) Math.floor(min[d] +
+					size[d] - 1));
+			// Build our list of positions
+			shape.set(ival, d);
+		}
+		return shape;
+	}
+
+	/**
+	 * @return the part of the region inside of [min, max], or null if they do
+	 *         not intersect
+	 */
+	private static ClassifiedRegion clip(ClassifiedRegion r, long[] min, long[] max)
+	{
+		// NB: the copy constructor shares the intervals
+		final ClassifiedRegion clipped = new ClassifiedRegion(r.size());
+		clipped.addAllClasses(r);
+		for ( int d = 0; d < r.size(); ++d ) {
+			final int start = (int) Math.max(r.get(d).min(), min[d]);
+			final int end = (int) Math.min(r.get(d).max(), max[d]);
+			if (start > end) return null;
+			clipped.set(new Interval(start, end), d);
+		}
+		return clipped;
+	}
+
 	/**
 	 * Takes two overlapping regions and deconstructs them into a set of non-overlapping regions.
 	 * Each resulting region gains the classification(s) of its parent(s). Parents are differentiated
@@ -897,69 +1139,736 @@ public class Fusion
 	}
 
 	/**
-	 * Fuse one slice/volume (one channel)
+	 * Fuse one slice/volume (one channel) and write it to disk slice by slice.
+	 * Several slices are fused at once, each into its own slice image; if there
+	 * are fewer slices than threads, the regions of each slice are additionally
+	 * split up between threads. Every output pixel is computed exactly as in
+	 * the single-threaded case and regions are still written in the same order.
+	 * Fused slices are saved by a separate writer thread while the next slices
+	 * are fused, at most {@link #slicesInFlight} of them are waiting for it.
 	 * 
 	 * @param outputSlice - same the type of the ImagePlus input, just one slice which will be written to the output directory
 	 * @param input - FloatType, because of Interpolation that needs to be done
 	 * @param transform - the transformation
+	 * @param bigTiff - if not null, the slices are written into this file instead of one file per slice
 	 */
 	protected static <T extends RealType<T>> void writeBlock( final Img<T> outputSlice, final int numSlices, final int t, final int numTimePoints, final int c, final int numChannels, 
 			final ArrayList< ? extends ImageInterpolation< ? extends RealType< ? > > > input, final double[] offset, 
-			final ArrayList< InvertibleBoundable > transform, final PixelFusion fusion, final String outputDirectory )
+			final ArrayList< InvertibleBoundable > transform, final PixelFusion fusion, final String outputDirectory, final BigTiffWriter bigTiff )
 	{
 		final int numImages = input.size();
 		final int numDimensions = offset.length;
 
 		final List<ClassifiedRegion> tiles =
 				buildTileList(numImages, numDimensions, transform, input, offset);
-		
-		final ArrayList<RealRandomAccess<? extends RealType<?>>> in = new ArrayList<RealRandomAccess<? extends RealType<?>>>();
-		
+
+		final int numThreads = SimpleMultiThreading.newThreads().length;
+		final int numSliceThreads = Math.max( 1, Math.min( numThreads, numSlices ) );
+		final int threadsPerSlice = Math.max( 1, numThreads / numSliceThreads );
+
+		final AtomicInteger nextSlice = new AtomicInteger( 0 );
+		final AtomicBoolean failed = new AtomicBoolean( false );
+		final AtomicLong progress = new AtomicLong( 0 );
+		final long numPixels = outputSlice.size() * numSlices;
+
+		// the slice buffers limit how many slices are in flight; fused slices
+		// are handed to the writer thread, which returns them once saved
+		final int numBuffers = Math.min( numSlices, numSliceThreads + Math.max( 0, slicesInFlight ) );
+		final BlockingQueue< SliceBuffer< T > > free = new ArrayBlockingQueue< SliceBuffer< T > >( numBuffers );
+		final BlockingQueue< SliceBuffer< T > > fused = new ArrayBlockingQueue< SliceBuffer< T > >( numBuffers + 1 );
+
+		for ( int i = 0; i < numBuffers; ++i )
+		{
+			// the first buffer reuses the slice image that was passed in
+			final Img< T > slice = i == 0 ? outputSlice : outputSlice.factory().create( outputSlice, outputSlice.firstElement().createVariable() );
+			free.add( new SliceBuffer< T >( slice, threadsPerSlice, input, offset, transform, fusion, progress, numPixels ) );
+		}
+
+		IJ.showProgress( 0 );
+
+		final Thread writer = new Thread( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					for ( SliceBuffer< T > buffer = fused.take(); buffer.z >= 0; buffer = fused.take() )
+					{
+						// keep draining after a failure so that no fusion thread blocks
+						if ( !failed.get() )
+						{
+							try
+							{
+								// write the slice
+								final ImagePlus outImp = ((ImagePlusImg<?,?>)buffer.slice).getImagePlus();
+
+								if ( bigTiff != null )
+								{
+									// ImageJ order, channels first
+									bigTiff.writePlane( ( ( t - 1 ) * numSlices + buffer.z ) * numChannels + c - 1, outImp.getProcessor() );
+								}
+								else
+								{
+									final FileSaver fs = new FileSaver( outImp );
+									fs.saveAsTiff( new File( outputDirectory, "img_t" + lz( t, numTimePoints ) + "_z" + lz( buffer.z+1, numSlices ) + "_c" + lz( c, numChannels ) ).getAbsolutePath() );
+								}
+							}
+							catch ( ImgLibException e )
+							{
+								if ( !failed.getAndSet( true ) )
+									Log.error( "Output image has no ImageJ type: " + e );
+							}
+							catch ( IOException e )
+							{
+								if ( !failed.getAndSet( true ) )
+									Log.error( "Cannot write slice " + ( buffer.z + 1 ) + ": " + e );
+							}
+							catch ( Throwable e )
+							{
+								if ( !failed.getAndSet( true ) )
+									Log.error( "Cannot write slice " + ( buffer.z + 1 ) + ": " + e, e );
+							}
+						}
+
+						free.put( buffer );
+					}
+				}
+				catch ( InterruptedException e )
+				{
+					failed.set( true );
+					Log.error( "Writing the fused slices was interrupted: " + e );
+				}
+				catch ( Throwable e )
+				{
+					// the fusion threads stop waiting for free buffers once this is set
+					if ( !failed.getAndSet( true ) )
+						Log.error( "Writing the fused slices failed: " + e, e );
+				}
+			}
+		});
+
+		final Thread[] threads = SimpleMultiThreading.newThreads( numSliceThreads );
+
+		for ( int ithread = 0; ithread < threads.length; ++ithread )
+			threads[ ithread ] = new Thread( new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						for ( int z = nextSlice.getAndIncrement(); z < numSlices && !failed.get(); z = nextSlice.getAndIncrement() )
+						{
+							IJ.showStatus("Fusing time point: " + t + " of " + numTimePoints + ", " +
+									"channel: " + c + " of " + numChannels + ", slice: " + (z + 1) + " of " +
+									numSlices + "...");
+
+							// the writer returns the buffers, unless it failed
+							SliceBuffer< T > buffer = null;
+
+							while ( buffer == null && !failed.get() )
+								buffer = free.poll( 100, TimeUnit.MILLISECONDS );
+
+							if ( buffer == null )
+								break;
+
+							// just like fuseBlock but pin to the current slice #
+							for ( final ClassifiedRegion currentTile : tiles )
+								writeRegion( currentTile, z, outputSlice.numDimensions(), buffer.writers );
+
+							buffer.z = z;
+							fused.put( buffer );
+						}
+					}
+					catch ( NoninvertibleModelException e )
+					{
+						if ( !failed.getAndSet( true ) )
+							Log.error( "Cannot invert model, qutting." );
+					}
+					catch ( InterruptedException e )
+					{
+						failed.set( true );
+						Log.error( "Fusing the slices was interrupted: " + e );
+					}
+					catch ( Throwable e )
+					{
+						if ( !failed.getAndSet( true ) )
+							Log.error( "Fusing the slices failed: " + e, e );
+					}
+				}
+			});
+
+		writer.start();
+		SimpleMultiThreading.startAndJoin( threads );
+
+		// tell the writer that no more slices will come
+		try
+		{
+			fused.put( new SliceBuffer< T >() );
+			writer.join();
+		}
+		catch ( InterruptedException e )
+		{
+			Log.error( "Writing the fused slices was interrupted: " + e );
+		}
+	}
+
+	/**
+	 * Fuses one {@link ClassifiedRegion} into the current slice. If there is
+	 * more than one {@link RegionWriter}, the largest of the first numDimensions
+	 * dimensions of the region is split up between them and all of them have
+	 * finished once this method returns, so that regions overlapping in the
+	 * slice are still written in order.
+	 */
+	private static void writeRegion( final ClassifiedRegion r, final int slice, final int numDimensions,
+		final ArrayList< ? extends RegionWriter > writers ) throws NoninvertibleModelException
+	{
+		if ( writers.size() == 1 )
+		{
+			writers.get( 0 ).write( r, slice, -1, 0, 0 );
+			return;
+		}
+
+		// Pick the largest dimension of the slice to split up the work
+		int dimensionSize = -1;
+		int loopDim = 0;
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			final int tmpSize = r.get( d ).max() - r.get( d ).min() + 1;
+			if ( tmpSize > dimensionSize )
+			{
+				dimensionSize = tmpSize;
+				loopDim = d;
+			}
+		}
+
+		final Vector< Chunk > chunks = SimpleMultiThreading.divideIntoChunks( dimensionSize, writers.size() );
+		final Thread[] threads = new Thread[ writers.size() ];
+		final NoninvertibleModelException[] error = new NoninvertibleModelException[ 1 ];
+		final int splitDim = loopDim;
+
+		for ( int i = 0; i < threads.length; ++i )
+		{
+			final RegionWriter writer = writers.get( i );
+			final Chunk chunk = chunks.get( i );
+
+			threads[ i ] = new Thread( new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						writer.write( r, slice, splitDim, (int)chunk.getStartPosition(), (int)chunk.getLoopSize() );
+					}
+					catch ( NoninvertibleModelException e )
+					{
+						error[ 0 ] = e;
+					}
+				}
+			});
+		}
+
+		SimpleMultiThreading.startAndJoin( threads );
+
+		if ( error[ 0 ] != null )
+			throw error[ 0 ];
+	}
+
+	/**
+	 * A slice image that travels between the fusion threads and the writer
+	 * thread, together with the {@link SliceWriter}s that fuse into it. z is
+	 * the slice it currently holds; a buffer with z &lt; 0 ends the writer.
+	 */
+	private static class SliceBuffer< T extends RealType< T > >
+	{
+		private final Img< T > slice;
+		private final ArrayList< SliceWriter< T > > writers;
+		private int z = -1;
+
+		public SliceBuffer()
+		{
+			this.slice = null;
+			this.writers = null;
+		}
+
+		public SliceBuffer( final Img< T > slice, final int numWriters,
+			final ArrayList< ? extends ImageInterpolation< ? extends RealType< ? > > > input,
+			final double[] offset, final ArrayList< InvertibleBoundable > transform,
+			final PixelFusion fusion, final AtomicLong progress, final long numPixels )
+		{
+			this.slice = slice;
+			this.writers = new ArrayList< SliceWriter< T > >();
+
+			for ( int i = 0; i < numWriters; ++i )
+				writers.add( new SliceWriter< T >( slice, input, offset, transform, fusion, progress, numPixels ) );
+		}
+	}
+
+	/**
+	 * Fuses (a part of) a region, several of them split up a region in
+	 * {@link #writeRegion(ClassifiedRegion, int, int, ArrayList)}.
+	 */
+	private interface RegionWriter
+	{
+		/**
+		 * Fuses the given region; in dimension splitDim only loopSize positions
+		 * starting at loopOffset are processed (splitDim -1 processes the whole
+		 * region).
+		 */
+		void write( ClassifiedRegion r, int slice, int splitDim, int loopOffset, int loopSize ) throws NoninvertibleModelException;
+	}
+
+	/**
+	 * The per-thread state for fusing all channels at once: its own
+	 * interpolators for each channel, {@link MultiChannelPixelFusion} and
+	 * output {@link RandomAccess}es.
+	 */
+	private static class ChannelWriter< T extends RealType< T > > implements RegionWriter
+	{
+		private final ArrayList< ArrayList<RealRandomAccess<? extends RealType<?>>> > in;
+		private final ArrayList< RandomAccess< T > > out;
+		private final double[][] inPos;
+		private final double[] values;
+		private final MultiChannelPixelFusion myFusion;
+		private final ArrayList< InvertibleBoundable > transform;
+		private final double[] offset;
+		private final AtomicLong progress;
+		private final long numPixels;
+		private int count = 0;
+
+		public ChannelWriter( final ArrayList< Img< T > > outputs,
+			final ArrayList< ? extends ArrayList< ? extends ImageInterpolation< ? extends RealType< ? > > > > inputs,
+			final double[] offset, final ArrayList< InvertibleBoundable > transform,
+			final MultiChannelPixelFusion fusion, final AtomicLong progress, final long numPixels )
+		{
+			this.in = new ArrayList< ArrayList<RealRandomAccess<? extends RealType<?>>> >();
+			this.out = new ArrayList< RandomAccess< T > >();
+
+			for ( int c = 0; c < outputs.size(); ++c )
+			{
+				final ArrayList<RealRandomAccess<? extends RealType<?>>> channel = new ArrayList<RealRandomAccess<? extends RealType<?>>>();
+
+				for ( int i = 0; i < inputs.get( c ).size(); ++i )
+					channel.add( inputs.get( c ).get( i ).createInterpolator() );
+
+				in.add( channel );
+				out.add( outputs.get( c ).randomAccess() );
+			}
+
+			this.inPos = new double[ inputs.get( 0 ).size() ][ offset.length ];
+			this.values = new double[ outputs.size() ];
+			this.myFusion = fusion.copy();
+			this.transform = transform;
+			this.offset = offset;
+			this.progress = progress;
+			this.numPixels = numPixels;
+		}
+
+		@Override
+		public void write( final ClassifiedRegion r, final int slice, final int splitDim,
+			final int loopOffset, final int loopSize ) throws NoninvertibleModelException
+		{
+			if ( splitDim >= 0 && loopSize <= 0 )
+				return;
+
+			fuseTile( r, r.classArray(), 0, splitDim, loopOffset, loopSize );
+		}
+
+		/**
+		 * Same as the processTile of {@link TileProcessor}, but the input
+		 * positions are computed once for all channels.
+		 */
+		private void fuseTile( final ClassifiedRegion r, final int[] images, final int depth,
+			final int splitDim, final int loopOffset, final int loopSize )
+			throws NoninvertibleModelException
+		{
+			final int numChannels = out.size();
+
+			if (depth < r.size()) {
+				Interval d = r.get(depth);
+
+				int start = d.min();
+				int end = d.max();
+
+				// If this is the dimension being split up for multi-threading we
+				// need to update the iteration bounds.
+				if (depth == splitDim) {
+					start += loopOffset;
+					end = start + loopSize - 1;
+				}
+
+				for (int c = 0; c < numChannels; c++)
+					out.get(c).setPosition(start, depth);
+
+				for (int i = start; i < end; i++) {
+					// Recurse to the next depth (dimension)
+					fuseTile(r, images, depth + 1, splitDim, loopOffset, loopSize);
+					// move forward
+					for (int c = 0; c < numChannels; c++)
+						out.get(c).fwd(depth);
+				}
+
+				// Need to read the final position.
+				fuseTile(r, images, depth + 1, splitDim, loopOffset, loopSize);
+				return;
+			}
+
+			// compute fusion for this position
+			myFusion.clear();
+
+			final RandomAccess< T > position = out.get(0);
+
+			// Loop over the images in this region
+			for (int d = 0; d < r.size(); d++) {
+				final double value = position.getDoublePosition(d) + offset[d];
+
+				for (int index = 0; index < images.length; index++) {
+					// Get the positions for the current image
+					inPos[images[index]][d] = value;
+				}
+			}
+
+			// Get the value of each channel at each input position
+			for (int index = 0; index < images.length; index++) {
+				final int image = images[index];
+				// Transform to get input position, once for all channels
+				transform.get(image).applyInverseInPlace(inPos[image]);
+
+				for (int c = 0; c < numChannels; c++) {
+					final RealRandomAccess<? extends RealType<?>> interpolator = in.get(c).get(image);
+					interpolator.setPosition(inPos[image]);
+					values[c] = interpolator.get().getRealFloat();
+				}
+
+				// fuse
+				myFusion.addValues(values, image, inPos[image]);
+			}
+
+			// set values
+			myFusion.getValues(values);
+
+			for (int c = 0; c < numChannels; c++)
+				out.get(c).get().setReal(values[c]);
+
+			// Update progress if necessary
+			if (++count % 10000 == 0)
+				IJ.showProgress( (double)progress.addAndGet( 10000 ) / (double)numPixels );
+		}
+	}
+
+	/**
+	 * The per-thread state for writing slices to disk: its own interpolators,
+	 * {@link PixelFusion} and output {@link RandomAccess}.
+	 */
+	private static class SliceWriter< T extends RealType< T > > implements RegionWriter
+	{
+		private final ArrayList<RealRandomAccess<? extends RealType<?>>> in;
+		private final double[][] inPos;
+		private final PixelFusion myFusion;
+		private final RandomAccess< T > out;
+		private final ArrayList< InvertibleBoundable > transform;
+		private final double[] offset;
+		private final AtomicLong progress;
+		private final long numPixels;
+		private final int[] count = new int[ 1 ];
+
+		public SliceWriter( final Img< T > slice,
+			final ArrayList< ? extends ImageInterpolation< ? extends RealType< ? > > > input,
+			final double[] offset, final ArrayList< InvertibleBoundable > transform,
+			final PixelFusion fusion, final AtomicLong progress, final long numPixels )
+		{
+			this.in = new ArrayList<RealRandomAccess<? extends RealType<?>>>();
+
+			for ( int i = 0; i < input.size(); ++i )
+				this.in.add( input.get( i ).createInterpolator() );
+
+			this.inPos = new double[ input.size() ][ offset.length ];
+			this.myFusion = fusion.copy();
+			this.out = slice.randomAccess();
+			this.transform = transform;
+			this.offset = offset;
+			this.progress = progress;
+			this.numPixels = numPixels;
+		}
+
+		@Override
+		public void write( final ClassifiedRegion r, final int slice, final int splitDim,
+			final int loopOffset, final int loopSize ) throws NoninvertibleModelException
+		{
+			if ( splitDim >= 0 && loopSize <= 0 )
+				return;
+
+			writeTile( r, 0, slice, splitDim, loopOffset, loopSize, myFusion, transform,
+				offset, in, out, inPos, count, progress, numPixels );
+		}
+	}
+
+	/**
+	 * @return the N5 dataset for one channel and timepoint, or null if it cannot be created
+	 */
+	protected static N5DatasetWriter createDataset( final String outputDirectory, final int[] size, final int c, final int t, final int bitDepth, final int compression )
+	{
+		final File container = new File( outputDirectory, "fused.n5" );
+		final long[] dimensions = new long[ size.length ];
+		final int[] blockSize = new int[ size.length ];
+
+		for ( int d = 0; d < size.length; ++d )
+		{
+			dimensions[ d ] = size[ d ];
+			blockSize[ d ] = n5BlockSize;
+		}
+
+		try
+		{
+			return new N5DatasetWriter( container, "c" + ( c - 1 ) + "/t" + ( t - 1 ), dimensions, blockSize, bitDepth, compression );
+		}
+		catch ( IOException e )
+		{
+			Log.error( "Cannot write into '" + container.getAbsolutePath() + "': " + e );
+			return null;
+		}
+	}
+
+	/**
+	 * Fuse one volume (one channel) in blocks of the block size of the dataset
+	 * and write every block into it. The blocks are fused in parallel, each one
+	 * only with the images that intersect it; blocks without any image are not
+	 * written (N5 readers return zeros for them).
+	 * <p>
+	 * An image is read and converted by the first block that needs it and
+	 * released after the last one, so that (with virtually opened images) only
+	 * the images around the blocks being fused are in memory.
+	 * </p>
+	 * 
+	 * @param targetType - the type of the output
+	 * @param size - the size of the output
+	 * @param images - the input images, only their size is needed up front
+	 * @param c - the channel to fuse
+	 * @param t - the timepoint to fuse
+	 * @param subpixelResolution - if the images are converted to float and interpolated
+	 * @param transform - the transformation
+	 * @param dataset - where the blocks are written
+	 */
+	protected static <T extends RealType<T> & NativeType<T>> void writeChunks( final T targetType, final int[] size,
+			final ArrayList< ImagePlus > images, final int c, final int t, final boolean subpixelResolution, final double[] offset, 
+			final ArrayList< InvertibleBoundable > transform, final int fusionType, final boolean ignoreZeroValues, final N5DatasetWriter dataset )
+	{
+		final int numImages = images.size();
+		final int numDimensions = size.length;
+		final int[] blockSize = dataset.getBlockSize();
+
+		// the size of all images, without reading their pixels
+		final long[][] sizes = new long[ numImages ][ numDimensions ];
+
+		for ( int i = 0; i < numImages; ++i )
+		{
+			final ImagePlus imp = images.get( i );
+
+			sizes[ i ][ 0 ] = imp.getWidth();
+			sizes[ i ][ 1 ] = imp.getHeight();
+
+			if ( numDimensions > 2 )
+				sizes[ i ][ 2 ] = imp.getNSlices();
+		}
+
+		final PixelFusion fusion = createFusion( fusionType, ignoreZeroValues, sizes );
+
+		// the area covered by each image, to find the images of a block
+		final ArrayList< ClassifiedRegion > bounds = new ArrayList< ClassifiedRegion >();
+		final ArrayList< BlockImage > input = new ArrayList< BlockImage >();
+
 		for ( int i = 0; i < numImages; ++i )
-			in.add( input.get( i ).createInterpolator() );
-		
-		final PixelFusion myFusion = fusion.copy();
-		
-		try 
 		{
-			final long sliceSize = outputSlice.size();
-			for ( int slice = 0; slice < numSlices; ++slice )
+			bounds.add( getRegion( i, numDimensions, transform, sizes[ i ], offset ) );
+			input.add( new BlockImage( images.get( i ), c, t, subpixelResolution ) );
+		}
+
+		final long[] numBlocks = new long[ numDimensions ];
+		long totalBlocks = 1;
+		long numPixels = 1;
+
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			numBlocks[ d ] = ( size[ d ] + blockSize[ d ] - 1 ) / blockSize[ d ];
+			totalBlocks *= numBlocks[ d ];
+			numPixels *= size[ d ];
+		}
+
+		final AtomicLong progress = new AtomicLong( 0 );
+		final AtomicBoolean failed = new AtomicBoolean( false );
+		final long totalPixels = numPixels;
+
+		final ArrayList< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
+
+		for ( long b = 0; b < totalBlocks; ++b )
+		{
+			final long[] gridPosition = new long[ numDimensions ];
+
+			// x first, like the blocks of the dataset
+			long index = b;
+			for ( int d = 0; d < numDimensions; ++d )
 			{
-				IJ.showStatus("Fusing time point: " + t + " of " + numTimePoints + ", " +
-						"channel: " + c + " of " + numChannels + ", slice: " + (slice + 1) + " of " +
-						numSlices + "...");
+				gridPosition[ d ] = index % numBlocks[ d ];
+				index /= numBlocks[ d ];
+			}
 
-				final RandomAccess<T> out = outputSlice.randomAccess();
-				final double[][] inPos = new double[ numImages ][ numDimensions ];
-				final int[] count = new int[1];
+			final int[] blockDims = dataset.getBlockSize( gridPosition );
+			final long[] min = new long[ numDimensions ];
+			final long[] max = new long[ numDimensions ];
+			long pixels = 1;
 
-				IJ.showProgress(0);
-				
-				// just like fuseBlock but pin to the current slice #
-				for (long tileIndex=0; tileIndex<tiles.size(); tileIndex++) {
-					ClassifiedRegion currentTile = tiles.get((int) tileIndex);
-					writeTile(currentTile, 0, slice, myFusion, transform, offset, in, out, inPos, count, sliceSize, numSlices);
+			for ( int d = 0; d < numDimensions; ++d )
+			{
+				min[ d ] = gridPosition[ d ] * blockSize[ d ];
+				max[ d ] = min[ d ] + blockDims[ d ] - 1;
+				pixels *= blockDims[ d ];
+			}
+
+			final long blockPixels = pixels;
+
+			// only the images that intersect this block are needed
+			final ArrayList< Integer > blockImages = new ArrayList< Integer >();
+
+			for ( int i = 0; i < numImages; ++i )
+				if ( clip( bounds.get( i ), min, max ) != null )
+				{
+					blockImages.add( i );
+					++input.get( i ).pending;
 				}
-				
-				
-				// write the slice
-				final ImagePlus outImp = ((ImagePlusImg<?,?>)outputSlice).getImagePlus();
-				final FileSaver fs = new FileSaver( outImp );
-				fs.saveAsTiff( new File( outputDirectory, "img_t" + lz( t, numTimePoints ) + "_z" + lz( slice+1, numSlices ) + "_c" + lz( c, numChannels ) ).getAbsolutePath() );
+
+			tasks.add( new Callable< Void >()
+			{
+				@Override
+				public Void call()
+				{
+					try
+					{
+						if ( failed.get() )
+							return null;
+
+						if ( blockImages.size() == 0 )
+						{
+							IJ.showProgress( (double)progress.addAndGet( blockPixels ) / (double)totalPixels );
+							return null;
+						}
+
+						final ArrayList<RealRandomAccess<? extends RealType<?>>> in = new ArrayList<RealRandomAccess<? extends RealType<?>>>();
+
+						for ( int i = 0; i < numImages; ++i )
+							in.add( blockImages.contains( i ) ? input.get( i ).acquire().createInterpolator() : null );
+
+						final Img< T > block = new ArrayImgFactory< T >().create( blockDims, targetType );
+
+						// the block at its position in the output, so that every pixel is computed like in fuseBlock
+						final RandomAccess< T > out = Views.translate( block, min ).randomAccess();
+						final PixelFusion myFusion = fusion.copy();
+						final double[][] inPos = new double[ numImages ][ numDimensions ];
+						final int[] count = new int[ 1 ];
+
+						for ( final ClassifiedRegion region : buildTileList( blockImages, numDimensions, transform, sizes, offset ) )
+						{
+							final ClassifiedRegion r = clip( region, min, max );
+
+							if ( r != null )
+								writeTile( r, 0, 0, -1, 0, 0, myFusion, transform, offset, in, out, inPos, count, progress, totalPixels );
+						}
+
+						dataset.writeBlock( gridPosition, toBigEndian( block, dataset.getBitDepth() ) );
+					}
+					catch ( NoninvertibleModelException e )
+					{
+						if ( !failed.getAndSet( true ) )
+							Log.error( "Cannot invert model, qutting." );
+					}
+					catch ( IOException e )
+					{
+						if ( !failed.getAndSet( true ) )
+							Log.error( "Cannot write block " + Arrays.toString( gridPosition ) + ": " + e );
+					}
+					catch ( RuntimeException e )
+					{
+						failed.set( true );
+						throw e;
+					}
+					finally
+					{
+						for ( final int i : blockImages )
+							input.get( i ).release();
+					}
+
+					return null;
 				}
-		} 
-		catch ( NoninvertibleModelException e ) 
+			});
+		}
+
+		StitchingThreadPool.invokeAll( tasks );
+	}
+
+	/**
+	 * One input image of {@link #writeChunks}, read by the first block that
+	 * needs it and released when all pending blocks are done with it.
+	 */
+	private static class BlockImage
+	{
+		private final ImagePlus imp;
+		private final int c, t;
+		private final boolean subpixelResolution;
+		private ImageInterpolation< ? extends RealType< ? > > data = null;
+
+		// the number of blocks that still need this image
+		private int pending = 0;
+
+		public BlockImage( final ImagePlus imp, final int c, final int t, final boolean subpixelResolution )
 		{
-			Log.error( "Cannot invert model, qutting." );
-			return;
-		} 
-		catch ( ImgLibException e ) 
+			this.imp = imp;
+			this.c = c;
+			this.t = t;
+			this.subpixelResolution = subpixelResolution;
+		}
+
+		public synchronized ImageInterpolation< ? extends RealType< ? > > acquire()
 		{
-			Log.error( "Output image has no ImageJ type: " + e );
-			return;
+			if ( data == null )
+				data = getBlockData( imp, c, t, subpixelResolution );
+
+			return data;
+		}
+
+		public synchronized void release()
+		{
+			if ( --pending == 0 )
+				data = null;
 		}
 	}
 
+	/**
+	 * @return the pixels of the image, x first, as big-endian bytes of the given bit depth
+	 * @throws IllegalArgumentException if the image does not fit into one byte array
+	 */
+	protected static byte[] toBigEndian( final Img< ? extends RealType< ? > > img, final int bitDepth )
+	{
+		final long numBytes = img.size() * ( bitDepth / 8 );
+
+		if ( numBytes > Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "Block of " + img.size() + " pixels does not fit into " + Integer.MAX_VALUE + " bytes." );
+
+		final ByteBuffer data = ByteBuffer.allocate( (int)numBytes );
+
+		for ( final RealType< ? > value : img )
+		{
+			if ( bitDepth == 8 )
+				data.put( (byte)(int)value.getRealDouble() );
+			else if ( bitDepth == 16 )
+				data.putShort( (short)(int)value.getRealDouble() );
+			else
+				data.putFloat( value.getRealFloat() );
+		}
+
+		return data.array();
+	}
+
 	/**
 	 * Helper method to fuse all the positions of a given
 	 * {@link ClassifiedRegion}. Since we do not know the dimensionality of
@@ -969,11 +1878,12 @@ public class Fusion
 	 * associated image. This final value is then set in the output.
 	 */
 	private static <T extends RealType<T>> void writeTile(ClassifiedRegion r,
-		int depth, final int slice, PixelFusion myFusion,
+		int depth, final int slice, final int splitDim, final int loopOffset,
+		final int loopSize, PixelFusion myFusion,
 		ArrayList<InvertibleBoundable> transform, double[] offset,
 		ArrayList<RealRandomAccess<? extends RealType<?>>> in,
 		RandomAccess<T> out, double[][] inPos, int[] count,
-		final long sliceSize, final int numSlices)
+		final AtomicLong progress, final long numPixels)
 		throws NoninvertibleModelException
 	{
 		//NB: there are two process tile methods, one for in-memory fusion
@@ -988,19 +1898,26 @@ public class Fusion
 			int start = d.min();
 			int end = d.max();
 
+			// If this is the dimension being split up for multi-threading we
+			// need to update the iteration bounds.
+			if (depth == splitDim) {
+				start += loopOffset;
+				end = start + loopSize - 1;
+			}
+
 			out.setPosition(start, depth);
 
 			for (int i=start; i < end; i++) {
 				// The position array will be used to set the in and out positions.
 				// It specifies where we are in the output image
 				// Recurse to the next depth (dimension)
-				writeTile(r, depth+1, slice, myFusion, transform, offset, in, out, inPos,
-					count, sliceSize, numSlices );
+				writeTile(r, depth+1, slice, splitDim, loopOffset, loopSize, myFusion,
+					transform, offset, in, out, inPos, count, progress, numPixels);
 				out.fwd(depth);
 			}
 
-			writeTile(r, depth+1, slice, myFusion, transform, offset, in, out, inPos,
-				count, sliceSize, numSlices );
+			writeTile(r, depth+1, slice, splitDim, loopOffset, loopSize, myFusion,
+				transform, offset, in, out, inPos, count, progress, numPixels);
 			return;
 		}
 
@@ -1047,7 +1964,7 @@ public class Fusion
 		// Update progress if necessary
 		count[0]++;
 		if (count[0] % 10000 == 0) {
-			IJ.showProgress( (double)( count[0] + ( slice * sliceSize ) ) / (double)( numSlices * sliceSize ) );
+			IJ.showProgress( (double)progress.addAndGet( 10000 ) / (double)numPixels );
 		}
 
 	}
@@ -0,0 +1,101 @@
+/*
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2022 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package mpicbg.stitching.fusion;
+
+/**
+ * Fuses the values of all channels of an output pixel at once, with one {@link PixelFusion} per
+ * channel. For blending, the weight of each input pixel is computed only once for all channels.
+ */
+public class MultiChannelPixelFusion
+{
+	final PixelFusion fusion;
+	final PixelFusion[] channels;
+	final BlendingPixelFusion blending;
+
+	/**
+	 * @param fusion - the fusion of one channel, it is copied for every channel
+	 * @param numChannels - the number of channels
+	 */
+	public MultiChannelPixelFusion( final PixelFusion fusion, final int numChannels )
+	{
+		this.fusion = fusion;
+		this.channels = new PixelFusion[ numChannels ];
+
+		for ( int c = 0; c < numChannels; ++c )
+			channels[ c ] = fusion.copy();
+
+		if ( fusion instanceof BlendingPixelFusion )
+			this.blending = (BlendingPixelFusion)fusion;
+		else
+			this.blending = null;
+	}
+
+	public int numChannels() { return channels.length; }
+
+	/**
+	 *  reset for the next output pixel
+	 */
+	public void clear()
+	{
+		for ( final PixelFusion channel : channels )
+			channel.clear();
+	}
+
+	/**
+	 * add the values of all channels for the current output pixel
+	 * 
+	 * @param values - the image intensity of each channel
+	 * @param imageId - from which input image as defined by the id
+	 * @param localPosition - the position inside the input image in local coordinates of the input image
+	 */
+	public void addValues( final double[] values, final int imageId, final double[] localPosition )
+	{
+		if ( blending != null )
+		{
+			final double weight = blending.getWeight( imageId, localPosition );
+
+			for ( int c = 0; c < channels.length; ++c )
+				( (BlendingPixelFusion)channels[ c ] ).addValue( values[ c ], weight );
+		}
+		else
+		{
+			for ( int c = 0; c < channels.length; ++c )
+				channels[ c ].addValue( values[ c ], imageId, localPosition );
+		}
+	}
+
+	/**
+	 * @param values - receives the result of each channel for the current pixel
+	 */
+	public void getValues( final double[] values )
+	{
+		for ( int c = 0; c < channels.length; ++c )
+			values[ c ] = channels[ c ].getValue();
+	}
+
+	/**
+	 * Convinience method for multi-threading
+	 * 
+	 * @return - a {@link MultiChannelPixelFusion} with the same properties
+	 */
+	public MultiChannelPixelFusion copy() { return new MultiChannelPixelFusion( fusion.copy(), channels.length ); }
+}
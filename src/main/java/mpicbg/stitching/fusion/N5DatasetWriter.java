@@ -0,0 +1,244 @@
+/*
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2022 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package mpicbg.stitching.fusion;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes one dataset of an N5 container on the local disk: the attributes of the container and
+ * the dataset as json, and every block as a file &lt;dataset&gt;/&lt;x&gt;/&lt;y&gt;/... with the N5 block
+ * header followed by the big-endian data, optionally gzip-compressed. Blocks that are never
+ * written are read as zeros by N5 readers, so the blocks of a dataset that is written again
+ * are deleted first. Different blocks may be written from different threads at the same time.
+ */
+public class N5DatasetWriter
+{
+	public static String[] compressionChoices = { "None", "Gzip" };
+
+	public static final int RAW = 0;
+	public static final int GZIP = 1;
+
+	final File datasetDirectory;
+	final long[] dimensions;
+	final int[] blockSize;
+	final int bitDepth, compression;
+
+	/**
+	 * @param container - the directory of the N5 container, created if necessary
+	 * @param dataset - the path of the dataset inside the container, e.g. "c0/t0"; if it exists already,
+	 * all of its blocks are deleted
+	 * @param dimensions - the size of the dataset
+	 * @param blockSize - the size of the blocks
+	 * @param bitDepth - 8, 16 (unsigned) or 32 (float)
+	 * @param compression - {@link #RAW} or {@link #GZIP}
+	 * @throws IOException
+	 */
+	public N5DatasetWriter( final File container, final String dataset, final long[] dimensions, final int[] blockSize,
+			final int bitDepth, final int compression ) throws IOException
+	{
+		if ( bitDepth != 8 && bitDepth != 16 && bitDepth != 32 )
+			throw new IllegalArgumentException( "Unsupported bit depth: " + bitDepth );
+
+		if ( compression != RAW && compression != GZIP )
+			throw new IllegalArgumentException( "Unknown compression: " + compression );
+
+		this.datasetDirectory = new File( container, dataset );
+		this.dimensions = dimensions.clone();
+		this.blockSize = blockSize.clone();
+		this.bitDepth = bitDepth;
+		this.compression = compression;
+
+		// a block that was fused before but is empty now would otherwise keep its old pixels
+		if ( datasetDirectory.isDirectory() )
+			clear( datasetDirectory );
+
+		if ( !datasetDirectory.isDirectory() && !datasetDirectory.mkdirs() )
+			throw new IOException( "Cannot create '" + datasetDirectory.getAbsolutePath() + "'" );
+
+		final File rootAttributes = new File( container, "attributes.json" );
+
+		if ( !rootAttributes.exists() )
+			writeText( rootAttributes, "{\"n5\":\"2.0.0\"}" );
+
+		writeText( new File( datasetDirectory, "attributes.json" ),
+				"{\"dimensions\":" + toJson( dimensions ) + ",\"blockSize\":" + toJson( blockSize ) +
+				",\"dataType\":\"" + getDataType() + "\",\"compression\":" +
+				( compression == GZIP ? "{\"type\":\"gzip\",\"level\":-1}" : "{\"type\":\"raw\"}" ) + "}" );
+	}
+
+	public long[] getDimensions() { return dimensions.clone(); }
+	public int[] getBlockSize() { return blockSize.clone(); }
+	public int getBitDepth() { return bitDepth; }
+
+	public String getDataType()
+	{
+		return bitDepth == 8 ? "uint8" : bitDepth == 16 ? "uint16" : "float32";
+	}
+
+	/**
+	 * @param gridPosition - the position of the block in the grid of blocks
+	 * @return the size of this block, smaller than the block size at the border of the dataset
+	 */
+	public int[] getBlockSize( final long[] gridPosition )
+	{
+		final int[] size = new int[ blockSize.length ];
+
+		for ( int d = 0; d < size.length; ++d )
+			size[ d ] = (int)Math.min( blockSize[ d ], dimensions[ d ] - gridPosition[ d ] * blockSize[ d ] );
+
+		return size;
+	}
+
+	/**
+	 * Writes one block.
+	 *
+	 * @param gridPosition - the position of the block in the grid of blocks
+	 * @param data - the samples of the block as big-endian bytes, x first, of the size {@link #getBlockSize(long[])}
+	 * @throws IOException
+	 */
+	public void writeBlock( final long[] gridPosition, final byte[] data ) throws IOException
+	{
+		final int[] size = getBlockSize( gridPosition );
+
+		long numBytes = bitDepth / 8;
+		for ( final int s : size )
+			numBytes *= s;
+
+		if ( data.length != numBytes )
+			throw new IllegalArgumentException( "Block has " + data.length + " bytes instead of " + numBytes );
+
+		File file = datasetDirectory;
+
+		for ( int d = 0; d < gridPosition.length - 1; ++d )
+			file = new File( file, Long.toString( gridPosition[ d ] ) );
+
+		if ( !file.isDirectory() && !file.mkdirs() && !file.isDirectory() )
+			throw new IOException( "Cannot create '" + file.getAbsolutePath() + "'" );
+
+		file = new File( file, Long.toString( gridPosition[ gridPosition.length - 1 ] ) );
+
+		// encode first, so that a block file is never left half written by a failed compression
+		final ByteArrayOutputStream block = new ByteArrayOutputStream( data.length / 2 + 64 );
+		final DataOutputStream header = new DataOutputStream( block );
+
+		// mode 0 (default), the number of dimensions and the size of the block
+		header.writeShort( 0 );
+		header.writeShort( size.length );
+
+		for ( final int s : size )
+			header.writeInt( s );
+
+		header.flush();
+
+		if ( compression == GZIP )
+		{
+			final GZIPOutputStream gzip = new GZIPOutputStream( block, 65536 );
+			gzip.write( data );
+			gzip.finish();
+		}
+		else
+		{
+			block.write( data );
+		}
+
+		final OutputStream out = new FileOutputStream( file );
+
+		try
+		{
+			block.writeTo( out );
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	/**
+	 * Deletes the attributes and all blocks of an existing dataset, but nothing that is not part of
+	 * an N5 dataset.
+	 */
+	protected static void clear( final File datasetDirectory ) throws IOException
+	{
+		final File[] files = datasetDirectory.listFiles();
+
+		if ( files == null || files.length == 0 )
+			return;
+
+		if ( !new File( datasetDirectory, "attributes.json" ).isFile() )
+			throw new IOException( "'" + datasetDirectory.getAbsolutePath() + "' exists and is not an N5 dataset" );
+
+		for ( final File file : files )
+			delete( file );
+	}
+
+	protected static void delete( final File file ) throws IOException
+	{
+		final File[] files = file.listFiles();
+
+		if ( files != null )
+			for ( final File child : files )
+				delete( child );
+
+		if ( !file.delete() && file.exists() )
+			throw new IOException( "Cannot delete '" + file.getAbsolutePath() + "'" );
+	}
+
+	protected static void writeText( final File file, final String text ) throws IOException
+	{
+		final OutputStream out = new FileOutputStream( file );
+
+		try
+		{
+			out.write( text.getBytes( "UTF-8" ) );
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	protected static String toJson( final long[] values )
+	{
+		final StringBuilder json = new StringBuilder( "[" );
+
+		for ( int i = 0; i < values.length; ++i )
+			json.append( i == 0 ? "" : "," ).append( values[ i ] );
+
+		return json.append( "]" ).toString();
+	}
+
+	protected static String toJson( final int[] values )
+	{
+		final long[] l = new long[ values.length ];
+
+		for ( int i = 0; i < values.length; ++i )
+			l[ i ] = values[ i ];
+
+		return toJson( l );
+	}
+}
@@ -57,11 +57,14 @@ import mpicbg.models.TranslationModel2D;
 import mpicbg.models.TranslationModel3D;
 import mpicbg.stitching.CollectionStitchingImgLib;
 import mpicbg.stitching.Downsampler;
+import mpicbg.stitching.GlobalOptimization;
 import mpicbg.stitching.ImageCollectionElement;
 import mpicbg.stitching.ImagePlusTimePoint;
 import mpicbg.stitching.StitchingParameters;
 import mpicbg.stitching.TextFileAccess;
+import mpicbg.stitching.fusion.BigTiffWriter;
 import mpicbg.stitching.fusion.Fusion;
+import mpicbg.stitching.fusion.N5DatasetWriter;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.type.numeric.real.FloatType;
@@ -117,17 +120,25 @@ public class Stitching_Grid implements PlugIn
 	public static double defaultRegressionThreshold = 0.3;
 	public static double defaultDisplacementThresholdRelative = 2.5;		
 	public static double defaultDisplacementThresholdAbsolute = 3.5;		
+	public static int defaultGlobalOptimization = 0;
+	public static boolean defaultBatchedOutlierRemoval = false;
 	public static boolean defaultOnlyPreview = false;
 	public static int defaultMemorySpeedChoice = 0;
+	public static double defaultMemoryBudget = 0;
+	public static boolean defaultReuseTransforms = true;
+	public static boolean defaultRecomputePairwiseResults = false;
+	public static int defaultPyramidFactor = 1;
 	
 	//Added by John Lapage: user sets this parameter to define how many adjacent files each image will be compared to
 	public static double defaultSeqRange = 1;	
 	
 	public static boolean defaultQuickFusion = true;
 	
-	public static String[] resultChoices = { "Fuse and display", "Write to disk" };
+	public static String[] resultChoices = { "Fuse and display", "Write to disk", "Write to disk (single BigTIFF)", "Write to disk (N5 blocks)" };
 	public static int defaultResult = 0;
 	public static String defaultOutputDirectory = "";
+	public static int defaultOutputCompression = 0;
+	public static int defaultN5Compression = 1;
 	
 	@Override
 	public void run( String arg0 ) 
@@ -197,6 +208,8 @@ public class Stitching_Grid implements PlugIn
 		gd.addNumericField( "Regression_threshold", defaultRegressionThreshold, 2 );
 		gd.addNumericField( "Max/avg_displacement_threshold", defaultDisplacementThresholdRelative, 2 );		
 		gd.addNumericField( "Absolute_displacement_threshold", defaultDisplacementThresholdAbsolute, 2 );
+		gd.addChoice( "Global_optimization", GlobalOptimization.solverChoices, GlobalOptimization.solverChoices[ defaultGlobalOptimization ] );
+		gd.addCheckbox( "Remove_all_bad_links_at_once", defaultBatchedOutlierRemoval );
 		// added by John Lapage: creates text box in which the user can set which range to compare within. Would be nicer as an Integer.
 		if (gridType == 7) 
 			gd.addNumericField( "Frame range to compare", defaultSeqRange, 0 );
@@ -216,10 +229,14 @@ public class Stitching_Grid implements PlugIn
 		gd.addCheckbox( "Invert_Y coordinates", defaultInvertY );
 		gd.addCheckbox( "Ignore_Z_stage position", defaultIgnoreZStage);
 		gd.addCheckbox( "Subpixel_accuracy", defaultSubpixelAccuracy );
+		gd.addNumericField( "Coarse_registration_downsampling (1 = full resolution only)", defaultPyramidFactor, 0 );
 		gd.addCheckbox( "Downsample_tiles", defaultDownSample);
 		gd.addCheckbox( "Display_fusion", defaultDisplayFusion);
 		gd.addCheckbox( "Use_virtual_input_images (Slow! Even slower when combined with subpixel accuracy during fusion!)", defaultVirtualInput );
 		gd.addChoice( "Computation_parameters", CommonFunctions.cpuMemSelect, CommonFunctions.cpuMemSelect[ defaultMemorySpeedChoice ] );
+		gd.addNumericField( "Memory_budget_for_registration (MB, 0 = automatic)", defaultMemoryBudget, 0 );
+		gd.addCheckbox( "Reuse_forward_transforms (faster if tiles take part in many pairs)", defaultReuseTransforms );
+		gd.addCheckbox( "Recompute_pairwise_results (otherwise reuse the ones stored next to the TileConfiguration)", defaultRecomputePairwiseResults );
 		gd.addChoice( "Image_output", resultChoices, resultChoices[ defaultResult ] );
 		gd.addMessage("");
 		gd.addMessage( "This Plugin is developed by Stephan Preibisch\n" + myURL);
@@ -316,6 +333,8 @@ public class Stitching_Grid implements PlugIn
 		params.regThreshold = defaultRegressionThreshold = gd.getNextNumber();
 		params.relativeThreshold = defaultDisplacementThresholdRelative = gd.getNextNumber();		
 		params.absoluteThreshold = defaultDisplacementThresholdAbsolute = gd.getNextNumber();
+		params.directSolver = ( defaultGlobalOptimization = gd.getNextChoiceIndex() ) == 1;
+		params.batchedOutlierRemoval = defaultBatchedOutlierRemoval = gd.getNextBoolean();
 		// Added by John Lapage: sends user specified range to the parameters object
 		if ( gridType == 7) 
 			params.seqRange = (int)(defaultSeqRange = Math.round( gd.getNextNumber() ) );
@@ -345,10 +364,14 @@ public class Stitching_Grid implements PlugIn
 		final boolean ignoreZStage = params.ignoreZStage = defaultIgnoreZStage = gd.getNextBoolean();
 
 		params.subpixelAccuracy = defaultSubpixelAccuracy = gd.getNextBoolean();
+		params.pyramidFactor = defaultPyramidFactor = Math.max( 1, (int)Math.round( gd.getNextNumber() ) );
 		final boolean downSample = params.downSample = defaultDownSample = gd.getNextBoolean();
 		params.displayFusion = defaultDisplayFusion = gd.getNextBoolean();
 		params.virtual = defaultVirtualInput = gd.getNextBoolean();
 		params.cpuMemChoice = defaultMemorySpeedChoice = gd.getNextChoiceIndex();
+		params.memoryBudget = defaultMemoryBudget = gd.getNextNumber();
+		params.reuseTransforms = defaultReuseTransforms = gd.getNextBoolean();
+		params.recomputePairwiseResults = defaultRecomputePairwiseResults = gd.getNextBoolean();
 		params.outputVariant = defaultResult = gd.getNextChoiceIndex();
 		
 		if ( params.virtual )
@@ -361,19 +384,30 @@ public class Stitching_Grid implements PlugIn
 			}
 		}
 		
-		if ( params.fusionMethod != CommonFunctions.fusionMethodListGrid.length - 1 && params.outputVariant == 1 )
+		if ( params.fusionMethod != CommonFunctions.fusionMethodListGrid.length - 1 && params.outputVariant >= 1 )
 		{
 			if ( defaultOutputDirectory == null || defaultOutputDirectory.length() == 0 )
 				defaultOutputDirectory = defaultDirectory;
 			
 			final GenericDialogPlus gd2 = new GenericDialogPlus( "Select output directory" );
 			gd2.addDirectoryField( "Output_directory", defaultOutputDirectory, 60 );
+			
+			if ( params.outputVariant == 2 )
+				gd2.addChoice( "Compression", BigTiffWriter.compressionChoices, BigTiffWriter.compressionChoices[ defaultOutputCompression ] );
+			else if ( params.outputVariant == 3 )
+				gd2.addChoice( "Compression", N5DatasetWriter.compressionChoices, N5DatasetWriter.compressionChoices[ defaultN5Compression ] );
+			
 			gd2.showDialog();
 			
 			if ( gd2.wasCanceled() )
 				return;
 			
 			params.outputDirectory = defaultOutputDirectory = gd2.getNextString();
+			
+			if ( params.outputVariant == 2 )
+				params.outputCompression = defaultOutputCompression = gd2.getNextChoiceIndex();
+			else if ( params.outputVariant == 3 )
+				params.outputCompression = defaultN5Compression = gd2.getNextChoiceIndex();
 		}
 		else
 		{
@@ -431,7 +465,8 @@ public class Stitching_Grid implements PlugIn
 			return;
 		}
 		
-		// open all images (if not done already by grid parsing) and test them, collect information
+		// read the dimensions of all images (if not done already by grid parsing) and test them, collect information,
+		// the pixels are only loaded once they are needed for registration or fusion
 		int numChannels = -1;
 		int numTimePoints = -1;
 		
@@ -440,9 +475,14 @@ public class Stitching_Grid implements PlugIn
 		
 		for ( final ImageCollectionElement element : elements )
 		{
+			// we can only downsample loaded images
+			final boolean load = downSample && ( gridType == 5 || gridType == 7 );
+			
 			if ( gridType >=5 )
 			{
-				if ( params.virtual )
+				if ( !load )
+					Log.info( "Reading header: " + element.getFile().getAbsolutePath() + " ... " );
+				else if ( params.virtual )
 					Log.info( "Opening VIRTUAL: " + element.getFile().getAbsolutePath() + " ... " );
 				else
 					Log.info( "Loading: " + element.getFile().getAbsolutePath() + " ... " );
@@ -450,36 +490,44 @@ public class Stitching_Grid implements PlugIn
 				
 			
 			long time = System.currentTimeMillis();
-			final ImagePlus imp = element.open( params.virtual );
-			
-			time = System.currentTimeMillis() - time;
-			
-			if ( imp == null )
-				return;
 			
-			if (downSample && ( gridType == 5 || gridType == 7)) {
+			if ( load )
+			{
+				final ImagePlus imp = element.open( params.virtual );
+				
+				if ( imp == null )
+					return;
+				
 				if (ds == null) {
 					ds = new Downsampler();
 					ds.getInput(imp.getWidth(), imp.getHeight());
 				}
 				ds.run(imp);
 			}
+			else if ( element.getDimensions() == null && !element.readHeader() )
+			{
+				return;
+			}
+			
+			time = System.currentTimeMillis() - time;
+			
+			final int[] size = element.getDimensions();
 			
 			int lastNumChannels = numChannels;
 			int lastNumTimePoints = numTimePoints;
-			numChannels = imp.getNChannels();
-			numTimePoints = imp.getNFrames();
+			numChannels = element.getNumChannels();
+			numTimePoints = element.getNumTimePoints();
 			
-			if ( imp.getNSlices() > 1 )
+			if ( size.length > 2 )
 			{
 				if ( gridType >=5 )
-					Log.info( "" + imp.getWidth() + "x" + imp.getHeight() + "x" + imp.getNSlices() + "px, channels=" + numChannels + ", timepoints=" + numTimePoints + " (" + time + " ms)" );
+					Log.info( "" + size[ 0 ] + "x" + size[ 1 ] + "x" + size[ 2 ] + "px, channels=" + numChannels + ", timepoints=" + numTimePoints + " (" + time + " ms)" );
 				is3d = true;					
 			}
 			else
 			{
 				if ( gridType >=5 )
-					Log.info( "" + imp.getWidth() + "x" + imp.getHeight() + "px, channels=" + numChannels + ", timepoints=" + numTimePoints + " (" + time + " ms)" );
+					Log.info( "" + size[ 0 ] + "x" + size[ 1 ] + "px, channels=" + numChannels + ", timepoints=" + numTimePoints + " (" + time + " ms)" );
 				is2d = true;
 			}
 			
@@ -535,6 +583,10 @@ public class Stitching_Grid implements PlugIn
     	if ( gridType != 6 )
     		writeTileConfiguration( new File( directory, outputFile ), elements );
     	    	
+    	// the pairwise results are stored next to the tileconfiguration, so a rerun with other thresholds only optimizes
+    	if ( params.computeOverlap && outputFile != null )
+    		params.pairwiseResultFile = new File( directory, ( outputFile.endsWith( ".txt" ) ? outputFile.substring( 0, outputFile.length() - 4 ) : outputFile ) + ".pairwise.txt" );
+    	
     	// call the final stitching
     	final ArrayList<ImagePlusTimePoint> optimized = CollectionStitchingImgLib.stitchCollection( elements, params );
     	
@@ -543,7 +595,7 @@ public class Stitching_Grid implements PlugIn
     	
     	// output the result
 		for ( final ImagePlusTimePoint imt : optimized )
-			Log.info( imt.getImagePlus().getTitle() + ": " + imt.getModel() );
+			Log.info( imt.getTitle() + ": " + imt.getModel() );
 		
     	// write the file tileconfiguration
         // NOTE: outputFile should never be null anyway!
@@ -578,8 +630,17 @@ public class Stitching_Grid implements PlugIn
 			
 			for ( final ImagePlusTimePoint imt : optimized )
 			{
-				final ImagePlus imp = imt.getImagePlus();
-				
+				final ImagePlus imp;
+
+				// the N5 output reads the pixels block by block, a virtual stack only reads the header here
+				if ( params.outputVariant == 3 && imt.getElement() != null && imt.getElement().isReopenable() )
+					imp = imt.getElement().open( true );
+				else
+					imp = imt.getImagePlus();
+
+				if ( imp == null )
+					return;
+
 				if ( imp.getType() == ImagePlus.GRAY32 )
 					is32bit = true;
 				else if ( imp.getType() == ImagePlus.GRAY16 )
@@ -616,12 +677,14 @@ public class Stitching_Grid implements PlugIn
 					Log.info( "There is no overlap between any of the tiles, using faster fusion algorithm." );
 			}
 			
+			final int outputFormat = params.outputVariant == 3 ? Fusion.OUTPUT_N5 : params.outputVariant == 2 ? Fusion.OUTPUT_BIGTIFF : Fusion.OUTPUT_SLICES;
+			
 			if ( is32bit )
-				imp = Fusion.fuse( new FloatType(), images, models, params.dimensionality, params.subpixelAccuracy, params.fusionMethod, params.outputDirectory, noOverlap, false, params.displayFusion );
+				imp = Fusion.fuse( new FloatType(), images, models, params.dimensionality, params.subpixelAccuracy, params.fusionMethod, params.outputDirectory, outputFormat, params.outputCompression, noOverlap, false, params.displayFusion );
 			else if ( is16bit )
-				imp = Fusion.fuse( new UnsignedShortType(), images, models, params.dimensionality, params.subpixelAccuracy, params.fusionMethod, params.outputDirectory, noOverlap, false, params.displayFusion );
+				imp = Fusion.fuse( new UnsignedShortType(), images, models, params.dimensionality, params.subpixelAccuracy, params.fusionMethod, params.outputDirectory, outputFormat, params.outputCompression, noOverlap, false, params.displayFusion );
 			else if ( is8bit )
-				imp = Fusion.fuse( new UnsignedByteType(), images, models, params.dimensionality, params.subpixelAccuracy, params.fusionMethod, params.outputDirectory, noOverlap, false, params.displayFusion );
+				imp = Fusion.fuse( new UnsignedByteType(), images, models, params.dimensionality, params.subpixelAccuracy, params.fusionMethod, params.outputDirectory, outputFormat, params.outputCompression, noOverlap, false, params.displayFusion );
 			else
 				Log.error( "Unknown image type for fusion." );
 			
@@ -1360,32 +1423,48 @@ public class Stitching_Grid implements PlugIn
 		for ( int y = 0; y < gridSizeY; ++y )
 			for ( int x = 0; x < gridSizeX; ++x )
 			{
-				if ( virtual )
+				if ( ds == null )
+					Log.info( "Reading header (" + x + ", " + y + "): " + gridLayout[ x ][ y ].getFile().getAbsolutePath() + " ... " );
+				else if ( virtual )
 					Log.info( "Opening VIRTUAL (" + x + ", " + y + "): " + gridLayout[ x ][ y ].getFile().getAbsolutePath() + " ... " );
 				else
 					Log.info( "Loading (" + x + ", " + y + "): " + gridLayout[ x ][ y ].getFile().getAbsolutePath() + " ... " );			
 				
 				long time = System.currentTimeMillis();
-				final ImagePlus imp = gridLayout[ x ][ y ].open( virtual );
-				if (ds != null) {
+				final ImageCollectionElement element = gridLayout[ x ][ y ];
+				
+				// only read the header unless we need to downsample the pixels
+				if ( ds != null )
+				{
+					final ImagePlus imp = element.open( virtual );
+					
+					if ( imp == null )
+						return null;
+					
 					if (!ds.hasInput()) {
 						ds.getInput(imp.getWidth(), imp.getHeight());
 					}
 					ds.run( imp );
 				}
+				else if ( !element.readHeader() )
+				{
+					return null;
+				}
 				time = System.currentTimeMillis() - time;
 				
-				if ( imp == null )
-					return null;
+				final int[] size = element.getDimensions();
+				final int width = size[ 0 ];
+				final int height = size[ 1 ];
+				final int depth = size.length > 2 ? size[ 2 ] : 1;
 				
-				if ( imp.getNSlices() > 1 )
+				if ( depth > 1 )
 				{
-					Log.info( "" + imp.getWidth() + "x" + imp.getHeight() + "x" + imp.getNSlices() + "px, channels=" + imp.getNChannels() + ", timepoints=" + imp.getNFrames() + " (" + time + " ms)" );
+					Log.info( "" + width + "x" + height + "x" + depth + "px, channels=" + element.getNumChannels() + ", timepoints=" + element.getNumTimePoints() + " (" + time + " ms)" );
 					is3d = true;					
 				}
 				else
 				{
-					Log.info( "" + imp.getWidth() + "x" + imp.getHeight() + "px, channels=" + imp.getNChannels() + ", timepoints=" + imp.getNFrames() + " (" + time + " ms)" );
+					Log.info( "" + width + "x" + height + "px, channels=" + element.getNumChannels() + ", timepoints=" + element.getNumTimePoints() + " (" + time + " ms)" );
 					is2d = true;
 				}
 				
@@ -1396,14 +1475,14 @@ public class Stitching_Grid implements PlugIn
 					return null;
 				}
 
-				if ( imp.getWidth() < minWidth )
-					minWidth = imp.getWidth();
+				if ( width < minWidth )
+					minWidth = width;
 
-				if ( imp.getHeight() < minHeight )
-					minHeight = imp.getHeight();
+				if ( height < minHeight )
+					minHeight = height;
 				
-				if ( imp.getNSlices() < minDepth )
-					minDepth = imp.getNSlices();
+				if ( depth < minDepth )
+					minDepth = depth;
 			}
 		
 		final int dimensionality;
@@ -29,17 +29,20 @@ import ij.ImageStack;
 import ij.WindowManager;
 import ij.gui.GenericDialog;
 import ij.gui.MultiLineLabel;
+import ij.gui.Roi;
 import ij.plugin.PlugIn;
 
+import java.awt.Rectangle;
 import java.util.ArrayList;
 import java.util.Vector;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import mpicbg.models.InvertibleBoundable;
 import mpicbg.models.Model;
 import mpicbg.models.TranslationModel2D;
 import mpicbg.models.TranslationModel3D;
 import mpicbg.stitching.ComparePair;
+import mpicbg.stitching.ComparePairScheduler;
+import mpicbg.stitching.FFTCache;
 import mpicbg.stitching.GlobalOptimization;
 import mpicbg.stitching.ImagePlusTimePoint;
 import mpicbg.stitching.PairWiseStitchingImgLib;
@@ -51,7 +54,6 @@ import net.imglib2.RandomAccessible;
 import net.imglib2.interpolation.InterpolatorFactory;
 import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
 import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
-import net.imglib2.multithreading.SimpleMultiThreading;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
@@ -79,12 +81,15 @@ public class Stitching_Pairwise implements PlugIn
 	public static boolean defaultComputeOverlap = true;
 	public static boolean defaultSubpixelAccuracy = false;
 	public static int defaultCheckPeaks = 5;
+	public static int defaultPyramidFactor = 1;
 	public static double defaultxOffset = 0, defaultyOffset = 0, defaultzOffset = 0;
 
 	public static boolean[] defaultHandleChannel1 = null;
 	public static boolean[] defaultHandleChannel2 = null;
 
 	public static int defaultMemorySpeedChoice = 0;
+	public static double defaultMemoryBudget = 0;
+	public static boolean defaultReuseTransforms = true;
 	public static double defaultDisplacementThresholdRelative = 2.5;		
 	public static double defaultDisplacementThresholdAbsolute = 3.5;		
 
@@ -207,6 +212,7 @@ public class Stitching_Pairwise implements PlugIn
 		gd2.addCheckbox( "Display_fusion", Stitching_Grid.defaultDisplayFusion );
 		gd2.addCheckbox("Compute_overlap", defaultComputeOverlap );
 		gd2.addCheckbox("Subpixel_accuracy", defaultSubpixelAccuracy );
+		gd2.addNumericField("Coarse_registration_downsampling (1 = full resolution only)", defaultPyramidFactor, 0 );
 		gd2.addNumericField("x", defaultxOffset, 4 );
 		gd2.addNumericField("y", defaultyOffset, 4 );
 		if ( dimensionality == 3 )		
@@ -244,6 +250,7 @@ public class Stitching_Pairwise implements PlugIn
 		params.displayFusion = Stitching_Grid.defaultDisplayFusion = gd2.getNextBoolean();
 		params.computeOverlap = defaultComputeOverlap = gd2.getNextBoolean();
 		params.subpixelAccuracy = defaultSubpixelAccuracy = gd2.getNextBoolean();
+		params.pyramidFactor = defaultPyramidFactor = Math.max( 1, (int)Math.round( gd2.getNextNumber() ) );
 		params.xOffset = defaultxOffset = gd2.getNextNumber();
 		params.yOffset = defaultyOffset = gd2.getNextNumber();
 
@@ -280,6 +287,8 @@ public class Stitching_Pairwise implements PlugIn
 			GenericDialog gd3 = new GenericDialog( "Details for timelapse stitching" );
 			
 			gd3.addChoice( "Computation parameters", CommonFunctions.cpuMemSelect, CommonFunctions.cpuMemSelect[ defaultMemorySpeedChoice ] );
+			gd3.addNumericField( "Memory budget (MB, 0 = automatic)", defaultMemoryBudget, 0 );
+			gd3.addCheckbox( "Reuse_forward_transforms of time-points (faster)", defaultReuseTransforms );
 			//gd3.addNumericField( "Regression_Threshold", defaultRegressionThreshold, 2 );
 			gd3.addNumericField( "Max/Avg Displacement Threshold", defaultDisplacementThresholdRelative, 2 );		
 			gd3.addNumericField( "Absolute Avg Displacement Threshold", defaultDisplacementThresholdAbsolute, 2 );
@@ -290,6 +299,8 @@ public class Stitching_Pairwise implements PlugIn
 				return;
 			
 			params.cpuMemChoice = defaultMemorySpeedChoice = gd3.getNextChoiceIndex();
+			params.memoryBudget = defaultMemoryBudget = gd3.getNextNumber();
+			params.reuseTransforms = defaultReuseTransforms = gd3.getNextBoolean();
 			//params.regThreshold = defaultRegressionThreshold = gd3.getNextNumber();
 			params.relativeThreshold = defaultDisplacementThresholdRelative = gd3.getNextNumber();
 			params.absoluteThreshold = defaultDisplacementThresholdAbsolute = gd3.getNextNumber();
@@ -378,53 +389,39 @@ public class Stitching_Pairwise implements PlugIn
 			// get all that we have to compare
 			final Vector< ComparePair > pairs = getComparePairs( imp1, imp2, params.dimensionality, params.timeSelect );
 			
+			// every time-point takes part in several pairs, so its forward transform is computed only once
+			if ( params.reuseTransforms && params.pyramidFactor <= 1 )
+				params.fftCache = new FFTCache( params );
+			
 			// compute all compare pairs
 			// compute all matchings
-			final AtomicInteger ai = new AtomicInteger(0);
-			
-			final int numThreads;
-			
-			if ( params.cpuMemChoice == 0 )
-				numThreads = 1;
-			else
-				numThreads = Runtime.getRuntime().availableProcessors();
+			ComparePairScheduler.process( pairs, estimateMemory( pairs ), params, new ComparePairScheduler.PairTask()
+			{
+				@Override
+				public void process( final ComparePair pair, final int numThreads )
+				{
+					long start = System.currentTimeMillis();			
+					
+					final PairWiseStitchingResult result = PairWiseStitchingImgLib.stitchPairwise( pair.getImagePlus1(), pair.getImagePlus2(), 
+							pair.getImagePlus1().getRoi(), pair.getImagePlus2().getRoi(), pair.getTimePoint1(), pair.getTimePoint2(), params, numThreads );			
+					
+					if ( params.dimensionality == 2 )
+						pair.setRelativeShift( new float[]{ result.getOffset( 0 ), result.getOffset( 1 ) } );
+					else
+						pair.setRelativeShift( new float[]{ result.getOffset( 0 ), result.getOffset( 1 ), result.getOffset( 2 ) } );
+					
+					pair.setCrossCorrelation( result.getCrossCorrelation() );
+					
+					Log.info( pair.getImagePlus1().getTitle() + "[" + pair.getTimePoint1() + "]" + " <- " + pair.getImagePlus2().getTitle() + "[" + pair.getTimePoint2() + "]" + ": " + 
+							Util.printCoordinates( result.getOffset() ) + " correlation (R)=" + result.getCrossCorrelation() + " (" + (System.currentTimeMillis() - start) + " ms)");
+				}
+			});
 			
-	        final Thread[] threads = SimpleMultiThreading.newThreads( numThreads );
-	    	
-	        for ( int ithread = 0; ithread < threads.length; ++ithread )
-	            threads[ ithread ] = new Thread(new Runnable()
-	            {
-	                @Override
-	                public void run()
-	                {		
-	                   	final int myNumber = ai.getAndIncrement();
-	                    
-	                    for ( int i = 0; i < pairs.size(); i++ )
-	                    {
-	                    	if ( i % numThreads == myNumber )
-	                    	{
-	                    		final ComparePair pair = pairs.get( i );
-	                    		
-	                    		long start = System.currentTimeMillis();			
-
-	            				final PairWiseStitchingResult result = PairWiseStitchingImgLib.stitchPairwise( pair.getImagePlus1(), pair.getImagePlus2(), 
-	            						pair.getImagePlus1().getRoi(), pair.getImagePlus2().getRoi(), pair.getTimePoint1(), pair.getTimePoint2(), params );			
-
-	            				if ( params.dimensionality == 2 )
-	            					pair.setRelativeShift( new float[]{ result.getOffset( 0 ), result.getOffset( 1 ) } );
-	            				else
-	            					pair.setRelativeShift( new float[]{ result.getOffset( 0 ), result.getOffset( 1 ), result.getOffset( 2 ) } );
-	            				
-	            				pair.setCrossCorrelation( result.getCrossCorrelation() );
-
-	            				Log.info( pair.getImagePlus1().getTitle() + "[" + pair.getTimePoint1() + "]" + " <- " + pair.getImagePlus2().getTitle() + "[" + pair.getTimePoint2() + "]" + ": " + 
-	            						Util.printCoordinates( result.getOffset() ) + " correlation (R)=" + result.getCrossCorrelation() + " (" + (System.currentTimeMillis() - start) + " ms)");
-	                    	}
-	                    }
-	                }
-	            });
-	        
-	        SimpleMultiThreading.startAndJoin( threads );
+			if ( params.fftCache != null )
+			{
+				Log.info( "Reused " + params.fftCache.getHits() + " of " + ( params.fftCache.getHits() + params.fftCache.getMisses() ) + " forward transforms." );
+				params.fftCache = null;
+			}
 			
 	        // get the final positions of all tiles
 			final ArrayList< ImagePlusTimePoint > optimized = GlobalOptimization.optimize( pairs, pairs.get( 0 ).getTile1(), params );
@@ -523,6 +520,47 @@ public class Stitching_Pairwise implements PlugIn
 		}
 	}
 	
+	/**
+	 * Estimates the memory needed for each pair, the images are already in memory but
+	 * might have to be copied
+	 */
+	protected static long[] estimateMemory( final Vector< ComparePair > pairs )
+	{
+		final long[] memory = new long[ pairs.size() ];
+		
+		for ( int i = 0; i < pairs.size(); ++i )
+		{
+			final ImagePlus imp1 = pairs.get( i ).getImagePlus1();
+			final ImagePlus imp2 = pairs.get( i ).getImagePlus2();
+			
+			final int[] size1 = getSize( imp1 );
+			final int[] size2 = getSize( imp2 );
+			
+			final long inputBytes = 
+					ComparePairScheduler.numPixels( size1 ) * ComparePairScheduler.getBytesPerPixel( imp1 ) + 
+					ComparePairScheduler.numPixels( size2 ) * ComparePairScheduler.getBytesPerPixel( imp2 );
+			
+			memory[ i ] = ComparePairScheduler.estimateMemory( size1, size2, inputBytes );
+		}
+		
+		return memory;
+	}
+	
+	protected static int[] getSize( final ImagePlus imp )
+	{
+		final Rectangle r;
+		
+		if ( imp.getRoi() != null && imp.getRoi().getType() == Roi.RECTANGLE )
+			r = imp.getRoi().getBounds();
+		else
+			r = new Rectangle( 0, 0, imp.getWidth(), imp.getHeight() );
+		
+		if ( imp.getNSlices() > 1 )
+			return new int[]{ r.width, r.height, imp.getNSlices() };
+		else
+			return new int[]{ r.width, r.height };
+	}
+	
 	protected static Vector< ComparePair > getComparePairs( final ImagePlus imp1, final ImagePlus imp2, final int dimensionality, final int timeSelect )
 	{
 		final Model< ? > model;
@@ -501,118 +501,185 @@ public class CommonFunctions
 
 	public static FloatArray2D pffft2D(FloatArray2D values, boolean scale)
 	{
-		int height = values.height;
-		int width = values.width;
-		int complexWidth = (width / 2 + 1) * 2;
+		return pffft2D(values, scale, Runtime.getRuntime().availableProcessors());
+	}
 
-		FloatArray2D result = new FloatArray2D(complexWidth, height);
+	public static FloatArray2D pffft2D(final FloatArray2D values, final boolean scale, final int numThreads)
+	{
+		final int height = values.height;
+		final int width = values.width;
+		final int complexWidth = (width / 2 + 1) * 2;
 
-		//do fft's in x direction
-		float[] tempIn = new float[width];
-		float[] tempOut;
+		final FloatArray2D result = new FloatArray2D(complexWidth, height);
 
-		FftReal fft = new FftReal(width);
+		// do fft's in x direction
+		final AtomicInteger ai = new AtomicInteger(0);
+		Thread[] threads = newThreads(numThreads);
 
-		for (int y = 0; y < height; y++)
-		{
-			tempOut = new float[complexWidth];
+		for (int ithread = 0; ithread < threads.length; ++ithread)
+			threads[ithread] = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					int myNumber = ai.getAndIncrement();
 
-			for (int x = 0; x < width; x++)
-				tempIn[x] = values.get(x, y);
+					// the buffers are reused for all rows of a thread
+					final float[] tempIn = new float[width];
+					final float[] tempOut = new float[complexWidth];
+					final FftReal fft = new FftReal(width);
 
-			fft.realToComplex( -1, tempIn, tempOut);
+					for (int y = 0; y < height; y++)
+						if (y % numThreads == myNumber)
+						{
+							for (int x = 0; x < width; x++)
+								tempIn[x] = values.get(x, y);
 
-			if (scale)
-				fft.scale(width, tempOut);
+							fft.realToComplex( -1, tempIn, tempOut);
 
-			for (int x = 0; x < complexWidth; x++)
-				result.set(tempOut[x], x, y);
-		}
+							if (scale)
+								fft.scale(width, tempOut);
+
+							for (int x = 0; x < complexWidth; x++)
+								result.set(tempOut[x], x, y);
+						}
+				}
+			});
+		startAndJoin(threads);
 
 		// do fft's in y-direction on the complex numbers
-		tempIn = new float[height * 2];
+		ai.set(0);
+		threads = newThreads(numThreads);
 
-		FftComplex fftc = new FftComplex(height);
+		for (int ithread = 0; ithread < threads.length; ++ithread)
+			threads[ithread] = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					int myNumber = ai.getAndIncrement();
 
-		for (int x = 0; x < complexWidth / 2; x++)
-		{
-			tempOut = new float[height * 2];
+					final float[] tempIn = new float[height * 2];
+					final float[] tempOut = new float[height * 2];
+					final FftComplex fftc = new FftComplex(height);
 
-			for (int y = 0; y < height; y++)
-			{
-				tempIn[y * 2] = result.get(x * 2, y);
-				tempIn[y * 2 + 1] = result.get(x * 2 + 1, y);
-			}
+					for (int x = 0; x < complexWidth / 2; x++)
+						if (x % numThreads == myNumber)
+						{
+							for (int y = 0; y < height; y++)
+							{
+								tempIn[y * 2] = result.get(x * 2, y);
+								tempIn[y * 2 + 1] = result.get(x * 2 + 1, y);
+							}
 
-			fftc.complexToComplex( -1, tempIn, tempOut);
+							fftc.complexToComplex( -1, tempIn, tempOut);
 
-			for (int y = 0; y < height; y++)
-			{
-				result.set(tempOut[y * 2], x * 2, y);
-				result.set(tempOut[y * 2 + 1], x * 2 + 1, y);
-			}
-		}
+							for (int y = 0; y < height; y++)
+							{
+								result.set(tempOut[y * 2], x * 2, y);
+								result.set(tempOut[y * 2 + 1], x * 2 + 1, y);
+							}
+						}
+				}
+			});
+		startAndJoin(threads);
 
 		return result;
 	}
 
 	public static FloatArray2D pffftInv2D(FloatArray2D values, int nfft)
 	{
-		int height = values.height;
-		int width = nfft;
-		int complexWidth = (width / 2 + 1) * 2;
+		return pffftInv2D(values, nfft, Runtime.getRuntime().availableProcessors());
+	}
 
-		FloatArray2D result = new FloatArray2D(width, height);
+	public static FloatArray2D pffftInv2D(final FloatArray2D values, final int nfft, final int numThreads)
+	{
+		final int height = values.height;
+		final int width = nfft;
+		final int complexWidth = (width / 2 + 1) * 2;
+
+		final FloatArray2D result = new FloatArray2D(width, height);
 
 		// do inverse fft's in y-direction on the complex numbers
-		float[] tempIn = new float[height * 2];
-		float[] tempOut;
+		final AtomicInteger ai = new AtomicInteger(0);
+		Thread[] threads = newThreads(numThreads);
 
-		FftComplex fftc = new FftComplex(height);
+		for (int ithread = 0; ithread < threads.length; ++ithread)
+			threads[ithread] = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					int myNumber = ai.getAndIncrement();
 
-		for (int x = 0; x < complexWidth / 2; x++)
-		{
-			tempOut = new float[height * 2];
+					// the buffers are reused for all columns of a thread
+					final float[] tempIn = new float[height * 2];
+					final float[] tempOut = new float[height * 2];
+					final FftComplex fftc = new FftComplex(height);
 
-			for (int y = 0; y < height; y++)
-			{
-				tempIn[y * 2] = values.get(x * 2, y);
-				tempIn[y * 2 + 1] = values.get(x * 2 + 1, y);
-			}
+					for (int x = 0; x < complexWidth / 2; x++)
+						if (x % numThreads == myNumber)
+						{
+							for (int y = 0; y < height; y++)
+							{
+								tempIn[y * 2] = values.get(x * 2, y);
+								tempIn[y * 2 + 1] = values.get(x * 2 + 1, y);
+							}
 
-			fftc.complexToComplex(1, tempIn, tempOut);
+							fftc.complexToComplex(1, tempIn, tempOut);
 
-			for (int y = 0; y < height; y++)
-			{
-				values.set(tempOut[y * 2], x * 2, y);
-				values.set(tempOut[y * 2 + 1], x * 2 + 1, y);
-			}
-		}
+							for (int y = 0; y < height; y++)
+							{
+								values.set(tempOut[y * 2], x * 2, y);
+								values.set(tempOut[y * 2 + 1], x * 2 + 1, y);
+							}
+						}
+				}
+			});
+		startAndJoin(threads);
 
-		//do inverse fft's in x direction
-		tempIn = new float[complexWidth];
+		// do inverse fft's in x direction
+		ai.set(0);
+		threads = newThreads(numThreads);
 
-		FftReal fft = new FftReal(width);
+		for (int ithread = 0; ithread < threads.length; ++ithread)
+			threads[ithread] = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					int myNumber = ai.getAndIncrement();
 
-		for (int y = 0; y < height; y++)
-		{
-			tempOut = new float[width];
+					final float[] tempIn = new float[complexWidth];
+					final float[] tempOut = new float[width];
+					final FftReal fft = new FftReal(width);
 
-			for (int x = 0; x < complexWidth; x++)
-				tempIn[x] = values.get(x, y);
+					for (int y = 0; y < height; y++)
+						if (y % numThreads == myNumber)
+						{
+							for (int x = 0; x < complexWidth; x++)
+								tempIn[x] = values.get(x, y);
 
-			fft.complexToReal(1, tempIn, tempOut);
+							fft.complexToReal(1, tempIn, tempOut);
 
-			fft.scale(width, tempOut);
+							fft.scale(width, tempOut);
 
-			for (int x = 0; x < width; x++)
-				result.set(tempOut[x], x, y);
-		}
+							for (int x = 0; x < width; x++)
+								result.set(tempOut[x], x, y);
+						}
+				}
+			});
+		startAndJoin(threads);
 
 		return result;
 	}
 	
 	public static FloatArray3D pffft3DMT(final FloatArray3D values, final boolean scale)
+	{
+		return pffft3DMT(values, scale, Runtime.getRuntime().availableProcessors());
+	}
+
+	public static FloatArray3D pffft3DMT(final FloatArray3D values, final boolean scale, final int numThreads)
 	{
 		final int height = values.height;
 		final int width = values.width;
@@ -623,8 +690,7 @@ public class CommonFunctions
 
 		// do fft's in x direction
 		final AtomicInteger ai = new AtomicInteger(0);
-		Thread[] threads = newThreads();
-		final int numThreads = threads.length;
+		Thread[] threads = newThreads(numThreads);
 
 		for (int ithread = 0; ithread < threads.length; ++ithread)
 			threads[ithread] = new Thread(new Runnable()
@@ -659,7 +725,7 @@ public class CommonFunctions
 
 		// do fft's in y direction
 		ai.set(0);
-		threads = newThreads();
+		threads = newThreads(numThreads);
 
 		for (int ithread = 0; ithread < threads.length; ++ithread)
 			threads[ithread] = new Thread(new Runnable()
@@ -699,7 +765,7 @@ public class CommonFunctions
 
 		// do fft's in z direction
 		ai.set(0);
-		threads = newThreads();
+		threads = newThreads(numThreads);
 
 		for (int ithread = 0; ithread < threads.length; ++ithread)
 			threads[ithread] = new Thread(new Runnable()
@@ -741,6 +807,11 @@ public class CommonFunctions
 	}
 
 	public static FloatArray2D computePhaseCorrelationMatrix(FloatArray2D fft1, FloatArray2D fft2, int width)
+	{
+		return computePhaseCorrelationMatrix(fft1, fft2, width, Runtime.getRuntime().availableProcessors());
+	}
+
+	public static FloatArray2D computePhaseCorrelationMatrix(FloatArray2D fft1, FloatArray2D fft2, final int width, final int numThreads)
 	{
 		//
 		// Do Phase Correlation
@@ -751,7 +822,7 @@ public class CommonFunctions
 		fft1.data = fft2.data = null;
 		fft1 = fft2 = null;
 
-		FloatArray2D ipcm = pffftInv2D(pcm, width);
+		FloatArray2D ipcm = pffftInv2D(pcm, width, numThreads);
 
 		pcm.data = null;
 		pcm = null;
@@ -761,13 +832,23 @@ public class CommonFunctions
 
 	public static FloatArray2D computeFFT(FloatArray2D img)
 	{
-		FloatArray2D fft = pffft2D(img, false);
+		return computeFFT(img, Runtime.getRuntime().availableProcessors());
+	}
+
+	public static FloatArray2D computeFFT(final FloatArray2D img, final int numThreads)
+	{
+		FloatArray2D fft = pffft2D(img, false, numThreads);
 		//img.data = null; img = null;
 
 		return fft;
 	}
 
 	public static FloatArray3D computePhaseCorrelationMatrix(FloatArray3D fft1, FloatArray3D fft2, int width)
+	{
+		return computePhaseCorrelationMatrix(fft1, fft2, width, Runtime.getRuntime().availableProcessors());
+	}
+
+	public static FloatArray3D computePhaseCorrelationMatrix(FloatArray3D fft1, FloatArray3D fft2, final int width, final int numThreads)
 	{
 		//
 		// Do Phase Correlation
@@ -778,7 +859,7 @@ public class CommonFunctions
 		fft1.data = fft2.data = null;
 		fft1 = fft2 = null;
 
-		FloatArray3D ipcm = pffftInv3DMT(pcm, width);
+		FloatArray3D ipcm = pffftInv3DMT(pcm, width, numThreads);
 
 		pcm.data = null;
 		pcm = null;
@@ -788,7 +869,12 @@ public class CommonFunctions
 
 	public static FloatArray3D computeFFT(FloatArray3D img)
 	{
-		FloatArray3D fft = pffft3DMT(img, false);
+		return computeFFT(img, Runtime.getRuntime().availableProcessors());
+	}
+
+	public static FloatArray3D computeFFT(final FloatArray3D img, final int numThreads)
+	{
+		FloatArray3D fft = pffft3DMT(img, false, numThreads);
 		// img.data = null; img = null;
 
 		return fft;
@@ -902,6 +988,11 @@ public class CommonFunctions
 	}
 
 	public static FloatArray3D pffftInv3DMT(final FloatArray3D values, final int nfft)
+	{
+		return pffftInv3DMT(values, nfft, Runtime.getRuntime().availableProcessors());
+	}
+
+	public static FloatArray3D pffftInv3DMT(final FloatArray3D values, final int nfft, final int numThreads)
 	{
 		final int depth = values.depth;
 		final int height = values.height;
@@ -912,8 +1003,7 @@ public class CommonFunctions
 
 		// do inverse fft's in z-direction on the complex numbers
 		final AtomicInteger ai = new AtomicInteger(0);
-		Thread[] threads = newThreads();
-		final int numThreads = threads.length;
+		Thread[] threads = newThreads(numThreads);
 
 		for (int ithread = 0; ithread < threads.length; ++ithread)
 			threads[ithread] = new Thread(new Runnable()
@@ -954,7 +1044,7 @@ public class CommonFunctions
 
 		// do inverse fft's in y-direction on the complex numbers
 		ai.set(0);
-		threads = newThreads();
+		threads = newThreads(numThreads);
 
 		for (int ithread = 0; ithread < threads.length; ++ithread)
 			threads[ithread] = new Thread(new Runnable()
@@ -993,7 +1083,7 @@ public class CommonFunctions
 
 		// do inverse fft's in x direction
 		ai.set(0);
-		threads = newThreads();
+		threads = newThreads(numThreads);
 
 		for (int ithread = 0; ithread < threads.length; ++ithread)
 			threads[ithread] = new Thread(new Runnable()
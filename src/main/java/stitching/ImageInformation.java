@@ -43,6 +43,7 @@ package stitching;
 
 
 import ij.ImagePlus;
+import ij.measure.Calibration;
 import stitching.model.Model;
 import stitching.model.Tile;
 
@@ -70,6 +71,9 @@ public class ImageInformation extends Tile implements Comparable<ImageInformatio
 	
 	public String imageName;
 	public ImagePlus imp = null, maxIntensity = null, tmp = null;
+	
+	// kept when the image is closed after reading its size, it is opened again when it is needed
+	public Calibration calibration = null;
 	public boolean overlaps = false;
 	public boolean invalid = false;
 	final public float[] offset;
@@ -0,0 +1,166 @@
+/*
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2022 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package stitching;
+
+/**
+ * Keeps the k highest peaks of a phase correlation matrix in a min-heap of
+ * primitive values and positions, so that each thread can collect its own
+ * peaks and the heaps are merged afterwards.
+ * 
+ * Peaks are ranked by their value, a peak with the same value ranks higher if
+ * it has a lower position in the matrix (i.e. was found first when scanning it).
+ * This is the order the sorted list of the serial scan in findPeaks keeps.
+ */
+public class PeakHeap
+{
+	final int capacity;
+	final float[] values;
+	final long[] positions;
+	int size = 0;
+
+	/**
+	 * @param capacity the number of peaks to keep
+	 */
+	public PeakHeap(final int capacity)
+	{
+		this.capacity = capacity;
+		this.values = new float[capacity];
+		this.positions = new long[capacity];
+	}
+
+	public int size() { return size; }
+
+	/**
+	 * Adds a peak if it is among the k highest ones seen so far.
+	 * 
+	 * @param value the value of the peak
+	 * @param position the linear position of the peak in the matrix
+	 */
+	public void add(final float value, final long position)
+	{
+		if (size < capacity)
+		{
+			values[size] = value;
+			positions[size] = position;
+			siftUp(size++);
+		}
+		else if (capacity > 0 && isLower(values[0], positions[0], value, position))
+		{
+			values[0] = value;
+			positions[0] = position;
+			siftDown(0);
+		}
+	}
+
+	/**
+	 * Adds all peaks of another heap.
+	 * 
+	 * @param heap the other heap
+	 */
+	public void addAll(final PeakHeap heap)
+	{
+		for (int i = 0; i < heap.size; i++)
+			add(heap.values[i], heap.positions[i]);
+	}
+
+	/**
+	 * @return the indices into {@link #getValue(int)} and {@link #getPosition(int)}
+	 * from the lowest to the highest peak
+	 */
+	public int[] getAscendingOrder()
+	{
+		final int[] order = new int[size];
+
+		for (int i = 0; i < size; i++)
+		{
+			int j = i;
+
+			while (j > 0 && isLower(values[i], positions[i], values[order[j - 1]], positions[order[j - 1]]))
+			{
+				order[j] = order[j - 1];
+				j--;
+			}
+
+			order[j] = i;
+		}
+
+		return order;
+	}
+
+	public float getValue(final int i) { return values[i]; }
+	public long getPosition(final int i) { return positions[i]; }
+
+	/**
+	 * @return true if the first peak ranks lower than the second one
+	 */
+	final private static boolean isLower(final float value1, final long position1, final float value2, final long position2)
+	{
+		return value1 < value2 || (value1 == value2 && position1 > position2);
+	}
+
+	final private void siftUp(int i)
+	{
+		while (i > 0)
+		{
+			final int parent = (i - 1) / 2;
+
+			if (!isLower(values[i], positions[i], values[parent], positions[parent]))
+				break;
+
+			swap(i, parent);
+			i = parent;
+		}
+	}
+
+	final private void siftDown(int i)
+	{
+		while (true)
+		{
+			final int left = 2 * i + 1;
+			final int right = left + 1;
+			int lowest = i;
+
+			if (left < size && isLower(values[left], positions[left], values[lowest], positions[lowest]))
+				lowest = left;
+
+			if (right < size && isLower(values[right], positions[right], values[lowest], positions[lowest]))
+				lowest = right;
+
+			if (lowest == i)
+				return;
+
+			swap(i, lowest);
+			i = lowest;
+		}
+	}
+
+	final private void swap(final int i, final int j)
+	{
+		final float value = values[i];
+		values[i] = values[j];
+		values[j] = value;
+
+		final long position = positions[i];
+		positions[i] = positions[j];
+		positions[j] = position;
+	}
+}
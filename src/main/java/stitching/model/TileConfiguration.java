@@ -25,7 +25,10 @@ import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.concurrent.Callable;
 
+import mpicbg.stitching.StitchingThreadPool;
 import stitching.utils.Log;
 
 /**
@@ -55,6 +58,8 @@ public class TileConfiguration
 	private double error = Double.MAX_VALUE;
 	private Tile worstTile = null;
 	
+	private boolean multiThreaded = false;
+	
 	public TileConfiguration()
 	{
 		decimalFormatSymbols.setGroupingSeparator( ',' );
@@ -69,6 +74,16 @@ public class TileConfiguration
 	final public Tile getWorstError() {	return worstTile; }
 	final public double getAvgError() {	return error; }
 	
+	/**
+	 * Fit all tiles at once in parallel against the positions of the
+	 * previous iteration (Jacobi) instead of one after the other against
+	 * the latest positions (Gauss-Seidel).
+	 * 
+	 * @param multiThreaded
+	 */
+	final public void setMultiThreaded( final boolean multiThreaded ){ this.multiThreaded = multiThreaded; }
+	final public boolean isMultiThreaded(){ return multiThreaded; }
+	
 	/**
 	 * Add a single tile.
 	 * 
@@ -95,13 +110,24 @@ public class TileConfiguration
 	 * displacement. 
 	 */
 	final private void update()
+	{
+		for ( Tile t : tiles )
+			t.update();
+		
+		updateErrors();
+	}
+	
+	/**
+	 * Estimate the average displacement from the correspondences as they
+	 * were last updated.
+	 */
+	final private void updateErrors()
 	{
 		double cd = 0.0;
 		minError = Double.MAX_VALUE;
 		maxError = 0.0;
 		for ( Tile t : tiles )
 		{
-			t.update();
 			double d = t.getDistance();
 			if ( d < minError ) minError = d;
 			if ( d > maxError ) 
@@ -132,18 +158,36 @@ public class TileConfiguration
 	{
 		ErrorStatistic observer = new ErrorStatistic();
 		
+		final HashSet< Tile > fixed = new HashSet< Tile >( fixedTiles );
+		final ArrayList< Tile > freeTiles = new ArrayList< Tile >();
+		
+		for ( Tile tile : tiles )
+			if ( !fixed.contains( tile ) )
+				freeTiles.add( tile );
+		
+		if ( multiThreaded )
+			updateInParallel( tiles );
+		
 		int i = 0;
 		
 		while ( i < maxIterations )  // do not run forever
 		{
-			for ( Tile tile : tiles )
+			if ( multiThreaded )
 			{
-				if ( fixedTiles.contains( tile ) ) continue;
-				tile.update();
-				tile.fitModel();
-				tile.update();
+				fitInParallel( freeTiles );
+				updateInParallel( tiles );
+				updateErrors();
+			}
+			else
+			{
+				for ( Tile tile : freeTiles )
+				{
+					tile.update();
+					tile.fitModel();
+					tile.update();
+				}
+				update();
 			}
-			update();
 			observer.add( error );			
 			
 			if (
@@ -162,5 +206,67 @@ public class TileConfiguration
 		Log.info( "  minimal displacement: " + decimalFormat.format( minError ) + "px" );
 		Log.info( "  maximal displacement: " + decimalFormat.format( maxError ) + "px" );
 	}
-
+	
+	/**
+	 * Fit the models of all given tiles in parallel.  A tile only reads the
+	 * world coordinates of the points of its neighbours and only writes its
+	 * own model, so all tiles see the positions of the previous iteration.
+	 */
+	final private void fitInParallel( final ArrayList< Tile > list ) throws NotEnoughDataPointsException
+	{
+		try
+		{
+			runInParallel( list, true );
+		}
+		catch ( RuntimeException e )
+		{
+			if ( e.getCause() instanceof NotEnoughDataPointsException )
+				throw ( NotEnoughDataPointsException )e.getCause();
+			
+			throw e;
+		}
+	}
+	
+	/**
+	 * Update all correspondences of all given tiles in parallel.  The points
+	 * of a tile are shared with the correspondences of its neighbours, so
+	 * first all points are transferred and then, once all of them are in
+	 * place, the distances are measured.
+	 */
+	final private void updateInParallel( final ArrayList< Tile > list )
+	{
+		runInParallel( list, false );
+		runInParallel( list, false );
+	}
+	
+	final private void runInParallel( final ArrayList< Tile > list, final boolean fit )
+	{
+		final int numTasks = Math.min( list.size(), StitchingThreadPool.getParallelism() * 4 );
+		final ArrayList< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
+		
+		for ( int t = 0; t < numTasks; ++t )
+		{
+			final int start = ( int )( ( long )list.size() * t / numTasks );
+			final int end = ( int )( ( long )list.size() * ( t + 1 ) / numTasks );
+			
+			tasks.add( new Callable< Void >()
+			{
+				@Override
+				public Void call() throws NotEnoughDataPointsException
+				{
+					for ( int j = start; j < end; ++j )
+					{
+						if ( fit )
+							list.get( j ).fitModel();
+						else
+							list.get( j ).update();
+					}
+					
+					return null;
+				}
+			});
+		}
+		
+		StitchingThreadPool.invokeAll( tasks );
+	}
 }
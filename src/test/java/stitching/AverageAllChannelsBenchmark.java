@@ -0,0 +1,157 @@
+/*
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2022 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package stitching;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import mpicbg.imglib.container.array.ArrayContainerFactory;
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.image.ImageFactory;
+import mpicbg.imglib.type.numeric.integer.UnsignedShortType;
+import mpicbg.imglib.type.numeric.real.FloatType;
+import mpicbg.stitching.PairWiseStitchingImgLib;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares copying a roi of a multi-channel 16-bit image into the input of
+ * the phase correlation with cursors per pixel and channel against the row by
+ * row path for array-backed images.
+ * <p>
+ * Run with {@code mvn test-compile exec:java
+ * -Dexec.mainClass=stitching.AverageAllChannelsBenchmark
+ * -Dexec.classpathScope=test}.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AverageAllChannelsBenchmark {
+
+	private static final int width = 1024, height = 1024, numSlices = 8;
+
+	@Param({ "1", "4" })
+	public int numChannels;
+
+	@Param({ "2", "3" })
+	public int numDimensions;
+
+	private ImagePlus imp;
+	private ArrayList<Image<UnsignedShortType>> channels;
+	private Image<FloatType> target;
+	private int[] offset;
+
+	/**
+	 * Gives access to the cursor path that is used for all other containers.
+	 */
+	private static class CursorPath extends PairWiseStitchingImgLib {
+
+		static void averageAllChannels(final Image<FloatType> target,
+			final ArrayList<Image<UnsignedShortType>> sources, final int[] offset)
+		{
+			PairWiseStitchingImgLib.averageAllChannels(target, sources, offset);
+		}
+	}
+
+	@Setup
+	public void setup() {
+		final int depth = numDimensions == 3 ? numSlices : 1;
+		final Random rnd = new Random(42);
+		final ImageStack stack = new ImageStack(width, height);
+
+		for (int z = 0; z < depth; ++z)
+			for (int c = 0; c < numChannels; ++c) {
+				final short[] pixels = new short[width * height];
+
+				for (int i = 0; i < pixels.length; ++i)
+					pixels[i] = (short) rnd.nextInt(65536);
+
+				stack.addSlice("", pixels);
+			}
+
+		imp = new ImagePlus("benchmark", stack);
+		imp.setDimensions(numChannels, depth, 1);
+
+		channels = new ArrayList<Image<UnsignedShortType>>();
+
+		for (int c = 1; c <= numChannels; ++c)
+			channels.add(PairWiseStitchingImgLib.getWrappedImageUnsignedShort(imp,
+				c, 1));
+
+		// a roi as it is used for the overlap of two tiles
+		final int[] size;
+
+		if (numDimensions == 3) {
+			offset = new int[] { 128, 64, 1 };
+			size = new int[] { width - 256, height - 128, depth - 2 };
+		}
+		else {
+			offset = new int[] { 128, 64 };
+			size = new int[] { width - 256, height - 128 };
+		}
+
+		target = new ImageFactory<FloatType>(new FloatType(),
+			new ArrayContainerFactory()).createImage(size);
+	}
+
+	@Benchmark
+	public Image<FloatType> cursors() {
+		CursorPath.averageAllChannels(target, channels, offset);
+		return target;
+	}
+
+	@Benchmark
+	public Image<FloatType> rows() {
+		if (numChannels == 1) PairWiseStitchingImgLib.fillInChannel(target,
+			offset, imp, 1, 1);
+		else PairWiseStitchingImgLib.averageAllChannels(target, offset, imp, 1);
+
+		return target;
+	}
+
+	public static void main(final String... args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(AverageAllChannelsBenchmark.class
+			.getSimpleName()).build()).run();
+	}
+}
@@ -0,0 +1,201 @@
+/*
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2022 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package stitching;
+
+import static org.junit.Assert.assertEquals;
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import mpicbg.imglib.container.array.ArrayContainerFactory;
+import mpicbg.imglib.cursor.Cursor;
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.image.ImageFactory;
+import mpicbg.imglib.type.numeric.RealType;
+import mpicbg.imglib.type.numeric.real.FloatType;
+import mpicbg.stitching.PairWiseStitchingImgLib;
+
+import org.junit.Test;
+
+/**
+ * Compares the row by row copy of array-backed images with the cursor path of
+ * {@link PairWiseStitchingImgLib} that is used for all other containers.
+ */
+public class AverageAllChannelsTest {
+
+	private static final int width = 23, height = 17, numSlices = 5;
+
+	/**
+	 * Gives access to the cursor path.
+	 */
+	private static class CursorPath extends PairWiseStitchingImgLib {
+
+		static <S extends RealType<S>> void averageAllChannels(
+			final Image<FloatType> target, final ArrayList<Image<S>> sources,
+			final int[] offset)
+		{
+			PairWiseStitchingImgLib.averageAllChannels(target, sources, offset);
+		}
+	}
+
+	@Test
+	public void testByte() {
+		for (final int numChannels : new int[] { 1, 2, 3, 5, 7 })
+			for (final int numDimensions : new int[] { 2, 3 })
+				assertSameAsCursors(ImagePlus.GRAY8, numChannels, numDimensions);
+	}
+
+	@Test
+	public void testShort() {
+		for (final int numChannels : new int[] { 1, 2, 3, 5, 7 })
+			for (final int numDimensions : new int[] { 2, 3 })
+				assertSameAsCursors(ImagePlus.GRAY16, numChannels, numDimensions);
+	}
+
+	@Test
+	public void testFloat() {
+		for (final int numChannels : new int[] { 1, 2, 3, 5, 7 })
+			for (final int numDimensions : new int[] { 2, 3 })
+				assertSameAsCursors(ImagePlus.GRAY32, numChannels, numDimensions);
+	}
+
+	private static void assertSameAsCursors(final int type,
+		final int numChannels, final int numDimensions)
+	{
+		final int depth = numDimensions == 3 ? numSlices : 1;
+		final ImagePlus imp = createImage(type, numChannels, depth, new Random(
+			type + 10 * numChannels));
+
+		final int[] offset;
+		final int[] size;
+
+		if (numDimensions == 3) {
+			offset = new int[] { 4, 3, 1 };
+			size = new int[] { width - 7, height - 5, depth - 2 };
+		}
+		else {
+			offset = new int[] { 4, 3 };
+			size = new int[] { width - 7, height - 5 };
+		}
+
+		final ImageFactory<FloatType> factory = new ImageFactory<FloatType>(
+			new FloatType(), new ArrayContainerFactory());
+
+		// the array container is copied row by row
+		final Image<FloatType> rows = factory.createImage(size);
+
+		if (numChannels == 1) PairWiseStitchingImgLib.fillInChannel(rows, offset,
+			imp, 1, 1);
+		else PairWiseStitchingImgLib.averageAllChannels(rows, offset, imp, 1);
+
+		final Image<FloatType> cursors = factory.createImage(size);
+
+		if (type == ImagePlus.GRAY8) {
+			final ArrayList<Image<mpicbg.imglib.type.numeric.integer.UnsignedByteType>> sources =
+				new ArrayList<Image<mpicbg.imglib.type.numeric.integer.UnsignedByteType>>();
+
+			for (int c = 1; c <= numChannels; ++c)
+				sources.add(PairWiseStitchingImgLib.getWrappedImageUnsignedByte(imp,
+					c, 1));
+
+			CursorPath.averageAllChannels(cursors, sources, offset);
+		}
+		else if (type == ImagePlus.GRAY16) {
+			final ArrayList<Image<mpicbg.imglib.type.numeric.integer.UnsignedShortType>> sources =
+				new ArrayList<Image<mpicbg.imglib.type.numeric.integer.UnsignedShortType>>();
+
+			for (int c = 1; c <= numChannels; ++c)
+				sources.add(PairWiseStitchingImgLib.getWrappedImageUnsignedShort(imp,
+					c, 1));
+
+			CursorPath.averageAllChannels(cursors, sources, offset);
+		}
+		else {
+			final ArrayList<Image<FloatType>> sources =
+				new ArrayList<Image<FloatType>>();
+
+			for (int c = 1; c <= numChannels; ++c)
+				sources.add(PairWiseStitchingImgLib.getWrappedImageFloat(imp, c, 1));
+
+			CursorPath.averageAllChannels(cursors, sources, offset);
+		}
+
+		final Cursor<FloatType> r = rows.createCursor();
+		final Cursor<FloatType> c = cursors.createCursor();
+
+		while (r.hasNext()) {
+			r.fwd();
+			c.fwd();
+
+			assertEquals("type " + type + ", " + numChannels + " channels, " +
+				numDimensions + "d", c.getType().get(), r.getType().get(), 0);
+		}
+
+		r.close();
+		c.close();
+		rows.close();
+		cursors.close();
+	}
+
+	/**
+	 * A hyperstack with random values, channels are interleaved with the slices
+	 */
+	private static ImagePlus createImage(final int type, final int numChannels,
+		final int depth, final Random rnd)
+	{
+		final ImageStack stack = new ImageStack(width, height);
+
+		for (int z = 0; z < depth; ++z)
+			for (int c = 0; c < numChannels; ++c) {
+				final int n = width * height;
+
+				if (type == ImagePlus.GRAY8) {
+					final byte[] pixels = new byte[n];
+					rnd.nextBytes(pixels);
+					stack.addSlice("", pixels);
+				}
+				else if (type == ImagePlus.GRAY16) {
+					final short[] pixels = new short[n];
+
+					for (int i = 0; i < n; ++i)
+						pixels[i] = (short) rnd.nextInt(65536);
+
+					stack.addSlice("", pixels);
+				}
+				else {
+					final float[] pixels = new float[n];
+
+					for (int i = 0; i < n; ++i)
+						pixels[i] = (float) (rnd.nextGaussian() * 1000);
+
+					stack.addSlice("", pixels);
+				}
+			}
+
+		final ImagePlus imp = new ImagePlus("test", stack);
+		imp.setDimensions(numChannels, depth, 1);
+
+		return imp;
+	}
+}
@@ -0,0 +1,386 @@
+/*
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2022 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package stitching;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.zip.Inflater;
+
+import loci.common.DataTools;
+import loci.formats.FormatTools;
+import loci.formats.ImageReader;
+import mpicbg.stitching.fusion.BigTiffWriter;
+
+import org.junit.Test;
+
+/**
+ * Tests for the {@link BigTiffWriter} class, the files are read back by a
+ * minimal BigTIFF reader that also checks the layout of the file, and by
+ * Bio-Formats.
+ */
+public class BigTiffWriterTest {
+
+	@Test
+	public void testUncompressed8Bit() throws Exception {
+		testRoundTrip(8, BigTiffWriter.NONE, 100, 70, 32, 1, 3, 1);
+	}
+
+	@Test
+	public void testDeflate16Bit() throws Exception {
+		testRoundTrip(16, BigTiffWriter.DEFLATE, 130, 90, 64, 2, 2, 1);
+	}
+
+	@Test
+	public void testLZW32Bit() throws Exception {
+		// large tiles of noise, so that the LZW table fills up several times
+		testRoundTrip(32, BigTiffWriter.LZW, 300, 260, 256, 1, 1, 2);
+	}
+
+	@Test
+	public void testSingleTile() throws Exception {
+		testRoundTrip(16, BigTiffWriter.LZW, 20, 10, 16, 1, 1, 1);
+	}
+
+	@Test
+	public void testHyperstack() throws Exception {
+		testRoundTrip(16, BigTiffWriter.NONE, 40, 30, 16, 2, 3, 2);
+	}
+
+	@Test
+	public void testLZWRoundTrip() {
+		final Random rnd = new Random(5);
+
+		for (int n = 0; n < 50; ++n) {
+			final byte[] data = new byte[rnd.nextInt(20000)];
+
+			// runs of few different values compress well and use long codes
+			for (int i = 0; i < data.length; ++i)
+				data[i] = (byte) (n % 2 == 0 ? rnd.nextInt(256) : (i / (1 + n)) %
+					(1 + n));
+
+			assertArrayEquals(data, unlzw(BigTiffWriter.lzw(data)));
+		}
+	}
+
+	/**
+	 * Writes random planes in shuffled order from several threads and reads
+	 * them back, with the minimal reader and with Bio-Formats.
+	 */
+	private void testRoundTrip(final int bitDepth, final int compression,
+		final int width, final int height, final int tileSize,
+		final int numChannels, final int numSlices, final int numFrames)
+		throws Exception
+	{
+		final int numPlanes = numChannels * numSlices * numFrames;
+		final File file = File.createTempFile("bigtiff", ".tif");
+		file.deleteOnExit();
+
+		final Random rnd = new Random(bitDepth + compression);
+		final ImageProcessor[] planes = new ImageProcessor[numPlanes];
+
+		for (int i = 0; i < numPlanes; ++i) {
+			if (bitDepth == 8) planes[i] = new ByteProcessor(width, height);
+			else if (bitDepth == 16) planes[i] = new ShortProcessor(width, height);
+			else planes[i] = new FloatProcessor(width, height);
+
+			for (int p = 0; p < width * height; ++p)
+				planes[i].setf(p, bitDepth == 32 ? (float) rnd.nextGaussian() : rnd
+					.nextInt(1 << Math.min(bitDepth, 12)));
+		}
+
+		final String description = BigTiffWriter.hyperstackDescription(
+			numChannels, numSlices, numFrames);
+		final BigTiffWriter writer = new BigTiffWriter(file, width, height,
+			bitDepth, numPlanes, description, tileSize, compression);
+
+		final Thread[] threads = new Thread[numPlanes];
+
+		for (int i = 0; i < numPlanes; ++i) {
+			final int index = numPlanes - 1 - i;
+			threads[i] = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						writer.writePlane(index, planes[index]);
+					}
+					catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			});
+			threads[i].start();
+		}
+
+		for (final Thread thread : threads)
+			thread.join();
+
+		writer.close();
+
+		final ArrayList<ImageProcessor> read = new ArrayList<ImageProcessor>();
+		final String readDescription = read(file, read);
+
+		assertEquals(description, readDescription);
+		assertEquals(numPlanes, read.size());
+
+		for (int i = 0; i < numPlanes; ++i) {
+			assertEquals(bitDepth, read.get(i).getBitDepth());
+
+			for (int p = 0; p < width * height; ++p)
+				assertEquals(planes[i].getf(p), read.get(i).getf(p), 0);
+		}
+
+		final ImageReader reader = new ImageReader();
+
+		try {
+			reader.setId(file.getAbsolutePath());
+
+			assertEquals(width, reader.getSizeX());
+			assertEquals(height, reader.getSizeY());
+			assertEquals(numChannels, reader.getSizeC());
+			assertEquals(numSlices, reader.getSizeZ());
+			assertEquals(numFrames, reader.getSizeT());
+			assertEquals(numPlanes, reader.getImageCount());
+			assertEquals(bitDepth == 8 ? FormatTools.UINT8 : bitDepth == 16
+				? FormatTools.UINT16 : FormatTools.FLOAT, reader.getPixelType());
+
+			final int bytesPerPixel = bitDepth / 8;
+			final boolean little = reader.isLittleEndian();
+
+			for (int c = 0; c < numChannels; ++c)
+				for (int z = 0; z < numSlices; ++z)
+					for (int t = 0; t < numFrames; ++t) {
+						// the planes are written in ImageJ order, channels first
+						final ImageProcessor plane = planes[(t * numSlices + z) *
+							numChannels + c];
+						final byte[] bytes = reader.openBytes(reader.getIndex(z, c, t));
+
+						assertEquals(width * height * bytesPerPixel, bytes.length);
+
+						for (int p = 0; p < width * height; ++p) {
+							final int i = p * bytesPerPixel;
+							final float value = bitDepth == 8 ? bytes[i] & 0xff
+								: bitDepth == 16 ? DataTools.bytesToShort(bytes, i, little) &
+									0xffff : DataTools.bytesToFloat(bytes, i, little);
+
+							assertEquals(plane.getf(p), value, 0);
+						}
+					}
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Reads all planes of a single-channel, tiled BigTIFF written by
+	 * {@link BigTiffWriter}.
+	 * 
+	 * @return the image description of the first plane
+	 */
+	private static String read(final File file,
+		final ArrayList<ImageProcessor> planes) throws Exception
+	{
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		final byte[] bytes = new byte[(int) raf.length()];
+		raf.readFully(bytes);
+		raf.close();
+
+		final ByteBuffer in = ByteBuffer.wrap(bytes).order(
+			ByteOrder.LITTLE_ENDIAN);
+
+		assertEquals('I', in.get(0));
+		assertEquals('I', in.get(1));
+		assertEquals(43, in.getShort(2));
+		assertEquals(8, in.getShort(4));
+
+		String description = null;
+		long ifd = in.getLong(8);
+
+		while (ifd != 0) {
+			assertEquals(0, ifd % 2);
+
+			final long numEntries = in.getLong((int) ifd);
+			final HashMap<Integer, long[]> tags = new HashMap<Integer, long[]>();
+			int lastTag = -1;
+
+			for (int e = 0; e < numEntries; ++e) {
+				final int entry = (int) ifd + 8 + e * 20;
+				final int tag = in.getShort(entry) & 0xffff;
+				final int type = in.getShort(entry + 2);
+				final int count = (int) in.getLong(entry + 4);
+
+				// the entries have to be sorted
+				assertEquals(true, tag > lastTag);
+				lastTag = tag;
+
+				final int size = type == 2 ? 1 : type == 3 ? 2 : type == 4 ? 4 : 8;
+				final int values = size * count <= 8 ? entry + 12 : (int) in.getLong(
+					entry + 12);
+
+				if (type == 2) {
+					description = new String(bytes, values, count - 1, "US-ASCII");
+					continue;
+				}
+
+				final long[] v = new long[count];
+
+				for (int i = 0; i < count; ++i)
+					v[i] = type == 3 ? in.getShort(values + 2 * i) & 0xffff
+						: type == 4 ? in.getInt(values + 4 * i) & 0xffffffffL : in.getLong(
+							values + 8 * i);
+
+				tags.put(tag, v);
+			}
+
+			final int width = (int) tags.get(256)[0];
+			final int height = (int) tags.get(257)[0];
+			final int bitDepth = (int) tags.get(258)[0];
+			final int compression = (int) tags.get(259)[0];
+			final int tileWidth = (int) tags.get(322)[0];
+			final int tileHeight = (int) tags.get(323)[0];
+			final long[] offsets = tags.get(324);
+			final long[] byteCounts = tags.get(325);
+			final int bytesPerPixel = bitDepth / 8;
+			final int tilesX = (width + tileWidth - 1) / tileWidth;
+
+			assertEquals(bitDepth == 32 ? 3 : 1, tags.get(339)[0]);
+
+			final ImageProcessor ip = bitDepth == 8 ? new ByteProcessor(width,
+				height) : bitDepth == 16 ? new ShortProcessor(width, height)
+					: new FloatProcessor(width, height);
+
+			for (int t = 0; t < offsets.length; ++t) {
+				final byte[] compressed = new byte[(int) byteCounts[t]];
+				System.arraycopy(bytes, (int) offsets[t], compressed, 0,
+					compressed.length);
+
+				final byte[] raw = compression == 8 ? inflate(compressed)
+					: compression == 5 ? unlzw(compressed) : compressed;
+				assertEquals(tileWidth * tileHeight * bytesPerPixel, raw.length);
+
+				final ByteBuffer tile = ByteBuffer.wrap(raw).order(
+					ByteOrder.LITTLE_ENDIAN);
+
+				for (int y = 0; y < tileHeight; ++y)
+					for (int x = 0; x < tileWidth; ++x) {
+						final int gx = (t % tilesX) * tileWidth + x;
+						final int gy = (t / tilesX) * tileHeight + y;
+						final int i = (y * tileWidth + x) * bytesPerPixel;
+
+						if (gx >= width || gy >= height) continue;
+
+						if (bitDepth == 8) ip.setf(gx, gy, raw[i] & 0xff);
+						else if (bitDepth == 16) ip.setf(gx, gy, tile.getShort(i) &
+							0xffff);
+						else ip.setf(gx, gy, tile.getFloat(i));
+					}
+			}
+
+			planes.add(ip);
+			ifd = in.getLong((int) ifd + 8 + (int) numEntries * 20);
+		}
+
+		return description;
+	}
+
+	private static byte[] inflate(final byte[] data) throws Exception {
+		final Inflater inflater = new Inflater();
+		inflater.setInput(data);
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[65536];
+
+		while (!inflater.finished())
+			out.write(buffer, 0, inflater.inflate(buffer));
+
+		inflater.end();
+		return out.toByteArray();
+	}
+
+	/**
+	 * The LZW decoder of the TIFF 6.0 specification.
+	 */
+	private static byte[] unlzw(final byte[] data) {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte[][] table = new byte[4096][];
+		int next = 258, width = 9;
+		byte[] old = null;
+		long bitPos = 0;
+
+		while (true) {
+			int code = 0;
+
+			for (int b = 0; b < width; ++b, ++bitPos)
+				code = (code << 1) | ((data[(int) (bitPos / 8)] >> (7 - bitPos %
+					8)) & 1);
+
+			if (code == 257) break;
+
+			if (code == 256) {
+				for (int i = 0; i < 256; ++i)
+					table[i] = new byte[] { (byte) i };
+
+				next = 258;
+				width = 9;
+				old = null;
+				continue;
+			}
+
+			final byte[] entry;
+
+			if (old == null) entry = table[code];
+			else {
+				final byte[] first = code < next ? table[code] : old;
+				final byte[] added = new byte[old.length + 1];
+				System.arraycopy(old, 0, added, 0, old.length);
+				added[old.length] = first[0];
+				table[next++] = added;
+				entry = code < next - 1 ? table[code] : added;
+			}
+
+			out.write(entry, 0, entry.length);
+			old = entry;
+
+			if (next == 511) width = 10;
+			else if (next == 1023) width = 11;
+			else if (next == 2047) width = 12;
+		}
+
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,146 @@
+/*
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2022 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package stitching;
+
+import java.util.concurrent.TimeUnit;
+
+import mpicbg.stitching.ComparePairScheduler;
+import mpicbg.stitching.StitchingThreadPool;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures the time to compute the pairs of an unbalanced grid, where every
+ * fourth pair is much slower (e.g. a 3d pair in a mostly 2d grid), when the
+ * pairs are handed out round-robin to a fixed thread each, like it used to be
+ * done, and when the {@link ComparePairScheduler} hands them out as threads
+ * become free. The pairs sleep, so this measures the scheduling and not the
+ * machine.
+ * <p>
+ * Run with {@code mvn test-compile exec:java
+ * -Dexec.mainClass=stitching.ComparePairSchedulerBenchmark
+ * -Dexec.classpathScope=test}.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ComparePairSchedulerBenchmark {
+
+	private static final int numThreads = 4, numPairs = 64;
+
+	/**
+	 * The pairs also differ in size, so the large ones use more threads of the
+	 * pool and fewer of them run at the same time.
+	 */
+	@Param({ "false", "true" })
+	public boolean mixedSizes;
+
+	private long[] memory;
+	private int[] duration;
+
+	@Setup
+	public void setup() {
+		StitchingThreadPool.setParallelism(numThreads);
+
+		memory = new long[numPairs];
+		duration = new int[numPairs];
+
+		for (int i = 0; i < numPairs; ++i) {
+			duration[i] = i % numThreads == 0 ? 40 : 4;
+			memory[i] = mixedSizes && i % numThreads == 0 ? 400 : 100;
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		StitchingThreadPool.setParallelism(Runtime.getRuntime()
+			.availableProcessors());
+	}
+
+	@Benchmark
+	public void roundRobin() throws InterruptedException {
+		final Thread[] threads = new Thread[numThreads];
+
+		for (int t = 0; t < numThreads; ++t) {
+			final int myNumber = t;
+
+			threads[t] = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					for (int i = 0; i < numPairs; ++i)
+						if (i % numThreads == myNumber) sleep(duration[i]);
+				}
+			});
+
+			threads[t].start();
+		}
+
+		for (final Thread thread : threads)
+			thread.join();
+	}
+
+	@Benchmark
+	public void scheduler() {
+		new ComparePairScheduler(memory, 1000, numThreads).run(
+			new ComparePairScheduler.Task()
+			{
+
+				@Override
+				public void run(final int i, final int threads) {
+					sleep(duration[i]);
+				}
+			});
+	}
+
+	private static void sleep(final long ms) {
+		try {
+			Thread.sleep(ms);
+		}
+		catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public static void main(final String... args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(
+			ComparePairSchedulerBenchmark.class.getSimpleName()).build()).run();
+	}
+}
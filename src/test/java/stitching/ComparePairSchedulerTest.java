@@ -0,0 +1,229 @@
+/*
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2022 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package stitching;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mpicbg.stitching.ComparePairScheduler;
+import mpicbg.stitching.StitchingThreadPool;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the {@link ComparePairScheduler} class.
+ */
+public class ComparePairSchedulerTest {
+
+	private static final int numThreads = 4;
+
+	@Before
+	public void setUp() {
+		// the tasks below mostly sleep, so this does not depend on the machine
+		StitchingThreadPool.setParallelism(numThreads);
+	}
+
+	@After
+	public void tearDown() {
+		StitchingThreadPool.setParallelism(Runtime.getRuntime()
+			.availableProcessors());
+	}
+
+	/**
+	 * The running pairs never use more memory than the budget, unless a single
+	 * pair is larger than the budget.
+	 */
+	@Test
+	public void testBudget() {
+		final Random rnd = new Random(1234);
+		final long budget = 1000;
+		final long[] memory = new long[200];
+
+		for (int i = 0; i < memory.length; ++i)
+			memory[i] = 50 + rnd.nextInt(400);
+
+		memory[100] = 5000;
+
+		final AtomicLong used = new AtomicLong();
+		final AtomicLong maxUsed = new AtomicLong();
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger maxRunning = new AtomicInteger();
+		final AtomicInteger processed = new AtomicInteger();
+		final AtomicInteger notAlone = new AtomicInteger();
+
+		new ComparePairScheduler(memory, budget, numThreads)
+			.run(new ComparePairScheduler.Task()
+			{
+
+				@Override
+				public void run(final int i, final int threads) {
+					final long u = used.addAndGet(memory[i]);
+					final int r = running.incrementAndGet();
+
+					if (memory[i] <= budget) updateMax(maxUsed, u);
+					else if (r != 1) notAlone.incrementAndGet();
+
+					synchronized (maxRunning) {
+						maxRunning.set(Math.max(maxRunning.get(), r));
+					}
+
+					sleep(1 + i % 3);
+
+					running.decrementAndGet();
+					used.addAndGet(-memory[i]);
+					processed.incrementAndGet();
+				}
+			});
+
+		assertEquals(memory.length, processed.get());
+		assertEquals(0, notAlone.get());
+		assertTrue(maxUsed.get() <= budget);
+		assertTrue(maxRunning.get() <= numThreads);
+	}
+
+	/**
+	 * The threads of all pairs that run at the same time must not add up to
+	 * more than the pool, also for the first pairs that are started.
+	 */
+	@Test
+	public void testThreadsPerPair() {
+		final long[] memory = new long[64];
+		Arrays.fill(memory, 400);
+
+		final AtomicInteger threads = new AtomicInteger();
+		final AtomicInteger maxThreads = new AtomicInteger();
+		final AtomicInteger processed = new AtomicInteger();
+
+		new ComparePairScheduler(memory, 800, numThreads)
+			.run(new ComparePairScheduler.Task()
+			{
+
+				@Override
+				public void run(final int i, final int numThreads) {
+					final int t = threads.addAndGet(numThreads);
+
+					synchronized (maxThreads) {
+						maxThreads.set(Math.max(maxThreads.get(), t));
+					}
+
+					sleep(2);
+
+					threads.addAndGet(-numThreads);
+					processed.incrementAndGet();
+				}
+			});
+
+		assertEquals(memory.length, processed.get());
+		assertTrue(maxThreads.get() <= numThreads);
+	}
+
+	/**
+	 * Pairs of different sizes get different shares of the pool, only as many of
+	 * them are started as their shares fit into the pool.
+	 */
+	@Test
+	public void testThreadsOfMixedSizes() {
+		final long[] memory = new long[64];
+
+		for (int i = 0; i < memory.length; ++i)
+			memory[i] = i % 4 < 2 ? 400 : 100;
+
+		final ComparePairScheduler scheduler =
+			new ComparePairScheduler(memory, 1000, numThreads);
+
+		assertEquals(2, scheduler.getNumThreadsPerPair(0));
+		assertEquals(1, scheduler.getNumThreadsPerPair(2));
+
+		final AtomicInteger threads = new AtomicInteger();
+		final AtomicInteger maxThreads = new AtomicInteger();
+		final AtomicLong used = new AtomicLong();
+		final AtomicLong maxUsed = new AtomicLong();
+		final AtomicInteger processed = new AtomicInteger();
+
+		scheduler.run(new ComparePairScheduler.Task() {
+
+			@Override
+			public void run(final int i, final int numThreads) {
+				final int t = threads.addAndGet(numThreads);
+				updateMax(maxUsed, used.addAndGet(memory[i]));
+
+				synchronized (maxThreads) {
+					maxThreads.set(Math.max(maxThreads.get(), t));
+				}
+
+				sleep(1 + i % 3);
+
+				threads.addAndGet(-numThreads);
+				used.addAndGet(-memory[i]);
+				processed.incrementAndGet();
+			}
+		});
+
+		assertEquals(memory.length, processed.get());
+		assertTrue(maxThreads.get() <= numThreads);
+		assertTrue(maxUsed.get() <= 1000);
+	}
+
+	/**
+	 * A pair gets the whole pool if only one pair of its size fits into the
+	 * budget and an equal share if several fit.
+	 */
+	@Test
+	public void testShareOfPool() {
+		final long[] memory = { 100, 400, 1000, 5000, 0 };
+		final ComparePairScheduler scheduler =
+			new ComparePairScheduler(memory, 1000, numThreads);
+
+		assertEquals(1, scheduler.getNumThreadsPerPair(0));
+		assertEquals(2, scheduler.getNumThreadsPerPair(1));
+		assertEquals(numThreads, scheduler.getNumThreadsPerPair(2));
+		assertEquals(numThreads, scheduler.getNumThreadsPerPair(3));
+		assertEquals(1, scheduler.getNumThreadsPerPair(4));
+
+		assertEquals(numThreads, new ComparePairScheduler(memory, 1000, 1)
+			.getNumThreadsPerPair(0));
+	}
+
+	private static void updateMax(final AtomicLong max, final long value) {
+		synchronized (max) {
+			max.set(Math.max(max.get(), value));
+		}
+	}
+
+	private static void sleep(final long ms) {
+		try {
+			Thread.sleep(ms);
+		}
+		catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
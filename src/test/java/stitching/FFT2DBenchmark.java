@@ -0,0 +1,114 @@
+/*
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2022 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package stitching;
+
+import edu.mines.jtk.dsp.FftComplex;
+import edu.mines.jtk.dsp.FftReal;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the 2d forward and inverse FFT of the phase correlation on one
+ * thread against all cores. The sizes are padded with nfftFast like in
+ * {@link Stitching_2D}, so 1024 and 4096 stay powers of two while 1500 and
+ * 6000 become the next fast sizes.
+ * <p>
+ * Run with {@code mvn test-compile exec:java
+ * -Dexec.mainClass=stitching.FFT2DBenchmark -Dexec.classpathScope=test}.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FFT2DBenchmark {
+
+	@Param({ "1024", "1500", "4096", "6000" })
+	public int size;
+
+	/** The number of threads, 0 for all cores. */
+	@Param({ "1", "0" })
+	public int numThreads;
+
+	private int width, threads;
+	private FloatArray2D img, fft, spectrum;
+
+	@Setup
+	public void setup() {
+		width = FftReal.nfftFast(size);
+		final int height = FftComplex.nfftFast(size);
+		threads = numThreads > 0 ? numThreads : Runtime.getRuntime()
+			.availableProcessors();
+
+		final Random rnd = new Random(42);
+		img = new FloatArray2D(width, height);
+
+		for (int i = 0; i < img.data.length; ++i)
+			img.data[i] = rnd.nextFloat();
+
+		fft = CommonFunctions.pffft2D(img, false, threads);
+		spectrum = new FloatArray2D(fft.width, fft.height);
+	}
+
+	/**
+	 * The inverse works in place, so it gets a fresh copy of the spectrum
+	 * before every call, outside of the measured time.
+	 */
+	@Setup(Level.Invocation)
+	public void copySpectrum() {
+		System.arraycopy(fft.data, 0, spectrum.data, 0, fft.data.length);
+	}
+
+	@Benchmark
+	public FloatArray2D forward() {
+		return CommonFunctions.pffft2D(img, false, threads);
+	}
+
+	@Benchmark
+	public FloatArray2D inverse() {
+		return CommonFunctions.pffftInv2D(spectrum, width, threads);
+	}
+
+	public static void main(final String... args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(FFT2DBenchmark.class
+			.getSimpleName()).build()).run();
+	}
+}
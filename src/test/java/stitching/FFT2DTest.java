@@ -0,0 +1,104 @@
+/*
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2022 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package stitching;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import edu.mines.jtk.dsp.FftComplex;
+import edu.mines.jtk.dsp.FftReal;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests that the 2d FFTs of {@link CommonFunctions} give the same result on
+ * one thread as on several, for powers of two and for the sizes that
+ * nfftFast pads to.
+ */
+public class FFT2DTest {
+
+	private static final int[][] sizes = { { 64, 64 }, { 32, 128 }, {
+		FftReal.nfftFast(100), FftComplex.nfftFast(75) } };
+
+	/**
+	 * Every row and column is transformed by exactly one thread, so the
+	 * result must not depend on how many there are, even if they do not divide
+	 * the size.
+	 */
+	@Test
+	public void testForwardSameOnAllThreads() {
+		for (final int[] size : sizes) {
+			final FloatArray2D img = createImage(size[0], size[1]);
+			final FloatArray2D single = CommonFunctions.pffft2D(img, false, 1);
+
+			for (final int numThreads : new int[] { 2, 3, 8 }) {
+				final FloatArray2D multi = CommonFunctions.pffft2D(img, false,
+					numThreads);
+
+				assertEquals(single.width, multi.width);
+				assertEquals(single.height, multi.height);
+				assertArrayEquals(single.data, multi.data, 0);
+			}
+		}
+	}
+
+	@Test
+	public void testInverseSameOnAllThreads() {
+		for (final int[] size : sizes) {
+			final FloatArray2D img = createImage(size[0], size[1]);
+			final FloatArray2D fft = CommonFunctions.pffft2D(img, false, 1);
+
+			// the inverse overwrites its input
+			final FloatArray2D single = CommonFunctions.pffftInv2D(copy(fft),
+				size[0], 1);
+
+			for (final int numThreads : new int[] { 2, 3, 8 }) {
+				final FloatArray2D multi = CommonFunctions.pffftInv2D(copy(fft),
+					size[0], numThreads);
+
+				assertEquals(single.width, multi.width);
+				assertEquals(single.height, multi.height);
+				assertArrayEquals(single.data, multi.data, 0);
+			}
+
+			// and it gives back the image, only scaled along x
+			for (int i = 0; i < img.data.length; ++i)
+				assertEquals(img.data[i], single.data[i] / size[1], 1e-4f);
+		}
+	}
+
+	private static FloatArray2D copy(final FloatArray2D img) {
+		return new FloatArray2D(img.data.clone(), img.width, img.height);
+	}
+
+	private static FloatArray2D createImage(final int width, final int height) {
+		final Random rnd = new Random(width * 31 + height);
+		final FloatArray2D img = new FloatArray2D(width, height);
+
+		for (int i = 0; i < img.data.length; ++i)
+			img.data[i] = rnd.nextFloat();
+
+		return img;
+	}
+}
@@ -0,0 +1,227 @@
+/*
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2022 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package stitching;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import ij.ImagePlus;
+
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mpicbg.stitching.FFTCache;
+import mpicbg.stitching.FloatPhaseCorrelation;
+import mpicbg.stitching.PairWiseStitchingResult;
+
+import org.junit.Test;
+
+/**
+ * Tests for the {@link FFTCache} and {@link FloatPhaseCorrelation} classes.
+ */
+public class FFTCacheTest {
+
+	/**
+	 * The phase correlation of two cached transforms finds the shift between
+	 * two overlapping crops of the same 2d image.
+	 */
+	@Test
+	public void testShift2d() {
+		final int[] full = { 96, 80 };
+		final float[] image = createImage(full, new Random(42));
+		final int[] size = { 60, 50 };
+
+		final float[] crop1 = crop(image, full, new int[] { 5, 10 }, size);
+		final float[] crop2 = crop(image, full, new int[] { 30, 22 }, size);
+
+		final int[] fftSize = FloatPhaseCorrelation.getFFTSize(size, size);
+		final PairWiseStitchingResult result = FloatPhaseCorrelation
+			.computePhaseCorrelation(FloatPhaseCorrelation.transform(crop1, size,
+				fftSize), FloatPhaseCorrelation.transform(crop2, size, fftSize), 5,
+				false);
+
+		assertNotNull(result);
+		assertEquals(25, result.getOffset(0), 0);
+		assertEquals(12, result.getOffset(1), 0);
+		assertEquals(1, result.getCrossCorrelation(), 1e-4);
+	}
+
+	/**
+	 * Same for a negative shift in 3d.
+	 */
+	@Test
+	public void testShift3d() {
+		final int[] full = { 40, 36, 24 };
+		final float[] image = createImage(full, new Random(7));
+		final int[] size = { 28, 24, 16 };
+
+		final float[] crop1 = crop(image, full, new int[] { 9, 10, 6 }, size);
+		final float[] crop2 = crop(image, full, new int[] { 1, 3, 2 }, size);
+
+		final int[] fftSize = FloatPhaseCorrelation.getFFTSize(size, size);
+		final PairWiseStitchingResult result = FloatPhaseCorrelation
+			.computePhaseCorrelation(FloatPhaseCorrelation.transform(crop1, size,
+				fftSize), FloatPhaseCorrelation.transform(crop2, size, fftSize), 5,
+				true);
+
+		assertNotNull(result);
+		assertEquals(-8, result.getOffset(0), 0.5);
+		assertEquals(-7, result.getOffset(1), 0.5);
+		assertEquals(-4, result.getOffset(2), 0.5);
+	}
+
+	/**
+	 * Each transform is computed once, the least recently used ones are removed
+	 * once the cache is full.
+	 */
+	@Test
+	public void testEviction() {
+		final int[] size = { 16, 16 };
+		final int[] fftSize = FloatPhaseCorrelation.getFFTSize(size, size);
+		final float[] image = createImage(size, new Random(1));
+		final long bytes = FloatPhaseCorrelation.transform(image, size, fftSize)
+			.getBytes();
+
+		// room for two transforms
+		final FFTCache cache = new FFTCache(2 * bytes);
+		final ImagePlus imp = new ImagePlus();
+		final AtomicInteger computed = new AtomicInteger();
+
+		final Callable<FloatPhaseCorrelation.Transform> transform =
+			new Callable<FloatPhaseCorrelation.Transform>()
+			{
+
+				@Override
+				public FloatPhaseCorrelation.Transform call() {
+					computed.incrementAndGet();
+					return FloatPhaseCorrelation.transform(image, size, fftSize);
+				}
+			};
+
+		final FloatPhaseCorrelation.Transform t1 = cache.get(key(imp, 1, fftSize),
+			transform);
+		assertSame(t1, cache.get(key(imp, 1, fftSize), transform));
+		cache.get(key(imp, 2, fftSize), transform);
+
+		// time-point 1 was used more recently than 2, so 2 is removed
+		cache.get(key(imp, 1, fftSize), transform);
+		cache.get(key(imp, 3, fftSize), transform);
+
+		assertEquals(2, cache.size());
+		assertEquals(3, computed.get());
+		assertSame(t1, cache.get(key(imp, 1, fftSize), transform));
+		assertEquals(3, computed.get());
+
+		cache.get(key(imp, 2, fftSize), transform);
+		assertEquals(4, computed.get());
+		assertEquals(4, cache.getMisses());
+		assertEquals(3, cache.getHits());
+		assertEquals(2 * bytes, cache.getBytes());
+	}
+
+	/**
+	 * Removing an image removes all its transforms and frees their memory.
+	 */
+	@Test
+	public void testRemove() {
+		final int[] size = { 16, 16 };
+		final int[] fftSize = FloatPhaseCorrelation.getFFTSize(size, size);
+		final float[] image = createImage(size, new Random(1));
+		final FFTCache cache = new FFTCache(Long.MAX_VALUE);
+		final Object tile1 = new Object(), tile2 = new Object();
+
+		final Callable<FloatPhaseCorrelation.Transform> transform =
+			new Callable<FloatPhaseCorrelation.Transform>()
+			{
+
+				@Override
+				public FloatPhaseCorrelation.Transform call() {
+					return FloatPhaseCorrelation.transform(image, size, fftSize);
+				}
+			};
+
+		cache.get(new FFTCache.Key(tile1, 1, 1, null, fftSize), transform);
+		cache.get(new FFTCache.Key(tile1, 1, 2, null, fftSize), transform);
+		final FloatPhaseCorrelation.Transform t = cache.get(new FFTCache.Key(
+			tile2, 1, 1, null, fftSize), transform);
+
+		cache.remove(tile1);
+
+		assertEquals(1, cache.size());
+		assertEquals(t.getBytes(), cache.getBytes());
+		assertSame(t, cache.get(new FFTCache.Key(tile2, 1, 1, null, fftSize),
+			transform));
+	}
+
+	private static FFTCache.Key key(final ImagePlus imp, final int timepoint,
+		final int[] fftSize)
+	{
+		return new FFTCache.Key(imp, 1, timepoint, null, fftSize);
+	}
+
+	/**
+	 * A few gaussian blobs on noise
+	 */
+	private static float[] createImage(final int[] size, final Random rnd) {
+		final int depth = size.length > 2 ? size[2] : 1;
+		final float[] image = new float[size[0] * size[1] * depth];
+
+		for (int i = 0; i < image.length; ++i)
+			image[i] = rnd.nextFloat() * 10;
+
+		for (int b = 0; b < 20; ++b) {
+			final double bx = rnd.nextDouble() * size[0];
+			final double by = rnd.nextDouble() * size[1];
+			final double bz = rnd.nextDouble() * depth;
+			final double sigma = 2 + rnd.nextDouble() * 4;
+
+			for (int z = 0, i = 0; z < depth; ++z)
+				for (int y = 0; y < size[1]; ++y)
+					for (int x = 0; x < size[0]; ++x, ++i) {
+						final double d = (x - bx) * (x - bx) + (y - by) * (y - by) +
+							(z - bz) * (z - bz);
+						image[i] += 100 * Math.exp(-d / (2 * sigma * sigma));
+					}
+		}
+
+		return image;
+	}
+
+	private static float[] crop(final float[] image, final int[] size,
+		final int[] offset, final int[] cropSize)
+	{
+		final int depth = cropSize.length > 2 ? cropSize[2] : 1;
+		final float[] crop = new float[cropSize[0] * cropSize[1] * depth];
+
+		for (int z = 0, i = 0; z < depth; ++z)
+			for (int y = 0; y < cropSize[1]; ++y)
+				for (int x = 0; x < cropSize[0]; ++x, ++i) {
+					final int zi = depth > 1 ? z + offset[2] : 0;
+					crop[i] = image[(zi * size[1] + y + offset[1]) * size[0] + x +
+						offset[0]];
+				}
+
+		return crop;
+	}
+}
@@ -0,0 +1,222 @@
+/*
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2022 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package stitching;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.process.FloatProcessor;
+
+import java.util.Random;
+
+import mpicbg.stitching.FFTCache;
+import mpicbg.stitching.FloatPhaseCorrelation;
+import mpicbg.stitching.PairWiseStitchingImgLib;
+import mpicbg.stitching.PairWiseStitchingResult;
+import mpicbg.stitching.RoiView;
+import mpicbg.stitching.StitchingParameters;
+
+import org.junit.Test;
+
+/**
+ * Compares the {@link FloatPhaseCorrelation} path that is used with cached
+ * transforms or roi views against the imglib PhaseCorrelation that is used
+ * for wrapped images or with {@link StitchingParameters#alwaysCopy}.
+ */
+public class FloatPhaseCorrelationTest {
+
+	/**
+	 * Two overlapping crops of the same 2d image, wrapped.
+	 */
+	@Test
+	public void testSameShift2d() {
+		final int[] full = { 200, 180 };
+		final float[] image = createImage(full, new Random(42));
+		final int[] size = { 140, 120 };
+
+		final ImagePlus imp1 = createImagePlus(crop(image, full, new int[] { 3, 8 },
+			size), size);
+		final ImagePlus imp2 = createImagePlus(crop(image, full, new int[] { 48,
+			38 }, size), size);
+
+		for (final boolean subpixel : new boolean[] { false, true })
+			assertSameResult(imp1, imp2, null, null, subpixel, new float[] { 45,
+				30 });
+	}
+
+	/**
+	 * Overlapping rois of two images, so the imglib path copies them and the
+	 * default path reads them through a {@link RoiView}, with or without cached
+	 * transforms.
+	 */
+	@Test
+	public void testSameShiftRoi() {
+		final int[] full = { 200, 180 };
+		final float[] image = createImage(full, new Random(3));
+		final int[] size = { 150, 130 };
+
+		final ImagePlus imp1 = createImagePlus(crop(image, full, new int[] { 40,
+			30 }, size), size);
+		final ImagePlus imp2 = createImagePlus(crop(image, full, new int[] { 10,
+			20 }, size), size);
+
+		// the left part of image 1 and the right part of image 2
+		final Roi roi1 = new Roi(5, 5, 110, 110);
+		final Roi roi2 = new Roi(30, 10, 118, 115);
+
+		for (final boolean subpixel : new boolean[] { false, true })
+			assertSameResult(imp1, imp2, roi1, roi2, subpixel, new float[] { -30,
+				-10 });
+	}
+
+	/**
+	 * Two overlapping crops of the same 3d image.
+	 */
+	@Test
+	public void testSameShift3d() {
+		final int[] full = { 72, 64, 32 };
+		final float[] image = createImage(full, new Random(7));
+		final int[] size = { 52, 48, 22 };
+
+		final ImagePlus imp1 = createImagePlus(crop(image, full, new int[] { 14,
+			12, 8 }, size), size);
+		final ImagePlus imp2 = createImagePlus(crop(image, full, new int[] { 2, 4,
+			3 }, size), size);
+
+		for (final boolean subpixel : new boolean[] { false, true })
+			assertSameResult(imp1, imp2, null, null, subpixel, new float[] { -12,
+				-8, -5 });
+	}
+
+	private static void assertSameResult(final ImagePlus imp1,
+		final ImagePlus imp2, final Roi roi1, final Roi roi2,
+		final boolean subpixel, final float[] expected)
+	{
+		final StitchingParameters params = new StitchingParameters();
+		params.channel1 = params.channel2 = 1;
+		params.checkPeaks = 5;
+		params.subpixelAccuracy = subpixel;
+
+		final PairWiseStitchingResult imglib;
+
+		try {
+			StitchingParameters.alwaysCopy = true;
+			imglib = PairWiseStitchingImgLib.stitchPairwise(imp1, imp2, roi1, roi2,
+				1, 1, params);
+		}
+		finally {
+			StitchingParameters.alwaysCopy = false;
+		}
+
+		assertNotNull(imglib);
+
+		for (int d = 0; d < expected.length; ++d)
+			assertEquals(expected[d], imglib.getOffset(d), 0.25);
+
+		// rois are read through roi views by default
+		assertSameResult(imglib, PairWiseStitchingImgLib.stitchPairwise(imp1, imp2,
+			roi1, roi2, 1, 1, params), subpixel);
+
+		params.fftCache = new FFTCache(Long.MAX_VALUE);
+		assertSameResult(imglib, PairWiseStitchingImgLib.stitchPairwise(imp1, imp2,
+			roi1, roi2, 1, 1, params), subpixel);
+	}
+
+	private static void assertSameResult(final PairWiseStitchingResult imglib,
+		final PairWiseStitchingResult other, final boolean subpixel)
+	{
+		assertNotNull(other);
+
+		// the peaks are verified the same way, only the subpixel fit sees a
+		// slightly different phase correlation matrix as the padding differs
+		final double tolerance = subpixel ? 0.1 : 0;
+
+		for (int d = 0; d < imglib.getOffset().length; ++d)
+			assertEquals(imglib.getOffset(d), other.getOffset(d), tolerance);
+
+		assertEquals(imglib.getCrossCorrelation(), other.getCrossCorrelation(),
+			1e-5);
+	}
+
+	private static ImagePlus createImagePlus(final float[] pixels,
+		final int[] size)
+	{
+		final int depth = size.length > 2 ? size[2] : 1;
+		final ImageStack stack = new ImageStack(size[0], size[1]);
+
+		for (int z = 0; z < depth; ++z) {
+			final float[] slice = new float[size[0] * size[1]];
+			System.arraycopy(pixels, z * slice.length, slice, 0, slice.length);
+			stack.addSlice("", new FloatProcessor(size[0], size[1], slice, null));
+		}
+
+		return new ImagePlus("", stack);
+	}
+
+	/**
+	 * A few gaussian blobs on noise
+	 */
+	private static float[] createImage(final int[] size, final Random rnd) {
+		final int depth = size.length > 2 ? size[2] : 1;
+		final float[] image = new float[size[0] * size[1] * depth];
+
+		for (int i = 0; i < image.length; ++i)
+			image[i] = rnd.nextFloat() * 10;
+
+		for (int b = 0; b < 40; ++b) {
+			final double bx = rnd.nextDouble() * size[0];
+			final double by = rnd.nextDouble() * size[1];
+			final double bz = rnd.nextDouble() * depth;
+			final double sigma = 2 + rnd.nextDouble() * 4;
+
+			for (int z = 0, i = 0; z < depth; ++z)
+				for (int y = 0; y < size[1]; ++y)
+					for (int x = 0; x < size[0]; ++x, ++i) {
+						final double d = (x - bx) * (x - bx) + (y - by) * (y - by) +
+							(z - bz) * (z - bz);
+						image[i] += 100 * Math.exp(-d / (2 * sigma * sigma));
+					}
+		}
+
+		return image;
+	}
+
+	private static float[] crop(final float[] image, final int[] size,
+		final int[] offset, final int[] cropSize)
+	{
+		final int depth = cropSize.length > 2 ? cropSize[2] : 1;
+		final float[] crop = new float[cropSize[0] * cropSize[1] * depth];
+
+		for (int z = 0, i = 0; z < depth; ++z)
+			for (int y = 0; y < cropSize[1]; ++y)
+				for (int x = 0; x < cropSize[0]; ++x, ++i) {
+					final int zi = depth > 1 ? z + offset[2] : 0;
+					crop[i] = image[(zi * size[1] + y + offset[1]) * size[0] + x +
+						offset[0]];
+				}
+
+		return crop;
+	}
+}
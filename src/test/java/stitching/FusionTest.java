@@ -0,0 +1,385 @@
+/*
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2022 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package stitching;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ShortProcessor;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import mpicbg.models.InvertibleBoundable;
+import mpicbg.models.TranslationModel2D;
+import mpicbg.models.TranslationModel3D;
+import mpicbg.stitching.fusion.Fusion;
+import mpicbg.stitching.fusion.N5DatasetWriter;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+import org.junit.Test;
+
+/**
+ * Tests for the {@link Fusion} class.
+ */
+public class FusionTest {
+
+	/**
+	 * Fusing all channels of a 3d mosaic in one pass must give exactly the
+	 * image of fusing one channel after the other, with blending and with
+	 * averaging.
+	 */
+	@Test
+	public void testChannelsTogetherSameAsSeparate() {
+		final int numChannels = 3;
+		final double[][] positions = { { 0, 0, 0 }, { 14.3, 1.6, 0.4 }, { 2.7,
+			11.2, 1.5 } };
+
+		final ArrayList<ImagePlus> images = new ArrayList<ImagePlus>();
+		final ArrayList<InvertibleBoundable> models =
+			new ArrayList<InvertibleBoundable>();
+		final Random rnd = new Random(5);
+
+		for (final double[] position : positions) {
+			images.add(createTile(20, 16, 6, numChannels, rnd));
+
+			final TranslationModel3D model = new TranslationModel3D();
+			model.set(position[0], position[1], position[2]);
+			models.add(model);
+		}
+
+		final boolean fuseChannelsTogether = Fusion.fuseChannelsTogether;
+
+		try {
+			for (final int fusionType : new int[] { 0, 1 })
+				for (final boolean subpixel : new boolean[] { false, true }) {
+					Fusion.fuseChannelsTogether = false;
+					final ImagePlus separate = Fusion.fuse(new UnsignedShortType(),
+						images, models, 3, subpixel, fusionType, null, false, false,
+						false);
+
+					Fusion.fuseChannelsTogether = true;
+					final ImagePlus together = Fusion.fuse(new UnsignedShortType(),
+						images, models, 3, subpixel, fusionType, null, false, false,
+						false);
+
+					assertNotNull(separate);
+					assertNotNull(together);
+					assertSameImage(separate, together);
+				}
+		}
+		finally {
+			Fusion.fuseChannelsTogether = fuseChannelsTogether;
+		}
+	}
+
+	/**
+	 * Every slice written to disk must be the slice of the in-memory fusion, for
+	 * a 2d mosaic (whose only slice is split up between threads) and a 3d one,
+	 * with and without slices waiting for the writer thread.
+	 */
+	@Test
+	public void testWriteSlicesSameAsInMemory() throws IOException {
+		final int slicesInFlight = Fusion.slicesInFlight;
+
+		try {
+			for (final int inFlight : new int[] { 0, 2 }) {
+				Fusion.slicesInFlight = inFlight;
+
+				for (final int dimensionality : new int[] { 2, 3 })
+					for (final int fusionType : new int[] { 0, 1 })
+						assertWrittenSlicesSameAsInMemory(dimensionality, fusionType);
+			}
+		}
+		finally {
+			Fusion.slicesInFlight = slicesInFlight;
+		}
+	}
+
+	private static void assertWrittenSlicesSameAsInMemory(
+		final int dimensionality, final int fusionType) throws IOException
+	{
+		final int numChannels = 2;
+		final ArrayList<ImagePlus> images = new ArrayList<ImagePlus>();
+		final ArrayList<InvertibleBoundable> models =
+			new ArrayList<InvertibleBoundable>();
+
+		createMosaic(dimensionality, numChannels, new double[][] { { 0, 0, 0 }, {
+			14.3, 1.6, 0.4 }, { 2.7, 11.2, 1.5 } }, images, models);
+
+		final ImagePlus inMemory = Fusion.fuse(new UnsignedShortType(), images,
+			models, dimensionality, true, fusionType, null, false, false, false);
+
+		final File directory = Files.createTempDirectory("fused").toFile();
+
+		assertNull(Fusion.fuse(new UnsignedShortType(), images, models,
+			dimensionality, true, fusionType, directory.getAbsolutePath(), false,
+			false, false));
+
+		final int numSlices = inMemory.getNSlices();
+
+		for (int c = 1; c <= numChannels; ++c)
+			for (int z = 1; z <= numSlices; ++z) {
+				final File file = new File(directory, "img_t1_z" + lz(z, numSlices) +
+					"_c" + lz(c, numChannels));
+				final ImagePlus slice = IJ.openImage(file.getAbsolutePath());
+
+				assertNotNull(file.getName(), slice);
+				assertEquals(inMemory.getWidth(), slice.getWidth());
+				assertEquals(inMemory.getHeight(), slice.getHeight());
+
+				final short[] expected = (short[]) inMemory.getStack().getPixels(
+					inMemory.getStackIndex(c, z, 1));
+				final short[] actual = (short[]) slice.getProcessor().getPixels();
+
+				for (int i = 0; i < expected.length; ++i)
+					assertEquals(dimensionality + "d, fusion " + fusionType + ", " +
+						file.getName() + ", pixel " + i, expected[i], actual[i]);
+
+				file.delete();
+			}
+
+		directory.delete();
+	}
+
+	/**
+	 * Blocks of the N5 output that are smaller than the mosaic must decode to
+	 * the in-memory fusion with blending and subpixel resolution, including the
+	 * pixels on block borders, the blocks at the border of the mosaic and the
+	 * blocks without any tile, which are not written.
+	 */
+	@Test
+	public void testWriteN5SameAsInMemory() throws IOException {
+		final ArrayList<ImagePlus> images = new ArrayList<ImagePlus>();
+		final ArrayList<InvertibleBoundable> models =
+			new ArrayList<InvertibleBoundable>();
+
+		// there is no tile at the lower right
+		createMosaic(3, 1, new double[][] { { 0, 0, 0 }, { 16.3, 1.6, 0.4 }, {
+			2.7, 13.2, 1.5 } }, images, models);
+
+		final int n5BlockSize = Fusion.n5BlockSize;
+
+		try {
+			Fusion.n5BlockSize = 8;
+
+			for (final int compression : new int[] { N5DatasetWriter.RAW,
+				N5DatasetWriter.GZIP })
+			{
+				final ImagePlus inMemory = Fusion.fuse(new UnsignedShortType(), images,
+					models, 3, true, 0, null, false, false, false);
+
+				final File directory = Files.createTempDirectory("fused").toFile();
+
+				assertNull(Fusion.fuse(new UnsignedShortType(), images, models, 3,
+					true, 0, directory.getAbsolutePath(), Fusion.OUTPUT_N5, compression,
+					false, false, false));
+
+				assertSameBlocks(inMemory, new File(directory, "fused.n5/c0/t0"),
+					compression);
+			}
+		}
+		finally {
+			Fusion.n5BlockSize = n5BlockSize;
+		}
+	}
+
+	private static void assertSameBlocks(final ImagePlus expected,
+		final File dataset, final int compression) throws IOException
+	{
+		final int blockSize = 8;
+		final int[] size = { expected.getWidth(), expected.getHeight(), expected
+			.getNSlices() };
+
+		int numMissing = 0, numBorder = 0;
+
+		for (int bz = 0; bz * blockSize < size[2]; ++bz)
+			for (int by = 0; by * blockSize < size[1]; ++by)
+				for (int bx = 0; bx * blockSize < size[0]; ++bx) {
+					final int[] min = { bx * blockSize, by * blockSize, bz * blockSize };
+					final int[] dims = new int[3];
+
+					for (int d = 0; d < 3; ++d)
+						dims[d] = Math.min(blockSize, size[d] - min[d]);
+
+					if (dims[0] < blockSize || dims[1] < blockSize ||
+						dims[2] < blockSize) ++numBorder;
+
+					final File file = new File(dataset, bx + "/" + by + "/" + bz);
+					final String block = "block " + bx + "," + by + "," + bz;
+					final short[] data;
+
+					if (file.exists()) {
+						data = readBlock(file, dims, compression);
+					}
+					else {
+						// N5 readers return zeros for blocks that were not written
+						data = new short[dims[0] * dims[1] * dims[2]];
+						++numMissing;
+					}
+
+					int i = 0;
+
+					for (int z = 0; z < dims[2]; ++z) {
+						final short[] slice = (short[]) expected.getStack().getPixels(
+							expected.getStackIndex(1, min[2] + z + 1, 1));
+
+						for (int y = 0; y < dims[1]; ++y)
+							for (int x = 0; x < dims[0]; ++x)
+								assertEquals(block + ", pixel " + x + "," + y + "," + z,
+									slice[(min[1] + y) * size[0] + min[0] + x], data[i++]);
+					}
+				}
+
+		// the mosaic must actually have the blocks this is about
+		assertTrue(numMissing > 0);
+		assertTrue(numBorder > 0);
+	}
+
+	/**
+	 * Decodes an uint16 N5 block, big-endian with x the fastest dimension
+	 */
+	private static short[] readBlock(final File file, final int[] dims,
+		final int compression) throws IOException
+	{
+		final DataInputStream in = new DataInputStream(new FileInputStream(
+			file));
+
+		try {
+			assertEquals(0, in.readShort());
+			assertEquals(dims.length, in.readShort());
+
+			for (final int dim : dims)
+				assertEquals(dim, in.readInt());
+
+			final DataInputStream body = compression == N5DatasetWriter.GZIP
+				? new DataInputStream(new GZIPInputStream(in)) : in;
+			final short[] data = new short[dims[0] * dims[1] * dims[2]];
+
+			for (int i = 0; i < data.length; ++i)
+				data[i] = body.readShort();
+
+			assertEquals(-1, body.read());
+
+			return data;
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Creates the tiles of a 2d or 3d mosaic at the given positions
+	 */
+	private static void createMosaic(final int dimensionality,
+		final int numChannels, final double[][] positions,
+		final ArrayList<ImagePlus> images,
+		final ArrayList<InvertibleBoundable> models)
+	{
+		final Random rnd = new Random(5);
+
+		for (final double[] position : positions) {
+			images.add(createTile(20, 16, dimensionality == 3 ? 6 : 1, numChannels,
+				rnd));
+
+			if (dimensionality == 3) {
+				final TranslationModel3D model = new TranslationModel3D();
+				model.set(position[0], position[1], position[2]);
+				models.add(model);
+			}
+			else {
+				final TranslationModel2D model = new TranslationModel2D();
+				model.set(position[0], position[1]);
+				models.add(model);
+			}
+		}
+	}
+
+	/**
+	 * @return the number with leading zeros like the names of the written slices
+	 */
+	private static String lz(final int num, final int max) {
+		String out = "" + num;
+
+		while (out.length() < ("" + max).length())
+			out = "0" + out;
+
+		return out;
+	}
+
+	private static void assertSameImage(final ImagePlus expected,
+		final ImagePlus actual)
+	{
+		assertEquals(expected.getWidth(), actual.getWidth());
+		assertEquals(expected.getHeight(), actual.getHeight());
+		assertEquals(expected.getNChannels(), actual.getNChannels());
+		assertEquals(expected.getNSlices(), actual.getNSlices());
+
+		final ImageStack e = expected.getStack();
+		final ImageStack a = actual.getStack();
+
+		assertEquals(e.getSize(), a.getSize());
+
+		for (int s = 1; s <= e.getSize(); ++s) {
+			final short[] ep = (short[]) e.getPixels(s);
+			final short[] ap = (short[]) a.getPixels(s);
+
+			for (int i = 0; i < ep.length; ++i)
+				assertEquals("slice " + s + ", pixel " + i, ep[i], ap[i]);
+		}
+	}
+
+	/**
+	 * A 16-bit hyperstack with random values (channels first, like ImageJ)
+	 */
+	private static ImagePlus createTile(final int width, final int height,
+		final int depth, final int numChannels, final Random rnd)
+	{
+		final ImageStack stack = new ImageStack(width, height);
+
+		for (int z = 0; z < depth; ++z)
+			for (int c = 0; c < numChannels; ++c) {
+				final short[] pixels = new short[width * height];
+
+				for (int i = 0; i < pixels.length; ++i)
+					pixels[i] = (short) (100 + rnd.nextInt(4000));
+
+				stack.addSlice("", new ShortProcessor(width, height, pixels, null));
+			}
+
+		final ImagePlus imp = new ImagePlus("", stack);
+		imp.setDimensions(numChannels, depth, 1);
+		imp.setOpenAsHyperStack(true);
+
+		return imp;
+	}
+}
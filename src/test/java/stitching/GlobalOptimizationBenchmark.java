@@ -0,0 +1,136 @@
+/*
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2022 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package stitching;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+
+import mpicbg.models.Tile;
+import mpicbg.models.TranslationModel2D;
+import mpicbg.stitching.ComparePair;
+import mpicbg.stitching.GlobalOptimization;
+import mpicbg.stitching.ImagePlusTimePoint;
+import mpicbg.stitching.StitchingParameters;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures adding the links of a grid of about 100k tiles with about 400k
+ * pairs and splitting it into connected graphs, the bookkeeping that is done
+ * before the global optimization starts.
+ * <p>
+ * Run with {@code mvn test-compile exec:java
+ * -Dexec.mainClass=stitching.GlobalOptimizationBenchmark
+ * -Dexec.classpathScope=test}.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class GlobalOptimizationBenchmark {
+
+	private static final int size = 316;
+
+	private Vector<ComparePair> pairs;
+	private StitchingParameters params;
+
+	/**
+	 * Gives access to the connected graph search of the global optimization.
+	 */
+	private static class Graphs extends GlobalOptimization {
+
+		static ArrayList<ArrayList<Tile<?>>> identify(
+			final ArrayList<Tile<?>> tiles)
+		{
+			return GlobalOptimization.identifyConnectedGraphs(tiles,
+				new HashMap<Tile<?>, Integer>());
+		}
+	}
+
+	/**
+	 * Tiles collect their links, so every invocation needs new ones.
+	 */
+	@Setup(Level.Invocation)
+	public void setup() {
+		params = new StitchingParameters();
+		params.dimensionality = 2;
+
+		final ImagePlusTimePoint[] tiles = new ImagePlusTimePoint[size * size];
+
+		for (int i = 0; i < tiles.length; ++i)
+			tiles[i] = new ImagePlusTimePoint(null, i, 1, new TranslationModel2D(),
+				null);
+
+		// links to the right, down and both diagonals below
+		pairs = new Vector<ComparePair>();
+
+		for (int y = 0; y < size; ++y)
+			for (int x = 0; x < size; ++x) {
+				if (x + 1 < size) add(tiles, x, y, x + 1, y);
+
+				if (y + 1 < size) {
+					add(tiles, x, y, x, y + 1);
+					if (x + 1 < size) add(tiles, x, y, x + 1, y + 1);
+					if (x > 0) add(tiles, x, y, x - 1, y + 1);
+				}
+			}
+	}
+
+	private void add(final ImagePlusTimePoint[] tiles, final int x1,
+		final int y1, final int x2, final int y2)
+	{
+		final ComparePair pair = new ComparePair(tiles[y1 * size + x1],
+			tiles[y2 * size + x2]);
+
+		pair.setRelativeShift(new float[] { (x2 - x1) * 900, (y2 - y1) * 900 });
+		pair.setCrossCorrelation(0.9f);
+		pairs.add(pair);
+	}
+
+	@Benchmark
+	public ArrayList<ArrayList<Tile<?>>> addLinks() {
+		return Graphs.identify(GlobalOptimization.addLinks(pairs, params));
+	}
+
+	public static void main(final String... args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(GlobalOptimizationBenchmark.class
+			.getSimpleName()).build()).run();
+	}
+}
@@ -0,0 +1,287 @@
+/*
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2022 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package stitching;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Vector;
+
+import mpicbg.models.TranslationModel2D;
+import mpicbg.stitching.ComparePair;
+import mpicbg.stitching.GlobalOptimization;
+import mpicbg.stitching.ImageCollectionElement;
+import mpicbg.stitching.ImagePlusTimePoint;
+import mpicbg.stitching.StitchingParameters;
+
+import org.junit.Test;
+
+/**
+ * Tests for the {@link GlobalOptimization} class.
+ */
+public class GlobalOptimizationTest {
+
+	private static final int size = 8;
+
+	private static final int[] badLinks = { 5, 37, 70, 90, 100 };
+
+	private final double[][] positions = new double[size * size][2];
+
+	/**
+	 * Creates the pairs of a grid of tiles whose shifts are the distances of
+	 * random positions, some of them are wrong.
+	 */
+	private Vector<ComparePair> createGrid() {
+		final Random rnd = new Random(7);
+		final ArrayList<ImagePlusTimePoint> tiles =
+			new ArrayList<ImagePlusTimePoint>();
+
+		for (int i = 0; i < size * size; ++i) {
+			final ImageCollectionElement element = new ImageCollectionElement(
+				new File("tile_" + i + ".tif"), i);
+			element.setModel(new TranslationModel2D());
+
+			tiles.add(new ImagePlusTimePoint(element, 1, false));
+			positions[i][0] = (i % size) * 90 + rnd.nextDouble() * 10;
+			positions[i][1] = (i / size) * 90 + rnd.nextDouble() * 10;
+		}
+
+		final Vector<ComparePair> pairs = new Vector<ComparePair>();
+
+		for (int i = 0; i < size * size; ++i)
+			for (final int j : new int[] { i + 1, i + size }) {
+				if (j >= size * size || (j == i + 1 && j % size == 0)) continue;
+
+				final ComparePair pair = new ComparePair(tiles.get(i), tiles.get(j));
+				pair.setRelativeShift(new float[] {
+					(float) (positions[j][0] - positions[i][0]),
+					(float) (positions[j][1] - positions[i][1]) });
+				pair.setCrossCorrelation(0.9f);
+				pairs.add(pair);
+			}
+
+		for (final int link : badLinks)
+			pairs.get(link).setRelativeShift(new float[] { pairs.get(link)
+				.getRelativeShift()[0] + 40, pairs.get(link).getRelativeShift()[1] -
+					30 });
+
+		return pairs;
+	}
+
+	private static StitchingParameters createParameters(
+		final boolean directSolver, final boolean batched)
+	{
+		final StitchingParameters params = new StitchingParameters();
+		params.dimensionality = 2;
+		params.regThreshold = 0.3;
+		params.directSolver = directSolver;
+		params.batchedOutlierRemoval = batched;
+
+		return params;
+	}
+
+	private ArrayList<ImagePlusTimePoint> optimize(
+		final Vector<ComparePair> pairs, final boolean directSolver,
+		final boolean batched)
+	{
+		return GlobalOptimization.optimize(pairs, pairs.get(0).getTile1(),
+			createParameters(directSolver, batched));
+	}
+
+	private void assertBadLinksRemoved(final boolean directSolver,
+		final boolean batched)
+	{
+		assertBadLinksRemoved(createParameters(directSolver, batched));
+	}
+
+	private void assertBadLinksRemoved(final StitchingParameters params) {
+		final Vector<ComparePair> pairs = createGrid();
+		final ArrayList<ImagePlusTimePoint> optimized = GlobalOptimization
+			.optimize(pairs, pairs.get(0).getTile1(), params);
+
+		final HashSet<Integer> bad = new HashSet<Integer>();
+		for (final int link : badLinks)
+			bad.add(link);
+
+		for (int i = 0; i < pairs.size(); ++i)
+			if (bad.contains(i)) assertFalse(pairs.get(i).getIsValidOverlap());
+			else assertTrue(pairs.get(i).getIsValidOverlap());
+
+		assertEquals(size * size, optimized.size());
+
+		for (final ImagePlusTimePoint tile : optimized) {
+			final double[] position = tile.getModel().apply(new double[2]);
+
+			for (int d = 0; d < 2; ++d)
+				assertEquals(positions[tile.getImpId()][d] - positions[0][d],
+					position[d], 0.1);
+		}
+	}
+
+	/**
+	 * Exactly the wrong links are removed and the remaining ones give the
+	 * layout, with the iterative optimization.
+	 */
+	@Test
+	public void testBadLinksIterative() {
+		assertBadLinksRemoved(false, false);
+	}
+
+	/**
+	 * Exactly the wrong links are removed and the remaining ones give the
+	 * layout, with the direct solver.
+	 */
+	@Test
+	public void testBadLinksDirect() {
+		assertBadLinksRemoved(true, false);
+	}
+
+	/**
+	 * Removing all bad links at once also removes exactly the wrong links.
+	 */
+	@Test
+	public void testBatchedRemoval() {
+		assertBadLinksRemoved(false, true);
+		assertBadLinksRemoved(true, true);
+	}
+
+	/**
+	 * Removing all bad links at once also removes exactly the wrong links if
+	 * only the absolute threshold is exceeded.
+	 */
+	@Test
+	public void testBatchedRemovalAbsoluteThreshold() {
+		for (final boolean directSolver : new boolean[] { false, true }) {
+			final StitchingParameters params = createParameters(directSolver, true);
+			params.relativeThreshold = 1000;
+			params.absoluteThreshold = 1;
+
+			assertBadLinksRemoved(params);
+		}
+	}
+
+	/**
+	 * Removing all bad links at once gives the same layout as removing one at a
+	 * time, also if the links are noisy.
+	 */
+	@Test
+	public void testBatchedAgainstSingle() {
+		final Random rnd = new Random(3);
+		final Vector<ComparePair> single = createGrid();
+		final Vector<ComparePair> batched = createGrid();
+
+		for (int i = 0; i < single.size(); ++i)
+			for (int d = 0; d < 2; ++d) {
+				final float noise = (float) rnd.nextGaussian() * 0.3f;
+				single.get(i).getRelativeShift()[d] += noise;
+				batched.get(i).getRelativeShift()[d] += noise;
+			}
+
+		final ArrayList<ImagePlusTimePoint> optimizedSingle = optimize(single,
+			true, false);
+		final ArrayList<ImagePlusTimePoint> optimizedBatched = optimize(batched,
+			true, true);
+
+		for (int i = 0; i < single.size(); ++i)
+			assertEquals(single.get(i).getIsValidOverlap(), batched.get(i)
+				.getIsValidOverlap());
+
+		assertEquals(optimizedSingle.size(), optimizedBatched.size());
+
+		for (int i = 0; i < optimizedSingle.size(); ++i)
+			for (int d = 0; d < 2; ++d)
+				assertEquals(optimizedSingle.get(i).getModel().apply(
+					new double[2])[d], optimizedBatched.get(i).getModel().apply(
+						new double[2])[d], 1e-3);
+	}
+
+	/**
+	 * Two wells that are not linked are both optimized, the second one is placed
+	 * relative to the first one by the approximate position of its fixed tile.
+	 */
+	@Test
+	public void testDisconnectedGraphs() {
+		final int wellSize = 4, numTiles = wellSize * wellSize;
+		final Random rnd = new Random(11);
+		final ArrayList<ImagePlusTimePoint> tiles =
+			new ArrayList<ImagePlusTimePoint>();
+		final double[][] truePositions = new double[2 * numTiles][2];
+
+		for (int i = 0; i < 2 * numTiles; ++i) {
+			final int well = i / numTiles, j = i % numTiles;
+			final float[] stage = { well * 5000 + (j % wellSize) * 90, (j /
+				wellSize) * 90 };
+
+			final ImageCollectionElement element = new ImageCollectionElement(
+				new File("tile_" + i + ".tif"), i);
+			element.setModel(new TranslationModel2D());
+			element.setOffset(stage);
+
+			tiles.add(new ImagePlusTimePoint(element, 1, false));
+			truePositions[i][0] = stage[0] + rnd.nextDouble() * 10;
+			truePositions[i][1] = stage[1] + rnd.nextDouble() * 10;
+		}
+
+		final Vector<ComparePair> pairs = new Vector<ComparePair>();
+
+		for (int i = 0; i < 2 * numTiles; ++i)
+			for (final int j : new int[] { i + 1, i + wellSize }) {
+				if (j / numTiles != i / numTiles || (j == i + 1 && j %
+					wellSize == 0)) continue;
+
+				final ComparePair pair = new ComparePair(tiles.get(i), tiles.get(j));
+				pair.setRelativeShift(new float[] {
+					(float) (truePositions[j][0] - truePositions[i][0]),
+					(float) (truePositions[j][1] - truePositions[i][1]) });
+				pair.setCrossCorrelation(0.9f);
+				pairs.add(pair);
+			}
+
+		for (final boolean directSolver : new boolean[] { false, true }) {
+			for (final ImagePlusTimePoint tile : tiles)
+				((TranslationModel2D) tile.getModel()).set(0, 0);
+
+			final ArrayList<ImagePlusTimePoint> optimized = optimize(pairs,
+				directSolver, false);
+
+			assertEquals(2 * numTiles, optimized.size());
+
+			for (final ImagePlusTimePoint tile : optimized) {
+				final int i = tile.getImpId();
+
+				// the first tile of each well is where the stage puts it
+				final int first = (i / numTiles) * numTiles;
+				final double[] position = tile.getModel().apply(new double[2]);
+
+				for (int d = 0; d < 2; ++d)
+					assertEquals(tiles.get(first).getElement().getOffset(d) +
+						truePositions[i][d] - truePositions[first][d], position[d], 0.1);
+			}
+		}
+	}
+}
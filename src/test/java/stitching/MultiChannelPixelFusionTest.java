@@ -0,0 +1,118 @@
+/*
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2022 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package stitching;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import mpicbg.stitching.fusion.AveragePixelFusion;
+import mpicbg.stitching.fusion.AveragePixelFusionIgnoreZero;
+import mpicbg.stitching.fusion.BlendingPixelFusion;
+import mpicbg.stitching.fusion.BlendingPixelFusionIgnoreZero;
+import mpicbg.stitching.fusion.ImageInterpolation;
+import mpicbg.stitching.fusion.MaxPixelFusion;
+import mpicbg.stitching.fusion.MaxPixelFusionIgnoreZero;
+import mpicbg.stitching.fusion.MedianPixelFusion;
+import mpicbg.stitching.fusion.MedianPixelFusionIgnoreZero;
+import mpicbg.stitching.fusion.MinPixelFusion;
+import mpicbg.stitching.fusion.MinPixelFusionIgnoreZero;
+import mpicbg.stitching.fusion.MultiChannelPixelFusion;
+import mpicbg.stitching.fusion.OverlapFusion;
+import mpicbg.stitching.fusion.PixelFusion;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.junit.Test;
+
+/**
+ * Tests for the {@link MultiChannelPixelFusion} class.
+ */
+public class MultiChannelPixelFusionTest {
+
+	/**
+	 * Fusing all channels at once must give exactly the values of fusing each
+	 * channel on its own.
+	 */
+	@Test
+	public void testSameAsSeparateChannels() {
+		final long[][] sizes = { { 50, 40 }, { 30, 30 }, { 64, 20 } };
+		final ArrayList<ImageInterpolation<FloatType>> images =
+			new ArrayList<ImageInterpolation<FloatType>>();
+
+		for (final long[] size : sizes)
+			images.add(new ImageInterpolation<FloatType>(ArrayImgs.floats(size),
+				new NLinearInterpolatorFactory<FloatType>(), true));
+
+		final PixelFusion[] fusions = { new BlendingPixelFusion(images),
+			new BlendingPixelFusionIgnoreZero(images), new AveragePixelFusion(),
+			new AveragePixelFusionIgnoreZero(), new MedianPixelFusion(),
+			new MedianPixelFusionIgnoreZero(), new MaxPixelFusion(),
+			new MaxPixelFusionIgnoreZero(), new MinPixelFusion(),
+			new MinPixelFusionIgnoreZero(), new OverlapFusion() };
+
+		final int numChannels = 4;
+		final Random rnd = new Random(11);
+
+		for (final PixelFusion fusion : fusions) {
+			final MultiChannelPixelFusion multi = new MultiChannelPixelFusion(
+				fusion, numChannels).copy();
+			final PixelFusion[] separate = new PixelFusion[numChannels];
+
+			for (int c = 0; c < numChannels; ++c)
+				separate[c] = fusion.copy();
+
+			final double[] values = new double[numChannels];
+			final double[] result = new double[numChannels];
+
+			for (int n = 0; n < 1000; ++n) {
+				multi.clear();
+
+				for (int c = 0; c < numChannels; ++c)
+					separate[c].clear();
+
+				for (int image = 0; image < sizes.length; ++image) {
+					if (rnd.nextInt(3) == 0) continue;
+
+					final double[] position = new double[2];
+
+					for (int d = 0; d < 2; ++d)
+						position[d] = rnd.nextDouble() * (sizes[image][d] - 1);
+
+					for (int c = 0; c < numChannels; ++c) {
+						values[c] = rnd.nextInt(4) == 0 ? 0 : rnd.nextInt(1000);
+						separate[c].addValue(values[c], image, position);
+					}
+
+					multi.addValues(values, image, position);
+				}
+
+				multi.getValues(result);
+
+				for (int c = 0; c < numChannels; ++c)
+					assertEquals(separate[c].getValue(), result[c], 0);
+			}
+		}
+	}
+}
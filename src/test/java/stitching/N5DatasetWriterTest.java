@@ -0,0 +1,179 @@
+/*
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2022 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package stitching;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import mpicbg.stitching.fusion.N5DatasetWriter;
+
+import org.junit.Test;
+
+/**
+ * Tests for the {@link N5DatasetWriter} class.
+ */
+public class N5DatasetWriterTest {
+
+	@Test
+	public void testAttributes() throws IOException {
+		final File container = Files.createTempDirectory("n5").toFile();
+
+		new N5DatasetWriter(container, "c0/t0", new long[] { 100, 50, 7 },
+			new int[] { 32, 32, 32 }, 16, N5DatasetWriter.GZIP);
+
+		assertEquals("{\"n5\":\"2.0.0\"}", read(new File(container,
+			"attributes.json")));
+		assertEquals("{\"dimensions\":[100,50,7],\"blockSize\":[32,32,32]," +
+			"\"dataType\":\"uint16\",\"compression\":{\"type\":\"gzip\"," +
+			"\"level\":-1}}", read(new File(container, "c0/t0/attributes.json")));
+	}
+
+	@Test
+	public void testBorderBlockSize() throws IOException {
+		final File container = Files.createTempDirectory("n5").toFile();
+		final N5DatasetWriter writer = new N5DatasetWriter(container, "c0/t0",
+			new long[] { 100, 50, 7 }, new int[] { 32, 32, 32 }, 8,
+			N5DatasetWriter.RAW);
+
+		assertArrayEquals(new int[] { 32, 32, 7 }, writer.getBlockSize(
+			new long[] { 0, 0, 0 }));
+		assertArrayEquals(new int[] { 4, 18, 7 }, writer.getBlockSize(
+			new long[] { 3, 1, 0 }));
+	}
+
+	@Test
+	public void testRawBlock() throws IOException {
+		testBlock(N5DatasetWriter.RAW, 32);
+	}
+
+	@Test
+	public void testGzipBlock() throws IOException {
+		testBlock(N5DatasetWriter.GZIP, 16);
+	}
+
+	private void testBlock(final int compression, final int bitDepth)
+		throws IOException
+	{
+		final File container = Files.createTempDirectory("n5").toFile();
+		final N5DatasetWriter writer = new N5DatasetWriter(container, "c1/t0",
+			new long[] { 70, 40, 9 }, new int[] { 32, 32, 4 }, bitDepth,
+			compression);
+
+		final long[] gridPosition = new long[] { 2, 1, 2 };
+		final int[] size = writer.getBlockSize(gridPosition);
+		final byte[] data = new byte[size[0] * size[1] * size[2] * bitDepth / 8];
+		new Random(3).nextBytes(data);
+
+		writer.writeBlock(gridPosition, data);
+
+		final File file = new File(container, "c1/t0/2/1/2");
+		assertTrue(file.exists());
+		assertFalse(new File(container, "c1/t0/0").exists());
+
+		final DataInputStream in = new DataInputStream(new FileInputStream(
+			file));
+
+		// N5 block header, big-endian
+		assertEquals(0, in.readShort());
+		assertEquals(3, in.readShort());
+		assertEquals(6, in.readInt());
+		assertEquals(8, in.readInt());
+		assertEquals(1, in.readInt());
+
+		final InputStream body = compression == N5DatasetWriter.GZIP
+			? new GZIPInputStream(in) : in;
+		assertArrayEquals(data, readAll(body));
+		body.close();
+	}
+
+	/**
+	 * Blocks of an earlier fusion into the same dataset must not survive, they
+	 * would be read instead of the zeros of blocks that are empty now.
+	 */
+	@Test
+	public void testOverwriteDataset() throws IOException {
+		final File container = Files.createTempDirectory("n5").toFile();
+		final N5DatasetWriter first = new N5DatasetWriter(container, "c0/t0",
+			new long[] { 20, 20 }, new int[] { 8, 8 }, 8, N5DatasetWriter.RAW);
+
+		first.writeBlock(new long[] { 0, 0 }, new byte[64]);
+		first.writeBlock(new long[] { 2, 1 }, new byte[32]);
+
+		final N5DatasetWriter second = new N5DatasetWriter(container, "c0/t0",
+			new long[] { 20, 20 }, new int[] { 8, 8 }, 8, N5DatasetWriter.RAW);
+
+		second.writeBlock(new long[] { 0, 0 }, new byte[64]);
+
+		assertTrue(new File(container, "c0/t0/0/0").exists());
+		assertFalse(new File(container, "c0/t0/2").exists());
+		assertTrue(new File(container, "c0/t0/attributes.json").exists());
+	}
+
+	@Test(expected = IOException.class)
+	public void testNoDataset() throws IOException {
+		final File container = Files.createTempDirectory("n5").toFile();
+		final File directory = new File(container, "c0/t0");
+		assertTrue(directory.mkdirs());
+		assertTrue(new File(directory, "notes.txt").createNewFile());
+
+		new N5DatasetWriter(container, "c0/t0", new long[] { 10, 10 },
+			new int[] { 8, 8 }, 8, N5DatasetWriter.RAW);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testWrongBlockLength() throws IOException {
+		final File container = Files.createTempDirectory("n5").toFile();
+		final N5DatasetWriter writer = new N5DatasetWriter(container, "c0/t0",
+			new long[] { 10, 10 }, new int[] { 8, 8 }, 8, N5DatasetWriter.RAW);
+
+		writer.writeBlock(new long[] { 1, 1 }, new byte[64]);
+	}
+
+	private static String read(final File file) throws IOException {
+		final InputStream in = new FileInputStream(file);
+		final String text = new String(readAll(in), "UTF-8");
+		in.close();
+		return text;
+	}
+
+	private static byte[] readAll(final InputStream in) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[4096];
+
+		for (int n = in.read(buffer); n >= 0; n = in.read(buffer))
+			out.write(buffer, 0, n);
+
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,210 @@
+/*
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2022 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package stitching;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import ij.gui.Roi;
+
+import java.io.File;
+import java.io.IOException;
+
+import mpicbg.models.TranslationModel2D;
+import mpicbg.stitching.ComparePair;
+import mpicbg.stitching.ImageCollectionElement;
+import mpicbg.stitching.ImagePlusTimePoint;
+import mpicbg.stitching.PairwiseResultCache;
+import mpicbg.stitching.StitchingParameters;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the {@link PairwiseResultCache} class.
+ */
+public class PairwiseResultCacheTest {
+
+	private File tile1, tile2, results;
+	private final Roi roi1 = new Roi(80, 0, 20, 100), roi2 = new Roi(0, 0, 20,
+		100);
+
+	@Before
+	public void setUp() throws IOException {
+		tile1 = File.createTempFile("tile1", ".tif");
+		tile2 = File.createTempFile("tile2", ".tif");
+		results = File.createTempFile("TileConfiguration", ".pairwise.txt");
+		results.delete();
+	}
+
+	@After
+	public void tearDown() {
+		tile1.delete();
+		tile2.delete();
+		results.delete();
+	}
+
+	private ComparePair createPair() {
+		final ImageCollectionElement e1 = new ImageCollectionElement(tile1, 0);
+		final ImageCollectionElement e2 = new ImageCollectionElement(tile2, 1);
+		e1.setModel(new TranslationModel2D());
+		e2.setModel(new TranslationModel2D());
+
+		return new ComparePair(new ImagePlusTimePoint(e1, 1, false),
+			new ImagePlusTimePoint(e2, 1, false));
+	}
+
+	private static StitchingParameters createParameters() {
+		final StitchingParameters params = new StitchingParameters();
+		params.checkPeaks = 5;
+		params.subpixelAccuracy = true;
+
+		return params;
+	}
+
+	private String getKey(final ComparePair pair,
+		final StitchingParameters params)
+	{
+		return PairwiseResultCache.getKey(pair, roi1, roi2, null, null, params);
+	}
+
+	/**
+	 * Stores the result of one pair.
+	 */
+	private void store() {
+		final ComparePair pair = createPair();
+		pair.setRelativeShift(new float[] { 80.25f, -1.5f });
+		pair.setCrossCorrelation(0.875f);
+		pair.setPhaseCorrelation(0.125f);
+
+		final PairwiseResultCache cache = new PairwiseResultCache(results);
+		cache.put(getKey(pair, createParameters()), pair);
+		cache.save();
+	}
+
+	/**
+	 * A stored result is read back exactly.
+	 */
+	@Test
+	public void testReuse() {
+		store();
+
+		final ComparePair pair = createPair();
+		final PairwiseResultCache cache = new PairwiseResultCache(results);
+
+		assertTrue(cache.get(getKey(pair, createParameters()), pair));
+		assertArrayEquals(new float[] { 80.25f, -1.5f }, pair.getRelativeShift(),
+			0);
+		assertEquals(0.875f, pair.getCrossCorrelation(), 0);
+		assertEquals(0.125f, pair.getPhaseCorrelation(), 0);
+		assertEquals(1, cache.getHits());
+	}
+
+	/**
+	 * A result is not reused if a file was modified or the registration
+	 * parameters changed.
+	 */
+	@Test
+	public void testInvalidation() {
+		store();
+
+		final ComparePair pair = createPair();
+		final PairwiseResultCache cache = new PairwiseResultCache(results);
+
+		final StitchingParameters params = createParameters();
+		params.checkPeaks = 10;
+		assertFalse(cache.get(getKey(pair, params), pair));
+
+		assertFalse(cache.get(PairwiseResultCache.getKey(pair, roi1, new Roi(0,
+			0, 30, 100), null, null, createParameters()), pair));
+
+		assertTrue(tile2.setLastModified(tile2.lastModified() - 10000));
+		assertFalse(cache.get(getKey(pair, createParameters()), pair));
+
+		assertEquals(0, cache.getHits());
+	}
+
+	/**
+	 * A result computed on copied images is not reused when the images are
+	 * wrapped, and the other way around.
+	 */
+	@Test
+	public void testAlwaysCopyInKey() {
+		store();
+
+		final ComparePair pair = createPair();
+		final PairwiseResultCache cache = new PairwiseResultCache(results);
+		final boolean alwaysCopy = StitchingParameters.alwaysCopy;
+
+		try {
+			StitchingParameters.alwaysCopy = !alwaysCopy;
+			assertFalse(cache.get(getKey(pair, createParameters()), pair));
+		}
+		finally {
+			StitchingParameters.alwaysCopy = alwaysCopy;
+		}
+
+		assertTrue(cache.get(getKey(pair, createParameters()), pair));
+	}
+
+	/**
+	 * The stored results are ignored and overwritten if they should be
+	 * recomputed.
+	 */
+	@Test
+	public void testRecompute() {
+		store();
+
+		final ComparePair pair = createPair();
+		final PairwiseResultCache cache = new PairwiseResultCache(results, false);
+
+		assertFalse(cache.get(getKey(pair, createParameters()), pair));
+
+		pair.setRelativeShift(new float[] { 79.5f, -1.25f });
+		cache.put(getKey(pair, createParameters()), pair);
+		cache.save();
+
+		final ComparePair reread = createPair();
+
+		assertTrue(new PairwiseResultCache(results).get(getKey(reread,
+			createParameters()), reread));
+		assertArrayEquals(new float[] { 79.5f, -1.25f }, reread
+			.getRelativeShift(), 0);
+	}
+
+	/**
+	 * Only the results that were used or computed by the last run are written.
+	 */
+	@Test
+	public void testSaveCurrentOnly() {
+		store();
+
+		final ComparePair pair = createPair();
+		new PairwiseResultCache(results).save();
+
+		assertFalse(new PairwiseResultCache(results).get(getKey(pair,
+			createParameters()), pair));
+	}
+}
@@ -0,0 +1,94 @@
+/*
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2022 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package stitching;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for the {@link PeakHeap} class.
+ */
+public class PeakHeapTest {
+
+	/**
+	 * Heaps of parts of the peaks, merged in any order, must keep the same
+	 * peaks in the same order as the sorted list of the serial scan, including
+	 * ties.
+	 */
+	@Test
+	public void testSameAsSortedList() {
+		final Random rnd = new Random(77);
+
+		for (int n = 0; n < 200; ++n) {
+			final int k = rnd.nextInt(8);
+			final int numPeaks = rnd.nextInt(200);
+			final int numHeaps = 1 + rnd.nextInt(5);
+			final float[] values = new float[numPeaks];
+
+			for (int i = 0; i < numPeaks; ++i)
+				values[i] = 1 + rnd.nextInt(10);
+
+			// the insertion into a sorted list as findPeaks did it
+			final ArrayList<Integer> list = new ArrayList<Integer>();
+
+			for (int i = 0; i < numPeaks; ++i) {
+				int insertPos = 0;
+
+				while (insertPos < list.size() && values[i] > values[list.get(
+					insertPos)])
+					++insertPos;
+
+				if (list.size() < k) list.add(insertPos, i);
+				else if (insertPos > 0) {
+					list.add(insertPos, i);
+					list.remove(0);
+				}
+			}
+
+			final PeakHeap[] heaps = new PeakHeap[numHeaps];
+
+			for (int h = 0; h < numHeaps; ++h) {
+				heaps[h] = new PeakHeap(k);
+
+				for (int i = numPeaks * h / numHeaps; i < numPeaks * (h + 1) /
+					numHeaps; ++i)
+					heaps[h].add(values[i], i);
+			}
+
+			final PeakHeap merged = new PeakHeap(k);
+
+			for (int h = numHeaps - 1; h >= 0; --h)
+				merged.addAll(heaps[h]);
+
+			final int[] order = merged.getAscendingOrder();
+
+			assertEquals(list.size(), order.length);
+
+			for (int i = 0; i < order.length; ++i)
+				assertEquals((long) list.get(i), merged.getPosition(order[i]));
+		}
+	}
+}
@@ -0,0 +1,168 @@
+/*
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2022 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package stitching;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import mpicbg.stitching.PairWiseStitchingImgLib;
+import mpicbg.stitching.PairWiseStitchingResult;
+import mpicbg.stitching.PyramidPhaseCorrelation;
+import mpicbg.stitching.StitchingParameters;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the single level imglib phase correlation ({@code pyramidFactor}
+ * 1) with the coarse-to-fine {@link PyramidPhaseCorrelation} on two
+ * overlapping crops of a large 2d and a 3d image, both through
+ * {@link PairWiseStitchingImgLib#stitchPairwise}.
+ * <p>
+ * Run with {@code mvn test-compile exec:java
+ * -Dexec.mainClass=stitching.PyramidPhaseCorrelationBenchmark
+ * -Dexec.classpathScope=test}.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PyramidPhaseCorrelationBenchmark {
+
+	/** The size of both crops, they overlap by about three quarters. */
+	@Param({ "1024x1024", "256x256x64" })
+	public String size;
+
+	@Param({ "1", "4" })
+	public int pyramidFactor;
+
+	private ImagePlus imp1, imp2;
+	private StitchingParameters params;
+
+	@Setup
+	public void setup() {
+		final String[] dims = size.split("x");
+		final int[] cropSize = new int[dims.length];
+		final int[] fullSize = new int[dims.length];
+		final int[] offset1 = new int[dims.length];
+		final int[] offset2 = new int[dims.length];
+
+		for (int d = 0; d < dims.length; ++d) {
+			cropSize[d] = Integer.parseInt(dims[d]);
+			fullSize[d] = cropSize[d] * 5 / 4 + 8;
+			offset1[d] = 3 + d;
+			offset2[d] = cropSize[d] / 4 - d;
+		}
+
+		final float[] image = createImage(fullSize, new Random(4711));
+
+		imp1 = createImagePlus(PyramidPhaseCorrelation.crop(image, fullSize,
+			offset1, cropSize), cropSize);
+		imp2 = createImagePlus(PyramidPhaseCorrelation.crop(image, fullSize,
+			offset2, cropSize), cropSize);
+
+		params = new StitchingParameters();
+		params.channel1 = params.channel2 = 1;
+		params.checkPeaks = 5;
+		params.subpixelAccuracy = true;
+		params.pyramidFactor = pyramidFactor;
+	}
+
+	@Benchmark
+	public PairWiseStitchingResult stitchPairwise() {
+		return PairWiseStitchingImgLib.stitchPairwise(imp1, imp2, null, null, 1,
+			1, params);
+	}
+
+	private static ImagePlus createImagePlus(final float[] pixels,
+		final int[] size)
+	{
+		final int depth = size.length > 2 ? size[2] : 1;
+		final ImageStack stack = new ImageStack(size[0], size[1]);
+
+		for (int z = 0; z < depth; ++z) {
+			final float[] slice = new float[size[0] * size[1]];
+			System.arraycopy(pixels, z * slice.length, slice, 0, slice.length);
+			stack.addSlice("", new FloatProcessor(size[0], size[1], slice, null));
+		}
+
+		return new ImagePlus("", stack);
+	}
+
+	/**
+	 * Noise smoothed by a box filter in every dimension
+	 */
+	private static float[] createImage(final int[] size, final Random rnd) {
+		final int[] s = { size[0], size[1], size.length > 2 ? size[2] : 1 };
+		float[] image = new float[s[0] * s[1] * s[2]];
+
+		for (int i = 0; i < image.length; ++i)
+			image[i] = rnd.nextFloat() * 100;
+
+		final int[] step = { 1, s[0], s[0] * s[1] };
+
+		for (int d = 0; d < size.length; ++d) {
+			final float[] smoothed = new float[image.length];
+
+			for (int i = 0; i < image.length; ++i) {
+				final int pos = (i / step[d]) % s[d];
+				float sum = 0;
+				int count = 0;
+
+				for (int k = Math.max(0, pos - 2); k <= Math.min(s[d] - 1, pos +
+					2); ++k, ++count)
+					sum += image[i + (k - pos) * step[d]];
+
+				smoothed[i] = sum / count;
+			}
+
+			image = smoothed;
+		}
+
+		return image;
+	}
+
+	public static void main(final String... args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(
+			PyramidPhaseCorrelationBenchmark.class.getSimpleName()).build()).run();
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2022 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package stitching;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import ij.ImagePlus;
+import ij.process.FloatProcessor;
+
+import java.util.Random;
+
+import mpicbg.stitching.PairWiseStitchingImgLib;
+import mpicbg.stitching.PairWiseStitchingResult;
+import mpicbg.stitching.PyramidPhaseCorrelation;
+import mpicbg.stitching.StitchingParameters;
+
+import org.junit.Test;
+
+/**
+ * Tests for the {@link PyramidPhaseCorrelation} class.
+ */
+public class PyramidPhaseCorrelationTest {
+
+	/**
+	 * The coarse-to-fine phase correlation finds the same shift as the single
+	 * level one in 2d and 3d, including negative shifts and shifts that are not
+	 * multiples of the downsampling.
+	 */
+	@Test
+	public void testAccuracy() {
+		final Random rnd = new Random(17);
+
+		assertShift(rnd, new int[] { 400, 360 }, new int[] { 300, 256 },
+			new int[] { 13, 41 }, new int[] { 87, 3 }, 4);
+		assertShift(rnd, new int[] { 400, 360 }, new int[] { 300, 256 },
+			new int[] { 90, 70 }, new int[] { 5, 9 }, 8);
+		assertShift(rnd, new int[] { 180, 160, 72 }, new int[] { 128, 128, 48 },
+			new int[] { 41, 2, 19 }, new int[] { 0, 27, 5 }, 4);
+	}
+
+	/**
+	 * The coarse-to-fine path finds the same shift and cross correlation as the
+	 * single level imglib phase correlation on two overlapping crops.
+	 */
+	@Test
+	public void testSameAsSingleLevel() {
+		final int[] fullSize = { 420, 380 };
+		final int[] size = { 320, 300 };
+		final int[] offset1 = { 10, 60 }, offset2 = { 95, 22 };
+		final float[] image = createImage(fullSize, new Random(4711));
+
+		final ImagePlus imp1 = createImagePlus(PyramidPhaseCorrelation.crop(image,
+			fullSize, offset1, size), size);
+		final ImagePlus imp2 = createImagePlus(PyramidPhaseCorrelation.crop(image,
+			fullSize, offset2, size), size);
+
+		final StitchingParameters params = new StitchingParameters();
+		params.channel1 = params.channel2 = 1;
+		params.checkPeaks = 5;
+		params.subpixelAccuracy = true;
+
+		final PairWiseStitchingResult single = PairWiseStitchingImgLib
+			.stitchPairwise(imp1, imp2, null, null, 1, 1, params);
+
+		params.pyramidFactor = 4;
+		final PairWiseStitchingResult pyramid = PairWiseStitchingImgLib
+			.stitchPairwise(imp1, imp2, null, null, 1, 1, params);
+
+		assertNotNull(single);
+		assertNotNull(pyramid);
+
+		for (int d = 0; d < size.length; ++d) {
+			assertEquals(offset2[d] - offset1[d], single.getOffset(d), 0.25);
+			assertEquals(single.getOffset(d), pyramid.getOffset(d), 0.25);
+		}
+
+		assertEquals(single.getCrossCorrelation(), pyramid.getCrossCorrelation(),
+			0.01);
+	}
+
+	private static ImagePlus createImagePlus(final float[] pixels,
+		final int[] size)
+	{
+		return new ImagePlus("", new FloatProcessor(size[0], size[1], pixels,
+			null));
+	}
+
+	private static void assertShift(final Random rnd, final int[] fullSize,
+		final int[] size, final int[] offset1, final int[] offset2,
+		final int factor)
+	{
+		final float[] image = createImage(fullSize, rnd);
+		final PairWiseStitchingResult result = PyramidPhaseCorrelation
+			.computePhaseCorrelation(PyramidPhaseCorrelation.crop(image, fullSize,
+				offset1, size), size, PyramidPhaseCorrelation.crop(image, fullSize,
+					offset2, size), size, factor, 5, false);
+
+		assertNotNull(result);
+
+		for (int d = 0; d < size.length; ++d)
+			assertEquals(offset2[d] - offset1[d], result.getOffset(d), 0);
+
+		assertEquals(1, result.getCrossCorrelation(), 1e-4);
+	}
+
+	/**
+	 * Noise smoothed by a box filter in every dimension
+	 */
+	private static float[] createImage(final int[] size, final Random rnd) {
+		final int[] s = { size[0], size[1], size.length > 2 ? size[2] : 1 };
+		float[] image = new float[s[0] * s[1] * s[2]];
+
+		for (int i = 0; i < image.length; ++i)
+			image[i] = rnd.nextFloat() * 100;
+
+		final int[] step = { 1, s[0], s[0] * s[1] };
+
+		for (int d = 0; d < size.length; ++d) {
+			final float[] smoothed = new float[image.length];
+
+			for (int i = 0; i < image.length; ++i) {
+				final int pos = (i / step[d]) % s[d];
+				float sum = 0;
+				int count = 0;
+
+				for (int k = Math.max(0, pos - 2); k <= Math.min(s[d] - 1, pos +
+					2); ++k, ++count)
+					sum += image[i + (k - pos) * step[d]];
+
+				smoothed[i] = sum / count;
+			}
+
+			image = smoothed;
+		}
+
+		return image;
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2022 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package stitching;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import mpicbg.stitching.RoiView;
+
+import org.junit.Test;
+
+/**
+ * Tests for the {@link RoiView} class.
+ */
+public class RoiViewTest {
+
+	private static final int width = 7, height = 5, numChannels = 2,
+			numSlices = 4;
+
+	/**
+	 * The value of a pixel encodes its position and channel.
+	 */
+	private static float value(final int x, final int y, final int z,
+		final int c)
+	{
+		return x + 10 * y + 100 * z + 1000 * c;
+	}
+
+	private static ImagePlus createImage() {
+		final ImageStack stack = new ImageStack(width, height);
+
+		// channels are interleaved with the slices
+		for (int z = 0; z < numSlices; ++z)
+			for (int c = 1; c <= numChannels; ++c) {
+				final short[] pixels = new short[width * height];
+
+				for (int y = 0; y < height; ++y)
+					for (int x = 0; x < width; ++x)
+						pixels[y * width + x] = (short) value(x, y, z, c);
+
+				stack.addSlice("", pixels);
+			}
+
+		final ImagePlus imp = new ImagePlus("test", stack);
+		imp.setDimensions(numChannels, numSlices, 1);
+
+		return imp;
+	}
+
+	/**
+	 * A roi and range of slices of one channel are copied into the origin of a
+	 * larger array.
+	 */
+	@Test
+	public void testCopyInto() {
+		final RoiView view = new RoiView(createImage(), new Roi(2, 1, 4, 3),
+			new int[] { 1, 3 }, 2, 1);
+
+		assertArrayEquals(new int[] { 4, 3, 2 }, view.getSize());
+
+		final int[] targetSize = { 8, 4, 2 };
+		final float[] target = new float[8 * 4 * 2];
+		view.copyInto(target, targetSize);
+
+		for (int z = 0; z < 2; ++z)
+			for (int y = 0; y < 4; ++y)
+				for (int x = 0; x < 8; ++x) {
+					final float expected = x < 4 && y < 3 ? value(x + 2, y + 1, z + 1,
+						2) : 0;
+					assertEquals(expected, target[(z * 4 + y) * 8 + x], 0);
+				}
+	}
+
+	/**
+	 * Channel 0 averages all channels.
+	 */
+	@Test
+	public void testAverageChannels() {
+		final RoiView view = new RoiView(createImage(), null, null, 0, 1);
+
+		assertArrayEquals(new int[] { width, height, numSlices }, view
+			.getSize());
+
+		final float[] copy = view.copy();
+
+		for (int z = 0, i = 0; z < numSlices; ++z)
+			for (int y = 0; y < height; ++y)
+				for (int x = 0; x < width; ++x, ++i)
+					assertEquals((value(x, y, z, 1) + value(x, y, z, 2)) / 2, copy[i],
+						1e-4);
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2022 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package stitching;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Test;
+
+import stitching.model.NotEnoughDataPointsException;
+import stitching.model.Point;
+import stitching.model.PointMatch;
+import stitching.model.Tile;
+import stitching.model.TileConfiguration;
+import stitching.model.TranslationModel2D;
+
+/**
+ * Tests for the legacy {@link TileConfiguration} class.
+ */
+public class TileConfigurationTest {
+
+	/**
+	 * Creates a configuration of a grid of tiles whose links are the
+	 * distances of random positions plus noise, the first tile is fixed.
+	 */
+	private static TileConfiguration createGrid(final int size,
+		final double noise, final float[][] positions)
+	{
+		final Random rnd = new Random(42);
+		final ArrayList<Tile> tiles = new ArrayList<Tile>();
+
+		for (int i = 0; i < size * size; ++i) {
+			tiles.add(new Tile(100, 100, new TranslationModel2D()));
+			positions[i][0] = (i % size) * 90 + rnd.nextFloat() * 10;
+			positions[i][1] = (i / size) * 90 + rnd.nextFloat() * 10;
+		}
+
+		for (int i = 0; i < size * size; ++i)
+			for (final int j : new int[] { i + 1, i + size }) {
+				if (j >= size * size || (j == i + 1 && j % size == 0)) continue;
+
+				final Point p1 = new Point(new float[] { 0, 0 });
+				final Point p2 = new Point(new float[] {
+					(float) (positions[j][0] - positions[i][0] + rnd.nextGaussian() *
+						noise), (float) (positions[j][1] - positions[i][1] + rnd
+							.nextGaussian() * noise) });
+
+				tiles.get(i).addMatch(new PointMatch(p2, p1, 1));
+				tiles.get(j).addMatch(new PointMatch(p1, p2, 1));
+				tiles.get(i).addConnectedTile(tiles.get(j));
+				tiles.get(j).addConnectedTile(tiles.get(i));
+			}
+
+		final TileConfiguration tc = new TileConfiguration();
+		tc.addTiles(tiles);
+		tc.fixTile(tiles.get(0));
+
+		return tc;
+	}
+
+	private static float[] getPosition(final Tile tile) {
+		return ((TranslationModel2D) tile.getModel()).getTranslation();
+	}
+
+	@Test
+	public void testMultiThreadedExactLayout()
+		throws NotEnoughDataPointsException
+	{
+		final int size = 10;
+		final float[][] positions = new float[size * size][2];
+		final TileConfiguration tc = createGrid(size, 0, positions);
+
+		tc.setMultiThreaded(true);
+		tc.optimize(10, 10000, 200);
+
+		for (int i = 0; i < size * size; ++i)
+			for (int d = 0; d < 2; ++d)
+				assertEquals(positions[i][d] - positions[0][d], getPosition(tc
+					.getTiles().get(i))[d], 1);
+
+		assertEquals(0, tc.getAvgError(), 0.1);
+	}
+
+	@Test
+	public void testMultiThreadedAgainstSingleThreaded()
+		throws NotEnoughDataPointsException
+	{
+		final int size = 10;
+		final float[][] positions = new float[size * size][2];
+		final TileConfiguration single = createGrid(size, 2, positions);
+		final TileConfiguration multi = createGrid(size, 2, positions);
+
+		// a wide plateau, so that both stop close to the same optimum
+		single.optimize(10, 100000, 2000);
+		multi.setMultiThreaded(true);
+		multi.optimize(10, 100000, 2000);
+
+		for (int i = 0; i < size * size; ++i)
+			for (int d = 0; d < 2; ++d)
+				assertEquals(getPosition(single.getTiles().get(i))[d], getPosition(
+					multi.getTiles().get(i))[d], 0.25);
+
+		assertEquals(single.getAvgError(), multi.getAvgError(), 0.01);
+	}
+}
@@ -0,0 +1,153 @@
+/*
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2022 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package stitching;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import mpicbg.stitching.TileGridIndex;
+
+import org.junit.Test;
+
+/**
+ * Tests for the {@link TileGridIndex} class.
+ */
+public class TileGridIndexTest {
+
+	/**
+	 * Random layouts with varying tile sizes must give exactly the same pairs,
+	 * in the same order, as testing all pairs.
+	 */
+	@Test
+	public void testSameAsAllPairs() {
+		final Random rnd = new Random(4711);
+
+		for (int dimensionality = 2; dimensionality <= 3; ++dimensionality) {
+			final int numTiles = 2000;
+			final float[][] offsets = new float[numTiles][dimensionality];
+			final int[][] sizes = new int[numTiles][dimensionality];
+
+			for (int i = 0; i < numTiles; ++i)
+				for (int d = 0; d < dimensionality; ++d) {
+					offsets[i][d] = rnd.nextFloat() * 5000 - 1000;
+					sizes[i][d] = 10 + rnd.nextInt(400);
+				}
+
+			// a few very large and some degenerate tiles
+			sizes[17][0] = 3000;
+			sizes[42][1] = 1;
+			offsets[99] = offsets[98].clone();
+
+			final ArrayList<int[]> expected = new ArrayList<int[]>();
+
+			for (int i = 0; i < numTiles - 1; ++i)
+				for (int j = i + 1; j < numTiles; ++j)
+					if (TileGridIndex.overlaps(offsets[i], sizes[i], offsets[j],
+						sizes[j], dimensionality)) expected.add(new int[] { i, j });
+
+			final ArrayList<int[]> pairs =
+				new TileGridIndex(offsets, sizes, dimensionality).getOverlappingPairs();
+
+			assertEquals(expected.size(), pairs.size());
+
+			for (int i = 0; i < expected.size(); ++i)
+				assertArrayEquals(expected.get(i), pairs.get(i));
+		}
+	}
+
+	/**
+	 * Regular grids up to 100k tiles, testing all pairs would take minutes for
+	 * the largest one.
+	 */
+	@Test(timeout = 60000)
+	public void testScaling() {
+		for (final int sideLength : new int[] { 32, 100, 317 }) {
+			final int numTiles = sideLength * sideLength;
+			final float[][] offsets = new float[numTiles][2];
+			final int[][] sizes = new int[numTiles][2];
+
+			// 10% overlap, so every tile overlaps with its 8 neighbors
+			for (int y = 0; y < sideLength; ++y)
+				for (int x = 0; x < sideLength; ++x) {
+					final int i = y * sideLength + x;
+					offsets[i][0] = x * 460.8f;
+					offsets[i][1] = y * 460.8f;
+					sizes[i][0] = sizes[i][1] = 512;
+				}
+
+			final ArrayList<int[]> pairs =
+				new TileGridIndex(offsets, sizes, 2).getOverlappingPairs();
+
+			final int n = sideLength;
+			assertEquals(2 * n * (n - 1) + 2 * (n - 1) * (n - 1), pairs.size());
+		}
+	}
+
+	/**
+	 * The tiles of the cell of a position must include all tiles that contain
+	 * that position.
+	 */
+	@Test
+	public void testTilesAtPosition() {
+		final Random rnd = new Random(1234);
+
+		for (int dimensionality = 1; dimensionality <= 3; ++dimensionality) {
+			final int numTiles = 500;
+			final float[][] offsets = new float[numTiles][dimensionality];
+			final int[][] sizes = new int[numTiles][dimensionality];
+
+			for (int i = 0; i < numTiles; ++i)
+				for (int d = 0; d < dimensionality; ++d) {
+					offsets[i][d] = rnd.nextInt(2000);
+					sizes[i][d] = 1 + rnd.nextInt(300);
+				}
+
+			final TileGridIndex index =
+				new TileGridIndex(offsets, sizes, dimensionality);
+			final int[] position = new int[3];
+
+			for (int n = 0; n < 10000; ++n) {
+				for (int d = 0; d < dimensionality; ++d)
+					position[d] = rnd.nextInt(2400) - 100;
+
+				final List<Integer> tiles = index.getTiles(index.getKeyAt(position));
+
+				for (int i = 0; i < numTiles; ++i) {
+					boolean inside = true;
+
+					for (int d = 0; d < dimensionality; ++d)
+						inside &= position[d] >= offsets[i][d] && position[d] <
+							offsets[i][d] + sizes[i][d];
+
+					if (inside) assertTrue(tiles.contains(i));
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,142 @@
+/*
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2022 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package stitching;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.Vector;
+
+import mpicbg.models.TranslationModel2D;
+import mpicbg.stitching.ComparePair;
+import mpicbg.stitching.GlobalOptimization;
+import mpicbg.stitching.ImagePlusTimePoint;
+import mpicbg.stitching.StitchingParameters;
+import mpicbg.stitching.TranslationSolver;
+
+import org.junit.Test;
+
+/**
+ * Tests for the {@link TranslationSolver} class.
+ */
+public class TranslationSolverTest {
+
+	/**
+	 * Creates the pairs of a grid of tiles whose shifts are the distances of
+	 * random positions plus noise.
+	 */
+	private static Vector<ComparePair> createGrid(final int size,
+		final double noise, final double[][] positions)
+	{
+		final Random rnd = new Random(42);
+		final ArrayList<ImagePlusTimePoint> tiles =
+			new ArrayList<ImagePlusTimePoint>();
+
+		for (int i = 0; i < size * size; ++i) {
+			tiles.add(new ImagePlusTimePoint(null, i, 1, new TranslationModel2D(),
+				null));
+			positions[i][0] = (i % size) * 90 + rnd.nextDouble() * 10;
+			positions[i][1] = (i / size) * 90 + rnd.nextDouble() * 10;
+		}
+
+		final Vector<ComparePair> pairs = new Vector<ComparePair>();
+
+		for (int i = 0; i < size * size; ++i)
+			for (final int j : new int[] { i + 1, i + size }) {
+				if (j >= size * size || (j == i + 1 && j % size == 0)) continue;
+
+				final ComparePair pair = new ComparePair(tiles.get(i), tiles.get(j));
+				pair.setRelativeShift(new float[] {
+					(float) (positions[j][0] - positions[i][0] + rnd.nextGaussian() *
+						noise), (float) (positions[j][1] - positions[i][1] + rnd
+							.nextGaussian() * noise) });
+				pair.setCrossCorrelation(0.5f + rnd.nextFloat() * 0.5f);
+				pairs.add(pair);
+			}
+
+		return pairs;
+	}
+
+	private static StitchingParameters createParameters(
+		final boolean directSolver)
+	{
+		final StitchingParameters params = new StitchingParameters();
+		params.dimensionality = 2;
+		params.regThreshold = 0.3;
+		params.relativeThreshold = 1000;
+		params.absoluteThreshold = 1000;
+		params.directSolver = directSolver;
+
+		return params;
+	}
+
+	private static double[] getPosition(final ImagePlusTimePoint tile) {
+		return tile.getModel().apply(new double[2]);
+	}
+
+	/**
+	 * Without noise the layout is found exactly, also for a large grid.
+	 */
+	@Test
+	public void testExactLayout() {
+		final int size = 100;
+		final double[][] positions = new double[size * size][2];
+		final Vector<ComparePair> pairs = createGrid(size, 0, positions);
+
+		final ArrayList<ImagePlusTimePoint> optimized = GlobalOptimization
+			.optimize(pairs, pairs.get(0).getTile1(), createParameters(true));
+
+		assertEquals(size * size, optimized.size());
+
+		for (final ImagePlusTimePoint tile : optimized)
+			for (int d = 0; d < 2; ++d)
+				assertEquals(positions[tile.getImpId()][d] - positions[0][d],
+					getPosition(tile)[d], 1e-3);
+	}
+
+	/**
+	 * With noise the direct solver finds the same layout as the iterative
+	 * optimization.
+	 */
+	@Test
+	public void testAgainstIterative() {
+		final int size = 6;
+		final double[][] positions = new double[size * size][2];
+
+		final Vector<ComparePair> pairs1 = createGrid(size, 1, positions);
+		final Vector<ComparePair> pairs2 = createGrid(size, 1, positions);
+
+		final ArrayList<ImagePlusTimePoint> iterative = GlobalOptimization
+			.optimize(pairs1, pairs1.get(0).getTile1(), createParameters(false));
+		final ArrayList<ImagePlusTimePoint> direct = GlobalOptimization.optimize(
+			pairs2, pairs2.get(0).getTile1(), createParameters(true));
+
+		assertEquals(iterative.size(), direct.size());
+
+		for (int i = 0; i < iterative.size(); ++i)
+			for (int d = 0; d < 2; ++d)
+				assertEquals(getPosition(iterative.get(i))[d], getPosition(direct
+					.get(i))[d], 0.01);
+	}
+}